@@ -13,6 +13,9 @@ public class Constants {
   public static final String DOCUMENTS_OUTPUT_PATH =
       "/home/sushkov/Programming/experimental/experimental/data/documents";
 
+  public static final String DOCUMENT_SEGMENTS_PATH =
+      "/home/sushkov/Programming/experimental/experimental/data/document_segments";
+
   public static final String AGGREGATE_DATA_PATH =
       "/home/sushkov/Programming/experimental/experimental/data/aggregate_data";
 
@@ -24,7 +24,9 @@ import com.experimental.sitepage.SitePage;
 import com.experimental.utils.Common;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -36,15 +38,15 @@ import org.apache.spark.mllib.regression.LabeledPoint;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main {
   public static void main(String[] args) {
 //    parseWikipediaDocuments();
 //    parseWebbaseDocuments();
+//    convertSentenceStore();
+//    packDocumentSegments();
+//    buildCorpusManifest();
 
 //    aggregateLemmaQuality();
 //    outputConcatenatedLemmatisedDocuments();
@@ -84,7 +86,9 @@ public class Main {
 //    testAdTextGenerator();
 //    generateBasisVector();
 //    vectoriseDocuments();
+//    buildDocumentNeighbourGraph();
 //    findDocumentNearestNeighbours();
+//    measureNearestDocumentsRecall();
 
 //    generateNounPhrases();
 //    testKeywordCandidateExtraction();
@@ -313,21 +317,15 @@ public class Main {
   private static void clusterDocuments() {
     final List<Document> allDocuments = new ArrayList<Document>();
 
-    final Executor executor = Executors.newFixedThreadPool(12);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
-
     List<DocumentNameGenerator.DocumentType> docTypesToProcess =
         Lists.newArrayList(DocumentNameGenerator.DocumentType.TOPICAL);
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
     documentStream.setDocumentLimit(1100000);
-    documentStream.streamDocuments(docTypesToProcess, new DocumentStream.DocumentStreamOutput() {
-      @Override
-      public void processDocument(final Document document) {
-        numDocuments.incrementAndGet();
-        executor.execute(new Runnable() {
+    documentStream.setNumWorkers(12);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(docTypesToProcess,
+        new DocumentStream.DocumentStreamOutput() {
           @Override
-          public void run() {
+          public void processDocument(Document document) {
             int allDocumentsSize;
             synchronized (allDocuments) {
               allDocumentsSize = allDocuments.size();
@@ -343,30 +341,9 @@ public class Main {
             }
 
             document.freeSentences();
-            if (Common.rnd.nextInt(1000) == 0) {
-              System.gc();
-            }
-
-            sem.release();
           }
-        });
-      }
-    });
-
+        }));
 
-    for (int i = 0; i < numDocuments.get(); i++) {
-      int remaining = numDocuments.get() - i;
-      if (remaining%1000 == 0) {
-        Log.out("remaining: " + remaining);
-      }
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
-
-    System.gc();
     Log.out("clustering documents: " + allDocuments.size());
     DocumentClusters documentClusters = new DocumentClusters();
     documentClusters.clusterDocuments(allDocuments, 1);
@@ -532,9 +509,9 @@ public class Main {
 
 
   private static void trainClassifier() {
-    final String LEMMA_QUALITY_WIKI_FILENAME = "lemma_quality_wiki.txt";
-    final String LEMMA_IDF_WIKI_FILENAME = "lemma_idf_weights_wiki.txt";
-    final String VARIANCES_DATA_FILENAME = "global_lemma_occurance_statistics_wiki.txt";
+    final String LEMMA_QUALITY_WIKI_FILENAME = "lemma_quality_wiki.bin";
+    final String LEMMA_IDF_WIKI_FILENAME = "lemma_idf_weights_wiki.bin";
+    final String VARIANCES_DATA_FILENAME = "global_lemma_occurance_statistics_wiki.bin";
 
     NounPhrasesDB nounPhraseDb = new NounPhrasesDB(LemmaDB.instance, LemmaMorphologies.instance);
     try {
@@ -1064,53 +1041,27 @@ public class Main {
       e.printStackTrace();
     }
 
-    final Executor executor = Executors.newFixedThreadPool(12);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
     final Random rand = new Random();
 
     List<DocumentNameGenerator.DocumentType> docTypesToProcess = Lists.newArrayList(
         DocumentNameGenerator.DocumentType.TOPICAL, DocumentNameGenerator.DocumentType.UNRELATED_COLLECTION);
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(docTypesToProcess, new DocumentStream.DocumentStreamOutput() {
-      @Override
-      public void processDocument(final Document document) {
-        numDocuments.incrementAndGet();
-        executor.execute(new Runnable() {
+    documentStream.setNumWorkers(12);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(docTypesToProcess,
+        new DocumentStream.DocumentStreamOutput() {
           @Override
-          public void run() {
+          public void processDocument(Document document) {
             try {
               if (rand.nextInt()%2 == 0) {
-                for (Sentence sentence : document.getSentences()) {
-                  nounPhrasesDb.addSentence(sentence);
-                }
+                nounPhrasesDb.addSentences(document.getSentenceBlock());
               }
             } catch (Throwable e) {
               return;
-            } finally {
-              sem.release();
-            }
-
-            if (rand.nextInt()%5000 == 0) {
-              System.gc();
             }
           }
-        });
-      }
-    });
+        }));
 
     Log.out("processed all docs");
-    for (int i = 0; i < numDocuments.get(); i++) {
-      int remaining = numDocuments.get() - i;
-      if (remaining%1000 == 0) {
-        Log.out("remaining: " + remaining);
-      }
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
 
     Log.out("saving");
     try {
@@ -1227,6 +1178,60 @@ public class Main {
         });
   }
 
+  public static void measureNearestDocumentsRecall() {
+    DocumentVectorDB documentVectorDB = new DocumentVectorDB();
+    documentVectorDB.load();
+    documentVectorDB.enableApproximateSearch();
+
+    for (int efSearch : new int[] {16, 32, 64, 128, 256}) {
+      documentVectorDB.setEfSearch(efSearch);
+      documentVectorDB.measureApproximateRecall(1000, 30);
+    }
+
+    DocumentClusters documentClusters = new DocumentClusters();
+    try {
+      if (!documentClusters.tryLoad()) {
+        Log.out("could not load DocumentClusters");
+        return;
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+
+    documentVectorDB.enableClusterSearch(documentClusters);
+    for (int numProbes : new int[] {4, 8, 16, 32, 64}) {
+      documentVectorDB.setNumProbes(numProbes);
+      documentVectorDB.measureApproximateRecall(1000, 30);
+    }
+  }
+
+  private static void buildCorpusManifest() {
+    Log.out("buildCorpusManifest running...");
+
+    try {
+      CorpusManifest manifest = CorpusManifest.load(Constants.DOCUMENTS_OUTPUT_PATH);
+      manifest.rebuild(12);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    Log.out("buildCorpusManifest finished");
+  }
+
+  private static void saveCorpusManifest(CorpusManifest manifest) {
+    DocumentDB.instance.setManifest(null);
+    if (manifest == null) {
+      return;
+    }
+
+    try {
+      manifest.save();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   public static void vectoriseDocuments() {
 //    Word2VecDB word2VecDb = Word2VecDB.tryLoad();
 //    if (word2VecDb == null) {
@@ -1260,55 +1265,46 @@ public class Main {
     List<DocumentNameGenerator.DocumentType> docTypesToProcess =
         Lists.newArrayList(DocumentNameGenerator.DocumentType.TOPICAL);
 
-    final Executor executor = Executors.newFixedThreadPool(12);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
+    CorpusManifest manifest = CorpusManifest.tryLoad(Constants.DOCUMENTS_OUTPUT_PATH);
+    DocumentDB.instance.setManifest(manifest);
 
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(docTypesToProcess,
+    documentStream.setNumWorkers(12);
+    documentStream.setPrefetch(4, 64, EnumSet.of(DocumentStream.PrefetchArtifact.BAG_OF_LEMMAS));
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(docTypesToProcess,
         new DocumentStream.DocumentStreamOutput() {
           @Override
-          public void processDocument(final Document document) {
-            numDocuments.incrementAndGet();
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                if (Common.rnd.nextInt(1000) == 0) {
-                  System.gc();
-                }
-
-                try {
-                  ConceptVector vector = documentVectoriser.computeDocumentVector(document);
-                  document.setConceptVector(vector);
-                  document.save();
-                  document.freeSentences();
-                } catch (Throwable e) {
-                  e.printStackTrace();
-                  return;
-                } finally {
-                  sem.release();
-                }
-              }
-            });
+          public void processDocument(Document document) {
+            try {
+              ConceptVector vector = documentVectoriser.computeDocumentVector(document);
+              document.setConceptVector(vector);
+              document.save();
+              document.freeSentences();
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
           }
-        });
+        }));
 
-    for (int i = 0; i < numDocuments.get(); i++) {
-      if (i%1000 == 0) {
-        Log.out("left: " + Integer.toString(numDocuments.get() - i));
-      }
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
+    saveCorpusManifest(manifest);
+    // The vector DB only holds website vectors, its snapshot and indexes survive other types.
+    if (docTypesToProcess.contains(DocumentNameGenerator.DocumentType.WEBSITE)) {
+      DocumentVectorDB.invalidateSnapshot();
+      // Writes the snapshot now, so later runs map it instead of streaming the corpus.
+      new DocumentVectorDB().load();
     }
+    Log.out("done");
+  }
 
+  public static void buildDocumentNeighbourGraph() {
+    DocumentVectorDB documentVectorDB = new DocumentVectorDB();
+    documentVectorDB.load();
+    documentVectorDB.buildNeighbourGraph();
     Log.out("done");
   }
 
   public static void buildLemmaIdfWeights() {
-    final String WIKI_FILENAME = "lemma_idf_weights_wiki.txt";
+    final String WIKI_FILENAME = "lemma_idf_weights_wiki.bin";
 
     List<DocumentNameGenerator.DocumentType> docTypesToProcess =
         Lists.newArrayList(DocumentNameGenerator.DocumentType.TOPICAL);
@@ -1316,51 +1312,39 @@ public class Main {
 
     final LemmaIDFWeights lemmaIDFWeights = new LemmaIDFWeights(LemmaDB.instance, LemmaMorphologies.instance);
 
-    final Executor executor = Executors.newFixedThreadPool(12);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
-    final Random rand = new Random();
-
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(docTypesToProcess,
+    documentStream.setNumWorkers(12);
+    CorpusManifest manifest = CorpusManifest.tryLoad(Constants.DOCUMENTS_OUTPUT_PATH);
+    if (manifest != null) {
+      documentStream.setManifestFilter(manifest, new Predicate<CorpusManifest.Entry>() {
+        @Override
+        public boolean apply(CorpusManifest.Entry entry) {
+          return lemmaIDFWeights.isDocumentValid(entry);
+        }
+      });
+    }
+    documentStream.setPrefetch(4, 64, EnumSet.of(DocumentStream.PrefetchArtifact.SENTENCES,
+        DocumentStream.PrefetchArtifact.BAG_OF_LEMMAS));
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(docTypesToProcess,
         new DocumentStream.DocumentStreamOutput() {
           @Override
-          public void processDocument(final Document document) {
-            numDocuments.incrementAndGet();
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                try {
-                  if (lemmaIDFWeights.isDocumentValid(document)) {
-                    lemmaIDFWeights.processDocument(document, 1.0);
-//                    if (document instanceof WebsiteDocument) {
-//                      lemmaIDFWeights.processDocument(document, 1.0);
-//                    } else if (document instanceof TopicalDocument) {
-//                      lemmaIDFWeights.processDocument(document, 0.01);
-//                    }
-                  }
-                } catch (Throwable e) {
-                  return;
-                } finally {
-                  sem.release();
-                }
-
-                if (rand.nextInt()%5000 == 0) {
-                  System.gc();
-                }
+          public void processDocument(Document document) {
+            try {
+              if (lemmaIDFWeights.isDocumentValid(document)) {
+                lemmaIDFWeights.processDocument(document, 1.0);
+//                if (document instanceof WebsiteDocument) {
+//                  lemmaIDFWeights.processDocument(document, 1.0);
+//                } else if (document instanceof TopicalDocument) {
+//                  lemmaIDFWeights.processDocument(document, 0.01);
+//                }
               }
-            });
+            } catch (Throwable e) {
+              return;
+            }
           }
-        });
+        }));
 
     Log.out("processed all docs");
-    for (int i = 0; i < numDocuments.get(); i++) {
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
 
     try {
       lemmaIDFWeights.save(WIKI_FILENAME);
@@ -1400,8 +1384,16 @@ public class Main {
       }
     }
 
-    PageCrawler crawler = new PageCrawler();
+    // Crawled sites are added to the manifest as they are saved, so filtered streams include them.
+    CorpusManifest manifest = CorpusManifest.tryLoad(Constants.DOCUMENTS_OUTPUT_PATH);
+    DocumentNameGenerator documentNameGenerator = manifest != null ?
+        new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH, manifest) :
+        new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH);
+    DocumentDB.instance.setManifest(manifest);
+
+    PageCrawler crawler = new PageCrawler(documentNameGenerator);
     crawler.crawlSites(crawlUrls);
+    saveCorpusManifest(manifest);
 
     Log.out("pageCrawler finished");
   }
@@ -1428,6 +1420,29 @@ public class Main {
     Demo.runDemo();
   }
 
+  private static void convertSentenceStore() {
+    Log.out("convertSentenceStore running...");
+
+    SentenceStoreConverter converter = new SentenceStoreConverter(Constants.DOCUMENTS_OUTPUT_PATH, true);
+    converter.convertCorpus(12);
+
+    Log.out("convertSentenceStore finished");
+  }
+
+  private static void packDocumentSegments() {
+    Log.out("packDocumentSegments running...");
+
+    DocumentSegmentStore segmentStore = new DocumentSegmentStore(Constants.DOCUMENT_SEGMENTS_PATH);
+    DocumentSegmentPacker packer = new DocumentSegmentPacker(Constants.DOCUMENTS_OUTPUT_PATH, segmentStore);
+    try {
+      packer.packCorpus();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    Log.out("packDocumentSegments finished");
+  }
+
   private static void parseWikipediaDocuments() {
     Log.out("parseWikipediaDocuments running...");
 
@@ -1443,10 +1458,17 @@ public class Main {
       }
     };
 
-    DocumentNameGenerator documentNameGenerator = new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH);
+    // New documents are added to the manifest as they are saved, so it stays a complete list of names.
+    CorpusManifest manifest = CorpusManifest.tryLoad(Constants.DOCUMENTS_OUTPUT_PATH);
+    DocumentNameGenerator documentNameGenerator = manifest != null ?
+        new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH, manifest) :
+        new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH);
+    DocumentDB.instance.setManifest(manifest);
+
     RecursiveDocumentsParser recursiveParser = new RecursiveDocumentsParser(
         Constants.WIKI_ROOT_PATH, parserFactory, documentNameGenerator, SentenceProcessor.instance);
     recursiveParser.parseDocuments();
+    saveCorpusManifest(manifest);
 
     Log.out("parseWikipediaDocuments finished");
   }
@@ -1466,16 +1488,23 @@ public class Main {
       }
     };
 
-    DocumentNameGenerator documentNameGenerator = new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH);
+    // New documents are added to the manifest as they are saved, so it stays a complete list of names.
+    CorpusManifest manifest = CorpusManifest.tryLoad(Constants.DOCUMENTS_OUTPUT_PATH);
+    DocumentNameGenerator documentNameGenerator = manifest != null ?
+        new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH, manifest) :
+        new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH);
+    DocumentDB.instance.setManifest(manifest);
+
     RecursiveDocumentsParser recursiveParser = new RecursiveDocumentsParser(
         Constants.WEBBASE_ROOT_PATH, parserFactory, documentNameGenerator, SentenceProcessor.instance);
     recursiveParser.parseDocuments();
+    saveCorpusManifest(manifest);
 
     Log.out("parseWebbaseDocuments finished");
   }
 
   private static void aggregateLemmaVariance() {
-    final String WIKI_FILENAME = "global_lemma_occurance_statistics_wiki.txt";
+    final String WIKI_FILENAME = "global_lemma_occurance_statistics_wiki.bin";
 
     Log.out("aggregateLemmaVariance running...");
 
@@ -1489,47 +1518,24 @@ public class Main {
       e.printStackTrace();
     }
 
-    final Executor executor = Executors.newFixedThreadPool(12);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
-    final Random rand = new Random();
-
     List<DocumentNameGenerator.DocumentType> docTypesToProcess =
         Lists.newArrayList(DocumentNameGenerator.DocumentType.TOPICAL);
 
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(docTypesToProcess, new DocumentStream.DocumentStreamOutput() {
-      @Override
-      public void processDocument(final Document document) {
-        numDocuments.incrementAndGet();
-        executor.execute(new Runnable() {
+    documentStream.setNumWorkers(12);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(docTypesToProcess,
+        new DocumentStream.DocumentStreamOutput() {
           @Override
-          public void run() {
+          public void processDocument(Document document) {
             try {
               lemmaVarianceAggregator.addDocument(document);
             } catch (Throwable e) {
               return;
-            } finally {
-              sem.release();
-            }
-
-            if (rand.nextInt()%5000 == 0) {
-              System.gc();
             }
           }
-        });
-
-      }
-    });
+        }));
 
     Log.out("processed all docs");
-    for (int i = 0; i < numDocuments.get(); i++) {
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
 
     try {
       lemmaVarianceAggregator.save(WIKI_FILENAME);
@@ -1543,7 +1549,7 @@ public class Main {
   private static void aggregateLemmaQuality() {
     Log.out("aggregateLemmaQuality running...");
 
-    final String WIKI_FILENAME = "lemma_quality_wiki.txt";
+    final String WIKI_FILENAME = "lemma_quality_wiki.bin";
 
     final LemmaQuality lemmaQualityAggregator = new LemmaQuality();
     try {
@@ -1555,47 +1561,24 @@ public class Main {
       e.printStackTrace();
     }
 
-    final Executor executor = Executors.newFixedThreadPool(12);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
-    final Random rand = new Random();
-
     List<DocumentNameGenerator.DocumentType> docTypesToProcess =
         Lists.newArrayList(DocumentNameGenerator.DocumentType.TOPICAL);
 
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(docTypesToProcess, new DocumentStream.DocumentStreamOutput() {
-      @Override
-      public void processDocument(final Document document) {
-        numDocuments.incrementAndGet();
-        executor.execute(new Runnable() {
+    documentStream.setNumWorkers(12);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(docTypesToProcess,
+        new DocumentStream.DocumentStreamOutput() {
           @Override
-          public void run() {
+          public void processDocument(Document document) {
             try {
               lemmaQualityAggregator.addDocument(document);
             } catch (Throwable e) {
               return;
-            } finally {
-              sem.release();
-            }
-
-            if (rand.nextInt()%5000 == 0) {
-              System.gc();
             }
           }
-        });
-
-      }
-    });
+        }));
 
     Log.out("processed all docs");
-    for (int i = 0; i < numDocuments.get(); i++) {
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
 
     try {
       lemmaQualityAggregator.save(WIKI_FILENAME);
@@ -1634,17 +1617,38 @@ public class Main {
 
     final BufferedWriter outputWriter = bw;
 
+    List<DocumentNameGenerator.DocumentType> docTypesToProcess =
+        Lists.newArrayList(DocumentNameGenerator.DocumentType.values());
+
+    // Documents are loaded and simplified in parallel but written out in stream order.
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(new DocumentStream.DocumentStreamOutput() {
-      @Override
-      public void processDocument(Document document) {
-        try {
-          document.writeSimplified(outputWriter);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
-    });
+    documentStream.setNumWorkers(12);
+    documentStream.setOrderedDelivery(true);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(docTypesToProcess,
+        new DocumentStream.ParallelDocumentOutput<String>() {
+          @Override
+          public String processDocument(Document document) {
+            StringWriter simplified = new StringWriter();
+            try {
+              BufferedWriter bw = new BufferedWriter(simplified);
+              document.writeSimplified(bw);
+              bw.flush();
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+            document.freeSentences();
+            return simplified.toString();
+          }
+
+          @Override
+          public void collectResult(Document document, String simplified) {
+            try {
+              outputWriter.write(simplified);
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+          }
+        }));
 
     try {
       outputWriter.close();
@@ -1668,33 +1672,16 @@ public class Main {
       e.printStackTrace();
     }
 
-    final Executor executor = Executors.newFixedThreadPool(12);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
-
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(new DocumentStream.DocumentStreamOutput() {
+    documentStream.setNumWorkers(12);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(new DocumentStream.DocumentStreamOutput() {
       @Override
-      public void processDocument(final Document document) {
-        numDocuments.incrementAndGet();
-        executor.execute(new Runnable() {
-          @Override
-          public void run() {
-            nounAssociations.addDocument(document);
-            sem.release();
-          }
-        });
+      public void processDocument(Document document) {
+        nounAssociations.addDocument(document);
       }
-    });
+    }));
 
     Log.out("processed all docs");
-    for (int i = 0; i < numDocuments.get(); i++) {
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
 
     try {
       nounAssociations.save();
@@ -1718,38 +1705,20 @@ public class Main {
       e.printStackTrace();
     }
 
-    final Executor executor = Executors.newFixedThreadPool(8);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
-
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(new DocumentStream.DocumentStreamOutput() {
+    documentStream.setNumWorkers(8);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(new DocumentStream.DocumentStreamOutput() {
       @Override
-      public void processDocument(final Document document) {
-        numDocuments.incrementAndGet();
-
-        executor.execute(new Runnable() {
-          @Override
-          public void run() {
-            for (Sentence sentence : document.getSentences()) {
-              for (Token token : sentence.tokens) {
-                lemmaMorphologies.addToken(token);
-              }
-            }
-            sem.release();
+      public void processDocument(Document document) {
+        for (Sentence sentence : document.getSentences()) {
+          for (Token token : sentence.tokens) {
+            lemmaMorphologies.addToken(token);
           }
-        });
+        }
       }
-    });
+    }));
 
     Log.out("processed all docs");
-    for (int i = 0; i < numDocuments.get(); i++) {
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
 
     try {
       lemmaMorphologies.save();
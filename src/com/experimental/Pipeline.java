@@ -5,15 +5,13 @@ import com.experimental.languagemodel.LemmaDB;
 import com.experimental.languagemodel.LemmaIDFWeights;
 import com.experimental.languagemodel.LemmaMorphologies;
 import com.experimental.utils.Log;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 
 import java.io.IOException;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Random;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by sushkov on 14/01/15.
@@ -29,51 +27,44 @@ public class Pipeline {
 
     final LemmaIDFWeights lemmaIDFWeights = new LemmaIDFWeights(LemmaDB.instance, LemmaMorphologies.instance);
 
-    final Executor executor = Executors.newFixedThreadPool(12);
-    final AtomicInteger numDocuments = new AtomicInteger(0);
-    final Semaphore sem = new Semaphore(0);
-    final Random rand = new Random();
-
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
-    documentStream.streamDocuments(docTypesToProcess,
+    documentStream.setNumWorkers(12);
+    CorpusManifest manifest = CorpusManifest.tryLoad(Constants.DOCUMENTS_OUTPUT_PATH);
+    if (manifest != null) {
+      documentStream.setManifestFilter(manifest, new Predicate<CorpusManifest.Entry>() {
+        @Override
+        public boolean apply(CorpusManifest.Entry entry) {
+          return lemmaIDFWeights.isDocumentValid(entry);
+        }
+      });
+    }
+
+    // Without a manifest the sentences have to be loaded to check each document.
+    final boolean checkDocuments = manifest == null;
+    EnumSet<DocumentStream.PrefetchArtifact> prefetchArtifacts = EnumSet.of(DocumentStream.PrefetchArtifact.BAG_OF_LEMMAS);
+    if (checkDocuments) {
+      prefetchArtifacts.add(DocumentStream.PrefetchArtifact.SENTENCES);
+    }
+    documentStream.setPrefetch(4, 64, prefetchArtifacts);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(docTypesToProcess,
         new DocumentStream.DocumentStreamOutput() {
           @Override
-          public void processDocument(final Document document) {
-            numDocuments.incrementAndGet();
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                try {
-                  if (!lemmaIDFWeights.isDocumentValid(document)) {
-                    return;
-                  }
-                } catch (Throwable e) {
-                  return;
-                }
-
-                if (document instanceof WebsiteDocument) {
-                  lemmaIDFWeights.processDocument(document, 1.0);
-                } else if (document instanceof TopicalDocument) {
-                  lemmaIDFWeights.processDocument(document, 0.01);
-                }
-
-                sem.release();
-
-                if (rand.nextInt()%5000 == 0) {
-                  System.gc();
-                }
+          public void processDocument(Document document) {
+            try {
+              if (checkDocuments && !lemmaIDFWeights.isDocumentValid(document)) {
+                return;
               }
-            });
+            } catch (Throwable e) {
+              return;
+            }
+
+            if (document instanceof WebsiteDocument) {
+              lemmaIDFWeights.processDocument(document, 1.0);
+            } else if (document instanceof TopicalDocument) {
+              lemmaIDFWeights.processDocument(document, 0.01);
+            }
           }
-        });
-
-    for (int i = 0; i < numDocuments.get(); i++) {
-      try {
-        sem.acquire();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
+        }));
 
     try {
       lemmaIDFWeights.save();
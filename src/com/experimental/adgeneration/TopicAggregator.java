@@ -52,7 +52,7 @@ public class TopicAggregator {
     Preconditions.checkNotNull(documents);
     for (Document document : documents) {
       BagOfWeightedLemmas bagOfLemmas = document.getBagOfLemmas();
-      for (BagOfWeightedLemmas.WeightedLemmaEntry entry : bagOfLemmas.getBag().values()) {
+      for (BagOfWeightedLemmas.WeightedLemmaEntry entry : bagOfLemmas.getEntries()) {
         double weight = Math.log(1.0 + entry.weight);
         if (entry.lemma.tag == SimplePOSTag.ADJECTIVE) {
           addLemmaTo(entry.lemma, weight, adjectiveOccurances);
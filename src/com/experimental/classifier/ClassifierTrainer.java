@@ -88,10 +88,8 @@ public class ClassifierTrainer {
   }
 
   public LearnedModel train() {
-    System.gc();
     Log.out("generating training data");
     final TrainingData trainingData = generateTrainingData();
-    System.gc();
 
     final Executor executor = Executors.newFixedThreadPool(4);
     final AtomicInteger numModels = new AtomicInteger(0);
@@ -138,7 +136,6 @@ public class ClassifierTrainer {
     }
 
     Log.out("finished training");
-    System.gc();
     testModel(learnedModel);
 
     return learnedModel;
@@ -247,10 +244,8 @@ public class ClassifierTrainer {
       result.threeOrMoreKeywords.addAll(bundleResults.threeOrMoreKeywords);
 
       numProcessed++;
-
       if (numProcessed % 10 == 0) {
-        Log.out("runnning gc");
-        System.gc();
+        Log.out("processed bundles: " + numProcessed);
       }
     }
 
@@ -0,0 +1,166 @@
+package com.experimental.classifier;
+
+import com.experimental.documentmodel.BagOfWeightedLemmas;
+import com.experimental.documentmodel.SentenceBlock;
+import com.experimental.documentmodel.WebsiteDocument;
+import com.experimental.languagemodel.Lemma;
+import com.experimental.sitepage.SitePage;
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parts of a website document that keyword features look lemmas up in, built once per
+ * document and shared by the components of every candidate: the document bag, bags over the page
+ * titles, descriptions, keywords and outgoing link text, and the highest sentence emphases each
+ * lemma occurs with. The page bags are frozen and summed with linear merges.
+ */
+public class DocumentKeywordFeatures {
+  public static final int NUM_TOP_EMPHASES = 5;
+
+  private static final double[] NO_EMPHASES = new double[0];
+
+  private final BagOfWeightedLemmas bagOfLemmas;
+  private final BagOfWeightedLemmas.Frozen titleBag;
+  private final BagOfWeightedLemmas.Frozen descriptionBag;
+  private final BagOfWeightedLemmas.Frozen keywordsBag;
+  private final BagOfWeightedLemmas.Frozen linksBag;
+
+  // Highest emphases of each lemma in the document, in descending order.
+  private final Map<Lemma, double[]> topEmphases;
+
+  public DocumentKeywordFeatures(WebsiteDocument document) {
+    Preconditions.checkNotNull(document);
+
+    this.bagOfLemmas = document.getBagOfLemmas();
+
+    BagOfWeightedLemmas.Merger titles = new BagOfWeightedLemmas.Merger();
+    BagOfWeightedLemmas.Merger descriptions = new BagOfWeightedLemmas.Merger();
+    BagOfWeightedLemmas.Merger keywords = new BagOfWeightedLemmas.Merger();
+    BagOfWeightedLemmas.Merger links = new BagOfWeightedLemmas.Merger();
+    for (SitePage page : document.getSitePages()) {
+      titles.add(new BagOfWeightedLemmas(page.header.title).freeze());
+      descriptions.add(new BagOfWeightedLemmas(page.header.description).freeze());
+      keywords.add(new BagOfWeightedLemmas(page.header.keywords).freeze());
+
+      for (SitePage.Link outgoing : page.getOutgoingLinks()) {
+        links.add(new BagOfWeightedLemmas(outgoing.linkText).freeze());
+      }
+    }
+    this.titleBag = titles.result();
+    this.descriptionBag = descriptions.result();
+    this.keywordsBag = keywords.result();
+    this.linksBag = links.result();
+
+    this.topEmphases = computeTopEmphases(document.getSentenceBlock());
+  }
+
+  public BagOfWeightedLemmas getBagOfLemmas() {
+    return bagOfLemmas;
+  }
+
+  public double getLemmaWeight(Lemma lemma) {
+    return bagOfLemmas.getWeight(lemma);
+  }
+
+  public double getLemmaWeightRatio(Lemma lemma) {
+    return bagOfLemmas.getWeight(lemma) / bagOfLemmas.getSumWeight();
+  }
+
+  public double getTitleWeight(Lemma lemma) {
+    return titleBag.getWeight(lemma);
+  }
+
+  public double getDescriptionWeight(Lemma lemma) {
+    return descriptionBag.getWeight(lemma);
+  }
+
+  public double getKeywordsWeight(Lemma lemma) {
+    return keywordsBag.getWeight(lemma);
+  }
+
+  public double getLinksWeight(Lemma lemma) {
+    return linksBag.getWeight(lemma);
+  }
+
+  /**
+   * Returns the mean of the NUM_TOP_EMPHASES highest sentence emphases that any of the lemmas
+   * occurs with. Like the mean of an empty set, it is NaN if none of them occur.
+   */
+  public double getTopEmphasis(Collection<Lemma> lemmas) {
+    Preconditions.checkNotNull(lemmas);
+
+    double[] merged = new double[lemmas.size() * NUM_TOP_EMPHASES];
+    int numMerged = 0;
+    for (Lemma lemma : lemmas) {
+      double[] emphases = getTopEmphases(lemma);
+      System.arraycopy(emphases, 0, merged, numMerged, emphases.length);
+      numMerged += emphases.length;
+    }
+    Arrays.sort(merged, 0, numMerged);
+
+    int numTop = Math.min(NUM_TOP_EMPHASES, numMerged);
+    double topSum = 0.0;
+    for (int i = 0; i < numTop; i++) {
+      topSum += merged[numMerged - 1 - i];
+    }
+    return topSum / (double) numTop;
+  }
+
+  public double getTopEmphasis(Lemma lemma) {
+    double[] emphases = getTopEmphases(lemma);
+
+    double topSum = 0.0;
+    for (double emphasis : emphases) {
+      topSum += emphasis;
+    }
+    return topSum / (double) emphases.length;
+  }
+
+  private double[] getTopEmphases(Lemma lemma) {
+    double[] result = topEmphases.get(Preconditions.checkNotNull(lemma));
+    return result == null ? NO_EMPHASES : result;
+  }
+
+  /**
+   * Keeps the top emphases of every block lemma in one pass over the tokens, each lemma owning a
+   * run of NUM_TOP_EMPHASES slots that is kept in descending order by insertion.
+   */
+  private static Map<Lemma, double[]> computeTopEmphases(SentenceBlock block) {
+    int numLemmas = block.numLemmas();
+    double[] top = new double[numLemmas * NUM_TOP_EMPHASES];
+    int[] numTop = new int[numLemmas];
+
+    for (int s = 0; s < block.numSentences(); s++) {
+      double emphasis = block.emphasis(s);
+      for (int i = block.sentenceStart(s); i < block.sentenceEnd(s); i++) {
+        int lemmaId = block.lemmaId(i);
+        int base = lemmaId * NUM_TOP_EMPHASES;
+        int count = numTop[lemmaId];
+        if (count == NUM_TOP_EMPHASES && top[base + count - 1] >= emphasis) {
+          continue;
+        }
+
+        int slot = Math.min(count, NUM_TOP_EMPHASES - 1);
+        while (slot > 0 && top[base + slot - 1] < emphasis) {
+          top[base + slot] = top[base + slot - 1];
+          slot--;
+        }
+        top[base + slot] = emphasis;
+        numTop[lemmaId] = Math.min(count + 1, NUM_TOP_EMPHASES);
+      }
+    }
+
+    Map<Lemma, double[]> result = new HashMap<Lemma, double[]>(numLemmas * 2);
+    for (int i = 0; i < numLemmas; i++) {
+      if (numTop[i] > 0) {
+        int base = i * NUM_TOP_EMPHASES;
+        result.put(block.getLemma(i), Arrays.copyOfRange(top, base, base + numTop[i]));
+      }
+    }
+    return result;
+  }
+}
@@ -1,26 +1,17 @@
 package com.experimental.classifier;
 
 import com.experimental.WordNet;
-import com.experimental.documentmodel.BagOfWeightedLemmas;
-import com.experimental.documentmodel.Sentence;
-import com.experimental.documentmodel.Token;
-import com.experimental.documentmodel.WebsiteDocument;
 import com.experimental.documentvector.DocumentVectorDB;
 import com.experimental.keywords.KeyAssociations;
 import com.experimental.languagemodel.*;
-import com.experimental.sitepage.SitePage;
 import com.google.common.base.Preconditions;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-
 /**
  * Created by sushkov on 30/01/15.
  */
 public class KeywordVectorComponents {
   private final Lemma phraseLemma;
-  private final WebsiteDocument document;
+  private final DocumentKeywordFeatures features;
   private final LemmaQuality lemmaQuality;
   private final LemmaIDFWeights lemmaIdfWeights;
 //  private final KeyAssociations keyAssociations;
@@ -30,7 +21,7 @@ public class KeywordVectorComponents {
   private final WordNet wordnet;
 
   public KeywordVectorComponents(Lemma phraseLemma,
-                                 WebsiteDocument document,
+                                 DocumentKeywordFeatures features,
                                  LemmaQuality lemmaQuality,
                                  LemmaIDFWeights lemmaIdfWeights,
                                  LemmaOccuranceStatsAggregator.LemmaStats localStats,
@@ -38,7 +29,7 @@ public class KeywordVectorComponents {
                                  WordNet wordnet) {
 
     this.phraseLemma = Preconditions.checkNotNull(phraseLemma);
-    this.document = Preconditions.checkNotNull(document);
+    this.features = Preconditions.checkNotNull(features);
     this.lemmaQuality = Preconditions.checkNotNull(lemmaQuality);
     this.lemmaIdfWeights = Preconditions.checkNotNull(lemmaIdfWeights);
 //    this.keyAssociations = Preconditions.checkNotNull(keyAssociations);
@@ -49,33 +40,11 @@ public class KeywordVectorComponents {
   }
 
   public double lemmaWeight() {
-    return Math.log(1.0 + getLemmaWeight(phraseLemma, document));
+    return Math.log(1.0 + features.getLemmaWeight(phraseLemma));
   }
 
   public double lemmaTopWeights() {
-    List<Double> weights = new ArrayList<Double>();
-    for (Sentence sentence : document.getSentences()) {
-      for (Token token : sentence.tokens) {
-        Lemma lemma = Lemma.fromToken(token);
-
-        if (lemma.equals(phraseLemma)) {
-          weights.add(sentence.emphasis);
-        }
-      }
-    }
-
-    weights.sort(new Comparator<Double>() {
-      @Override
-      public int compare(Double o1, Double o2) {
-        return Double.compare(o2, o1);
-      }
-    });
-
-    double topSum = 0.0;
-    for (int i = 0; i < Math.min(5, weights.size()); i++) {
-      topSum += weights.get(i);
-    }
-    return topSum / (double) Math.min(5, weights.size());
+    return features.getTopEmphasis(phraseLemma);
   }
 
 //  public double lemmaTopicDiscrimination() {
@@ -87,7 +56,7 @@ public class KeywordVectorComponents {
 //  }
 
   public double lemmaWeightRatio() {
-    return getLemmaWeightRatio(phraseLemma, document);
+    return features.getLemmaWeightRatio(phraseLemma);
   }
 
   public double lemmaQuality() {
@@ -106,7 +75,7 @@ public class KeywordVectorComponents {
     if (globalStats == null) {
       return 0.0;
     } else {
-      double lemmaWeight = getLemmaWeightRatio(phraseLemma, document);
+      double lemmaWeight = features.getLemmaWeightRatio(phraseLemma);
       double ratio = lemmaWeight / Math.max(Double.MIN_VALUE, globalStats.averageWeightPerDocument);
       return Math.log(1.0 + ratio);
     }
@@ -132,7 +101,7 @@ public class KeywordVectorComponents {
     if (globalStats == null) {
       return 0.0;
     } else {
-      double lemmaWeight = getLemmaWeightRatio(phraseLemma, document);
+      double lemmaWeight = features.getLemmaWeightRatio(phraseLemma);
       return (lemmaWeight - globalStats.averageWeightPerDocument) / globalStats.weightStandardDeviation;
     }
   }
@@ -141,7 +110,7 @@ public class KeywordVectorComponents {
     if (localStats == null) {
       return 0.0;
     } else {
-      double lemmaWeight = getLemmaWeightRatio(phraseLemma, document);
+      double lemmaWeight = features.getLemmaWeightRatio(phraseLemma);
       double ratio = lemmaWeight / Math.max(Double.MIN_VALUE, localStats.averageWeightPerDocument);
       return Math.log(1.0 + ratio);
     }
@@ -167,7 +136,7 @@ public class KeywordVectorComponents {
     if (localStats == null) {
       return 0.0;
     } else {
-      double lemmaWeight = getLemmaWeightRatio(phraseLemma, document);
+      double lemmaWeight = features.getLemmaWeightRatio(phraseLemma);
       return (lemmaWeight - localStats.averageWeightPerDocument) / localStats.weightStandardDeviation;
     }
   }
@@ -218,84 +187,18 @@ public class KeywordVectorComponents {
   }
 
   public double headerTitleWeight() {
-    BagOfWeightedLemmas titleBag = new BagOfWeightedLemmas();
-
-    for (SitePage page : document.getSitePages()) {
-      BagOfWeightedLemmas pageBag = new BagOfWeightedLemmas(page.header.title);
-      titleBag.addBag(pageBag);
-    }
-
-    if (titleBag.getBag().containsKey(phraseLemma)) {
-      return titleBag.getBag().get(phraseLemma).weight;
-    } else {
-      return 0.0;
-    }
+    return features.getTitleWeight(phraseLemma);
   }
 
   public double headerDescriptionWeight() {
-    BagOfWeightedLemmas descriptionBag = new BagOfWeightedLemmas();
-
-    for (SitePage page : document.getSitePages()) {
-      BagOfWeightedLemmas pageBag = new BagOfWeightedLemmas(page.header.description);
-      descriptionBag.addBag(pageBag);
-    }
-
-    if (descriptionBag.getBag().containsKey(phraseLemma)) {
-      return descriptionBag.getBag().get(phraseLemma).weight;
-    } else {
-      return 0.0;
-    }
+    return features.getDescriptionWeight(phraseLemma);
   }
 
   public double headerKeywordWeight() {
-    BagOfWeightedLemmas keywordsBag = new BagOfWeightedLemmas();
-
-    for (SitePage page : document.getSitePages()) {
-      BagOfWeightedLemmas pageBag = new BagOfWeightedLemmas(page.header.keywords);
-      keywordsBag.addBag(pageBag);
-    }
-
-    if (keywordsBag.getBag().containsKey(phraseLemma)) {
-      return keywordsBag.getBag().get(phraseLemma).weight;
-    } else {
-      return 0.0;
-    }
+    return features.getKeywordsWeight(phraseLemma);
   }
 
   public double linksWeight() {
-    BagOfWeightedLemmas linksBag = new BagOfWeightedLemmas();
-
-    for (SitePage page : document.getSitePages()) {
-      for (SitePage.Link outgoing : page.outgoingLinks) {
-        BagOfWeightedLemmas outgoingBag = new BagOfWeightedLemmas(outgoing.linkText);
-        linksBag.addBag(outgoingBag);
-      }
-    }
-
-    if (linksBag.getBag().containsKey(phraseLemma)) {
-      return linksBag.getBag().get(phraseLemma).weight;
-    } else {
-      return 0.0;
-    }
-  }
-
-  private double getLemmaWeight(Lemma lemma, WebsiteDocument document) {
-    BagOfWeightedLemmas bagOfLemmas = document.getBagOfLemmas();
-    BagOfWeightedLemmas.WeightedLemmaEntry entry = bagOfLemmas.getBag().get(lemma);
-    if (entry == null) {
-      return 0.0;
-    } else {
-      return entry.weight;
-    }
-  }
-
-  private double getLemmaWeightRatio(Lemma lemma, WebsiteDocument document) {
-    BagOfWeightedLemmas bagOfLemmas = document.getBagOfLemmas();
-    BagOfWeightedLemmas.WeightedLemmaEntry entry = bagOfLemmas.getBag().get(lemma);
-    if (entry == null) {
-      return 0.0;
-    } else {
-      return entry.weight / bagOfLemmas.getSumWeight();
-    }
+    return features.getLinksWeight(phraseLemma);
   }
 }
@@ -1,18 +1,12 @@
 package com.experimental.classifier;
 
 import com.experimental.WordNet;
-import com.experimental.documentmodel.BagOfWeightedLemmas;
-import com.experimental.documentmodel.Sentence;
-import com.experimental.documentmodel.Token;
-import com.experimental.documentmodel.WebsiteDocument;
 import com.experimental.languagemodel.*;
 import com.experimental.nlp.SimplePOSTag;
-import com.experimental.sitepage.SitePage;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -21,7 +15,7 @@ import java.util.List;
 public class KeywordVectorComponentsNoPOS {
   private final String word;
   private final LemmaMorphologies lemmaMorphologies;
-  private final WebsiteDocument document;
+  private final DocumentKeywordFeatures features;
   private final LemmaQuality lemmaQuality;
   private final LemmaIDFWeights lemmaIdfWeights;
   private final LemmaOccuranceStatsAggregator localOccuranceStats;
@@ -38,7 +32,7 @@ public class KeywordVectorComponentsNoPOS {
 
   public KeywordVectorComponentsNoPOS(String word,
                                       LemmaMorphologies lemmaMorphologies,
-                                      WebsiteDocument document,
+                                      DocumentKeywordFeatures features,
                                       LemmaQuality lemmaQuality,
                                       LemmaIDFWeights lemmaIdfWeights,
                                       LemmaOccuranceStatsAggregator localOccuranceStats,
@@ -47,7 +41,7 @@ public class KeywordVectorComponentsNoPOS {
 
     this.word = Preconditions.checkNotNull(word);
     this.lemmaMorphologies = Preconditions.checkNotNull(lemmaMorphologies);
-    this.document = Preconditions.checkNotNull(document);
+    this.features = Preconditions.checkNotNull(features);
     this.lemmaQuality = Preconditions.checkNotNull(lemmaQuality);
     this.lemmaIdfWeights = Preconditions.checkNotNull(lemmaIdfWeights);
     this.localOccuranceStats = localOccuranceStats;
@@ -80,36 +74,13 @@ public class KeywordVectorComponentsNoPOS {
       Lemma wordLemma = wordLemmas.get(i);
       double weight = wordPosWeights.get(i);
 
-      result += weight * Math.log(1.0 + getLemmaWeight(wordLemma, document));
+      result += weight * Math.log(1.0 + features.getLemmaWeight(wordLemma));
     }
     return result;
   }
 
   public double lemmaTopWeights() {
-    List<Double> weights = new ArrayList<Double>();
-
-    for (Sentence sentence : document.getSentences()) {
-      for (Token token : sentence.tokens) {
-        Lemma lemma = Lemma.fromToken(token);
-
-        if (wordLemmas.contains(lemma)) {
-          weights.add(sentence.emphasis);
-        }
-      }
-    }
-
-    weights.sort(new Comparator<Double>() {
-      @Override
-      public int compare(Double o1, Double o2) {
-        return Double.compare(o2, o1);
-      }
-    });
-
-    double topSum = 0.0;
-    for (int i = 0; i < Math.min(5, weights.size()); i++) {
-      topSum += weights.get(i);
-    }
-    return topSum / (double) Math.min(5, weights.size());
+    return features.getTopEmphasis(wordLemmas);
   }
 
 //  public double lemmaTopicDiscrimination() {
@@ -125,7 +96,7 @@ public class KeywordVectorComponentsNoPOS {
     for (int i = 0; i < wordLemmas.size(); i++) {
       Lemma wordLemma = wordLemmas.get(i);
       double weight = wordPosWeights.get(i);
-      result += weight * getLemmaWeightRatio(wordLemma, document);
+      result += weight * features.getLemmaWeightRatio(wordLemma);
     }
     return result;
   }
@@ -167,7 +138,7 @@ public class KeywordVectorComponentsNoPOS {
       LemmaOccuranceStatsAggregator.LemmaStats globalStats = posGlobalStats.get(i);
 
       if (globalStats != null) {
-        double lemmaWeight = getLemmaWeightRatio(wordLemma, document);
+        double lemmaWeight = features.getLemmaWeightRatio(wordLemma);
         double ratio = lemmaWeight / Math.max(Double.MIN_VALUE, globalStats.averageWeightPerDocument);
         result += weight * Math.log(1.0 + ratio);
       }
@@ -230,7 +201,7 @@ public class KeywordVectorComponentsNoPOS {
       double weight = wordPosWeights.get(i);
       LemmaOccuranceStatsAggregator.LemmaStats globalStats = posGlobalStats.get(i);
       if (globalStats != null) {
-        double lemmaWeight = getLemmaWeightRatio(wordLemma, document);
+        double lemmaWeight = features.getLemmaWeightRatio(wordLemma);
         double dist =
             Math.max(0.0, (lemmaWeight - globalStats.averageWeightPerDocument) / globalStats.weightStandardDeviation);
         result += weight * Math.log(1.0 + dist);
@@ -247,7 +218,7 @@ public class KeywordVectorComponentsNoPOS {
       LemmaOccuranceStatsAggregator.LemmaStats localStats = posLocalStats.get(i);
 
       if (localStats != null) {
-        double lemmaWeight = getLemmaWeightRatio(wordLemma, document);
+        double lemmaWeight = features.getLemmaWeightRatio(wordLemma);
         double ratio = lemmaWeight / Math.max(Double.MIN_VALUE, localStats.averageWeightPerDocument);
         result += weight * Math.log(1.0 + ratio);
       }
@@ -310,7 +281,7 @@ public class KeywordVectorComponentsNoPOS {
       double weight = wordPosWeights.get(i);
       LemmaOccuranceStatsAggregator.LemmaStats localStats = posLocalStats.get(i);
       if (localStats != null) {
-        double lemmaWeight = getLemmaWeightRatio(wordLemma, document);
+        double lemmaWeight = features.getLemmaWeightRatio(wordLemma);
         double dist =
             Math.max(0.0, (lemmaWeight - localStats.averageWeightPerDocument) / localStats.weightStandardDeviation);
         result += weight * Math.log(1.0 + dist);
@@ -398,92 +369,34 @@ public class KeywordVectorComponentsNoPOS {
   }
 
   public double headerTitleWeight() {
-    BagOfWeightedLemmas titleBag = new BagOfWeightedLemmas();
-
-    for (SitePage page : document.getSitePages()) {
-      BagOfWeightedLemmas pageBag = new BagOfWeightedLemmas(page.header.title);
-      titleBag.addBag(pageBag);
-    }
-
     double result = 0.0;
     for (Lemma wordLemma : wordLemmas) {
-      if (titleBag.getBag().containsKey(wordLemma)) {
-        result += titleBag.getBag().get(wordLemma).weight;
-      }
+      result += features.getTitleWeight(wordLemma);
     }
     return result;
   }
 
   public double headerDescriptionWeight() {
-    BagOfWeightedLemmas descriptionBag = new BagOfWeightedLemmas();
-
-    for (SitePage page : document.getSitePages()) {
-      BagOfWeightedLemmas pageBag = new BagOfWeightedLemmas(page.header.description);
-      descriptionBag.addBag(pageBag);
-    }
-
     double result = 0.0;
     for (Lemma wordLemma : wordLemmas) {
-      if (descriptionBag.getBag().containsKey(wordLemma)) {
-        result += descriptionBag.getBag().get(wordLemma).weight;
-      }
+      result += features.getDescriptionWeight(wordLemma);
     }
     return result;
   }
 
   public double headerKeywordWeight() {
-    BagOfWeightedLemmas keywordsBag = new BagOfWeightedLemmas();
-
-    for (SitePage page : document.getSitePages()) {
-      BagOfWeightedLemmas pageBag = new BagOfWeightedLemmas(page.header.keywords);
-      keywordsBag.addBag(pageBag);
-    }
-
     double result = 0.0;
     for (Lemma wordLemma : wordLemmas) {
-      if (keywordsBag.getBag().containsKey(wordLemma)) {
-        result += keywordsBag.getBag().get(wordLemma).weight;
-      }
+      result += features.getKeywordsWeight(wordLemma);
     }
     return result;
   }
 
   public double linksWeight() {
-    BagOfWeightedLemmas linksBag = new BagOfWeightedLemmas();
-
-    for (SitePage page : document.getSitePages()) {
-      for (SitePage.Link outgoing : page.outgoingLinks) {
-        BagOfWeightedLemmas outgoingBag = new BagOfWeightedLemmas(outgoing.linkText);
-        linksBag.addBag(outgoingBag);
-      }
-    }
-
     double result = 0.0;
     for (Lemma wordLemma : wordLemmas) {
-      if (linksBag.getBag().containsKey(wordLemma)) {
-        result += linksBag.getBag().get(wordLemma).weight;
-      }
+      result += features.getLinksWeight(wordLemma);
     }
     return result;
   }
-
-  private double getLemmaWeight(Lemma lemma, WebsiteDocument document) {
-    BagOfWeightedLemmas bagOfLemmas = document.getBagOfLemmas();
-    BagOfWeightedLemmas.WeightedLemmaEntry entry = bagOfLemmas.getBag().get(lemma);
-    if (entry == null) {
-      return 0.0;
-    } else {
-      return entry.weight;
-    }
-  }
-
-  private double getLemmaWeightRatio(Lemma lemma, WebsiteDocument document) {
-    BagOfWeightedLemmas bagOfLemmas = document.getBagOfLemmas();
-    BagOfWeightedLemmas.WeightedLemmaEntry entry = bagOfLemmas.getBag().get(lemma);
-    if (entry == null) {
-      return 0.0;
-    } else {
-      return entry.weight / bagOfLemmas.getSumWeight();
-    }
-  }
 }
@@ -54,22 +54,23 @@ public class KeywordVectoriser {
     Preconditions.checkNotNull(document);
 
     LemmaOccuranceStatsAggregator localLemmaStats = getLocalLemmaStats(document);
+    DocumentKeywordFeatures features = new DocumentKeywordFeatures(document);
 
     List<KeywordVector> result = new ArrayList<KeywordVector>();
     for (KeywordCandidateGenerator.KeywordCandidate candidate : candidates) {
       if (candidate.phraseLemmas.size() == 1) {
-        result.add(vectoriseKeywordCandidateOneWord(candidate, document, localLemmaStats));
+        result.add(vectoriseKeywordCandidateOneWord(candidate, features, localLemmaStats));
       } else if (candidate.phraseLemmas.size() == 2) {
-        result.add(vectoriseKeywordCandidateTwoWord(candidate, document, localLemmaStats));
+        result.add(vectoriseKeywordCandidateTwoWord(candidate, features, localLemmaStats));
       } else if (candidate.phraseLemmas.size() == 3) {
-        result.add(vectoriseKeywordCandidateThreeWord(candidate, document, localLemmaStats));
+        result.add(vectoriseKeywordCandidateThreeWord(candidate, features, localLemmaStats));
       }
     }
     return result;
   }
 
   private KeywordVector vectoriseKeywordCandidateOneWord(KeywordCandidateGenerator.KeywordCandidate candidate,
-                                                        WebsiteDocument document,
+                                                        DocumentKeywordFeatures features,
                                                         LemmaOccuranceStatsAggregator localOccuranceStats) {
     Preconditions.checkArgument(candidate.phraseLemmas.size() == 1);
 
@@ -78,10 +79,10 @@ public class KeywordVectoriser {
     LemmaOccuranceStatsAggregator.LemmaStats globalStats = globalLemmaStats.getLemmaStats(phraseLemma);
 
 //    KeywordVectorComponentsNoPOS components = new KeywordVectorComponentsNoPOS(
-//        phraseLemma.lemma, lemmaMorphologies, document, lemmaQuality, lemmaIdfWeights,
+//        phraseLemma.lemma, lemmaMorphologies, features, lemmaQuality, lemmaIdfWeights,
 //        localOccuranceStats, globalLemmaStats, wordnet);
     KeywordVectorComponents components = new KeywordVectorComponents(
-        phraseLemma, document, lemmaQuality, lemmaIdfWeights, localStats, globalStats, wordnet);
+        phraseLemma, features, lemmaQuality, lemmaIdfWeights, localStats, globalStats, wordnet);
 
     List<Double> resultVector = new ArrayList<Double>();
     resultVector.add(components.lemmaWeight());
@@ -129,26 +130,26 @@ public class KeywordVectoriser {
   }
 
   private KeywordVector vectoriseKeywordCandidateTwoWord(KeywordCandidateGenerator.KeywordCandidate candidate,
-                                                        WebsiteDocument document,
+                                                        DocumentKeywordFeatures features,
                                                         LemmaOccuranceStatsAggregator localOccuranceStats) {
     Preconditions.checkArgument(candidate.phraseLemmas.size() == 2);
 
 //    KeywordVectorComponentsNoPOS c0 = new KeywordVectorComponentsNoPOS(
-//        candidate.phraseLemmas.get(0).lemma, lemmaMorphologies, document, lemmaQuality, lemmaIdfWeights,
+//        candidate.phraseLemmas.get(0).lemma, lemmaMorphologies, features, lemmaQuality, lemmaIdfWeights,
 //        localOccuranceStats, globalLemmaStats, wordnet);
 //
 //    KeywordVectorComponentsNoPOS c1 = new KeywordVectorComponentsNoPOS(
-//        candidate.phraseLemmas.get(1).lemma, lemmaMorphologies, document, lemmaQuality, lemmaIdfWeights,
+//        candidate.phraseLemmas.get(1).lemma, lemmaMorphologies, features, lemmaQuality, lemmaIdfWeights,
 //        localOccuranceStats, globalLemmaStats, wordnet);
 
     KeywordVectorComponents c0 = new KeywordVectorComponents(
-        candidate.phraseLemmas.get(0), document, lemmaQuality, lemmaIdfWeights,
+        candidate.phraseLemmas.get(0), features, lemmaQuality, lemmaIdfWeights,
         localOccuranceStats.getLemmaStats(candidate.phraseLemmas.get(0)),
         globalLemmaStats.getLemmaStats(candidate.phraseLemmas.get(0)),
         wordnet);
 
     KeywordVectorComponents c1 = new KeywordVectorComponents(
-        candidate.phraseLemmas.get(1), document, lemmaQuality, lemmaIdfWeights,
+        candidate.phraseLemmas.get(1), features, lemmaQuality, lemmaIdfWeights,
         localOccuranceStats.getLemmaStats(candidate.phraseLemmas.get(1)),
         globalLemmaStats.getLemmaStats(candidate.phraseLemmas.get(1)),
         wordnet);
@@ -289,36 +290,36 @@ public class KeywordVectoriser {
   }
 
   private KeywordVector vectoriseKeywordCandidateThreeWord(KeywordCandidateGenerator.KeywordCandidate candidate,
-                                                          WebsiteDocument document,
+                                                          DocumentKeywordFeatures features,
                                                           LemmaOccuranceStatsAggregator localOccuranceStats) {
     Preconditions.checkArgument(candidate.phraseLemmas.size() == 3);
 
 //    KeywordVectorComponentsNoPOS c0 = new KeywordVectorComponentsNoPOS(
-//        candidate.phraseLemmas.get(0).lemma, lemmaMorphologies, document, lemmaQuality, lemmaIdfWeights,
+//        candidate.phraseLemmas.get(0).lemma, lemmaMorphologies, features, lemmaQuality, lemmaIdfWeights,
 //        localOccuranceStats, globalLemmaStats, wordnet);
 //
 //    KeywordVectorComponentsNoPOS c1 = new KeywordVectorComponentsNoPOS(
-//        candidate.phraseLemmas.get(1).lemma, lemmaMorphologies, document, lemmaQuality, lemmaIdfWeights,
+//        candidate.phraseLemmas.get(1).lemma, lemmaMorphologies, features, lemmaQuality, lemmaIdfWeights,
 //        localOccuranceStats, globalLemmaStats, wordnet);
 //
 //    KeywordVectorComponentsNoPOS c2 = new KeywordVectorComponentsNoPOS(
-//        candidate.phraseLemmas.get(2).lemma, lemmaMorphologies, document, lemmaQuality, lemmaIdfWeights,
+//        candidate.phraseLemmas.get(2).lemma, lemmaMorphologies, features, lemmaQuality, lemmaIdfWeights,
 //        localOccuranceStats, globalLemmaStats, wordnet);
 
     KeywordVectorComponents c0 = new KeywordVectorComponents(
-        candidate.phraseLemmas.get(0), document, lemmaQuality, lemmaIdfWeights,
+        candidate.phraseLemmas.get(0), features, lemmaQuality, lemmaIdfWeights,
         localOccuranceStats.getLemmaStats(candidate.phraseLemmas.get(0)),
         globalLemmaStats.getLemmaStats(candidate.phraseLemmas.get(0)),
         wordnet);
 
     KeywordVectorComponents c1 = new KeywordVectorComponents(
-        candidate.phraseLemmas.get(1), document, lemmaQuality, lemmaIdfWeights,
+        candidate.phraseLemmas.get(1), features, lemmaQuality, lemmaIdfWeights,
         localOccuranceStats.getLemmaStats(candidate.phraseLemmas.get(1)),
         globalLemmaStats.getLemmaStats(candidate.phraseLemmas.get(1)),
         wordnet);
 
     KeywordVectorComponents c2 = new KeywordVectorComponents(
-        candidate.phraseLemmas.get(2), document, lemmaQuality, lemmaIdfWeights,
+        candidate.phraseLemmas.get(2), features, lemmaQuality, lemmaIdfWeights,
         localOccuranceStats.getLemmaStats(candidate.phraseLemmas.get(2)),
         globalLemmaStats.getLemmaStats(candidate.phraseLemmas.get(2)),
         wordnet);
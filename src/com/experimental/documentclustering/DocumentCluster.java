@@ -19,7 +19,8 @@ import java.util.List;
 public class DocumentCluster {
   private final int dim;
   private ConceptVector centroid;
-  private BagOfWeightedLemmas aggregateLemmaBag = new BagOfWeightedLemmas();
+  // Sums the log damped bags of the cluster's documents.
+  private final BagOfWeightedLemmas.Merger aggregateLemmaBag = new BagOfWeightedLemmas.Merger();
 
   private List<ConceptVector> mappedVectors = new ArrayList<ConceptVector>();
 
@@ -38,11 +39,10 @@ public class DocumentCluster {
   public void writeTo(BufferedWriter out) throws IOException {
     Preconditions.checkNotNull(out);
     Preconditions.checkState(centroid != null);
-    Preconditions.checkState(aggregateLemmaBag != null);
 
     out.write(Integer.toString(dim) + "\n");
     centroid.writeTo(out);
-    aggregateLemmaBag.writeTo(out);
+    aggregateLemmaBag.result().writeTo(out);
   }
 
   public static DocumentCluster readFrom(BufferedReader in) throws IOException {
@@ -52,18 +52,25 @@ public class DocumentCluster {
     DocumentCluster result = new DocumentCluster(dim);
 
     result.centroid = ConceptVectorImpl.readFrom(in);
-    result.aggregateLemmaBag = BagOfWeightedLemmas.readFrom(in);
+    result.aggregateLemmaBag.add(BagOfWeightedLemmas.readFrom(in).freeze());
 
     return result;
   }
 
+  static DocumentCluster fromParts(ConceptVector centroid, BagOfWeightedLemmas aggregateLemmaBag) {
+    Preconditions.checkNotNull(centroid);
+    Preconditions.checkNotNull(aggregateLemmaBag);
+
+    DocumentCluster result = new DocumentCluster(centroid.dimensions());
+    result.centroid = centroid;
+    result.aggregateLemmaBag.add(aggregateLemmaBag.freeze());
+    return result;
+  }
+
   public void addDocumentToLemmaBag(Document document) {
     Preconditions.checkNotNull(document);
 
-    BagOfWeightedLemmas documentBag = document.getBagOfLemmas();
-    for (BagOfWeightedLemmas.WeightedLemmaEntry entry : documentBag.getBag().values()) {
-      aggregateLemmaBag.addLemma(entry.lemma, Math.log(1.0 + entry.weight));
-    }
+    aggregateLemmaBag.add(document.getBagOfLemmas().freeze().logWeights());
   }
 
   public synchronized void addMappedVector(ConceptVector vector) {
@@ -93,7 +100,11 @@ public class DocumentCluster {
     this.centroid.overwriteWith(Preconditions.checkNotNull(vec));
   }
 
-  public BagOfWeightedLemmas getBagOfLemmas() {
-    return aggregateLemmaBag;
+  ConceptVector getCentroid() {
+    return centroid;
+  }
+
+  public BagOfWeightedLemmas.Frozen getBagOfLemmas() {
+    return aggregateLemmaBag.result();
   }
 }
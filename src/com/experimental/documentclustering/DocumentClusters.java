@@ -3,15 +3,19 @@ package com.experimental.documentclustering;
 import com.experimental.Constants;
 import com.experimental.documentmodel.BagOfWeightedLemmas;
 import com.experimental.documentmodel.Document;
+import com.experimental.documentvector.BinaryConceptVectors;
 import com.experimental.documentvector.ConceptVector;
 import com.experimental.documentvector.ConceptVectorImpl;
 import com.experimental.languagemodel.Lemma;
 import com.experimental.languagemodel.LemmaDB;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Common;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -28,6 +32,11 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class DocumentClusters {
 
   private static final String DOCUMENT_CLUSTERS_FILENAME = "document_clusters.txt";
+  private static final String CLUSTER_CENTROIDS_FILENAME = "document_cluster_centroids.bin";
+  private static final String CLUSTER_BAGS_FILENAME = "document_cluster_bags.txt";
+  private static final String CLUSTER_ASSIGNMENTS_FILENAME = "document_cluster_assignments.bin";
+  private static final int ASSIGNMENTS_MAGIC = 0x44434153; // "DCAS"
+  private static final byte ASSIGNMENTS_VERSION = 1;
 
   private static final int NUM_CLUSTERS = 1000;
   private static final int DIM = 1200;
@@ -39,12 +48,26 @@ public class DocumentClusters {
     return builtClusters.size();
   }
 
+  public List<ConceptVector> getCentroids() {
+    List<ConceptVector> result = new ArrayList<ConceptVector>();
+    for (DocumentCluster cluster : builtClusters) {
+      result.add(cluster.getCentroid());
+    }
+    return result;
+  }
+
   public boolean tryLoad() throws IOException {
     if (isLoaded) {
       return true;
     }
 
     File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
+    File centroidsFile = aggregateDataFile.toPath().resolve(CLUSTER_CENTROIDS_FILENAME).toFile();
+    File bagsFile = aggregateDataFile.toPath().resolve(CLUSTER_BAGS_FILENAME).toFile();
+    if (centroidsFile.exists() && bagsFile.exists()) {
+      return tryLoadBinary(centroidsFile, bagsFile);
+    }
+
     String documentClustersFilePath = aggregateDataFile.toPath().resolve(DOCUMENT_CLUSTERS_FILENAME).toString();
 
     File documentClustersFile = new File(documentClustersFilePath);
@@ -78,14 +101,58 @@ public class DocumentClusters {
     return true;
   }
 
+  private boolean tryLoadBinary(File centroidsFile, File bagsFile) throws IOException {
+    final List<ConceptVector> centroids = new ArrayList<ConceptVector>();
+    BinaryConceptVectors.readAll(centroidsFile, true, new BinaryConceptVectors.VectorVisitor() {
+      @Override
+      public void visitVector(String key, ConceptVector vector) {
+        centroids.add(vector);
+      }
+    });
+
+    builtClusters.clear();
+    BufferedReader br = null;
+    try {
+      br = new BufferedReader(new FileReader(bagsFile.getAbsolutePath()));
+
+      int numClusters = Integer.parseInt(Preconditions.checkNotNull(br.readLine()));
+      Preconditions.checkState(numClusters == centroids.size());
+
+      for (int i = 0; i < numClusters; i++) {
+        builtClusters.add(DocumentCluster.fromParts(centroids.get(i), BagOfWeightedLemmas.readFrom(br)));
+      }
+
+    } catch (FileNotFoundException e) {
+      e.printStackTrace();
+      return false;
+    } finally {
+      if (br != null) {
+        br.close();
+      }
+    }
+
+    isLoaded = true;
+    return true;
+  }
+
   public void save() throws IOException {
     File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String documentClustersFilePath = aggregateDataFile.toPath().resolve(DOCUMENT_CLUSTERS_FILENAME).toString();
+
+    List<String> keys = new ArrayList<String>();
+    List<ConceptVector> centroids = new ArrayList<ConceptVector>();
+    for (int i = 0; i < builtClusters.size(); i++) {
+      keys.add(Integer.toString(i));
+      centroids.add(builtClusters.get(i).getCentroid());
+    }
+    BinaryConceptVectors.writeAll(keys, centroids,
+        aggregateDataFile.toPath().resolve(CLUSTER_CENTROIDS_FILENAME).toFile());
+
+    String bagsFilePath = aggregateDataFile.toPath().resolve(CLUSTER_BAGS_FILENAME).toString();
 
     BufferedWriter bw = null;
     try {
       try {
-        FileWriter fw = new FileWriter(documentClustersFilePath);
+        FileWriter fw = new FileWriter(bagsFilePath);
         bw = new BufferedWriter(fw);
       } catch (FileNotFoundException e) {
         e.printStackTrace();
@@ -94,20 +161,98 @@ public class DocumentClusters {
 
       bw.write(Integer.toString(builtClusters.size()) + "\n");
       for (DocumentCluster cluster : builtClusters) {
-        cluster.writeTo(bw);
+        cluster.getBagOfLemmas().writeTo(bw);
       }
     } finally {
       if (bw != null) {
         bw.close();
       }
     }
+
+    // Assignments refer to clusters by index, they mean nothing for a new set of centroids.
+    invalidateAssignments();
+  }
+
+  /**
+   * Returns the cluster index of each document saved by saveAssignments, keyed by document path,
+   * or null if none were saved for clusters of the current number.
+   */
+  public Map<String, Integer> tryLoadAssignments() throws IOException {
+    File assignmentsFile = getAssignmentsFile();
+    if (!assignmentsFile.exists()) {
+      return null;
+    }
+
+    ByteBuffer in = BinaryIO.readFully(assignmentsFile);
+    if (in.remaining() < 5 || in.getInt() != ASSIGNMENTS_MAGIC) {
+      throw new IOException("not a cluster assignments file");
+    }
+    byte version = in.get();
+    if (version != ASSIGNMENTS_VERSION) {
+      throw new IOException("unsupported cluster assignments version: " + version);
+    }
+
+    int numClusters = BinaryIO.readVarInt(in);
+    if (numClusters != builtClusters.size()) {
+      Log.out("cluster assignments are for " + numClusters + " clusters, ignoring them");
+      return null;
+    }
+
+    int numAssignments = BinaryIO.readVarInt(in);
+    Map<String, Integer> result = new HashMap<String, Integer>(numAssignments * 2);
+    for (int i = 0; i < numAssignments; i++) {
+      String path = BinaryIO.readString(in);
+      result.put(path, BinaryIO.readVarInt(in));
+    }
+    return result;
+  }
+
+  /**
+   * Saves the cluster index of each document, keyed by document path, next to the centroids.
+   */
+  public void saveAssignments(Map<String, Integer> assignments) throws IOException {
+    Preconditions.checkNotNull(assignments);
+
+    File assignmentsFile = getAssignmentsFile();
+    File tempFile = AtomicFiles.tempFileFor(assignmentsFile);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 20));
+      out.writeInt(ASSIGNMENTS_MAGIC);
+      out.writeByte(ASSIGNMENTS_VERSION);
+      BinaryIO.writeVarInt(out, builtClusters.size());
+      BinaryIO.writeVarInt(out, assignments.size());
+      for (Map.Entry<String, Integer> entry : assignments.entrySet()) {
+        BinaryIO.writeString(out, entry.getKey());
+        BinaryIO.writeVarInt(out, entry.getValue());
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+    AtomicFiles.commit(tempFile, assignmentsFile);
+  }
+
+  /**
+   * Deletes the saved assignments, must be called whenever the clusters or the document vectors
+   * they were assigned from change.
+   */
+  public static void invalidateAssignments() {
+    File assignmentsFile = getAssignmentsFile();
+    if (assignmentsFile.exists()) {
+      Preconditions.checkState(assignmentsFile.delete());
+    }
+  }
+
+  private static File getAssignmentsFile() {
+    return new File(Constants.AGGREGATE_DATA_PATH).toPath().resolve(CLUSTER_ASSIGNMENTS_FILENAME).toFile();
   }
 
   public double getLemmaNumClusters(Lemma lemma) {
     double result = 0.0;
     for (DocumentCluster cluster : builtClusters) {
-      BagOfWeightedLemmas.WeightedLemmaEntry entry = cluster.getBagOfLemmas().getBag().get(lemma);
-      if (entry != null) {
+      if (cluster.getBagOfLemmas().contains(lemma)) {
         result += 1.0;
       }
     }
@@ -119,12 +264,12 @@ public class DocumentClusters {
     double sumOfSquares = 0.0;
 
     for (DocumentCluster cluster : builtClusters) {
-      BagOfWeightedLemmas.WeightedLemmaEntry entry = cluster.getBagOfLemmas().getBag().get(lemma);
-      if (entry == null) {
+      BagOfWeightedLemmas.Frozen bag = cluster.getBagOfLemmas();
+      if (!bag.contains(lemma)) {
         continue;
       }
 
-      double freq = entry.weight / cluster.getBagOfLemmas().getSumWeight();
+      double freq = bag.getWeight(lemma) / bag.getSumWeight();
       sum += freq;
       sumOfSquares += freq * freq;
     }
@@ -159,10 +304,6 @@ public class DocumentClusters {
       DocumentCluster matchingCluster = findMatchingCluster(document, builtClusters);
       matchingCluster.addDocumentToLemmaBag(document);
       document.freeSentences();
-
-      if (Common.rnd.nextInt(1000) == 0) {
-        System.gc();
-      }
     }
   }
 
@@ -173,10 +314,10 @@ public class DocumentClusters {
 
     double sumWeight = 0.0;
     for (DocumentCluster cluster : builtClusters) {
-      BagOfWeightedLemmas bag = cluster.getBagOfLemmas();
+      BagOfWeightedLemmas.Frozen bag = cluster.getBagOfLemmas();
 
-      if (bag.getBag().containsKey(lemma)) {
-        double weight = bag.getBag().get(lemma).weight;
+      if (bag.contains(lemma)) {
+        double weight = bag.getWeight(lemma);
         result.add(weight);
         sumWeight += weight;
       } else {
@@ -0,0 +1,89 @@
+package com.experimental.documentmodel;
+
+import com.experimental.documentvector.ConceptVector;
+import com.experimental.documentvector.SparseConceptVectorImpl;
+import com.experimental.sitepage.PageBox;
+import com.experimental.sitepage.SitePage;
+import com.experimental.sitepage.SiteSections;
+
+import java.util.List;
+
+/**
+ * Rough heap footprints of document payloads, used by DocumentDB to keep loaded payloads under its
+ * budget. These are estimates from object counts on a 64-bit JVM with compressed pointers. Token
+ * and lemma strings are mostly interned and shared between documents, so they are not counted.
+ */
+class ApproximateSize {
+  private static final long LIST_BYTES = 40;
+  private static final long SENTENCE_BYTES = 32;
+  private static final long TOKEN_BYTES = 40;
+  private static final long LEMMA_BYTES = 24;
+  private static final long BAG_SLOT_BYTES = 12;
+  private static final long SPARSE_VECTOR_ENTRY_BYTES = 8;
+  private static final long SITE_PAGE_BYTES = 160;
+  private static final long LINK_BYTES = 120;
+
+  static long ofSentences(List<Sentence> sentences) {
+    if (sentences == null) {
+      return 0;
+    }
+
+    long result = LIST_BYTES + 4L * sentences.size();
+    for (Sentence sentence : sentences) {
+      result += SENTENCE_BYTES + LIST_BYTES + (TOKEN_BYTES + 4) * sentence.tokens.size();
+    }
+    return result;
+  }
+
+  static long ofSentenceBlock(SentenceBlock block) {
+    if (block == null) {
+      return 0;
+    }
+
+    // Per token a lemma id, a surface id and a POS code, per sentence a start and an emphasis.
+    return 7 * LIST_BYTES + 9L * block.numTokens() + 12L * block.numSentences() +
+        (4 + LEMMA_BYTES) * block.numLemmas() + 4L * block.numStrings();
+  }
+
+  static long ofBag(BagOfWeightedLemmas bag) {
+    if (bag == null) {
+      return 0;
+    }
+
+    return 2 * LIST_BYTES + BAG_SLOT_BYTES * bag.capacity();
+  }
+
+  static long ofConceptVector(ConceptVector vector) {
+    if (vector == null) {
+      return 0;
+    }
+
+    if (vector instanceof SparseConceptVectorImpl) {
+      return 2 * LIST_BYTES + SPARSE_VECTOR_ENTRY_BYTES * ((SparseConceptVectorImpl) vector).numEntries();
+    }
+    return LIST_BYTES + 4L * vector.dimensions();
+  }
+
+  static long ofSitePage(SitePage page) {
+    if (page == null) {
+      return 0;
+    }
+
+    // Only counts the sections that are in memory, without loading the others.
+    long result = SITE_PAGE_BYTES + 2L * page.url.length();
+    result += ofSentences(page.header.title) + ofSentences(page.header.description) +
+        ofSentences(page.header.keywords);
+    if (page.isSectionLoaded(SiteSections.Section.BOXES)) {
+      for (PageBox box : page.getPageBoxes()) {
+        result += ofSentences(box.getTextContent());
+      }
+    }
+    if (page.isSectionLoaded(SiteSections.Section.LINKS)) {
+      result += ofSentences(page.getIncomingLinks());
+      for (SitePage.Link link : page.getOutgoingLinks()) {
+        result += LINK_BYTES + ofSentences(link.linkText);
+      }
+    }
+    return result;
+  }
+}
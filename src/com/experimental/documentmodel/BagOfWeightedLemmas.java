@@ -1,6 +1,7 @@
 package com.experimental.documentmodel;
 
 import com.experimental.languagemodel.Lemma;
+import com.experimental.languagemodel.LemmaDB;
 import com.experimental.nlp.POSTag;
 import com.google.common.base.Preconditions;
 
@@ -11,6 +12,11 @@ import java.util.*;
 
 /**
  * Created by sushkov on 11/01/15.
+ *
+ * Lemma weights keyed by LemmaDB id in an open addressing table of primitive ids and weights, so
+ * a bag costs about 12 bytes per slot instead of a map entry and entry object per lemma. freeze()
+ * returns an immutable copy sorted by lemma id that merges and compares bags with linear scans,
+ * and a Merger sums many frozen bags.
  */
 public class BagOfWeightedLemmas {
 
@@ -36,26 +42,229 @@ public class BagOfWeightedLemmas {
     }
   }
 
-  private final Map<Lemma, WeightedLemmaEntry> bag = new HashMap<Lemma, WeightedLemmaEntry>();
+  public interface EntryVisitor {
+    void visit(int lemmaId, double weight);
+  }
+
+  /**
+   * An immutable bag as parallel arrays sorted by lemma id.
+   */
+  public static class Frozen {
+    private static final Frozen EMPTY_BAG = new Frozen(new int[0], new double[0], 0.0);
+
+    private final int[] lemmaIds;
+    private final double[] weights;
+    private final double sumWeight;
+
+    private Frozen(int[] lemmaIds, double[] weights, double sumWeight) {
+      this.lemmaIds = lemmaIds;
+      this.weights = weights;
+      this.sumWeight = sumWeight;
+    }
+
+    public int size() {
+      return lemmaIds.length;
+    }
+
+    public int lemmaIdAt(int index) {
+      return lemmaIds[index];
+    }
+
+    public double weightAt(int index) {
+      return weights[index];
+    }
+
+    public double getSumWeight() {
+      return sumWeight;
+    }
+
+    public double getWeight(int lemmaId) {
+      int index = Arrays.binarySearch(lemmaIds, lemmaId);
+      return index >= 0 ? weights[index] : 0.0;
+    }
+
+    public double getWeight(Lemma lemma) {
+      int lemmaId = LEMMA_DB.findLemmaId(Preconditions.checkNotNull(lemma));
+      return lemmaId < 0 ? 0.0 : getWeight(lemmaId);
+    }
+
+    public boolean contains(Lemma lemma) {
+      int lemmaId = LEMMA_DB.findLemmaId(Preconditions.checkNotNull(lemma));
+      return lemmaId >= 0 && Arrays.binarySearch(lemmaIds, lemmaId) >= 0;
+    }
+
+    /**
+     * Returns a copy with every weight w replaced by log(1 + w).
+     */
+    public Frozen logWeights() {
+      double[] loggedWeights = new double[weights.length];
+      double loggedSum = 0.0;
+      for (int i = 0; i < weights.length; i++) {
+        loggedWeights[i] = Math.log(1.0 + weights[i]);
+        loggedSum += loggedWeights[i];
+      }
+      return new Frozen(lemmaIds, loggedWeights, loggedSum);
+    }
+
+    /**
+     * Writes the same format as BagOfWeightedLemmas.writeTo, so readFrom reads it back.
+     */
+    public void writeTo(BufferedWriter out) throws IOException {
+      Preconditions.checkNotNull(out);
+
+      out.write(Double.toString(sumWeight) + "\n");
+      out.write(Integer.toString(lemmaIds.length) + "\n");
+      for (int i = 0; i < lemmaIds.length; i++) {
+        LEMMA_DB.getLemma(lemmaIds[i]).writeTo(out);
+        out.write(Double.toString(weights[i]) + "\n");
+      }
+    }
+
+    public double dotProduct(Frozen other) {
+      Preconditions.checkNotNull(other);
+
+      double result = 0.0;
+      int i = 0;
+      int j = 0;
+      while (i < lemmaIds.length && j < other.lemmaIds.length) {
+        int a = lemmaIds[i];
+        int b = other.lemmaIds[j];
+        if (a == b) {
+          result += weights[i++] * other.weights[j++];
+        } else if (a < b) {
+          i++;
+        } else {
+          j++;
+        }
+      }
+      return result;
+    }
+
+    public double length() {
+      double sum = 0.0;
+      for (double weight : weights) {
+        sum += weight * weight;
+      }
+      return Math.sqrt(sum);
+    }
+
+    public double cosineSimilarity(Frozen other) {
+      double lengths = length() * other.length();
+      return lengths > Double.MIN_VALUE ? dotProduct(other) / lengths : 0.0;
+    }
+
+    /**
+     * Returns the sum of the two bags.
+     */
+    public Frozen merge(Frozen other) {
+      Preconditions.checkNotNull(other);
+
+      int[] mergedIds = new int[lemmaIds.length + other.lemmaIds.length];
+      double[] mergedWeights = new double[mergedIds.length];
+      int i = 0;
+      int j = 0;
+      int size = 0;
+      while (i < lemmaIds.length || j < other.lemmaIds.length) {
+        int a = i < lemmaIds.length ? lemmaIds[i] : Integer.MAX_VALUE;
+        int b = j < other.lemmaIds.length ? other.lemmaIds[j] : Integer.MAX_VALUE;
+        if (a == b) {
+          mergedIds[size] = a;
+          mergedWeights[size++] = weights[i++] + other.weights[j++];
+        } else if (a < b) {
+          mergedIds[size] = a;
+          mergedWeights[size++] = weights[i++];
+        } else {
+          mergedIds[size] = b;
+          mergedWeights[size++] = other.weights[j++];
+        }
+      }
+
+      return new Frozen(Arrays.copyOf(mergedIds, size), Arrays.copyOf(mergedWeights, size),
+          sumWeight + other.sumWeight);
+    }
+  }
+
+  /**
+   * Sums frozen bags with linear merges. Bags are merged in pairs like the digits of a binary
+   * counter, so each entry takes part in about log2 of the number of bags merges instead of one
+   * per bag added after it. Not thread safe.
+   */
+  public static class Merger {
+    // levels.get(i) is null or the sum of 2^i of the added bags.
+    private final List<Frozen> levels = new ArrayList<Frozen>();
+
+    public void add(Frozen bag) {
+      Preconditions.checkNotNull(bag);
+
+      Frozen carry = bag;
+      for (int level = 0; level < levels.size(); level++) {
+        if (levels.get(level) == null) {
+          levels.set(level, carry);
+          return;
+        }
+        carry = levels.get(level).merge(carry);
+        levels.set(level, null);
+      }
+      levels.add(carry);
+    }
+
+    /**
+     * Returns the sum of every bag added so far. The sum is kept in place of the partial sums, so
+     * asking again without adding is free.
+     */
+    public Frozen result() {
+      Frozen result = null;
+      for (Frozen level : levels) {
+        if (level != null) {
+          result = result == null ? level : result.merge(level);
+        }
+      }
+      if (result == null) {
+        return Frozen.EMPTY_BAG;
+      }
+
+      int topLevel = levels.size() - 1;
+      levels.clear();
+      levels.addAll(Collections.<Frozen>nCopies(topLevel, null));
+      levels.add(result);
+      return result;
+    }
+  }
+
+  private static final LemmaDB LEMMA_DB = LemmaDB.instance;
+  private static final int EMPTY = -1;
+  private static final int MIN_CAPACITY = 16;
+
+  private int[] lemmaIds;
+  private double[] weights;
+  private int size = 0;
   private double sumWeight = 0.0;
 
-  public BagOfWeightedLemmas() {}
+  public BagOfWeightedLemmas() {
+    allocate(MIN_CAPACITY);
+  }
 
   public BagOfWeightedLemmas(List<Sentence> sentences) {
+    this();
     Preconditions.checkNotNull(sentences);
     for (Sentence sentence : sentences) {
       for (Token token : sentence.tokens) {
-        Lemma tokenLemma = Lemma.fromToken(token);
+        addLemma(Lemma.fromToken(token), sentence.emphasis);
+      }
+    }
+  }
 
-        addLemma(tokenLemma, sentence.emphasis);
-        WeightedLemmaEntry curEntry = bag.get(tokenLemma);
-        if (curEntry == null) {
-          curEntry = new WeightedLemmaEntry(tokenLemma);
-          bag.put(tokenLemma, curEntry);
-        }
+  /**
+   * Builds the same bag as the sentence constructor, allocating nothing per token.
+   */
+  public BagOfWeightedLemmas(SentenceBlock block) {
+    Preconditions.checkNotNull(block);
 
-        curEntry.weight += sentence.emphasis;
-        sumWeight += sentence.emphasis;
+    double[] lemmaWeights = block.lemmaWeights();
+    allocate(capacityFor(lemmaWeights.length));
+    for (int i = 0; i < lemmaWeights.length; i++) {
+      if (lemmaWeights[i] > 0.0) {
+        addLemma(block.getLemma(i), lemmaWeights[i]);
       }
     }
   }
@@ -64,10 +273,12 @@ public class BagOfWeightedLemmas {
     Preconditions.checkNotNull(out);
 
     out.write(Double.toString(sumWeight) + "\n");
-    out.write(Integer.toString(bag.size()) + "\n");
-    for (WeightedLemmaEntry entry : bag.values()) {
-      entry.lemma.writeTo(out);
-      out.write(Double.toString(entry.weight) + "\n");
+    out.write(Integer.toString(size) + "\n");
+    for (int i = 0; i < lemmaIds.length; i++) {
+      if (lemmaIds[i] != EMPTY) {
+        LEMMA_DB.getLemma(lemmaIds[i]).writeTo(out);
+        out.write(Double.toString(weights[i]) + "\n");
+      }
     }
   }
 
@@ -76,7 +287,7 @@ public class BagOfWeightedLemmas {
 
     BagOfWeightedLemmas result = new BagOfWeightedLemmas();
 
-    result.sumWeight = Double.parseDouble(Preconditions.checkNotNull(in.readLine()));
+    double sumWeight = Double.parseDouble(Preconditions.checkNotNull(in.readLine()));
 
     int bagSize = Integer.parseInt(Preconditions.checkNotNull(in.readLine()));
     for (int i = 0; i < bagSize; i++) {
@@ -86,35 +297,156 @@ public class BagOfWeightedLemmas {
       result.addLemma(lemma, weight);
     }
 
+    result.sumWeight = sumWeight;
     return result;
   }
 
   public void addBag(BagOfWeightedLemmas otherBag) {
-    for (WeightedLemmaEntry otherEntry : otherBag.bag.values()) {
-      addLemma(otherEntry.lemma, otherEntry.weight);
+    Preconditions.checkNotNull(otherBag);
+
+    for (int i = 0; i < otherBag.lemmaIds.length; i++) {
+      if (otherBag.lemmaIds[i] != EMPTY) {
+        addLemmaId(otherBag.lemmaIds[i], otherBag.weights[i]);
+      }
+    }
+  }
+
+  public void addBag(Frozen otherBag) {
+    Preconditions.checkNotNull(otherBag);
+
+    for (int i = 0; i < otherBag.lemmaIds.length; i++) {
+      addLemmaId(otherBag.lemmaIds[i], otherBag.weights[i]);
+    }
+  }
+
+  /**
+   * Returns a copy of every entry. Callers on hot paths should use forEach or freeze instead.
+   */
+  public List<WeightedLemmaEntry> getEntries() {
+    List<WeightedLemmaEntry> result = new ArrayList<WeightedLemmaEntry>(size);
+    for (int i = 0; i < lemmaIds.length; i++) {
+      if (lemmaIds[i] != EMPTY) {
+        WeightedLemmaEntry entry = new WeightedLemmaEntry(LEMMA_DB.getLemma(lemmaIds[i]));
+        entry.weight = weights[i];
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  public void forEach(EntryVisitor visitor) {
+    Preconditions.checkNotNull(visitor);
+
+    for (int i = 0; i < lemmaIds.length; i++) {
+      if (lemmaIds[i] != EMPTY) {
+        visitor.visit(lemmaIds[i], weights[i]);
+      }
+    }
+  }
+
+  public Frozen freeze() {
+    int[] sortedIds = new int[size];
+    int numIds = 0;
+    for (int lemmaId : lemmaIds) {
+      if (lemmaId != EMPTY) {
+        sortedIds[numIds++] = lemmaId;
+      }
+    }
+    Arrays.sort(sortedIds);
+
+    double[] sortedWeights = new double[size];
+    for (int i = 0; i < size; i++) {
+      sortedWeights[i] = weights[findSlot(sortedIds[i])];
     }
+    return new Frozen(sortedIds, sortedWeights, sumWeight);
   }
 
-  public Collection<WeightedLemmaEntry> getEntries() {
-    return bag.values();
+  public int size() {
+    return size;
   }
 
-  public Map<Lemma, WeightedLemmaEntry> getBag() {
-    return bag;
+  int capacity() {
+    return lemmaIds.length;
   }
 
   public double getSumWeight() {
     return sumWeight;
   }
 
+  public boolean contains(Lemma lemma) {
+    int lemmaId = LEMMA_DB.findLemmaId(Preconditions.checkNotNull(lemma));
+    return lemmaId >= 0 && lemmaIds[findSlot(lemmaId)] != EMPTY;
+  }
+
+  /**
+   * Returns the weight of the lemma, or 0 if the bag does not contain it.
+   */
+  public double getWeight(Lemma lemma) {
+    int lemmaId = LEMMA_DB.findLemmaId(Preconditions.checkNotNull(lemma));
+    return lemmaId < 0 ? 0.0 : getWeight(lemmaId);
+  }
+
+  public double getWeight(int lemmaId) {
+    int slot = findSlot(lemmaId);
+    return lemmaIds[slot] == EMPTY ? 0.0 : weights[slot];
+  }
+
   public void addLemma(Lemma lemma, double weight) {
-    WeightedLemmaEntry curEntry = bag.get(lemma);
-    if (curEntry == null) {
-      curEntry = new WeightedLemmaEntry(lemma);
-      bag.put(lemma, curEntry);
+    addLemmaId(LEMMA_DB.addLemmaId(Preconditions.checkNotNull(lemma)), weight);
+  }
+
+  public void addLemmaId(int lemmaId, double weight) {
+    Preconditions.checkArgument(lemmaId >= 0);
+
+    int slot = findSlot(lemmaId);
+    if (lemmaIds[slot] == EMPTY) {
+      if ((size + 1) * 4 > lemmaIds.length * 3) {
+        rehash(lemmaIds.length * 2);
+        slot = findSlot(lemmaId);
+      }
+      lemmaIds[slot] = lemmaId;
+      size++;
     }
 
-    curEntry.weight += weight;
+    weights[slot] += weight;
     sumWeight += weight;
   }
+
+  private int findSlot(int lemmaId) {
+    int mask = lemmaIds.length - 1;
+    int hash = lemmaId * 0x9E3779B9;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    while (lemmaIds[slot] != EMPTY && lemmaIds[slot] != lemmaId) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldIds = lemmaIds;
+    double[] oldWeights = weights;
+
+    allocate(capacity);
+    for (int i = 0; i < oldIds.length; i++) {
+      if (oldIds[i] != EMPTY) {
+        int slot = findSlot(oldIds[i]);
+        lemmaIds[slot] = oldIds[i];
+        weights[slot] = oldWeights[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    lemmaIds = new int[capacity];
+    Arrays.fill(lemmaIds, EMPTY);
+    weights = new double[capacity];
+  }
+
+  private static int capacityFor(int numEntries) {
+    int result = MIN_CAPACITY;
+    while (result * 3 < numEntries * 4) {
+      result *= 2;
+    }
+    return result;
+  }
 }
@@ -0,0 +1,235 @@
+package com.experimental.documentmodel;
+
+import com.experimental.languagemodel.Lemma;
+import com.experimental.languagemodel.LemmaDB;
+import com.experimental.nlp.POSTag;
+import com.experimental.nlp.SimplePOSTag;
+import com.experimental.utils.BinaryIO;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a document's sentences, replacing the one-line-per-token text format.
+ *
+ * Layout: magic, version, a length-prefixed UTF-8 string table holding every distinct surface form
+ * and lemma in the document, then the sentences. Each sentence is its emphasis, a varint token
+ * count, and per token a varint surface id, a varint lemma id and a single POS code byte.
+ */
+public class BinarySentenceStore {
+  private static final int MAGIC = 0x53454E54; // "SENT"
+  private static final byte VERSION = 1;
+
+  private static final SimplePOSTag[] SIMPLE_TAGS = SimplePOSTag.values();
+
+  // Shares the decoded strings between all loaded documents, so each distinct word is held once.
+  private static final Interner<String> STRING_INTERNER = Interners.newWeakInterner();
+
+  public static void writeTo(List<Sentence> sentences, File file) throws IOException {
+    Preconditions.checkNotNull(sentences);
+    Preconditions.checkNotNull(file);
+
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      write(sentences, out);
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  public static void write(List<Sentence> sentences, DataOutput out) throws IOException {
+    Preconditions.checkNotNull(sentences);
+    Preconditions.checkNotNull(out);
+
+    Map<String, Integer> stringIds = new HashMap<String, Integer>();
+    List<String> strings = new ArrayList<String>();
+    for (Sentence sentence : sentences) {
+      for (Token token : sentence.tokens) {
+        addString(token.raw, stringIds, strings);
+        addString(token.lemma, stringIds, strings);
+      }
+    }
+
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+
+    BinaryIO.writeVarInt(out, strings.size());
+    for (String string : strings) {
+      BinaryIO.writeString(out, string);
+    }
+
+    BinaryIO.writeVarInt(out, sentences.size());
+    for (Sentence sentence : sentences) {
+      out.writeDouble(sentence.emphasis);
+      BinaryIO.writeVarInt(out, sentence.tokens.size());
+      for (Token token : sentence.tokens) {
+        BinaryIO.writeVarInt(out, stringIds.get(token.raw));
+        BinaryIO.writeVarInt(out, stringIds.get(token.lemma));
+        out.writeByte(token.partOfSpeech.getCode());
+      }
+    }
+  }
+
+  public static List<Sentence> readFrom(File file) throws IOException {
+    return read(BinaryIO.readFully(file));
+  }
+
+  public static List<Sentence> read(ByteBuffer in) throws IOException {
+    Preconditions.checkNotNull(in);
+
+    String[] strings = readStringTable(in);
+
+    int numSentences = BinaryIO.readVarInt(in);
+    List<Sentence> result = new ArrayList<Sentence>(numSentences);
+    for (int i = 0; i < numSentences; i++) {
+      double emphasis = in.getDouble();
+      int numTokens = BinaryIO.readVarInt(in);
+
+      List<Token> tokens = new ArrayList<Token>(numTokens);
+      for (int j = 0; j < numTokens; j++) {
+        String raw = strings[BinaryIO.readVarInt(in)];
+        String lemma = strings[BinaryIO.readVarInt(in)];
+        tokens.add(new Token(raw, lemma, POSTag.fromCode(in.get())));
+      }
+
+      result.add(new Sentence(tokens, emphasis));
+    }
+
+    return result;
+  }
+
+  public static BagOfWeightedLemmas readBagOfLemmas(File file) throws IOException {
+    return readBagOfLemmas(BinaryIO.readFully(file));
+  }
+
+  /**
+   * Decodes the sentences straight into a bag of lemmas without materialising any Sentence or
+   * Token objects. Each distinct (lemma, tag) pair in the document is looked up in LemmaDB once.
+   */
+  public static BagOfWeightedLemmas readBagOfLemmas(ByteBuffer in) throws IOException {
+    Preconditions.checkNotNull(in);
+
+    String[] strings = readStringTable(in);
+    int[] lemmaIdCache = new int[strings.length * SIMPLE_TAGS.length];
+    Arrays.fill(lemmaIdCache, -1);
+
+    BagOfWeightedLemmas result = new BagOfWeightedLemmas();
+
+    int numSentences = BinaryIO.readVarInt(in);
+    for (int i = 0; i < numSentences; i++) {
+      double emphasis = in.getDouble();
+      int numTokens = BinaryIO.readVarInt(in);
+
+      for (int j = 0; j < numTokens; j++) {
+        BinaryIO.readVarInt(in); // surface form, not needed for the bag.
+        int lemmaStringId = BinaryIO.readVarInt(in);
+        SimplePOSTag tag = POSTag.fromCode(in.get()).getSimplePOSTag();
+
+        int cacheIndex = lemmaStringId * SIMPLE_TAGS.length + tag.ordinal();
+        int lemmaId = lemmaIdCache[cacheIndex];
+        if (lemmaId < 0) {
+          lemmaId = LemmaDB.instance.addLemmaId(new Lemma(strings[lemmaStringId], tag));
+          lemmaIdCache[cacheIndex] = lemmaId;
+        }
+
+        result.addLemmaId(lemmaId, emphasis);
+      }
+    }
+
+    return result;
+  }
+
+  public static SentenceBlock readBlock(File file) throws IOException {
+    return readBlock(BinaryIO.readFully(file));
+  }
+
+  /**
+   * Decodes the sentences into a SentenceBlock. The file's string table becomes the block's
+   * string table, so surface ids are used as stored.
+   */
+  public static SentenceBlock readBlock(ByteBuffer in) throws IOException {
+    Preconditions.checkNotNull(in);
+
+    String[] strings = readStringTable(in);
+    int[] lemmaIdCache = new int[strings.length * SIMPLE_TAGS.length];
+    List<Lemma> lemmas = new ArrayList<Lemma>();
+
+    int numSentences = BinaryIO.readVarInt(in);
+    int[] sentenceStarts = new int[numSentences + 1];
+    double[] sentenceEmphasis = new double[numSentences];
+
+    int capacity = Math.max(16, in.remaining() / 3);
+    int[] tokenLemmaIds = new int[capacity];
+    int[] tokenSurfaceIds = new int[capacity];
+    byte[] tokenPosCodes = new byte[capacity];
+
+    int curToken = 0;
+    for (int i = 0; i < numSentences; i++) {
+      sentenceStarts[i] = curToken;
+      sentenceEmphasis[i] = in.getDouble();
+      int numTokens = BinaryIO.readVarInt(in);
+
+      for (int j = 0; j < numTokens; j++) {
+        int surfaceStringId = BinaryIO.readVarInt(in);
+        int lemmaStringId = BinaryIO.readVarInt(in);
+        byte posCode = in.get();
+        SimplePOSTag tag = POSTag.fromCode(posCode).getSimplePOSTag();
+
+        // Cache entries hold lemma id + 1, so zero means not seen yet.
+        int cacheIndex = lemmaStringId * SIMPLE_TAGS.length + tag.ordinal();
+        int lemmaId = lemmaIdCache[cacheIndex] - 1;
+        if (lemmaId < 0) {
+          lemmaId = lemmas.size();
+          lemmas.add(new Lemma(strings[lemmaStringId], tag));
+          lemmaIdCache[cacheIndex] = lemmaId + 1;
+        }
+
+        tokenLemmaIds[curToken] = lemmaId;
+        tokenSurfaceIds[curToken] = surfaceStringId;
+        tokenPosCodes[curToken] = posCode;
+        curToken++;
+      }
+    }
+    sentenceStarts[numSentences] = curToken;
+
+    return new SentenceBlock(lemmas.toArray(new Lemma[lemmas.size()]), strings,
+        Arrays.copyOf(tokenLemmaIds, curToken), Arrays.copyOf(tokenSurfaceIds, curToken),
+        Arrays.copyOf(tokenPosCodes, curToken), sentenceStarts, sentenceEmphasis);
+  }
+
+  private static String[] readStringTable(ByteBuffer in) throws IOException {
+    if (in.remaining() < 5 || in.getInt() != MAGIC) {
+      throw new IOException("not a binary sentences file");
+    }
+
+    byte version = in.get();
+    if (version != VERSION) {
+      throw new IOException("unsupported binary sentences version: " + version);
+    }
+
+    int numStrings = BinaryIO.readVarInt(in);
+    String[] result = new String[numStrings];
+    for (int i = 0; i < numStrings; i++) {
+      result[i] = STRING_INTERNER.intern(BinaryIO.readString(in));
+    }
+    return result;
+  }
+
+  private static void addString(String string, Map<String, Integer> stringIds, List<String> strings) {
+    if (!stringIds.containsKey(string)) {
+      stringIds.put(string, strings.size());
+      strings.add(string);
+    }
+  }
+}
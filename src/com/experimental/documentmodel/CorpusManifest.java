@@ -0,0 +1,287 @@
+package com.experimental.documentmodel;
+
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of every document in the corpus with the metadata jobs filter on, so a DocumentStream can
+ * skip ineligible documents without opening them. Entries are updated whenever a document is
+ * saved while the manifest is attached to DocumentDB, and the file is rewritten every
+ * FLUSH_INTERVAL updates and on save(). rebuild() recreates it from the documents on disk.
+ */
+public class CorpusManifest {
+  private static final String TAG = "CorpusManifest";
+
+  public static final String MANIFEST_FILENAME = "manifest.bin";
+
+  private static final int MAGIC = 0x4d414e49; // "MANI"
+  private static final byte VERSION = 1;
+  private static final int FLUSH_INTERVAL = 10000;
+  private static final DocumentNameGenerator.DocumentType[] TYPE_CODES =
+      DocumentNameGenerator.DocumentType.values();
+
+  public static class Entry {
+    public final DocumentNameGenerator.DocumentType type;
+    public final String path;
+    public final int numSentences;
+    public final int numTokens;
+    public final boolean hasConceptVector;
+    public final long byteSize;
+    // The newest modification time of the artifacts.
+    public final long lastModifiedMillis;
+    // The content hash is only computed when it is asked for, see getContentHash.
+    public final boolean hasContentHash;
+    public final long contentHash;
+
+    public Entry(DocumentNameGenerator.DocumentType type, String path, int numSentences, int numTokens,
+                 boolean hasConceptVector, long byteSize, long lastModifiedMillis,
+                 boolean hasContentHash, long contentHash) {
+      this.type = Preconditions.checkNotNull(type);
+      this.path = Preconditions.checkNotNull(path);
+      this.numSentences = numSentences;
+      this.numTokens = numTokens;
+      this.hasConceptVector = hasConceptVector;
+      this.byteSize = byteSize;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.hasContentHash = hasContentHash;
+      this.contentHash = contentHash;
+    }
+
+    Entry withContentHash(long hash) {
+      return new Entry(type, path, numSentences, numTokens, hasConceptVector, byteSize, lastModifiedMillis,
+          true, hash);
+    }
+  }
+
+  private final String documentsRootPath;
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private int numUnsavedUpdates = 0;
+
+  private CorpusManifest(String documentsRootPath) {
+    this.documentsRootPath = Preconditions.checkNotNull(documentsRootPath);
+  }
+
+  /**
+   * Loads the manifest of the corpus under documentsRootPath, or returns an empty one if there is
+   * none yet.
+   */
+  public static CorpusManifest load(String documentsRootPath) throws IOException {
+    CorpusManifest result = new CorpusManifest(documentsRootPath);
+
+    File manifestFile = result.getManifestFile();
+    if (!manifestFile.exists()) {
+      return result;
+    }
+
+    ByteBuffer in = BinaryIO.readFully(manifestFile);
+    if (in.remaining() < 5 || in.getInt() != MAGIC) {
+      throw new IOException("not a corpus manifest: " + manifestFile.getAbsolutePath());
+    }
+    byte version = in.get();
+    if (version != VERSION) {
+      throw new IOException("unsupported corpus manifest version: " + version);
+    }
+
+    int numEntries = BinaryIO.readVarInt(in);
+    for (int i = 0; i < numEntries; i++) {
+      DocumentNameGenerator.DocumentType type = TYPE_CODES[in.get()];
+      String path = BinaryIO.readString(in);
+      int numSentences = BinaryIO.readVarInt(in);
+      int numTokens = BinaryIO.readVarInt(in);
+      boolean hasConceptVector = in.get() != 0;
+      long byteSize = in.getLong();
+      long lastModifiedMillis = in.getLong();
+      boolean hasContentHash = in.get() != 0;
+      long contentHash = in.getLong();
+
+      result.entries.put(path, new Entry(type, path, numSentences, numTokens, hasConceptVector, byteSize,
+          lastModifiedMillis, hasContentHash, contentHash));
+    }
+
+    Log.out(TAG, "loaded " + numEntries + " entries");
+    return result;
+  }
+
+  /**
+   * Returns the manifest of the corpus under documentsRootPath, or null if it has none or it
+   * cannot be read. Jobs use this to filter their stream when a manifest is available.
+   */
+  public static CorpusManifest tryLoad(String documentsRootPath) {
+    try {
+      CorpusManifest result = load(documentsRootPath);
+      return result.isEmpty() ? null : result;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public Entry getEntry(String path) {
+    return entries.get(Preconditions.checkNotNull(path));
+  }
+
+  /**
+   * Returns the entries of the given types, ordered by path.
+   */
+  public List<Entry> getEntries(Iterable<DocumentNameGenerator.DocumentType> types) {
+    Preconditions.checkNotNull(types);
+
+    EnumSet<DocumentNameGenerator.DocumentType> typeSet = EnumSet.noneOf(DocumentNameGenerator.DocumentType.class);
+    for (DocumentNameGenerator.DocumentType type : types) {
+      typeSet.add(type);
+    }
+
+    List<Entry> result = new ArrayList<Entry>();
+    for (Entry entry : entries.values()) {
+      if (typeSet.contains(entry.type)) {
+        result.add(entry);
+      }
+    }
+
+    Collections.sort(result, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return e1.path.compareTo(e2.path);
+      }
+    });
+    return result;
+  }
+
+  public void update(Entry entry) {
+    Preconditions.checkNotNull(entry);
+    entries.put(entry.path, entry);
+
+    boolean shouldFlush;
+    synchronized (this) {
+      shouldFlush = ++numUnsavedUpdates >= FLUSH_INTERVAL;
+    }
+
+    if (shouldFlush) {
+      try {
+        save();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * The hash of the names and contents of the document's artifacts. Computed from the stored
+   * artifacts the first time it is asked for after the document changed, and kept in the entry.
+   */
+  public long getContentHash(String path) throws IOException {
+    Entry entry = entries.get(Preconditions.checkNotNull(path));
+    Preconditions.checkArgument(entry != null, "not in the manifest: %s", path);
+    if (entry.hasContentHash) {
+      return entry.contentHash;
+    }
+
+    long result = DocumentDB.instance.createDocument(entry.type, path).hashArtifacts();
+    // Left as it is if the document was saved again meanwhile.
+    entries.replace(path, entry, entry.withContentHash(result));
+    return result;
+  }
+
+  /**
+   * Called by DocumentDB after a document was saved. Sentence counts are carried over from the
+   * existing entry unless the sentences were rewritten, so the document does not have to load them.
+   */
+  void documentSaved(Document document, boolean sentencesChanged) throws IOException {
+    Entry previous = sentencesChanged ? null : entries.get(document.rootDirectoryPath);
+    update(document.describe(typeOf(document), previous));
+  }
+
+  public synchronized void save() throws IOException {
+    List<Entry> snapshot = new ArrayList<Entry>(entries.values());
+
+    File manifestFile = getManifestFile();
+    File tempFile = AtomicFiles.tempFileFor(manifestFile);
+
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 20));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      BinaryIO.writeVarInt(out, snapshot.size());
+      for (Entry entry : snapshot) {
+        out.writeByte(entry.type.ordinal());
+        BinaryIO.writeString(out, entry.path);
+        BinaryIO.writeVarInt(out, entry.numSentences);
+        BinaryIO.writeVarInt(out, entry.numTokens);
+        out.writeByte(entry.hasConceptVector ? 1 : 0);
+        out.writeLong(entry.byteSize);
+        out.writeLong(entry.lastModifiedMillis);
+        out.writeByte(entry.hasContentHash ? 1 : 0);
+        out.writeLong(entry.contentHash);
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+
+    AtomicFiles.commit(tempFile, manifestFile);
+    numUnsavedUpdates = 0;
+  }
+
+  /**
+   * Replaces the manifest with one entry per document found by walking the corpus. Every document
+   * is opened once to count its sentences.
+   */
+  public int rebuild(int numThreads) throws IOException {
+    Preconditions.checkArgument(numThreads > 0);
+
+    entries.clear();
+
+    DocumentStream documentStream = new DocumentStream(documentsRootPath);
+    documentStream.setNumWorkers(numThreads);
+    Futures.getUnchecked(documentStream.streamDocumentsParallel(
+        new DocumentStream.DocumentStreamOutput() {
+          @Override
+          public void processDocument(Document document) {
+            try {
+              entries.put(document.rootDirectoryPath, document.describe(typeOf(document), null));
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+            document.freeSentences();
+          }
+        }));
+
+    save();
+    Log.out(TAG, "rebuilt manifest with " + entries.size() + " entries");
+    return entries.size();
+  }
+
+  private File getManifestFile() {
+    return new File(documentsRootPath).toPath().resolve(MANIFEST_FILENAME).toFile();
+  }
+
+  private static DocumentNameGenerator.DocumentType typeOf(Document document) {
+    if (document instanceof WebsiteDocument) {
+      return DocumentNameGenerator.DocumentType.WEBSITE;
+    } else if (document instanceof TopicalDocument) {
+      return DocumentNameGenerator.DocumentType.TOPICAL;
+    } else if (document instanceof TextCollectionDocument) {
+      return DocumentNameGenerator.DocumentType.UNRELATED_COLLECTION;
+    }
+    throw new IllegalArgumentException("unknown document class: " + document.getClass().getName());
+  }
+}
@@ -1,30 +1,54 @@
 package com.experimental.documentmodel;
 
+import com.experimental.documentvector.BinaryConceptVectors;
 import com.experimental.documentvector.ConceptVector;
 import com.experimental.documentvector.ConceptVectorImpl;
 import com.experimental.documentvector.SparseConceptVectorImpl;
 import com.experimental.nlp.POSTag;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by sushkov on 4/01/15.
  */
 public abstract class Document {
   private static final String TOKENISED_SENTENCES_FILENAME = "sentences.txt";
+  private static final String BINARY_SENTENCES_FILENAME = "sentences.bin";
   private static final String CONCEPT_VECTOR_FILENAME = "concept_vector.txt";
+  private static final String BINARY_CONCEPT_VECTOR_FILENAME = "concept_vector.bin";
 
   public final String rootDirectoryPath;
 
   private List<Sentence> sentences = null;
+  private SentenceBlock sentenceBlock = null;
   private BagOfWeightedLemmas bagOfLemmas = null;
   private ConceptVector conceptVector = null;
 
+  // Payloads that were added or set in memory cannot be evicted by DocumentDB until they are saved.
+  private volatile boolean hasUnsavedChanges = false;
+  // Per-artifact dirty flags, save only rewrites the artifacts that changed since they were loaded.
+  private boolean sentencesDirty = false;
+  private boolean conceptVectorDirty = false;
+  // Set whenever a payload is loaded, replaced or dropped, so DocumentDB re-estimates its size.
+  private boolean payloadChanged = false;
+
+  // Set when the document was packed into a segment, its artifacts are then read from the record
+  // rather than from files in rootDirectoryPath, apart from files that changed since it was packed.
+  private DocumentSegment.Record segmentRecord = null;
+
   public static boolean isExistingDocumentDirectory(File dir) {
     if (!dir.exists() || !dir.isDirectory()) {
       return false;
@@ -32,10 +56,18 @@ public abstract class Document {
 
     File[] children = dir.listFiles();
     for (File child : children) {
+      if (child.toPath().getFileName().toString().equals(BINARY_SENTENCES_FILENAME)) {
+        return true;
+      }
+
       if (child.toPath().getFileName().toString().equals(TOKENISED_SENTENCES_FILENAME)) {
         return true;
       }
 
+      if (child.toPath().getFileName().toString().equals(BINARY_CONCEPT_VECTOR_FILENAME)) {
+        return true;
+      }
+
       if (child.toPath().getFileName().toString().equals(CONCEPT_VECTOR_FILENAME)) {
         return true;
       }
@@ -48,33 +80,80 @@ public abstract class Document {
     this.rootDirectoryPath = Preconditions.checkNotNull(rootDirectoryPath);
   }
 
+  void setSegmentRecord(DocumentSegment.Record segmentRecord) {
+    this.segmentRecord = Preconditions.checkNotNull(segmentRecord);
+  }
+
+  public boolean isSegmentBacked() {
+    return segmentRecord != null;
+  }
+
   public List<Sentence> getSentences() {
-    if (sentences == null) {
-      sentences = new ArrayList<Sentence>();
-      loadSentences();
+    List<Sentence> result;
+    synchronized (this) {
+      ensureSentencesLoaded();
+      result = sentences;
     }
-    return sentences;
+
+    DocumentDB.instance.payloadAccessed(this);
+    return result;
+  }
+
+  /**
+   * Returns the document's sentences in the compact SentenceBlock form. When the sentences are not
+   * already loaded this decodes straight from storage without creating Sentence objects.
+   */
+  public SentenceBlock getSentenceBlock() {
+    SentenceBlock result;
+    synchronized (this) {
+      if (sentenceBlock == null) {
+        sentenceBlock = loadSentenceBlock();
+        payloadChanged = true;
+      }
+      result = sentenceBlock;
+    }
+
+    DocumentDB.instance.payloadAccessed(this);
+    return result;
   }
 
   public void freeSentences() {
-    this.sentences = null;
-    this.bagOfLemmas = null;
+    synchronized (this) {
+      this.sentences = null;
+      this.sentenceBlock = null;
+      this.bagOfLemmas = null;
+      payloadChanged = true;
+    }
+
+    DocumentDB.instance.payloadAccessed(this);
   }
 
   public BagOfWeightedLemmas getBagOfLemmas() {
-    if (bagOfLemmas == null) {
-      generateBagOfLemmas();
+    BagOfWeightedLemmas result;
+    synchronized (this) {
+      if (bagOfLemmas == null) {
+        generateBagOfLemmas();
+        payloadChanged = true;
+      }
+      result = bagOfLemmas;
     }
 
-    return Preconditions.checkNotNull(bagOfLemmas);
+    DocumentDB.instance.payloadAccessed(this);
+    return Preconditions.checkNotNull(result);
   }
 
   public ConceptVector getConceptVector() {
-    if (conceptVector == null) {
-      loadConceptVector();
+    ConceptVector result;
+    synchronized (this) {
+      if (conceptVector == null) {
+        loadConceptVector();
+        payloadChanged = true;
+      }
+      result = conceptVector;
     }
 
-    return conceptVector;
+    DocumentDB.instance.payloadAccessed(this);
+    return result;
   }
 
   public void addSentence(Sentence sentence) {
@@ -82,24 +161,237 @@ public abstract class Document {
   }
 
   public void addSentences(List<Sentence> sentences) {
-    if (this.sentences == null) {
-      this.sentences = new ArrayList<Sentence>();
+    Preconditions.checkNotNull(sentences);
+
+    synchronized (this) {
+      if (this.sentences == null) {
+        this.sentences = new ArrayList<Sentence>();
+      }
+      this.sentences.addAll(sentences);
+      this.sentenceBlock = null;
+      sentencesDirty = true;
+      markPayloadChanged(true);
     }
-    this.sentences.addAll(Preconditions.checkNotNull(sentences));
+
+    DocumentDB.instance.payloadAccessed(this);
   }
 
   public void setConceptVector(ConceptVector conceptVector) {
-    this.conceptVector = Preconditions.checkNotNull(conceptVector);
+    Preconditions.checkNotNull(conceptVector);
+
+    synchronized (this) {
+      this.conceptVector = conceptVector;
+      conceptVectorDirty = true;
+      markPayloadChanged(true);
+    }
+
+    DocumentDB.instance.payloadAccessed(this);
+  }
+
+  /**
+   * Must be called while holding the document's lock.
+   */
+  protected void markPayloadChanged(boolean unsaved) {
+    payloadChanged = true;
+    if (unsaved) {
+      hasUnsavedChanges = true;
+    }
+  }
+
+  boolean hasUnsavedChanges() {
+    return hasUnsavedChanges;
+  }
+
+  /**
+   * Returns the approximate size of the loaded payloads if they changed since the last call, or
+   * -1 if they did not.
+   */
+  synchronized long takeChangedPayloadBytes() {
+    if (!payloadChanged) {
+      return -1;
+    }
+
+    payloadChanged = false;
+    return ApproximateSize.ofSentences(sentences) + ApproximateSize.ofSentenceBlock(sentenceBlock) +
+        ApproximateSize.ofBag(bagOfLemmas) +
+        ApproximateSize.ofConceptVector(conceptVector) + approximateSpecificPayloadBytes();
+  }
+
+  /**
+   * Drops all loaded payloads so they are reloaded from storage on the next access. Does nothing
+   * and returns false if the document has unsaved changes.
+   */
+  synchronized boolean evictPayloads() {
+    if (hasUnsavedChanges) {
+      payloadChanged = true;
+      return false;
+    }
+
+    sentences = null;
+    sentenceBlock = null;
+    bagOfLemmas = null;
+    conceptVector = null;
+    evictSpecificPayloads();
+    payloadChanged = false;
+    return true;
   }
 
-  public void save() throws IOException {
+  protected long approximateSpecificPayloadBytes() {
+    return 0;
+  }
+
+  protected void evictSpecificPayloads() {}
+
+  /**
+   * Writes every artifact that changed since it was loaded or last saved. Each artifact is replaced
+   * atomically, so an interrupted save leaves the previous version of the artifact in place.
+   */
+  public synchronized void save() throws IOException {
+    if (!hasUnsavedChanges) {
+      return;
+    }
+
     File rootDir = new File(rootDirectoryPath);
     if (!rootDir.exists()) {
       rootDir.mkdirs();
     }
-    writeSentences(rootDir.toPath().resolve(TOKENISED_SENTENCES_FILENAME).toString());
-    writeConceptVector(rootDir.toPath().resolve(CONCEPT_VECTOR_FILENAME).toString());
+    if (segmentRecord != null) {
+      copySegmentArtifacts(rootDir);
+    }
+
+    boolean sentencesChanged = sentencesDirty;
+    if (sentencesDirty) {
+      writeSentences(rootDir.toPath().resolve(BINARY_SENTENCES_FILENAME).toFile());
+      sentencesDirty = false;
+    }
+    if (conceptVectorDirty) {
+      writeConceptVector(rootDir.toPath().resolve(BINARY_CONCEPT_VECTOR_FILENAME).toFile());
+      conceptVectorDirty = false;
+    }
     writeSpecificData();
+
+    // The directory now holds the newest copy of every artifact, the packed record is stale.
+    segmentRecord = null;
+    hasUnsavedChanges = false;
+
+    DocumentDB.instance.documentSaved(this, sentencesChanged);
+  }
+
+  /**
+   * Builds the document's manifest entry from its stored artifacts. The sentence and token counts
+   * are taken from the loaded sentences if there are any, otherwise from previous if it is given,
+   * otherwise by decoding the stored sentences. The artifacts are not read, only their sizes and
+   * modification times, and previous's content hash is kept if neither changed.
+   */
+  synchronized CorpusManifest.Entry describe(DocumentNameGenerator.DocumentType type,
+                                             CorpusManifest.Entry previous) throws IOException {
+    int numSentences;
+    int numTokens;
+    if (sentences != null) {
+      numSentences = sentences.size();
+      numTokens = 0;
+      for (Sentence sentence : sentences) {
+        numTokens += sentence.tokens.size();
+      }
+    } else if (sentenceBlock == null && previous != null) {
+      numSentences = previous.numSentences;
+      numTokens = previous.numTokens;
+    } else {
+      SentenceBlock block = sentenceBlock != null ? sentenceBlock : loadSentenceBlock();
+      numSentences = block.numSentences();
+      numTokens = block.numTokens();
+    }
+
+    List<String> artifactNames = getArtifactNames();
+    boolean hasConceptVector = conceptVector != null ||
+        artifactNames.contains(BINARY_CONCEPT_VECTOR_FILENAME) || artifactNames.contains(CONCEPT_VECTOR_FILENAME);
+
+    long byteSize = 0;
+    long lastModifiedMillis = 0;
+    File rootDir = new File(rootDirectoryPath);
+    for (String artifactName : artifactNames) {
+      File artifactFile = rootDir.toPath().resolve(artifactName).toFile();
+      if (segmentRecord != null && !segmentRecord.isSupersededBy(artifactFile)) {
+        byteSize += segmentRecord.getArtifact(artifactName).remaining();
+        lastModifiedMillis = Math.max(lastModifiedMillis, segmentRecord.getArtifactLastModified(artifactName));
+      } else {
+        byteSize += artifactFile.length();
+        lastModifiedMillis = Math.max(lastModifiedMillis, artifactFile.lastModified());
+      }
+    }
+
+    boolean isUnchanged = previous != null && previous.hasContentHash &&
+        previous.byteSize == byteSize && previous.lastModifiedMillis == lastModifiedMillis;
+    return new CorpusManifest.Entry(type, rootDirectoryPath, numSentences, numTokens, hasConceptVector,
+        byteSize, lastModifiedMillis, isUnchanged, isUnchanged ? previous.contentHash : 0);
+  }
+
+  /**
+   * A hash of the names and contents of the document's stored artifacts.
+   */
+  synchronized long hashArtifacts() throws IOException {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (String artifactName : getArtifactNames()) {
+      ByteBuffer artifact = readArtifact(artifactName);
+      byte[] bytes = new byte[artifact.remaining()];
+      artifact.get(bytes);
+
+      hasher.putString(artifactName, BinaryIO.UTF8);
+      hasher.putBytes(bytes);
+    }
+    return hasher.hash().asLong();
+  }
+
+  private List<String> getArtifactNames() {
+    Set<String> names = new HashSet<String>();
+    if (segmentRecord != null) {
+      names.addAll(segmentRecord.getArtifactNames());
+    }
+    File[] files = new File(rootDirectoryPath).listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isFile() && !AtomicFiles.isTempFile(file) &&
+            (segmentRecord == null || segmentRecord.isSupersededBy(file))) {
+          names.add(file.getName());
+        }
+      }
+    }
+
+    List<String> result = new ArrayList<String>(names);
+    Collections.sort(result);
+    return result;
+  }
+
+  /**
+   * Returns the raw contents of one of the document's artifact files, or null if it does not exist.
+   * A packed document's artifact is read from its record unless the file changed since packing.
+   */
+  protected ByteBuffer readArtifact(String filename) throws IOException {
+    Preconditions.checkNotNull(filename);
+
+    File artifactFile = new File(rootDirectoryPath).toPath().resolve(filename).toFile();
+    if (segmentRecord != null && !segmentRecord.isSupersededBy(artifactFile)) {
+      return segmentRecord.getArtifact(filename);
+    }
+
+    if (!artifactFile.exists()) {
+      return null;
+    }
+    return BinaryIO.readFully(artifactFile);
+  }
+
+  private void copySegmentArtifacts(File rootDir) throws IOException {
+    for (String artifactName : segmentRecord.getArtifactNames()) {
+      File artifactFile = rootDir.toPath().resolve(artifactName).toFile();
+      if (artifactFile.exists()) {
+        continue;
+      }
+
+      ByteBuffer artifact = segmentRecord.getArtifact(artifactName);
+      byte[] bytes = new byte[artifact.remaining()];
+      artifact.get(bytes);
+      AtomicFiles.write(artifactFile, bytes);
+    }
   }
 
   public void writeSimplified(BufferedWriter bw) throws IOException {
@@ -117,119 +409,186 @@ public abstract class Document {
     bw.write("\n");
   }
 
-  private void writeSentences(String filePath) throws IOException {
-    BufferedWriter bw = null;
-    try {
-      try {
-        FileWriter fw = new FileWriter(filePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
-      }
-
-      bw.write(Integer.toString(sentences.size()) + "\n");
-      for (Sentence sentence : sentences) {
-        sentence.writeTo(bw);
-      }
-    } finally {
-      if (bw != null) {
-        bw.close();
-      }
+  private void writeSentences(File file) throws IOException {
+    if (sentences == null) {
+      return;
     }
+
+    File tempFile = AtomicFiles.tempFileFor(file);
+    BinarySentenceStore.writeTo(sentences, tempFile);
+    AtomicFiles.commit(tempFile, file);
   }
 
-  private void writeConceptVector(String filePath) throws IOException {
+  private void writeConceptVector(File file) throws IOException {
     if (conceptVector == null) {
       return;
     }
 
-    BufferedWriter bw = null;
-    try {
+    File tempFile = AtomicFiles.tempFileFor(file);
+    BinaryConceptVectors.writeTo(conceptVector, tempFile);
+    AtomicFiles.commit(tempFile, file);
+  }
+
+  /**
+   * Writes the subclass artifacts that changed since they were loaded or last saved. Called from
+   * save while holding the document's lock.
+   */
+  protected abstract void writeSpecificData() throws IOException;
+
+
+  private void ensureSentencesLoaded() {
+    if (sentences == null) {
+      List<Sentence> loaded = new ArrayList<Sentence>();
+      loadSentences(loaded);
+      sentences = loaded;
+      payloadChanged = true;
+    }
+  }
+
+  private SentenceBlock loadSentenceBlock() {
+    if (sentences == null) {
       try {
-        FileWriter fw = new FileWriter(filePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
+        ByteBuffer binarySentences = readArtifact(BINARY_SENTENCES_FILENAME);
+        if (binarySentences != null) {
+          return BinarySentenceStore.readBlock(binarySentences);
+        }
+      } catch (IOException e) {
         e.printStackTrace();
-        return;
       }
+    }
 
-      conceptVector.writeTo(bw);
-    } finally {
-      if (bw != null) {
-        bw.close();
+    ensureSentencesLoaded();
+    return SentenceBlock.fromSentences(sentences);
+  }
+
+  private void generateBagOfLemmas() {
+    if (sentences == null && sentenceBlock != null) {
+      bagOfLemmas = new BagOfWeightedLemmas(sentenceBlock);
+      return;
+    }
+
+    if (sentences == null) {
+      try {
+        ByteBuffer binarySentences = readArtifact(BINARY_SENTENCES_FILENAME);
+        if (binarySentences != null) {
+          bagOfLemmas = BinarySentenceStore.readBagOfLemmas(binarySentences);
+          return;
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
       }
     }
+
+    ensureSentencesLoaded();
+    bagOfLemmas = new BagOfWeightedLemmas(sentences);
   }
 
-  protected abstract void writeSpecificData() throws IOException;
+  /**
+   * Rewrites a legacy text sentences file in the binary format. Returns false if there was no
+   * text file to convert.
+   */
+  boolean convertLegacySentences(boolean deleteLegacyFile) throws IOException {
+    File rootDir = new File(rootDirectoryPath);
+    File textFile = rootDir.toPath().resolve(TOKENISED_SENTENCES_FILENAME).toFile();
+    if (!textFile.exists()) {
+      return false;
+    }
 
+    File binaryFile = rootDir.toPath().resolve(BINARY_SENTENCES_FILENAME).toFile();
+    if (!binaryFile.exists()) {
+      List<Sentence> textSentences = new ArrayList<Sentence>();
+      loadTextSentences(new BufferedReader(new FileReader(textFile.getAbsolutePath())), textSentences);
+      BinarySentenceStore.writeTo(textSentences, binaryFile);
+    }
 
-  private void generateBagOfLemmas() {
-    bagOfLemmas = new BagOfWeightedLemmas(getSentences());
+    if (deleteLegacyFile) {
+      Preconditions.checkState(textFile.delete());
+    }
+    return true;
   }
 
-  private boolean loadSentences() {
+  /**
+   * Rewrites a legacy text concept vector file in the binary format. Returns false if there was no
+   * text file to convert.
+   */
+  boolean convertLegacyConceptVector(boolean deleteLegacyFile) throws IOException {
     File rootDir = new File(rootDirectoryPath);
-    if (!rootDir.exists()) {
+    File textFile = rootDir.toPath().resolve(CONCEPT_VECTOR_FILENAME).toFile();
+    if (!textFile.exists()) {
       return false;
     }
 
-    String sentencesPath = rootDir.toPath().resolve(TOKENISED_SENTENCES_FILENAME).toString();
-    File sentencesFile = new File(sentencesPath);
-    if (!sentencesFile.exists()) {
-      return false;
+    File binaryFile = rootDir.toPath().resolve(BINARY_CONCEPT_VECTOR_FILENAME).toFile();
+    if (!binaryFile.exists()) {
+      BufferedReader br = new BufferedReader(new FileReader(textFile.getAbsolutePath()));
+      try {
+        BinaryConceptVectors.writeTo(SparseConceptVectorImpl.readFrom(br), binaryFile);
+      } finally {
+        br.close();
+      }
+    }
+
+    if (deleteLegacyFile) {
+      Preconditions.checkState(textFile.delete());
     }
+    return true;
+  }
 
+  private boolean loadSentences(List<Sentence> out) {
     try {
-      loadSentences(sentencesFile);
+      ByteBuffer binarySentences = readArtifact(BINARY_SENTENCES_FILENAME);
+      if (binarySentences != null) {
+        out.addAll(BinarySentenceStore.read(binarySentences));
+        return true;
+      }
+
+      ByteBuffer textSentences = readArtifact(TOKENISED_SENTENCES_FILENAME);
+      if (textSentences != null) {
+        loadTextSentences(BinaryIO.newTextReader(textSentences), out);
+        return true;
+      }
     } catch (IOException e) {
       e.printStackTrace();
-      return false;
     }
 
-    return true;
+    return false;
   }
 
-  private void loadSentences(File file) throws IOException {
-    BufferedReader br = null;
+  private static void loadTextSentences(BufferedReader br, List<Sentence> out) throws IOException {
     try {
-      br = new BufferedReader(new FileReader(file.getAbsolutePath()));
-
       String line = br.readLine();
       if (line == null) {
-        throw new IOException("sentences file does not contain expected data: " + file.getAbsolutePath());
+        throw new IOException("sentences file does not contain expected data");
       }
 
-      for (int i = 0; i < Integer.parseInt(line); i++) {
-        Sentence newSentence = Sentence.readFrom(br);
-        this.sentences.add(newSentence);
-
+      int numSentences = Integer.parseInt(line);
+      for (int i = 0; i < numSentences; i++) {
+        out.add(Sentence.readFrom(br));
       }
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-      return;
     } finally {
-      if (br != null) {
-        br.close();
-      }
+      br.close();
     }
   }
 
   private boolean loadConceptVector() {
-    File rootDir = new File(rootDirectoryPath);
-    if (!rootDir.exists()) {
-      return false;
-    }
+    try {
+      ByteBuffer binaryVector = readArtifact(BINARY_CONCEPT_VECTOR_FILENAME);
+      if (binaryVector != null) {
+        conceptVector = BinaryConceptVectors.readFrom(binaryVector);
+        return true;
+      }
 
-    String vectorPath = rootDir.toPath().resolve(CONCEPT_VECTOR_FILENAME).toString();
-    File vectorFile = new File(vectorPath);
-    if (!vectorFile.exists()) {
-      return false;
-    }
+      ByteBuffer vectorData = readArtifact(CONCEPT_VECTOR_FILENAME);
+      if (vectorData == null) {
+        return false;
+      }
 
-    try {
-      loadConceptVector(vectorFile);
+      BufferedReader br = BinaryIO.newTextReader(vectorData);
+      try {
+        conceptVector = SparseConceptVectorImpl.readFrom(br);
+      } finally {
+        br.close();
+      }
     } catch (IOException e) {
       e.printStackTrace();
       return false;
@@ -237,19 +596,4 @@ public abstract class Document {
 
     return true;
   }
-
-  private void loadConceptVector(File file) throws IOException {
-    BufferedReader br = null;
-    try {
-      br = new BufferedReader(new FileReader(file.getAbsolutePath()));
-      conceptVector = SparseConceptVectorImpl.readFrom(br);
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-      return;
-    } finally {
-      if (br != null) {
-        br.close();
-      }
-    }
-  }
 }
@@ -3,54 +3,200 @@ package com.experimental.documentmodel;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by sushkov on 13/02/15.
+ *
+ * Registry of every document that has been touched, safe to use from the parallel stream workers.
+ * Documents report their loaded payloads (sentences, bag of lemmas, concept vector, site pages)
+ * here, and once their approximate total exceeds the payload budget the least recently used
+ * payloads are dropped. They are reloaded from storage the next time they are asked for.
+ * Documents with unsaved changes are never evicted.
  */
 public class DocumentDB {
+  private static final String TAG = "DocumentDB";
 
-  private final Map<String, Document> documentMap = new HashMap<String, Document>();
+  private final ConcurrentMap<String, Document> documentMap = new ConcurrentHashMap<String, Document>();
 
   public static DocumentDB instance = new DocumentDB();
 
+  private DocumentSegmentStore segmentStore = null;
+  private volatile CorpusManifest manifest = null;
+
+  private final Object payloadLock = new Object();
+  // Access ordered, so iteration starts at the least recently used document.
+  private final LinkedHashMap<Document, Long> residentPayloads = new LinkedHashMap<Document, Long>(16, 0.75f, true);
+  private long residentPayloadBytes = 0;
+  private boolean loggedOverBudget = false;
+  private volatile long payloadBudgetBytes = Runtime.getRuntime().maxMemory() / 2;
+
   private DocumentDB() {}
 
+  /**
+   * Documents created after this call are backed by their packed segment record if the store
+   * has one for their path.
+   */
+  public void setSegmentStore(DocumentSegmentStore segmentStore) {
+    this.segmentStore = segmentStore;
+  }
+
+  /**
+   * Documents saved after this call update their entry in the manifest.
+   */
+  public void setManifest(CorpusManifest manifest) {
+    this.manifest = manifest;
+  }
+
+  public void setPayloadBudget(long bytes) {
+    Preconditions.checkArgument(bytes > 0);
+    this.payloadBudgetBytes = bytes;
+  }
+
+  public long getResidentPayloadBytes() {
+    synchronized (payloadLock) {
+      return residentPayloadBytes;
+    }
+  }
+
   public WebsiteDocument createWebsiteDocument(String path) {
-    if (documentMap.containsKey(path)) {
-      Document doc = documentMap.get(path);
-      Preconditions.checkState(doc instanceof WebsiteDocument);
-      return (WebsiteDocument) doc;
-    } else {
-      WebsiteDocument doc = new WebsiteDocument(path);
-      documentMap.put(path, doc);
-      return doc;
+    Document doc = documentMap.get(path);
+    if (doc == null) {
+      doc = register(new WebsiteDocument(path));
     }
+
+    Preconditions.checkState(doc instanceof WebsiteDocument);
+    return (WebsiteDocument) doc;
   }
 
   public TopicalDocument createTopicalDocument(String path) {
-    if (documentMap.containsKey(path)) {
-      Document doc = documentMap.get(path);
-      Preconditions.checkState(doc instanceof TopicalDocument);
-      return (TopicalDocument) doc;
-    } else {
-      TopicalDocument doc = new TopicalDocument(path);
-      documentMap.put(path, doc);
-      return doc;
+    Document doc = documentMap.get(path);
+    if (doc == null) {
+      doc = register(new TopicalDocument(path));
     }
+
+    Preconditions.checkState(doc instanceof TopicalDocument);
+    return (TopicalDocument) doc;
   }
 
   public TextCollectionDocument createTextCollectionDocument(String path) {
-    if (documentMap.containsKey(path)) {
-      Document doc = documentMap.get(path);
-      Preconditions.checkState(doc instanceof TextCollectionDocument);
-      return (TextCollectionDocument) doc;
-    } else {
-      TextCollectionDocument doc = new TextCollectionDocument(path);
-      documentMap.put(path, doc);
-      return doc;
+    Document doc = documentMap.get(path);
+    if (doc == null) {
+      doc = register(new TextCollectionDocument(path));
+    }
+
+    Preconditions.checkState(doc instanceof TextCollectionDocument);
+    return (TextCollectionDocument) doc;
+  }
+
+  Document createDocument(DocumentNameGenerator.DocumentType type, String path) {
+    switch (type) {
+      case TOPICAL:
+        return createTopicalDocument(path);
+      case UNRELATED_COLLECTION:
+        return createTextCollectionDocument(path);
+      case WEBSITE:
+        return createWebsiteDocument(path);
+      default:
+        throw new IllegalArgumentException("unknown document type: " + type);
+    }
+  }
+
+  void documentSaved(Document document, boolean sentencesChanged) {
+    CorpusManifest currentManifest = manifest;
+    if (currentManifest == null) {
+      return;
+    }
+
+    try {
+      currentManifest.documentSaved(document, sentencesChanged);
+    } catch (IOException e) {
+      Log.out(TAG, "could not update manifest: " + document.rootDirectoryPath);
+      e.printStackTrace();
     }
   }
 
+  /**
+   * Called by a document after any of its payloads was accessed, loaded or changed. Keeps the
+   * LRU order and the resident byte count up to date and evicts other documents' payloads if the
+   * budget is exceeded. Must not be called while holding a document lock.
+   */
+  void payloadAccessed(Document document) {
+    long payloadBytes = document.takeChangedPayloadBytes();
+
+    List<Document> victims;
+    synchronized (payloadLock) {
+      if (payloadBytes < 0) {
+        residentPayloads.get(document);
+        return;
+      }
+
+      Long previousBytes = payloadBytes > 0 ?
+          residentPayloads.put(document, payloadBytes) : residentPayloads.remove(document);
+      residentPayloadBytes += payloadBytes - (previousBytes == null ? 0 : previousBytes);
+
+      if (residentPayloadBytes <= payloadBudgetBytes) {
+        return;
+      }
+      victims = selectVictims(document);
+    }
+
+    for (Document victim : victims) {
+      victim.evictPayloads();
+    }
+  }
+
+  private List<Document> selectVictims(Document accessed) {
+    List<Document> result = new ArrayList<Document>();
+
+    Iterator<Map.Entry<Document, Long>> it = residentPayloads.entrySet().iterator();
+    while (residentPayloadBytes > payloadBudgetBytes && it.hasNext()) {
+      Map.Entry<Document, Long> entry = it.next();
+      Document candidate = entry.getKey();
+      if (candidate == accessed || candidate.hasUnsavedChanges()) {
+        continue;
+      }
+
+      residentPayloadBytes -= entry.getValue();
+      it.remove();
+      result.add(candidate);
+    }
+
+    // Only unsaved documents are left, warn once until the budget is met again.
+    boolean overBudget = residentPayloadBytes > payloadBudgetBytes;
+    if (overBudget && !loggedOverBudget) {
+      Log.out(TAG, "unsaved payloads exceed the budget, resident bytes: " + residentPayloadBytes);
+    }
+    loggedOverBudget = overBudget;
+    return result;
+  }
+
+  private Document register(Document document) {
+    attachSegmentRecord(document);
+
+    Document existing = documentMap.putIfAbsent(document.rootDirectoryPath, document);
+    return existing != null ? existing : document;
+  }
+
+  private void attachSegmentRecord(Document document) {
+    if (segmentStore == null) {
+      return;
+    }
+
+    try {
+      DocumentSegment.Record record = segmentStore.findRecord(document.rootDirectoryPath);
+      if (record != null) {
+        document.setSegmentRecord(record);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
 }
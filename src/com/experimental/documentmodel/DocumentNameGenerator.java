@@ -37,10 +37,22 @@ public class DocumentNameGenerator {
     } else {
       this.rootDocumentsDirPath = Preconditions.checkNotNull(rootDocumentsDirPath) + "/";
     }
-    preloadExistingNames();
+    preloadExistingNames(null);
   }
 
-  private void preloadExistingNames() {
+  /**
+   * Takes the existing document names from the manifest rather than listing every type directory.
+   */
+  public DocumentNameGenerator(String rootDocumentsDirPath, CorpusManifest manifest) {
+    if (rootDocumentsDirPath.endsWith("/")) {
+      this.rootDocumentsDirPath = Preconditions.checkNotNull(rootDocumentsDirPath);
+    } else {
+      this.rootDocumentsDirPath = Preconditions.checkNotNull(rootDocumentsDirPath) + "/";
+    }
+    preloadExistingNames(Preconditions.checkNotNull(manifest));
+  }
+
+  private void preloadExistingNames(CorpusManifest manifest) {
     for (DocumentType documentType : DocumentType.values()) {
       existingDocumentNames.put(documentType, new HashSet<String>());
 
@@ -48,6 +60,10 @@ public class DocumentNameGenerator {
       if (!documentDirectory.exists()) {
         documentDirectory.mkdirs();
         continue;
+      } else if (manifest != null) {
+        for (CorpusManifest.Entry entry : manifest.getEntries(Collections.singletonList(documentType))) {
+          existingDocumentNames.get(documentType).add(new File(entry.path).getName());
+        }
       } else {
         File[] documentContents = documentDirectory.listFiles();
         for (File file : documentContents) {
@@ -0,0 +1,169 @@
+package com.experimental.documentmodel;
+
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.EnumSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-ahead stage in front of a ParallelDocumentDispatcher. A small pool of I/O threads loads the
+ * selected artifacts of the next documents while the dispatcher's workers are busy computing, so
+ * the workers find the payloads already resident. At most depth documents are prefetched ahead of
+ * the one the dispatcher is waiting for. Documents are handed on in stream order by a single
+ * feeder thread, which keeps the dispatcher's one-submitter contract.
+ */
+class DocumentPrefetcher {
+  private static final String TAG = "DocumentPrefetcher";
+
+  private static final Future<Document> END_OF_STREAM = new FutureTask<Document>(new Callable<Document>() {
+    @Override
+    public Document call() {
+      return null;
+    }
+  });
+
+  private final ParallelDocumentDispatcher<?> dispatcher;
+  private final EnumSet<DocumentStream.PrefetchArtifact> artifacts;
+  private final ExecutorService ioExecutor;
+  private final BlockingQueue<Future<Document>> buffer;
+  private final Thread feeder;
+  private volatile boolean isStopped = false;
+
+  private final AtomicLong ioNanos = new AtomicLong(0);
+  private long ioWaitNanos = 0;
+  private int numPrefetched = 0;
+
+  DocumentPrefetcher(ParallelDocumentDispatcher<?> dispatcher, int numIoThreads, int depth,
+                     EnumSet<DocumentStream.PrefetchArtifact> artifacts) {
+    Preconditions.checkArgument(numIoThreads > 0);
+    Preconditions.checkArgument(depth > 0);
+
+    this.dispatcher = Preconditions.checkNotNull(dispatcher);
+    this.artifacts = EnumSet.copyOf(Preconditions.checkNotNull(artifacts));
+    this.ioExecutor = Executors.newFixedThreadPool(numIoThreads);
+    this.buffer = new ArrayBlockingQueue<Future<Document>>(depth);
+
+    this.feeder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        feedDispatcher();
+      }
+    }, "DocumentPrefetcher");
+    this.feeder.setDaemon(true);
+    this.feeder.start();
+  }
+
+  /**
+   * Called from the producer thread only. Blocks while depth documents are already buffered.
+   */
+  void submit(final Document document) {
+    Future<Document> loaded = ioExecutor.submit(new Callable<Document>() {
+      @Override
+      public Document call() {
+        long start = System.nanoTime();
+        try {
+          prefetchArtifacts(document);
+        } catch (Throwable e) {
+          // The worker will hit the same failure when it loads the artifact and report it there.
+          Log.out(TAG, "failed to prefetch: " + document.rootDirectoryPath);
+        }
+        ioNanos.addAndGet(System.nanoTime() - start);
+        return document;
+      }
+    });
+
+    Uninterruptibles.putUninterruptibly(buffer, loaded);
+  }
+
+  /**
+   * Waits until every submitted document has been handed to the dispatcher.
+   */
+  void awaitCompletion() {
+    Uninterruptibles.putUninterruptibly(buffer, END_OF_STREAM);
+    Uninterruptibles.joinUninterruptibly(feeder);
+  }
+
+  /**
+   * Called from the producer thread once the stream is over, whether or not it completed. Stops
+   * the feeder, dropping any documents still buffered if the stream failed before
+   * awaitCompletion, and then the I/O threads.
+   */
+  void shutdown() {
+    isStopped = true;
+    buffer.clear();
+    buffer.offer(END_OF_STREAM);
+    Uninterruptibles.joinUninterruptibly(feeder);
+    ioExecutor.shutdown();
+  }
+
+  long getIoNanos() {
+    return ioNanos.get();
+  }
+
+  /**
+   * Time the dispatcher spent waiting for a document whose artifacts were still being read. Only
+   * valid after awaitCompletion.
+   */
+  long getIoWaitNanos() {
+    return ioWaitNanos;
+  }
+
+  int getNumPrefetched() {
+    return numPrefetched;
+  }
+
+  private void feedDispatcher() {
+    while (true) {
+      Future<Document> next = Uninterruptibles.takeUninterruptibly(buffer);
+      if (next == END_OF_STREAM || isStopped) {
+        return;
+      }
+
+      long start = System.nanoTime();
+      boolean wasReady = next.isDone();
+      Document document;
+      try {
+        document = Uninterruptibles.getUninterruptibly(next);
+      } catch (ExecutionException e) {
+        // The load task catches everything itself, this cannot happen.
+        throw new IllegalStateException(e);
+      }
+      if (!wasReady) {
+        ioWaitNanos += System.nanoTime() - start;
+      }
+
+      if (isStopped) {
+        return;
+      }
+      numPrefetched++;
+      dispatcher.submit(document);
+    }
+  }
+
+  private void prefetchArtifacts(Document document) {
+    for (DocumentStream.PrefetchArtifact artifact : artifacts) {
+      switch (artifact) {
+        case SENTENCES:
+          document.getSentences();
+          break;
+        case SENTENCE_BLOCK:
+          document.getSentenceBlock();
+          break;
+        case BAG_OF_LEMMAS:
+          document.getBagOfLemmas();
+          break;
+        case CONCEPT_VECTOR:
+          document.getConceptVector();
+          break;
+        case SITE_PAGES:
+          if (document instanceof WebsiteDocument) {
+            ((WebsiteDocument) document).getSitePages();
+          }
+          break;
+      }
+    }
+  }
+}
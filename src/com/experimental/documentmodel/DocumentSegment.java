@@ -0,0 +1,259 @@
+package com.experimental.documentmodel;
+
+import com.experimental.utils.BinaryIO;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A sealed, memory-mapped segment file holding many packed documents.
+ *
+ * The data file is a sequence of records: magic, record length, then the document type, its
+ * logical root path and a list of named artifacts (the files that would otherwise live in the
+ * document's directory), each with the modification time its file had when it was packed. The
+ * companion index file maps each path to its record offset. If the index is missing, for example
+ * after an interrupted pack, it is rebuilt by scanning the data.
+ */
+public class DocumentSegment implements Iterable<DocumentSegment.Record> {
+  static final int RECORD_MAGIC = 0x44524543; // "DREC"
+  static final int INDEX_MAGIC = 0x44494458;  // "DIDX"
+  static final String DATA_SUFFIX = ".dat";
+  static final String INDEX_SUFFIX = ".idx";
+
+  private static final int RECORD_HEADER_BYTES = 8;
+  private static final DocumentNameGenerator.DocumentType[] TYPE_CODES =
+      DocumentNameGenerator.DocumentType.values();
+
+  public static class Record {
+    public final DocumentNameGenerator.DocumentType type;
+    public final String path;
+    public final DocumentSegment segment;
+    public final int offset;
+
+    private final ByteBuffer body;
+    private final int artifactsStart;
+
+    private Record(DocumentSegment segment, int offset, ByteBuffer body) {
+      this.segment = segment;
+      this.offset = offset;
+      this.body = body;
+
+      this.type = TYPE_CODES[body.get()];
+      this.path = BinaryIO.readString(body);
+      this.artifactsStart = body.position();
+    }
+
+    /**
+     * Returns a read-only view of the named artifact, or null if the document was packed without it.
+     */
+    public ByteBuffer getArtifact(String name) {
+      ByteBuffer in = seekArtifact(name);
+      if (in == null) {
+        return null;
+      }
+
+      in.getLong();
+      int length = BinaryIO.readVarInt(in);
+      return slice(in, in.position(), length);
+    }
+
+    /**
+     * The modification time the named artifact's file had when it was packed, or 0 if the document
+     * was packed without it.
+     */
+    public long getArtifactLastModified(String name) {
+      ByteBuffer in = seekArtifact(name);
+      return in == null ? 0 : in.getLong();
+    }
+
+    public List<String> getArtifactNames() {
+      ByteBuffer in = body.duplicate();
+      in.position(artifactsStart);
+
+      List<String> result = new ArrayList<String>();
+      int numArtifacts = BinaryIO.readVarInt(in);
+      for (int i = 0; i < numArtifacts; i++) {
+        result.add(BinaryIO.readString(in));
+        in.getLong();
+        int length = BinaryIO.readVarInt(in);
+        in.position(in.position() + length);
+      }
+      return result;
+    }
+
+    /**
+     * Whether the file is newer than the packed copy of the artifact: it was not packed, or its
+     * modification time or size differs from the packed file's. False if the file does not exist.
+     */
+    public boolean isSupersededBy(File artifactFile) {
+      if (!artifactFile.exists()) {
+        return false;
+      }
+
+      ByteBuffer in = seekArtifact(artifactFile.getName());
+      if (in == null) {
+        return true;
+      }
+      long lastModifiedMillis = in.getLong();
+      int length = BinaryIO.readVarInt(in);
+      return artifactFile.lastModified() != lastModifiedMillis || artifactFile.length() != length;
+    }
+
+    public int sizeInBytes() {
+      return body.limit() + RECORD_HEADER_BYTES;
+    }
+
+    /**
+     * Returns a view positioned after the name of the named artifact, or null if there is none.
+     */
+    private ByteBuffer seekArtifact(String name) {
+      Preconditions.checkNotNull(name);
+
+      ByteBuffer in = body.duplicate();
+      in.position(artifactsStart);
+
+      int numArtifacts = BinaryIO.readVarInt(in);
+      for (int i = 0; i < numArtifacts; i++) {
+        String artifactName = BinaryIO.readString(in);
+        if (artifactName.equals(name)) {
+          return in;
+        }
+        in.getLong();
+        int length = BinaryIO.readVarInt(in);
+        in.position(in.position() + length);
+      }
+
+      return null;
+    }
+  }
+
+  public final File dataFile;
+  private final ByteBuffer data;
+  private Map<String, Integer> pathOffsets = null;
+
+  private DocumentSegment(File dataFile, ByteBuffer data) {
+    this.dataFile = dataFile;
+    this.data = data;
+  }
+
+  public static DocumentSegment open(File dataFile) throws IOException {
+    Preconditions.checkNotNull(dataFile);
+
+    FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+    try {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new DocumentSegment(dataFile, mapped);
+    } finally {
+      // The mapping stays valid after the channel is closed.
+      channel.close();
+    }
+  }
+
+  static File indexFileFor(File dataFile) {
+    String name = dataFile.getName();
+    String baseName = name.substring(0, name.length() - DATA_SUFFIX.length());
+    return new File(dataFile.getParentFile(), baseName + INDEX_SUFFIX);
+  }
+
+  public Record readRecord(int offset) {
+    Preconditions.checkArgument(offset >= 0 && offset + RECORD_HEADER_BYTES <= data.limit());
+
+    ByteBuffer header = data.duplicate();
+    header.position(offset);
+    int magic = header.getInt();
+    Preconditions.checkState(magic == RECORD_MAGIC, "no record at offset %s", offset);
+    int length = header.getInt();
+
+    return new Record(this, offset, slice(header, offset + RECORD_HEADER_BYTES, length));
+  }
+
+  /**
+   * Looks up the record for a document root path using the segment index.
+   */
+  public synchronized Record findRecord(String path) throws IOException {
+    Integer offset = getPathOffsets().get(Preconditions.checkNotNull(path));
+    return offset == null ? null : readRecord(offset);
+  }
+
+  synchronized Map<String, Integer> getPathOffsets() throws IOException {
+    if (pathOffsets == null) {
+      pathOffsets = new HashMap<String, Integer>();
+      File indexFile = indexFileFor(dataFile);
+      if (indexFile.exists()) {
+        loadIndex(indexFile);
+      } else {
+        for (Record record : this) {
+          pathOffsets.put(record.path, record.offset);
+        }
+      }
+    }
+    return pathOffsets;
+  }
+
+  private void loadIndex(File indexFile) throws IOException {
+    ByteBuffer in = BinaryIO.readFully(indexFile);
+    if (in.getInt() != INDEX_MAGIC) {
+      throw new IOException("not a segment index: " + indexFile.getAbsolutePath());
+    }
+
+    int numEntries = BinaryIO.readVarInt(in);
+    for (int i = 0; i < numEntries; i++) {
+      String path = BinaryIO.readString(in);
+      pathOffsets.put(path, in.getInt());
+    }
+  }
+
+  /**
+   * Iterates the records in file order. A truncated trailing record, left by an interrupted
+   * writer, ends the iteration.
+   */
+  @Override
+  public Iterator<Record> iterator() {
+    return new Iterator<Record>() {
+      private int nextOffset = 0;
+
+      @Override
+      public boolean hasNext() {
+        if (nextOffset + RECORD_HEADER_BYTES > data.limit()) {
+          return false;
+        }
+
+        if (data.getInt(nextOffset) != RECORD_MAGIC) {
+          return false;
+        }
+
+        int length = data.getInt(nextOffset + 4);
+        return length >= 0 && nextOffset + RECORD_HEADER_BYTES + length <= data.limit();
+      }
+
+      @Override
+      public Record next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        Record result = readRecord(nextOffset);
+        nextOffset += result.sizeInBytes();
+        return result;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int start, int length) {
+    ByteBuffer result = buffer.duplicate();
+    result.limit(start + length);
+    result.position(start);
+    return result.slice();
+  }
+}
@@ -0,0 +1,94 @@
+package com.experimental.documentmodel;
+
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs a directory-per-document corpus into a DocumentSegmentStore. Every regular file in a
+ * document directory, apart from leftover temporary files, becomes a named artifact of its record.
+ * Paths that are already in the store are skipped, so an interrupted run can be resumed by packing
+ * again, unless a file in their directory was added or changed its modification time or size
+ * since they were packed. Those are packed again into a new record, which wins lookups from then on.
+ */
+public class DocumentSegmentPacker {
+  private static final String TAG = "DocumentSegmentPacker";
+
+  private final String documentsRootPath;
+  private final DocumentSegmentStore segmentStore;
+
+  public DocumentSegmentPacker(String documentsRootPath, DocumentSegmentStore segmentStore) {
+    this.documentsRootPath = Preconditions.checkNotNull(documentsRootPath);
+    this.segmentStore = Preconditions.checkNotNull(segmentStore);
+  }
+
+  public int packCorpus() throws IOException {
+    final DocumentSegmentWriter writer = segmentStore.openWriter();
+    final int[] numPacked = new int[] { 0 };
+
+    try {
+      for (final DocumentNameGenerator.DocumentType type : DocumentNameGenerator.DocumentType.values()) {
+        DocumentStream documentStream = new DocumentStream(documentsRootPath);
+        documentStream.streamDocuments(Lists.newArrayList(type), new DocumentStream.DocumentStreamOutput() {
+          @Override
+          public void processDocument(Document document) {
+            try {
+              if (packDocument(writer, type, document)) {
+                numPacked[0]++;
+              }
+            } catch (IOException e) {
+              Log.out(TAG, "could not pack: " + document.rootDirectoryPath);
+              e.printStackTrace();
+            }
+          }
+        });
+      }
+    } finally {
+      writer.close();
+    }
+
+    Log.out(TAG, "packed " + numPacked[0] + " documents");
+    return numPacked[0];
+  }
+
+  private boolean packDocument(DocumentSegmentWriter writer, DocumentNameGenerator.DocumentType type,
+                               Document document) throws IOException {
+    String path = document.rootDirectoryPath;
+    File[] files = new File(path).listFiles();
+    if (files == null) {
+      return false;
+    }
+    Arrays.sort(files);
+
+    DocumentSegment.Record packedRecord = segmentStore.findRecord(path);
+    if (packedRecord != null && !hasNewerArtifact(packedRecord, files)) {
+      return false;
+    }
+
+    List<File> artifactFiles = new ArrayList<File>();
+    for (File file : files) {
+      if (file.isFile() && !AtomicFiles.isTempFile(file)) {
+        artifactFiles.add(file);
+      }
+    }
+
+    writer.append(type, path, artifactFiles);
+    return true;
+  }
+
+  private static boolean hasNewerArtifact(DocumentSegment.Record record, File[] files) {
+    for (File file : files) {
+      if (file.isFile() && !AtomicFiles.isTempFile(file) && record.isSupersededBy(file)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
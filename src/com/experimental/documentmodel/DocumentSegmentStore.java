@@ -0,0 +1,99 @@
+package com.experimental.documentmodel;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An append-only directory of DocumentSegment files. Streaming the corpus from here is a
+ * sequential scan of a few large memory-mapped files instead of a directory walk with a listing
+ * per document. When a path has been packed more than once the newest segment wins lookups.
+ */
+public class DocumentSegmentStore {
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  private final File rootDir;
+  private List<DocumentSegment> segments = null;
+
+  public DocumentSegmentStore(String rootPath) {
+    this.rootDir = new File(Preconditions.checkNotNull(rootPath));
+  }
+
+  public boolean exists() {
+    return rootDir.exists() && listSegmentFiles().length > 0;
+  }
+
+  public synchronized List<DocumentSegment> getSegments() throws IOException {
+    if (segments == null) {
+      segments = new ArrayList<DocumentSegment>();
+      for (File dataFile : listSegmentFiles()) {
+        segments.add(DocumentSegment.open(dataFile));
+      }
+    }
+    return Collections.unmodifiableList(segments);
+  }
+
+  public DocumentSegment.Record findRecord(String path) throws IOException {
+    Preconditions.checkNotNull(path);
+
+    List<DocumentSegment> allSegments = getSegments();
+    for (int i = allSegments.size() - 1; i >= 0; i--) {
+      DocumentSegment.Record record = allSegments.get(i).findRecord(path);
+      if (record != null) {
+        return record;
+      }
+    }
+    return null;
+  }
+
+  public DocumentSegmentWriter openWriter() {
+    if (!rootDir.exists()) {
+      rootDir.mkdirs();
+    }
+    return new DocumentSegmentWriter(this);
+  }
+
+  synchronized File newSegmentFile() {
+    int nextNumber = 0;
+    for (File dataFile : listSegmentFiles()) {
+      nextNumber = Math.max(nextNumber, segmentNumber(dataFile) + 1);
+    }
+
+    File result = new File(rootDir, String.format("%s%06d%s", SEGMENT_PREFIX, nextNumber, DocumentSegment.DATA_SUFFIX));
+    Preconditions.checkState(!result.exists());
+    return result;
+  }
+
+  synchronized void segmentSealed(File dataFile) throws IOException {
+    if (segments != null) {
+      segments.add(DocumentSegment.open(dataFile));
+    }
+  }
+
+  private File[] listSegmentFiles() {
+    File[] result = rootDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(DocumentSegment.DATA_SUFFIX);
+      }
+    });
+
+    if (result == null) {
+      return new File[0];
+    }
+
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static int segmentNumber(File dataFile) {
+    String name = dataFile.getName();
+    return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - DocumentSegment.DATA_SUFFIX.length()));
+  }
+}
@@ -0,0 +1,110 @@
+package com.experimental.documentmodel;
+
+import com.experimental.utils.BinaryIO;
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends documents to new segment files of a DocumentSegmentStore. Segments are rolled over
+ * once they pass the size limit, and each segment's index is written when it is sealed. Existing
+ * segments are never modified.
+ */
+public class DocumentSegmentWriter {
+  private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+  private final DocumentSegmentStore store;
+
+  private File currentFile = null;
+  private DataOutputStream currentOut = null;
+  private long currentOffset = 0;
+  private final Map<String, Integer> currentIndex = new LinkedHashMap<String, Integer>();
+
+  DocumentSegmentWriter(DocumentSegmentStore store) {
+    this.store = Preconditions.checkNotNull(store);
+  }
+
+  /**
+   * Appends a record of the document's artifacts, read from the given files in its directory.
+   */
+  public synchronized void append(DocumentNameGenerator.DocumentType type, String path,
+                                  List<File> artifactFiles) throws IOException {
+    Preconditions.checkNotNull(type);
+    Preconditions.checkNotNull(path);
+    Preconditions.checkNotNull(artifactFiles);
+
+    ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bodyBytes);
+    body.writeByte(type.ordinal());
+    BinaryIO.writeString(body, path);
+    BinaryIO.writeVarInt(body, artifactFiles.size());
+    for (File artifactFile : artifactFiles) {
+      // Taken before the file is read, so a file written while packing differs from its record.
+      long lastModifiedMillis = artifactFile.lastModified();
+      byte[] bytes = Files.readAllBytes(artifactFile.toPath());
+
+      BinaryIO.writeString(body, artifactFile.getName());
+      body.writeLong(lastModifiedMillis);
+      BinaryIO.writeVarInt(body, bytes.length);
+      body.write(bytes);
+    }
+    body.flush();
+
+    if (currentOut != null && currentOffset + bodyBytes.size() > MAX_SEGMENT_BYTES) {
+      sealCurrentSegment();
+    }
+    if (currentOut == null) {
+      startNewSegment();
+    }
+
+    Preconditions.checkState(currentOffset <= Integer.MAX_VALUE);
+    currentIndex.put(path, (int) currentOffset);
+
+    currentOut.writeInt(DocumentSegment.RECORD_MAGIC);
+    currentOut.writeInt(bodyBytes.size());
+    bodyBytes.writeTo(currentOut);
+    currentOffset += 8 + bodyBytes.size();
+  }
+
+  public synchronized void close() throws IOException {
+    if (currentOut != null) {
+      sealCurrentSegment();
+    }
+  }
+
+  private void startNewSegment() throws IOException {
+    currentFile = store.newSegmentFile();
+    currentOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(currentFile), 1 << 20));
+    currentOffset = 0;
+    currentIndex.clear();
+  }
+
+  private void sealCurrentSegment() throws IOException {
+    currentOut.close();
+    currentOut = null;
+
+    DataOutputStream indexOut = null;
+    try {
+      File indexFile = DocumentSegment.indexFileFor(currentFile);
+      indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+      indexOut.writeInt(DocumentSegment.INDEX_MAGIC);
+      BinaryIO.writeVarInt(indexOut, currentIndex.size());
+      for (Map.Entry<String, Integer> entry : currentIndex.entrySet()) {
+        BinaryIO.writeString(indexOut, entry.getKey());
+        indexOut.writeInt(entry.getValue());
+      }
+    } finally {
+      if (indexOut != null) {
+        indexOut.close();
+      }
+    }
+
+    store.segmentSealed(currentFile);
+    currentFile = null;
+    currentIndex.clear();
+  }
+}
@@ -2,26 +2,101 @@ package com.experimental.documentmodel;
 
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by sushkov on 8/01/15.
  */
 public class DocumentStream {
+  private static final String TAG = "DocumentStream";
 
   public interface DocumentStreamOutput {
     void processDocument(Document document);
   }
 
+  /**
+   * Output for the parallel stream. processDocument is called concurrently on the worker threads,
+   * collectResult is called by one thread at a time, in stream order if ordered delivery is on.
+   */
+  public interface ParallelDocumentOutput<T> {
+    T processDocument(Document document);
+    void collectResult(Document document, T result);
+  }
+
+  /**
+   * Payloads the prefetch stage loads ahead of the workers.
+   */
+  public enum PrefetchArtifact {
+    SENTENCES,
+    SENTENCE_BLOCK,
+    BAG_OF_LEMMAS,
+    CONCEPT_VECTOR,
+    SITE_PAGES
+  }
+
+  /**
+   * Timings of the last parallel stream that used prefetching. Times are summed over threads, so
+   * ioMillis and computeMillis can exceed the wall time. ioWaitMillis is how long the workers were
+   * held up waiting for a document that was still being read.
+   */
+  public static class PrefetchStats {
+    public final int numDocuments;
+    public final long ioMillis;
+    public final long computeMillis;
+    public final long ioWaitMillis;
+
+    PrefetchStats(int numDocuments, long ioMillis, long computeMillis, long ioWaitMillis) {
+      this.numDocuments = numDocuments;
+      this.ioMillis = ioMillis;
+      this.computeMillis = computeMillis;
+      this.ioWaitMillis = ioWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+      return numDocuments + " documents, io " + ioMillis + "ms, compute " + computeMillis +
+          "ms, waited on io " + ioWaitMillis + "ms";
+    }
+  }
+
   private final String rootPath;
+  private final DocumentSegmentStore segmentStore;
   private int numDocumentsProcessed = 0;
   private int documentLimit = -1;
 
+  private CorpusManifest manifest = null;
+  private Predicate<CorpusManifest.Entry> manifestFilter = null;
+
+  private int numWorkers = Runtime.getRuntime().availableProcessors();
+  private int maxInFlight = -1;
+  private boolean orderedDelivery = false;
+
+  private int numPrefetchThreads = 0;
+  private int prefetchDepth = 0;
+  private EnumSet<PrefetchArtifact> prefetchArtifacts = EnumSet.noneOf(PrefetchArtifact.class);
+  private volatile PrefetchStats lastPrefetchStats = null;
+
   public DocumentStream(String rootPath) {
     this.rootPath = Preconditions.checkNotNull(rootPath);
+    this.segmentStore = null;
+  }
+
+  /**
+   * Streams a packed corpus by scanning its segment files in order. Each document is backed by
+   * its segment record, so loading it reads from the mapped segment rather than from disk.
+   */
+  public DocumentStream(DocumentSegmentStore segmentStore) {
+    this.rootPath = null;
+    this.segmentStore = Preconditions.checkNotNull(segmentStore);
   }
 
   public void streamDocuments(DocumentStreamOutput streamOutput) {
@@ -33,10 +108,151 @@ public class DocumentStream {
     this.documentLimit = limit;
   }
 
+  /**
+   * Only streams documents whose manifest entry passes the filter. A directory stream then lists
+   * the documents from the manifest instead of walking the corpus, so documents missing from the
+   * manifest are not streamed. A segment stream still streams records without an entry.
+   */
+  public void setManifestFilter(CorpusManifest manifest, Predicate<CorpusManifest.Entry> filter) {
+    this.manifest = Preconditions.checkNotNull(manifest);
+    this.manifestFilter = Preconditions.checkNotNull(filter);
+  }
+
+  public void setNumWorkers(int numWorkers) {
+    Preconditions.checkArgument(numWorkers > 0);
+    this.numWorkers = numWorkers;
+  }
+
+  /**
+   * Limits how many documents the parallel stream holds at once, queued or being processed.
+   * Defaults to four per worker.
+   */
+  public void setMaxInFlight(int maxInFlight) {
+    Preconditions.checkArgument(maxInFlight > 0);
+    this.maxInFlight = maxInFlight;
+  }
+
+  public void setOrderedDelivery(boolean orderedDelivery) {
+    this.orderedDelivery = orderedDelivery;
+  }
+
+  /**
+   * Makes the parallel stream load the given artifacts of the next depth documents on a separate
+   * pool of numIoThreads threads, so the workers do not block on reads.
+   */
+  public void setPrefetch(int numIoThreads, int depth, EnumSet<PrefetchArtifact> artifacts) {
+    Preconditions.checkArgument(numIoThreads > 0);
+    Preconditions.checkArgument(depth > 0);
+    Preconditions.checkArgument(!artifacts.isEmpty());
+
+    this.numPrefetchThreads = numIoThreads;
+    this.prefetchDepth = depth;
+    this.prefetchArtifacts = EnumSet.copyOf(artifacts);
+  }
+
+  /**
+   * Returns the timings of the last parallel stream that prefetched, or null if there was none.
+   */
+  public PrefetchStats getLastPrefetchStats() {
+    return lastPrefetchStats;
+  }
+
+  public ListenableFuture<Integer> streamDocumentsParallel(DocumentStreamOutput streamOutput) {
+    List<DocumentNameGenerator.DocumentType> types = Lists.newArrayList(DocumentNameGenerator.DocumentType.values());
+    return streamDocumentsParallel(types, streamOutput);
+  }
+
+  public ListenableFuture<Integer> streamDocumentsParallel(Iterable<DocumentNameGenerator.DocumentType> types,
+                                                           final DocumentStreamOutput streamOutput) {
+    Preconditions.checkNotNull(streamOutput);
+
+    return streamDocumentsParallel(types, new ParallelDocumentOutput<Void>() {
+      @Override
+      public Void processDocument(Document document) {
+        streamOutput.processDocument(document);
+        return null;
+      }
+
+      @Override
+      public void collectResult(Document document, Void result) {}
+    });
+  }
+
+  /**
+   * Walks the corpus on a background thread and hands the documents to a pool of workers. The
+   * walk blocks whenever the in-flight window is full. The returned future completes with the
+   * number of documents that were processed and collected without throwing, once all of them
+   * are done.
+   */
+  public <T> ListenableFuture<Integer> streamDocumentsParallel(final Iterable<DocumentNameGenerator.DocumentType> types,
+                                                               ParallelDocumentOutput<T> output) {
+    Preconditions.checkNotNull(types);
+    Preconditions.checkNotNull(output);
+
+    int windowSize = maxInFlight > 0 ? maxInFlight : numWorkers * 4;
+    final ParallelDocumentDispatcher<T> dispatcher =
+        new ParallelDocumentDispatcher<T>(output, numWorkers, windowSize, orderedDelivery);
+    final DocumentPrefetcher prefetcher = numPrefetchThreads > 0 ?
+        new DocumentPrefetcher(dispatcher, numPrefetchThreads, prefetchDepth, prefetchArtifacts) : null;
+    final SettableFuture<Integer> result = SettableFuture.create();
+
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          streamDocuments(types, new DocumentStreamOutput() {
+            @Override
+            public void processDocument(Document document) {
+              if (prefetcher != null) {
+                prefetcher.submit(document);
+              } else {
+                dispatcher.submit(document);
+              }
+            }
+          });
+
+          if (prefetcher != null) {
+            prefetcher.awaitCompletion();
+          }
+          int numSucceeded = dispatcher.awaitCompletion();
+
+          if (prefetcher != null) {
+            lastPrefetchStats = new PrefetchStats(prefetcher.getNumPrefetched(),
+                TimeUnit.NANOSECONDS.toMillis(prefetcher.getIoNanos()),
+                TimeUnit.NANOSECONDS.toMillis(dispatcher.getComputeNanos()),
+                TimeUnit.NANOSECONDS.toMillis(prefetcher.getIoWaitNanos()));
+            Log.out(TAG, "prefetch: " + lastPrefetchStats);
+          }
+          result.set(numSucceeded);
+        } catch (Throwable e) {
+          result.setException(e);
+        } finally {
+          if (prefetcher != null) {
+            prefetcher.shutdown();
+          }
+          dispatcher.shutdown();
+        }
+      }
+    }, "DocumentStream");
+
+    producer.start();
+    return result;
+  }
+
   public void streamDocuments(Iterable<DocumentNameGenerator.DocumentType> types, DocumentStreamOutput streamOutput) {
     Preconditions.checkNotNull(streamOutput);
     Preconditions.checkNotNull(types);
 
+    if (segmentStore != null) {
+      streamSegmentDocuments(types, streamOutput);
+      return;
+    }
+
+    if (manifest != null) {
+      streamManifestDocuments(types, streamOutput);
+      return;
+    }
+
     File documentsDir = new File(rootPath);
     for (DocumentNameGenerator.DocumentType type : types) {
       String typeDirPath = documentsDir.toPath().resolve(type.getLabel()).toString();
@@ -58,23 +274,7 @@ public class DocumentStream {
     }
 
     if (Document.isExistingDocumentDirectory(dir)) {
-      switch (type)  {
-        case TOPICAL:
-          streamOutput.processDocument(DocumentDB.instance.createTopicalDocument(dir.getAbsolutePath()));
-          break;
-        case UNRELATED_COLLECTION:
-          streamOutput.processDocument(DocumentDB.instance.createTextCollectionDocument(dir.getAbsolutePath()));
-          break;
-        case WEBSITE:
-          streamOutput.processDocument(DocumentDB.instance.createWebsiteDocument(dir.getAbsolutePath()));
-          break;
-      }
-      numDocumentsProcessed++;
-      if ((numDocumentsProcessed % 10000) == 0) {
-        Log.out("docs processed: " + numDocumentsProcessed);
-        System.gc();
-      }
-
+      outputDocument(DocumentDB.instance.createDocument(type, dir.getAbsolutePath()), streamOutput);
       return;
     }
 
@@ -94,4 +294,65 @@ public class DocumentStream {
     }
   }
 
+  private void streamSegmentDocuments(Iterable<DocumentNameGenerator.DocumentType> types,
+                                      DocumentStreamOutput streamOutput) {
+    EnumSet<DocumentNameGenerator.DocumentType> typeSet = EnumSet.noneOf(DocumentNameGenerator.DocumentType.class);
+    for (DocumentNameGenerator.DocumentType type : types) {
+      typeSet.add(type);
+    }
+
+    try {
+      for (DocumentSegment segment : segmentStore.getSegments()) {
+        for (DocumentSegment.Record record : segment) {
+          if (documentLimit > 0 && numDocumentsProcessed >= documentLimit) {
+            return;
+          }
+
+          if (!typeSet.contains(record.type) || !isNewestRecord(record)) {
+            continue;
+          }
+
+          if (manifest != null) {
+            CorpusManifest.Entry entry = manifest.getEntry(record.path);
+            if (entry != null && !manifestFilter.apply(entry)) {
+              continue;
+            }
+          }
+
+          Document document = DocumentDB.instance.createDocument(record.type, record.path);
+          document.setSegmentRecord(record);
+          outputDocument(document, streamOutput);
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void streamManifestDocuments(Iterable<DocumentNameGenerator.DocumentType> types,
+                                       DocumentStreamOutput streamOutput) {
+    for (CorpusManifest.Entry entry : manifest.getEntries(types)) {
+      if (documentLimit > 0 && numDocumentsProcessed >= documentLimit) {
+        return;
+      }
+
+      if (manifestFilter.apply(entry)) {
+        outputDocument(DocumentDB.instance.createDocument(entry.type, entry.path), streamOutput);
+      }
+    }
+  }
+
+  // A re-packed path is streamed once, from the segment that lookups would resolve it to.
+  private boolean isNewestRecord(DocumentSegment.Record record) throws IOException {
+    DocumentSegment.Record newest = segmentStore.findRecord(record.path);
+    return newest.segment == record.segment && newest.offset == record.offset;
+  }
+
+  private void outputDocument(Document document, DocumentStreamOutput streamOutput) {
+    streamOutput.processDocument(document);
+    numDocumentsProcessed++;
+    if ((numDocumentsProcessed % 10000) == 0) {
+      Log.out("docs processed: " + numDocumentsProcessed);
+    }
+  }
 }
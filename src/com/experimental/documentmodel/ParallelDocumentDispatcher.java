@@ -0,0 +1,149 @@
+package com.experimental.documentmodel;
+
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs DocumentStream output on a fixed pool of workers with a bounded window of documents in
+ * flight. The producer blocks once the window is full, so a fast directory walk can never queue
+ * up more than the window's worth of Document references. A document leaves the window once its
+ * result has been collected, which for ordered delivery means once every earlier document has
+ * been collected as well.
+ */
+class ParallelDocumentDispatcher<T> {
+  private static final String TAG = "ParallelDocumentDispatcher";
+
+  private static class PendingResult<T> {
+    final Document document;
+    final T result;
+    final boolean succeeded;
+
+    PendingResult(Document document, T result, boolean succeeded) {
+      this.document = document;
+      this.result = result;
+      this.succeeded = succeeded;
+    }
+  }
+
+  private final DocumentStream.ParallelDocumentOutput<T> output;
+  private final ExecutorService executor;
+  private final Semaphore window;
+  private final int windowSize;
+  private final boolean orderedDelivery;
+
+  private final AtomicLong computeNanos = new AtomicLong(0);
+
+  private final Object deliveryLock = new Object();
+  private final Map<Long, PendingResult<T>> pendingResults = new HashMap<Long, PendingResult<T>>();
+  private long nextSubmitted = 0;
+  private long nextDelivered = 0;
+  private int numSucceeded = 0;
+  private int numFailed = 0;
+
+  ParallelDocumentDispatcher(DocumentStream.ParallelDocumentOutput<T> output, int numWorkers, int windowSize,
+                             boolean orderedDelivery) {
+    Preconditions.checkArgument(numWorkers > 0);
+    Preconditions.checkArgument(windowSize > 0);
+
+    this.output = Preconditions.checkNotNull(output);
+    this.executor = Executors.newFixedThreadPool(numWorkers);
+    this.window = new Semaphore(windowSize);
+    this.windowSize = windowSize;
+    this.orderedDelivery = orderedDelivery;
+  }
+
+  /**
+   * Called from the producer thread only. Blocks while the window is full.
+   */
+  void submit(final Document document) {
+    window.acquireUninterruptibly();
+    final long sequence = nextSubmitted++;
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        T result = null;
+        boolean succeeded = false;
+        long start = System.nanoTime();
+        try {
+          result = output.processDocument(document);
+          succeeded = true;
+        } catch (Throwable e) {
+          Log.out(TAG, "failed to process: " + document.rootDirectoryPath);
+          e.printStackTrace();
+        }
+        computeNanos.addAndGet(System.nanoTime() - start);
+
+        deliver(sequence, new PendingResult<T>(document, result, succeeded));
+      }
+    });
+  }
+
+  /**
+   * Waits for every submitted document to be collected and returns the number processed without
+   * error.
+   */
+  int awaitCompletion() {
+    window.acquireUninterruptibly(windowSize);
+    window.release(windowSize);
+
+    synchronized (deliveryLock) {
+      if (numFailed > 0) {
+        Log.out(TAG, numFailed + " documents failed to process");
+      }
+      return numSucceeded;
+    }
+  }
+
+  /**
+   * Total time the workers spent in processDocument, summed over all workers.
+   */
+  long getComputeNanos() {
+    return computeNanos.get();
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  private void deliver(long sequence, PendingResult<T> pending) {
+    synchronized (deliveryLock) {
+      if (!orderedDelivery) {
+        collect(pending);
+        window.release();
+        return;
+      }
+
+      pendingResults.put(sequence, pending);
+      PendingResult<T> next;
+      while ((next = pendingResults.remove(nextDelivered)) != null) {
+        collect(next);
+        nextDelivered++;
+        window.release();
+      }
+    }
+  }
+
+  private void collect(PendingResult<T> pending) {
+    if (!pending.succeeded) {
+      numFailed++;
+      return;
+    }
+
+    try {
+      output.collectResult(pending.document, pending.result);
+      numSucceeded++;
+    } catch (Throwable e) {
+      numFailed++;
+      Log.out(TAG, "failed to collect: " + pending.document.rootDirectoryPath);
+      e.printStackTrace();
+    }
+  }
+}
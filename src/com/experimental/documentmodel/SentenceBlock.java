@@ -0,0 +1,179 @@
+package com.experimental.documentmodel;
+
+import com.experimental.languagemodel.Lemma;
+import com.experimental.nlp.POSTag;
+import com.google.common.base.Preconditions;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the sentences of a document stored as parallel primitive arrays, one entry per token,
+ * instead of a Sentence and Token object per sentence and word.
+ *
+ * Lemma ids index the block's table of distinct lemmas and surface ids index its string table, so
+ * both are only meaningful within one block. Tokens of sentence s are the range
+ * [sentenceStart(s), sentenceEnd(s)). Consumers are expected to loop over these ranges directly.
+ */
+public class SentenceBlock {
+  private final Lemma[] lemmas;
+  private final String[] strings;
+
+  private final int[] tokenLemmaIds;
+  private final int[] tokenSurfaceIds;
+  private final byte[] tokenPosCodes;
+
+  private final int[] sentenceStarts;
+  private final double[] sentenceEmphasis;
+
+  SentenceBlock(Lemma[] lemmas, String[] strings, int[] tokenLemmaIds, int[] tokenSurfaceIds,
+                byte[] tokenPosCodes, int[] sentenceStarts, double[] sentenceEmphasis) {
+    Preconditions.checkArgument(tokenLemmaIds.length == tokenSurfaceIds.length);
+    Preconditions.checkArgument(tokenLemmaIds.length == tokenPosCodes.length);
+    Preconditions.checkArgument(sentenceStarts.length == sentenceEmphasis.length + 1);
+
+    this.lemmas = lemmas;
+    this.strings = strings;
+    this.tokenLemmaIds = tokenLemmaIds;
+    this.tokenSurfaceIds = tokenSurfaceIds;
+    this.tokenPosCodes = tokenPosCodes;
+    this.sentenceStarts = sentenceStarts;
+    this.sentenceEmphasis = sentenceEmphasis;
+  }
+
+  public static SentenceBlock fromSentences(List<Sentence> sentences) {
+    Preconditions.checkNotNull(sentences);
+
+    int numTokens = 0;
+    for (Sentence sentence : sentences) {
+      numTokens += sentence.tokens.size();
+    }
+
+    Map<Lemma, Integer> lemmaIds = new HashMap<Lemma, Integer>();
+    Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+    int[] tokenLemmaIds = new int[numTokens];
+    int[] tokenSurfaceIds = new int[numTokens];
+    byte[] tokenPosCodes = new byte[numTokens];
+    int[] sentenceStarts = new int[sentences.size() + 1];
+    double[] sentenceEmphasis = new double[sentences.size()];
+
+    int curToken = 0;
+    for (int i = 0; i < sentences.size(); i++) {
+      Sentence sentence = sentences.get(i);
+      sentenceStarts[i] = curToken;
+      sentenceEmphasis[i] = sentence.emphasis;
+
+      for (Token token : sentence.tokens) {
+        Lemma lemma = Lemma.fromToken(token);
+        Integer lemmaId = lemmaIds.get(lemma);
+        if (lemmaId == null) {
+          lemmaId = lemmaIds.size();
+          lemmaIds.put(lemma, lemmaId);
+        }
+
+        Integer surfaceId = stringIds.get(token.raw);
+        if (surfaceId == null) {
+          surfaceId = stringIds.size();
+          stringIds.put(token.raw, surfaceId);
+        }
+
+        tokenLemmaIds[curToken] = lemmaId;
+        tokenSurfaceIds[curToken] = surfaceId;
+        tokenPosCodes[curToken] = token.partOfSpeech.getCode();
+        curToken++;
+      }
+    }
+    sentenceStarts[sentences.size()] = curToken;
+
+    Lemma[] lemmas = new Lemma[lemmaIds.size()];
+    for (Map.Entry<Lemma, Integer> entry : lemmaIds.entrySet()) {
+      lemmas[entry.getValue()] = entry.getKey();
+    }
+
+    String[] strings = new String[stringIds.size()];
+    for (Map.Entry<String, Integer> entry : stringIds.entrySet()) {
+      strings[entry.getValue()] = entry.getKey();
+    }
+
+    return new SentenceBlock(lemmas, strings, tokenLemmaIds, tokenSurfaceIds, tokenPosCodes,
+        sentenceStarts, sentenceEmphasis);
+  }
+
+  public int numSentences() {
+    return sentenceEmphasis.length;
+  }
+
+  public int numTokens() {
+    return tokenLemmaIds.length;
+  }
+
+  public int numLemmas() {
+    return lemmas.length;
+  }
+
+  int numStrings() {
+    return strings.length;
+  }
+
+  public int sentenceStart(int sentence) {
+    return sentenceStarts[sentence];
+  }
+
+  public int sentenceEnd(int sentence) {
+    return sentenceStarts[sentence + 1];
+  }
+
+  public double emphasis(int sentence) {
+    return sentenceEmphasis[sentence];
+  }
+
+  public int lemmaId(int token) {
+    return tokenLemmaIds[token];
+  }
+
+  public Lemma lemma(int token) {
+    return lemmas[tokenLemmaIds[token]];
+  }
+
+  public Lemma getLemma(int lemmaId) {
+    return lemmas[lemmaId];
+  }
+
+  public String surface(int token) {
+    return strings[tokenSurfaceIds[token]];
+  }
+
+  public POSTag partOfSpeech(int token) {
+    return POSTag.fromCode(tokenPosCodes[token]);
+  }
+
+  /**
+   * Returns the block-local id of the lemma, or -1 if it does not occur in the document.
+   */
+  public int findLemmaId(Lemma lemma) {
+    Preconditions.checkNotNull(lemma);
+
+    for (int i = 0; i < lemmas.length; i++) {
+      if (lemmas[i].equals(lemma)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Sums the emphasis of every occurrence of each lemma, indexed by lemma id.
+   */
+  public double[] lemmaWeights() {
+    double[] result = new double[lemmas.length];
+    for (int s = 0; s < sentenceEmphasis.length; s++) {
+      double emphasis = sentenceEmphasis[s];
+      for (int i = sentenceStarts[s]; i < sentenceStarts[s + 1]; i++) {
+        result[tokenLemmaIds[i]] += emphasis;
+      }
+    }
+    return result;
+  }
+}
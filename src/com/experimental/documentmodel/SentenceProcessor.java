@@ -20,7 +20,6 @@ import edu.stanford.nlp.util.CoreMap;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -107,24 +106,11 @@ public class SentenceProcessor {
     }
 
     String morphology = token.get(CoreAnnotations.TextAnnotation.class);
-    Map<Lemma, Integer> possibleLemmas = lemmaMorphologies.getLemmasFor(morphology);
-    if (possibleLemmas.size() == 0) {
+    Lemma mostLikelyLemma = lemmaMorphologies.getMostLikelyLemma(morphology);
+    if (mostLikelyLemma == null) {
       return null;
     }
 
-    Lemma mostLikelyLemma = null;
-    int highestOccurance = 0;
-
-    for (Map.Entry<Lemma, Integer> entry : possibleLemmas.entrySet()) {
-      if (entry.getValue() > highestOccurance) {
-        highestOccurance = entry.getValue();
-        mostLikelyLemma = entry.getKey();
-      }
-    }
-
-    Preconditions.checkState(highestOccurance > 0);
-    Preconditions.checkState(mostLikelyLemma != null);
-
     if (mostLikelyLemma.tag == SimplePOSTag.OTHER) {
       return null;
     } else {
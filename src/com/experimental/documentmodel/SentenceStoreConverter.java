@@ -0,0 +1,57 @@
+package com.experimental.documentmodel;
+
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts an existing corpus from the text sentences and concept vector formats to
+ * BinarySentenceStore and BinaryConceptVectors files, and single-file website pages to
+ * SiteSections files.
+ * Documents that are already converted are left untouched, so an interrupted run can be resumed.
+ */
+public class SentenceStoreConverter {
+  private static final String TAG = "SentenceStoreConverter";
+
+  private final String documentsRootPath;
+  private final boolean deleteLegacyFiles;
+
+  public SentenceStoreConverter(String documentsRootPath, boolean deleteLegacyFiles) {
+    this.documentsRootPath = Preconditions.checkNotNull(documentsRootPath);
+    this.deleteLegacyFiles = deleteLegacyFiles;
+  }
+
+  public int convertCorpus(int numThreads) {
+    Preconditions.checkArgument(numThreads > 0);
+
+    final AtomicInteger numConverted = new AtomicInteger(0);
+
+    DocumentStream documentStream = new DocumentStream(documentsRootPath);
+    documentStream.setNumWorkers(numThreads);
+    int numDocuments = Futures.getUnchecked(documentStream.streamDocumentsParallel(
+        new DocumentStream.DocumentStreamOutput() {
+          @Override
+          public void processDocument(Document document) {
+            try {
+              boolean convertedSentences = document.convertLegacySentences(deleteLegacyFiles);
+              boolean convertedVector = document.convertLegacyConceptVector(deleteLegacyFiles);
+              // The sectioned site files replace the legacy file, so it is always removed.
+              boolean convertedSites = document instanceof WebsiteDocument &&
+                  ((WebsiteDocument) document).convertLegacySitePages();
+              if (convertedSentences || convertedVector || convertedSites) {
+                numConverted.incrementAndGet();
+              }
+            } catch (IOException e) {
+              Log.out(TAG, "could not convert: " + document.rootDirectoryPath);
+              e.printStackTrace();
+            }
+          }
+        }));
+
+    Log.out(TAG, "converted " + numConverted.get() + " of " + numDocuments + " documents");
+    return numConverted.get();
+  }
+}
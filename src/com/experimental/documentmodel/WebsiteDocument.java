@@ -1,10 +1,14 @@
 package com.experimental.documentmodel;
 
 import com.experimental.sitepage.SitePage;
+import com.experimental.sitepage.SiteSections;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,110 +18,177 @@ import java.util.List;
 public class WebsiteDocument extends Document {
 
   private static final double FRONT_PAGE_EMPHASIS_MULTIPLIER = 2.0;
+  // Legacy single-file site store, read if the sectioned files are missing.
   private static final String SITES_FILENAME = "sites.txt";
 
   private SitePage frontPage = null;
   private List<SitePage> sitePages = null;
+  private boolean sitePagesDirty = false;
 
   public WebsiteDocument(String rootDirectoryPath) {
     super(rootDirectoryPath);
   }
 
   public List<SitePage> getSitePages() {
-    if (sitePages == null || frontPage == null) {
-      sitePages = new ArrayList<SitePage>();
-      tryLoadSitePages();
-    }
-
     List<SitePage> result = new ArrayList<SitePage>();
-    if (frontPage == null) {
-      return result;
+    synchronized (this) {
+      if (sitePages == null || frontPage == null) {
+        sitePages = new ArrayList<SitePage>();
+        tryLoadSitePages();
+        markPayloadChanged(false);
+      }
+
+      if (frontPage != null) {
+        result.add(frontPage);
+        result.addAll(sitePages);
+      }
     }
 
-    result.add(frontPage);
-    result.addAll(sitePages);
+    DocumentDB.instance.payloadAccessed(this);
     return result;
   }
 
   public void setFrontPage(SitePage page) {
-    this.frontPage = Preconditions.checkNotNull(page);
+    Preconditions.checkNotNull(page);
+
+    synchronized (this) {
+      this.frontPage = page;
+      sitePagesDirty = true;
+      markPayloadChanged(true);
+    }
+
+    DocumentDB.instance.payloadAccessed(this);
   }
 
   public void addChildPage(SitePage page) {
-    if (sitePages == null) {
-      sitePages = new ArrayList<SitePage>();
+    Preconditions.checkNotNull(page);
+
+    synchronized (this) {
+      if (sitePages == null) {
+        sitePages = new ArrayList<SitePage>();
+      }
+      sitePages.add(page);
+      sitePagesDirty = true;
+      markPayloadChanged(true);
     }
 
-    sitePages.add(Preconditions.checkNotNull(page));
+    DocumentDB.instance.payloadAccessed(this);
   }
 
   public void buildDocument() {
+    List<Sentence> documentSentences = new ArrayList<Sentence>();
+
     List<Sentence> frontPageSentences = frontPage.getFlatSentences();
     for (Sentence frontPageSentence : frontPageSentences) {
       Sentence weightedSentence =
           new Sentence(frontPageSentence.tokens, frontPageSentence.emphasis * FRONT_PAGE_EMPHASIS_MULTIPLIER);
-      this.addSentence(weightedSentence);
+      documentSentences.add(weightedSentence);
+    }
+
+    if (sitePages != null) {
+      for (SitePage page : sitePages) {
+        documentSentences.addAll(page.getFlatSentences());
+      }
     }
 
+    if (!documentSentences.isEmpty()) {
+      this.addSentences(documentSentences);
+    }
+  }
+
+  @Override
+  protected long approximateSpecificPayloadBytes() {
+    long result = ApproximateSize.ofSitePage(frontPage);
     if (sitePages != null) {
       for (SitePage page : sitePages) {
-        this.addSentences(page.getFlatSentences());
+        result += ApproximateSize.ofSitePage(page);
       }
     }
+    return result;
+  }
+
+  @Override
+  protected void evictSpecificPayloads() {
+    frontPage = null;
+    sitePages = null;
   }
 
   @Override
   protected void writeSpecificData() throws IOException {
-    if (frontPage == null) {
+    if (!sitePagesDirty || frontPage == null) {
       return;
     }
 
     File rootDir = new File(rootDirectoryPath);
     Preconditions.checkState(rootDir.exists());
 
-    String siteFilePath = rootDir.toPath().resolve(SITES_FILENAME).toString();
-    BufferedWriter bw = null;
-    try {
-      try {
-        FileWriter fw = new FileWriter(siteFilePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
-      }
+    List<SitePage> pages = new ArrayList<SitePage>();
+    pages.add(frontPage);
+    if (sitePages != null) {
+      pages.addAll(sitePages);
+    }
 
-      frontPage.writeTo(bw);
+    // Pull in every lazily loaded section before any of the stored files is replaced.
+    for (SitePage page : pages) {
+      page.getOutgoingLinks();
+      page.getPageBoxes();
+    }
 
-      if (sitePages == null) {
-        bw.write("0\n");
-      } else {
-        bw.write(Integer.toString(sitePages.size()) + "\n");
-        for (SitePage page : sitePages) {
-          page.writeTo(bw);
-        }
-      }
-    } finally {
-      if (bw != null) {
-        bw.close();
-      }
+    for (SiteSections.Section section : SiteSections.Section.values()) {
+      writeSiteSection(rootDir, section, pages);
     }
 
+    File legacySiteFile = rootDir.toPath().resolve(SITES_FILENAME).toFile();
+    if (legacySiteFile.exists()) {
+      Preconditions.checkState(legacySiteFile.delete());
+    }
+    sitePagesDirty = false;
   }
 
-  private boolean tryLoadSitePages() {
-    File rootDir = new File(rootDirectoryPath);
-    if (!rootDir.exists()) {
-      return false;
-    }
+  private void writeSiteSection(File rootDir, SiteSections.Section section, List<SitePage> pages)
+      throws IOException {
+    File sectionFile = rootDir.toPath().resolve(section.getFilename()).toFile();
+    File tempFile = AtomicFiles.tempFileFor(sectionFile);
 
-    String sitesPath = rootDir.toPath().resolve(SITES_FILENAME).toString();
-    File sitesFile = new File(sitesPath);
-    if (!sitesFile.exists()) {
-      return false;
+    BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
+    try {
+      SiteSections.writeSection(section, pages, bw);
+    } finally {
+      bw.close();
     }
 
+    AtomicFiles.commit(tempFile, sectionFile);
+  }
+
+  private boolean tryLoadSitePages() {
     try {
-      loadSitePages(sitesFile);
+      List<SitePage> pages = SiteSections.readPages(new SiteSections.Source() {
+        @Override
+        public BufferedReader openSection(SiteSections.Section section) throws IOException {
+          ByteBuffer sectionData = readArtifact(section.getFilename());
+          return sectionData == null ? null : BinaryIO.newTextReader(sectionData);
+        }
+
+        @Override
+        public void sectionLoaded(SiteSections.Section section) {
+          siteSectionLoaded();
+        }
+      });
+
+      if (pages != null) {
+        if (!pages.isEmpty()) {
+          frontPage = pages.get(0);
+          sitePages.addAll(pages.subList(1, pages.size()));
+        }
+        return true;
+      }
+
+      ByteBuffer sitesData = readArtifact(SITES_FILENAME);
+      if (sitesData == null) {
+        return false;
+      }
+
+      loadSitePages(BinaryIO.newTextReader(sitesData));
     } catch (IOException e) {
       e.printStackTrace();
       return false;
@@ -126,11 +197,23 @@ public class WebsiteDocument extends Document {
     return true;
   }
 
-  private void loadSitePages(File file) throws IOException {
-    BufferedReader br = null;
-    try {
-      br = new BufferedReader(new FileReader(file.getAbsolutePath()));
+  /**
+   * Links and boxes are loaded after the pages were first accounted for, and hold most of their
+   * bytes, so the pages are accounted for again. Sections loaded by save, which holds the
+   * document's lock, are accounted for on the next access instead.
+   */
+  private void siteSectionLoaded() {
+    synchronized (this) {
+      markPayloadChanged(false);
+    }
+
+    if (!Thread.holdsLock(this)) {
+      DocumentDB.instance.payloadAccessed(this);
+    }
+  }
 
+  private void loadSitePages(BufferedReader br) throws IOException {
+    try {
       frontPage = SitePage.readFrom(br);
 
       int numPages = Integer.parseInt(Preconditions.checkNotNull(br.readLine()));
@@ -140,13 +223,29 @@ public class WebsiteDocument extends Document {
       for (int i = 0; i < numPages; i++) {
         sitePages.add(SitePage.readFrom(br));
       }
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-      return;
     } finally {
-      if (br != null) {
-        br.close();
-      }
+      br.close();
     }
   }
+
+  /**
+   * Rewrites a legacy sites file as the sectioned site files. Returns false if there was no legacy
+   * file to convert.
+   */
+  boolean convertLegacySitePages() throws IOException {
+    File rootDir = new File(rootDirectoryPath);
+    File legacySiteFile = rootDir.toPath().resolve(SITES_FILENAME).toFile();
+    if (!legacySiteFile.exists()) {
+      return false;
+    }
+
+    synchronized (this) {
+      sitePages = new ArrayList<SitePage>();
+      frontPage = null;
+      loadSitePages(new BufferedReader(new FileReader(legacySiteFile)));
+      sitePagesDirty = true;
+      writeSpecificData();
+    }
+    return true;
+  }
 }
@@ -0,0 +1,167 @@
+package com.experimental.documentvector;
+
+import com.experimental.utils.BinaryIO;
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Sparse binary encoding of concept vectors, replacing the one-line-per-dimension text format.
+ *
+ * A vector is its varint dimension count, a varint count of non-zero entries, then per entry the
+ * varint gap from the previous entry's index and the value as a float. A single vector file has a
+ * magic and version in front of it. A bulk file holds many vectors, each tagged with a string key,
+ * and is read back in one sequential pass.
+ */
+public class BinaryConceptVectors {
+  private static final int VECTOR_MAGIC = 0x43564543; // "CVEC"
+  private static final int BULK_MAGIC = 0x43564253;   // "CVBS"
+  private static final byte VERSION = 1;
+
+  public interface VectorVisitor {
+    void visitVector(String key, ConceptVector vector);
+  }
+
+  public static void writeTo(ConceptVector vector, File file) throws IOException {
+    Preconditions.checkNotNull(vector);
+    Preconditions.checkNotNull(file);
+
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      out.writeInt(VECTOR_MAGIC);
+      out.writeByte(VERSION);
+      write(vector, out);
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Reads a single vector file written by writeTo as a SparseConceptVectorImpl.
+   */
+  public static SparseConceptVectorImpl readFrom(ByteBuffer in) throws IOException {
+    Preconditions.checkNotNull(in);
+
+    readHeader(in, VECTOR_MAGIC);
+    return (SparseConceptVectorImpl) read(in, false);
+  }
+
+  public static void writeAll(List<String> keys, List<? extends ConceptVector> vectors, File file)
+      throws IOException {
+    Preconditions.checkNotNull(keys);
+    Preconditions.checkNotNull(vectors);
+    Preconditions.checkArgument(keys.size() == vectors.size());
+
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+      out.writeInt(BULK_MAGIC);
+      out.writeByte(VERSION);
+      BinaryIO.writeVarInt(out, vectors.size());
+      for (int i = 0; i < vectors.size(); i++) {
+        BinaryIO.writeString(out, keys.get(i));
+        write(vectors.get(i), out);
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Reads every vector of a bulk file in order. Vectors are read as ConceptVectorImpl if dense is
+   * set, for vectors such as cluster centroids that have few zero entries, and as
+   * SparseConceptVectorImpl otherwise.
+   */
+  public static void readAll(File file, boolean dense, VectorVisitor visitor) throws IOException {
+    Preconditions.checkNotNull(visitor);
+
+    ByteBuffer in = BinaryIO.readFully(file);
+    readHeader(in, BULK_MAGIC);
+
+    int numVectors = BinaryIO.readVarInt(in);
+    for (int i = 0; i < numVectors; i++) {
+      String key = BinaryIO.readString(in);
+      visitor.visitVector(key, read(in, dense));
+    }
+  }
+
+  public static void write(ConceptVector vector, DataOutput out) throws IOException {
+    Preconditions.checkNotNull(vector);
+    Preconditions.checkNotNull(out);
+
+    BinaryIO.writeVarInt(out, vector.dimensions());
+
+    if (vector instanceof SparseConceptVectorImpl) {
+      SparseConceptVectorImpl sparse = (SparseConceptVectorImpl) vector;
+
+      BinaryIO.writeVarInt(out, sparse.numEntries());
+      int prevIndex = 0;
+      for (int i = 0; i < sparse.numEntries(); i++) {
+        BinaryIO.writeVarInt(out, sparse.indexAt(i) - prevIndex);
+        out.writeFloat(sparse.valueAt(i));
+        prevIndex = sparse.indexAt(i);
+      }
+      return;
+    }
+
+    int numEntries = 0;
+    for (int i = 0; i < vector.dimensions(); i++) {
+      if (vector.getValue(i) != 0.0) {
+        numEntries++;
+      }
+    }
+
+    BinaryIO.writeVarInt(out, numEntries);
+    int prevIndex = 0;
+    for (int i = 0; i < vector.dimensions(); i++) {
+      double value = vector.getValue(i);
+      if (value != 0.0) {
+        BinaryIO.writeVarInt(out, i - prevIndex);
+        out.writeFloat((float) value);
+        prevIndex = i;
+      }
+    }
+  }
+
+  public static ConceptVector read(ByteBuffer in, boolean dense) {
+    Preconditions.checkNotNull(in);
+
+    int dim = BinaryIO.readVarInt(in);
+    int numEntries = BinaryIO.readVarInt(in);
+
+    ConceptVectorImpl denseResult = dense ? new ConceptVectorImpl(dim) : null;
+    SparseConceptVectorImpl sparseResult = dense ? null : new SparseConceptVectorImpl(dim);
+
+    int index = 0;
+    for (int i = 0; i < numEntries; i++) {
+      index += BinaryIO.readVarInt(in);
+      double value = in.getFloat();
+      if (dense) {
+        denseResult.setValue(index, value);
+      } else if (value != 0.0) {
+        // A value can round to zero as a float, the sparse vector must not hold it.
+        sparseResult.appendEntry(index, value);
+      }
+    }
+
+    return dense ? denseResult : sparseResult;
+  }
+
+  private static void readHeader(ByteBuffer in, int magic) throws IOException {
+    if (in.remaining() < 5 || in.getInt() != magic) {
+      throw new IOException("not a binary concept vector file");
+    }
+
+    byte version = in.get();
+    if (version != VERSION) {
+      throw new IOException("unsupported binary concept vector version: " + version);
+    }
+  }
+}
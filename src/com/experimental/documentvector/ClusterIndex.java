@@ -0,0 +1,144 @@
+package com.experimental.documentvector;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+
+/**
+ * An inverted file over the rows of a VectorScorer: every row is assigned to the cluster whose
+ * centroid it scores highest against, and each cluster keeps the list of its rows. A search
+ * scores the query against the centroids and then only against the rows of the nprobe best
+ * clusters, a small fraction of the rows when there are many clusters.
+ */
+public class ClusterIndex {
+  // Rows assigned per call to the scorer, with every centroid scored against them.
+  private static final int ASSIGN_CHUNK_ROWS = 256;
+
+  private final VectorScorer vectors;
+  private final DocumentVectorMatrix centroids;
+  // The rows of cluster c are postings[offsets[c]] up to postings[offsets[c + 1]], ascending.
+  private final int[] offsets;
+  private final int[] postings;
+
+  /**
+   * Indexes the rows of vectors, row i belonging to cluster rowClusters[i].
+   */
+  public ClusterIndex(VectorScorer vectors, List<? extends ConceptVector> centroids, int[] rowClusters) {
+    Preconditions.checkNotNull(vectors);
+    Preconditions.checkArgument(!centroids.isEmpty());
+    Preconditions.checkArgument(rowClusters.length == vectors.numRows());
+
+    this.vectors = vectors;
+    this.centroids = packCentroids(centroids, vectors.dimensions());
+
+    int numClusters = centroids.size();
+    offsets = new int[numClusters + 1];
+    for (int cluster : rowClusters) {
+      Preconditions.checkElementIndex(cluster, numClusters);
+      offsets[cluster + 1]++;
+    }
+    for (int c = 0; c < numClusters; c++) {
+      offsets[c + 1] += offsets[c];
+    }
+
+    postings = new int[rowClusters.length];
+    int[] next = new int[numClusters];
+    for (int row = 0; row < rowClusters.length; row++) {
+      int cluster = rowClusters[row];
+      postings[offsets[cluster] + next[cluster]++] = row;
+    }
+  }
+
+  private static DocumentVectorMatrix packCentroids(List<? extends ConceptVector> centroids, int dim) {
+    DocumentVectorMatrix result = DocumentVectorMatrix.allocate(centroids.size(), dim);
+    for (int c = 0; c < centroids.size(); c++) {
+      result.setRow(c, centroids.get(c));
+    }
+    return result;
+  }
+
+  /**
+   * The cluster of each of the given rows, the one whose centroid has the highest dot product
+   * with it. The centroids are scored as one batch of queries against each chunk of rows, so the
+   * rows are read once.
+   */
+  public static int[] assignRows(VectorScorer vectors, List<? extends ConceptVector> centroids, int[] rows) {
+    Preconditions.checkNotNull(vectors);
+    Preconditions.checkArgument(!centroids.isEmpty());
+
+    int[] result = new int[rows.length];
+    float[][] scores = new float[centroids.size()][ASSIGN_CHUNK_ROWS];
+    for (int i = 0; i < rows.length; i++) {
+      // Rows are assigned in runs of consecutive rows where possible.
+      int fromRow = rows[i];
+      int runLength = 1;
+      while (i + runLength < rows.length && runLength < ASSIGN_CHUNK_ROWS &&
+          rows[i + runLength] == fromRow + runLength) {
+        runLength++;
+      }
+      vectors.score(centroids, fromRow, fromRow + runLength, scores);
+
+      for (int r = 0; r < runLength; r++) {
+        int bestCluster = 0;
+        for (int c = 1; c < scores.length; c++) {
+          if (scores[c][r] > scores[bestCluster][r]) {
+            bestCluster = c;
+          }
+        }
+        result[i + r] = bestCluster;
+      }
+      i += runLength - 1;
+    }
+    return result;
+  }
+
+  public int numClusters() {
+    return offsets.length - 1;
+  }
+
+  public int clusterSize(int cluster) {
+    return offsets[cluster + 1] - offsets[cluster];
+  }
+
+  /**
+   * Returns up to k of the highest scoring rows for the query among the rows of the nprobe
+   * clusters whose centroids score highest against it, never the excluded row (-1 for none).
+   */
+  public TopKHeap search(float[] query, int k, int nprobe, int excludedRow) {
+    Preconditions.checkArgument(query.length == vectors.dimensions());
+    Preconditions.checkArgument(k >= 0 && nprobe > 0);
+
+    TopKHeap result = new TopKHeap(k);
+    for (int cluster : nearestClusters(query, nprobe)) {
+      for (int i = offsets[cluster]; i < offsets[cluster + 1]; i++) {
+        int row = postings[i];
+        if (row != excludedRow) {
+          result.offer(row, vectors.score(query, row));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The number of rows a search probing the nprobe nearest clusters of the query scores.
+   */
+  public int numProbedRows(float[] query, int nprobe) {
+    int result = 0;
+    for (int cluster : nearestClusters(query, nprobe)) {
+      result += clusterSize(cluster);
+    }
+    return result;
+  }
+
+  private int[] nearestClusters(float[] query, int nprobe) {
+    TopKHeap nearest = new TopKHeap(Math.min(nprobe, numClusters()));
+    for (int c = 0; c < numClusters(); c++) {
+      nearest.offer(c, centroids.score(query, c));
+    }
+
+    int[] result = new int[nearest.size()];
+    nearest.drainDescending(result, new float[result.length]);
+    return result;
+  }
+}
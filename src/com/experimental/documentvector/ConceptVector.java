@@ -26,6 +26,26 @@ public interface ConceptVector {
 
   double distanceTo(ConceptVector other);
 
+  // Bulk operations, implemented against the other vector's storage instead of per-element
+  // getValue and setValue calls.
+
+  double squaredDistanceTo(ConceptVector other);
+
+  /**
+   * this += factor * other
+   */
+  void addScaled(ConceptVector other, double factor);
+
+  /**
+   * Returns the dot product with the dimensions() floats of dense starting at offset.
+   */
+  double dotProduct(float[] dense, int offset);
+
+  /**
+   * Adds factor times this vector to the dimensions() floats of dense starting at offset.
+   */
+  void addTo(float[] dense, int offset, double factor);
+
   void writeTo(BufferedWriter out) throws IOException;
 
   boolean haveMinElements(int num);
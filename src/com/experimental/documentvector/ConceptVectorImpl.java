@@ -1,19 +1,23 @@
 package com.experimental.documentvector;
 
 import com.experimental.utils.Common;
-import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Created by sushkov on 12/01/15.
+ *
+ * Dense vector stored as float32. Arithmetic with another dense vector runs the VectorKernels
+ * over both arrays, arithmetic with any other vector goes through that vector's bulk dotProduct
+ * and addTo on this array.
  */
 public class ConceptVectorImpl implements ConceptVector {
 
-  private final double[] values;
+  private final float[] values;
   private final int dimensions;
 
   public static ConceptVector createRandomUnitVector(int dim) {
@@ -28,35 +32,49 @@ public class ConceptVectorImpl implements ConceptVector {
   public ConceptVectorImpl(int dim) {
     Preconditions.checkArgument(dim > 0);
 
-    values = new double[dim];
-    for (int i = 0; i < dim; i++) {
-      values[i] = 0.0;
-    }
-
+    this.values = new float[dim];
     this.dimensions = dim;
   }
 
-  @Override
-  public ConceptVector getCopy() {
-    ConceptVectorImpl result = new ConceptVectorImpl(dimensions);
+  /**
+   * Wraps the array without copying it.
+   */
+  public ConceptVectorImpl(float[] values) {
+    Preconditions.checkNotNull(values);
+    Preconditions.checkArgument(values.length > 0);
 
-    for (int i = 0; i < dimensions; i++) {
-      result.setValue(i, values[i]);
-    }
+    this.values = values;
+    this.dimensions = values.length;
+  }
 
-    return result;
+  /**
+   * The backing array, for kernels that read many vectors at once.
+   */
+  float[] values() {
+    return values;
+  }
+
+  @Override
+  public ConceptVector getCopy() {
+    return new ConceptVectorImpl(values.clone());
   }
 
   @Override
   public double distanceTo(ConceptVector other) {
+    return Math.sqrt(squaredDistanceTo(other));
+  }
+
+  @Override
+  public double squaredDistanceTo(ConceptVector other) {
     Preconditions.checkArgument(dimensions == other.dimensions());
 
-    double sumSq = 0.0;
-    for (int i = 0; i < dimensions; i++) {
-      sumSq += (values[i] - other.getValue(i))*(values[i] - other.getValue(i));
+    if (other instanceof ConceptVectorImpl) {
+      return VectorKernels.squaredDistance(values, 0, ((ConceptVectorImpl) other).values, 0, dimensions);
     }
 
-    return Math.sqrt(sumSq);
+    float[] difference = values.clone();
+    other.addTo(difference, 0, -1.0);
+    return VectorKernels.squaredLength(difference, 0, dimensions);
   }
 
   @Override
@@ -66,45 +84,37 @@ public class ConceptVectorImpl implements ConceptVector {
 
   @Override
   public double getValue(int dim) {
-    Preconditions.checkArgument(dim < dimensions);
     return values[dim];
   }
 
   @Override
   public void setValue(int dim, double value) {
-    Preconditions.checkArgument(dim < dimensions);
-    values[dim] = value;
+    values[dim] = (float) value;
   }
 
   @Override
   public void normalise() {
-    double lengthi = 1.0 / length();
-    for (int i = 0; i < dimensions; i++) {
-      values[i] *= lengthi;
-    }
+    VectorKernels.normalise(values, 0, dimensions);
   }
 
   @Override
   public double length() {
-    double squaredSum = 0.0;
-    for (int i = 0; i < dimensions; i++) {
-      squaredSum += values[i]*values[i];
-    }
-    return Math.sqrt(squaredSum);
+    return Math.sqrt(VectorKernels.squaredLength(values, 0, dimensions));
   }
 
   @Override
   public double dotProduct(ConceptVector other) {
-    if (other instanceof SparseConceptVectorImpl) {
-      return other.dotProduct(this);
-    }
-
     Preconditions.checkArgument(dimensions == other.dimensions());
-    double sum = 0.0;
-    for (int i = 0; i < dimensions; i++) {
-      sum += values[i] * other.getValue(i);
+
+    if (other instanceof ConceptVectorImpl) {
+      return VectorKernels.dot(values, ((ConceptVectorImpl) other).values, dimensions);
     }
-    return sum;
+    return other.dotProduct(values, 0);
+  }
+
+  @Override
+  public double dotProduct(float[] dense, int offset) {
+    return VectorKernels.dot(values, 0, dense, offset, dimensions);
   }
 
   @Override
@@ -112,40 +122,47 @@ public class ConceptVectorImpl implements ConceptVector {
     Preconditions.checkNotNull(other);
     Preconditions.checkArgument(dimensions == other.dimensions());
 
-    for (int i = 0; i < dimensions; i++) {
-      values[i] = other.getValue(i);
+    if (other instanceof ConceptVectorImpl) {
+      System.arraycopy(((ConceptVectorImpl) other).values, 0, values, 0, dimensions);
+    } else {
+      setToZero();
+      other.addTo(values, 0, 1.0);
     }
   }
 
   @Override
   public void setToZero() {
-    for (int i = 0; i < dimensions; i++) {
-      values[i] = 0.0;
-    }
+    Arrays.fill(values, 0.0f);
   }
 
   @Override
   public void add(ConceptVector other) {
+    addScaled(other, 1.0);
+  }
+
+  @Override
+  public void addScaled(ConceptVector other, double factor) {
     Preconditions.checkNotNull(other);
     Preconditions.checkArgument(dimensions == other.dimensions());
 
-    for (int i = 0; i < dimensions; i++) {
-      values[i] += other.getValue(i);
-    }
+    other.addTo(values, 0, factor);
+  }
+
+  @Override
+  public void addTo(float[] dense, int offset, double factor) {
+    VectorKernels.axpy((float) factor, values, 0, dense, offset, dimensions);
   }
 
   @Override
   public void scale(double factor) {
-    for (int i = 0; i < dimensions; i++) {
-      values[i] *= factor;
-    }
+    VectorKernels.scale(values, 0, dimensions, (float) factor);
   }
 
   @Override
   public void writeTo(BufferedWriter out) throws IOException {
     out.write(Integer.toString(dimensions) + "\n");
     for (int i = 0; i < dimensions; i++) {
-      out.write(Double.toString(values[i]) + "\n");
+      out.write(Float.toString(values[i]) + "\n");
     }
   }
 
@@ -167,10 +184,10 @@ public class ConceptVectorImpl implements ConceptVector {
 
   public static ConceptVectorImpl readFrom(BufferedReader in) throws IOException {
     int dim = Integer.parseInt(in.readLine());
-    ConceptVectorImpl result = new ConceptVectorImpl(dim);
+    float[] values = new float[dim];
     for (int i = 0; i < dim; i++) {
-      result.setValue(i, Double.parseDouble(in.readLine()));
+      values[i] = (float) Double.parseDouble(in.readLine());
     }
-    return result;
+    return new ConceptVectorImpl(values);
   }
 }
@@ -1,29 +1,55 @@
 package com.experimental.documentvector;
 
 import com.experimental.Constants;
+import com.experimental.documentclustering.DocumentClusters;
 import com.experimental.documentmodel.BagOfWeightedLemmas;
+import com.experimental.documentmodel.CorpusManifest;
 import com.experimental.documentmodel.Document;
+import com.experimental.documentmodel.DocumentDB;
 import com.experimental.documentmodel.DocumentNameGenerator;
 import com.experimental.documentmodel.DocumentStream;
 import com.experimental.languagemodel.Lemma;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by sushkov on 25/01/15.
+ *
+ * The vectors of all website documents as one matrix, a row per document. The first load
+ * streams the corpus and writes the rows to a snapshot file, later loads map the snapshot and
+ * read vectors and paths from it in place. Only if the snapshot cannot be written are the rows
+ * packed in memory and the documents kept here.
+ *
+ * In INT8 mode the scanned matrix holds quantized vectors, a quarter of the bytes of float ones.
+ * Its scores only pick the candidates: the best of them are re-scored with their full precision
+ * rows, read from the mapped snapshot as they are needed. Without a snapshot the float rows are
+ * kept in memory next to the quantized ones, so INT8 mode then takes more memory than FLOAT32.
+ *
+ * Nearest document lookups scan every row unless approximate search is enabled, in which case
+ * they search an HNSW graph over the rows instead, see enableApproximateSearch, or only the rows
+ * of the document clusters nearest to the query, see enableClusterSearch. Either way the
+ * neighbours of a document in the database are looked up in the precomputed neighbour graph
+ * instead if one was saved, see buildNeighbourGraph.
  */
 public class DocumentVectorDB {
 
-  private static class VectoredDocument {
-    final ConceptVector vector;
-    final Document document;
-
-    VectoredDocument(ConceptVector vector, Document document) {
-      this.vector = Preconditions.checkNotNull(vector);
-      this.document = Preconditions.checkNotNull(document);
-    }
+  public enum StorageMode {
+    FLOAT32,
+    INT8
   }
 
   public static class DocumentSimilarityPair {
@@ -50,69 +76,794 @@ public class DocumentVectorDB {
         }
       };
 
-  private final List<VectoredDocument> vectoredDocuments = new ArrayList<VectoredDocument>();
-  private Map<Document, List<DocumentSimilarityPair>> similarDocumentsCache =
-      new HashMap<Document, List<DocumentSimilarityPair>>();
+  private static final String TAG = "DocumentVectorDB";
+  private static final String DOCUMENT_VECTORS_FILENAME = "document_vectors.snapshot";
+  private static final String DOCUMENT_INDEX_FILENAME = "document_vectors.hnsw";
+  private static final String NEIGHBOUR_GRAPH_FILENAME = "document_neighbours.bin";
+  // Neighbours saved per document, the most any caller asks for.
+  public static final int NEIGHBOUR_GRAPH_K = 50;
+  // Nearest document results kept in memory, about 400 bytes each for 50 neighbours.
+  private static final int SIMILARITY_CACHE_CAPACITY = 100000;
+  public static final int DEFAULT_EF_SEARCH = 64;
+  public static final int DEFAULT_NUM_PROBES = 16;
+  // INT8 mode re-scores this many candidates per requested result, plus the slack.
+  private static final int RERANK_FACTOR = 4;
+  private static final int RERANK_SLACK = 16;
+  // Scans are split into partitions of at least this many rows, one per scan thread.
+  private static final int MIN_PARTITION_ROWS = 8192;
+  private static final int NUM_SCAN_THREADS = Runtime.getRuntime().availableProcessors();
+  // Rows scored per call to the scorer before their scores are pushed into the heaps.
+  private static final int SCAN_CHUNK_ROWS = 1024;
+
+  private static final ExecutorService SCAN_EXECUTOR = Executors.newFixedThreadPool(NUM_SCAN_THREADS,
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("document-vector-scan-%d").build());
 
+  private final StorageMode storageMode;
+  // The mapped snapshot the rows come from, or null if they were packed in memory from documents.
+  private DocumentVectorSnapshot snapshot = null;
+  private final List<Document> documents = new ArrayList<Document>();
+  private final Map<String, Integer> rowsByPath = new HashMap<String, Integer>();
+  // A DocumentVectorMatrix or a QuantizedVectorMatrix, depending on the storage mode.
+  private VectorScorer scorer = null;
+  // In INT8 mode the full precision rows candidates are re-scored with, the mapped snapshot's
+  // rows or, without a snapshot, a copy packed next to the quantized ones. Null in FLOAT32 mode.
+  private DocumentVectorMatrix exactVectors = null;
+  // The fingerprint of rows packed in memory, the snapshot's own is used for mapped rows.
+  private long packedRowsFingerprint = 0;
+  // Set once approximate search is enabled, built over the rows of scorer.
+  private volatile HnswIndex approximateIndex = null;
+  private volatile int efSearch = DEFAULT_EF_SEARCH;
+  // Set once cluster search is enabled, at most one of the two indexes is set.
+  private volatile ClusterIndex clusterIndex = null;
+  private volatile int numProbes = DEFAULT_NUM_PROBES;
+  private volatile NeighbourGraph neighbourGraph = null;
+  private final SimilarityCache similarityCache = new SimilarityCache(SIMILARITY_CACHE_CAPACITY);
+
+  public DocumentVectorDB() {
+    this(StorageMode.FLOAT32);
+  }
+
+  public DocumentVectorDB(StorageMode storageMode) {
+    this.storageMode = Preconditions.checkNotNull(storageMode);
+    packVectors(new ArrayList<ConceptVector>());
+  }
 
   public void load() {
+    File snapshotFile = getSnapshotFile();
+    if (snapshotFile.exists()) {
+      try {
+        useSnapshot(DocumentVectorSnapshot.open(snapshotFile));
+        return;
+      } catch (IOException e) {
+        Log.out(TAG, "could not map snapshot, rebuilding it");
+        e.printStackTrace();
+      }
+    }
+
+    documents.clear();
+    List<ConceptVector> loadedVectors = new ArrayList<ConceptVector>();
+    streamDocumentVectors(loadedVectors);
+
+    try {
+      saveSnapshot(snapshotFile, loadedVectors);
+      useSnapshot(DocumentVectorSnapshot.open(snapshotFile));
+    } catch (IOException e) {
+      Log.out(TAG, "could not write snapshot, keeping document vectors in memory");
+      e.printStackTrace();
+      packVectors(loadedVectors);
+      loadNeighbourGraph();
+    }
+  }
+
+  private void streamDocumentVectors(final List<ConceptVector> loadedVectors) {
     List<DocumentNameGenerator.DocumentType> docTypesToProcess =
         Lists.newArrayList(DocumentNameGenerator.DocumentType.WEBSITE);
 
     DocumentStream documentStream = new DocumentStream(Constants.DOCUMENTS_OUTPUT_PATH);
+    CorpusManifest manifest = CorpusManifest.tryLoad(Constants.DOCUMENTS_OUTPUT_PATH);
+    if (manifest != null) {
+      documentStream.setManifestFilter(manifest, new Predicate<CorpusManifest.Entry>() {
+        @Override
+        public boolean apply(CorpusManifest.Entry entry) {
+          return entry.hasConceptVector;
+        }
+      });
+    }
     documentStream.streamDocuments(docTypesToProcess,
         new DocumentStream.DocumentStreamOutput() {
           @Override
           public void processDocument(final Document document) {
             ConceptVector documentVector = document.getConceptVector();
-            if (documentVector != null && !Double.isNaN(documentVector.length()) &&
-                Double.isFinite(documentVector.length())) {
-              vectoredDocuments.add(new VectoredDocument(documentVector, document));
+            if (isValidVector(documentVector)) {
+              synchronized (documents) {
+                documents.add(document);
+                loadedVectors.add(documentVector);
+              }
             }
           }
         });
   }
 
+  /**
+   * Computes the NEIGHBOUR_GRAPH_K nearest documents of every document on all cores and saves
+   * them, from then on the neighbours of loaded documents are looked up instead of searched for.
+   * The graph is always computed from the full precision rows, so it holds exact neighbours and
+   * scores whichever storage mode built or loads it. Must be called after load.
+   */
+  public void buildNeighbourGraph() {
+    VectorScorer exactRows = exactVectors != null ? exactVectors : scorer;
+    NeighbourGraph graph = NeighbourGraph.compute(exactRows, NEIGHBOUR_GRAPH_K, getRowsFingerprint(),
+        SCAN_EXECUTOR, NUM_SCAN_THREADS);
+
+    File graphFile = getNeighbourGraphFile();
+    try {
+      File tempFile = AtomicFiles.tempFileFor(graphFile);
+      graph.save(tempFile);
+      AtomicFiles.commit(tempFile, graphFile);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    neighbourGraph = graph;
+  }
+
+  /**
+   * Maps the saved neighbour graph if it was computed for the loaded documents in their order.
+   */
+  private void loadNeighbourGraph() {
+    File graphFile = getNeighbourGraphFile();
+    if (!graphFile.exists()) {
+      return;
+    }
+
+    try {
+      NeighbourGraph graph = NeighbourGraph.load(graphFile);
+      if (graph.numRows() == scorer.numRows() && graph.fingerprint() == getRowsFingerprint()) {
+        neighbourGraph = graph;
+      } else {
+        Log.out(TAG, "neighbour graph is for other documents, ignoring it");
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private long getRowsFingerprint() {
+    if (snapshot != null) {
+      return snapshot.fingerprint();
+    }
+    return packedRowsFingerprint;
+  }
+
+  private List<String> getDocumentPaths() {
+    List<String> result = new ArrayList<String>(documents.size());
+    for (Document document : documents) {
+      result.add(document.rootDirectoryPath);
+    }
+    return result;
+  }
+
+  /**
+   * Makes nearest document lookups search an HNSW index instead of scanning every row. The index
+   * is mapped from the aggregate data directory if one was saved for the loaded rows, otherwise it
+   * is built on all cores and saved there. Cached results are dropped, since they may come from
+   * a search the index would not have made. Must be called after load.
+   */
+  public void enableApproximateSearch() {
+    clusterIndex = null;
+
+    File indexFile = getIndexFile();
+    if (indexFile.exists()) {
+      try {
+        HnswIndex index = HnswIndex.load(indexFile, scorer);
+        if (index.fingerprint() == getRowsFingerprint()) {
+          approximateIndex = index;
+          similarityCache.clear();
+          return;
+        }
+        Log.out(TAG, "index is for other documents, rebuilding it");
+      } catch (IOException e) {
+        Log.out(TAG, "could not load index, rebuilding it");
+        e.printStackTrace();
+      }
+    }
+
+    approximateIndex = HnswIndex.build(scorer, getRowsFingerprint(), HnswIndex.DEFAULT_M,
+        HnswIndex.DEFAULT_EF_CONSTRUCTION, SCAN_EXECUTOR, NUM_SCAN_THREADS);
+    try {
+      File tempFile = AtomicFiles.tempFileFor(indexFile);
+      approximateIndex.save(tempFile);
+      AtomicFiles.commit(tempFile, indexFile);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    similarityCache.clear();
+  }
+
+  /**
+   * The beam width of approximate searches. Wider beams find more of the exact nearest documents
+   * and take proportionally longer, it is raised to the number of results if that is larger.
+   */
+  public void setEfSearch(int efSearch) {
+    Preconditions.checkArgument(efSearch > 0);
+    this.efSearch = efSearch;
+  }
+
+  /**
+   * Makes nearest document lookups search only the documents of the clusters whose centroids are
+   * nearest to the query, see setNumProbes. Each document belongs to the cluster with its nearest
+   * centroid. Assignments saved with the clusters are reused, documents without one are assigned
+   * on all cores and the assignments saved again. Cached results are dropped, as for
+   * enableApproximateSearch. Must be called after load.
+   */
+  public void enableClusterSearch(DocumentClusters clusters) {
+    Preconditions.checkNotNull(clusters);
+    Preconditions.checkArgument(clusters.getNumClusters() > 0, "no clusters loaded");
+
+    approximateIndex = null;
+    List<ConceptVector> centroids = clusters.getCentroids();
+
+    Map<String, Integer> savedAssignments = null;
+    try {
+      savedAssignments = clusters.tryLoadAssignments();
+    } catch (IOException e) {
+      Log.out(TAG, "could not load cluster assignments, reassigning documents");
+      e.printStackTrace();
+    }
+
+    int[] rowClusters = new int[scorer.numRows()];
+    List<Integer> unassignedRows = new ArrayList<Integer>();
+    for (int row = 0; row < rowClusters.length; row++) {
+      Integer cluster = savedAssignments == null ? null : savedAssignments.get(getPath(row));
+      if (cluster != null && cluster < centroids.size()) {
+        rowClusters[row] = cluster;
+      } else {
+        unassignedRows.add(row);
+      }
+    }
+
+    if (!unassignedRows.isEmpty()) {
+      Log.out(TAG, "assigning " + unassignedRows.size() + " documents to clusters");
+      assignRows(centroids, unassignedRows, rowClusters);
+
+      Map<String, Integer> assignments = new HashMap<String, Integer>();
+      for (int row = 0; row < rowClusters.length; row++) {
+        assignments.put(getPath(row), rowClusters[row]);
+      }
+      try {
+        clusters.saveAssignments(assignments);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    clusterIndex = new ClusterIndex(scorer, centroids, rowClusters);
+    similarityCache.clear();
+  }
+
+  /**
+   * The number of clusters a cluster search looks in. More clusters find more of the exact
+   * nearest documents, at the cost of scoring the documents of every one of them.
+   */
+  public void setNumProbes(int numProbes) {
+    Preconditions.checkArgument(numProbes > 0);
+    this.numProbes = numProbes;
+  }
+
+  /**
+   * Assigns the rows to their nearest centroids in up to NUM_SCAN_THREADS partitions, writing the
+   * cluster of each row to rowClusters.
+   */
+  private void assignRows(final List<ConceptVector> centroids, List<Integer> rows, int[] rowClusters) {
+    int numPartitions = Math.max(1, Math.min(NUM_SCAN_THREADS, rows.size() / MIN_PARTITION_ROWS));
+
+    final List<int[]> partitionRows = new ArrayList<int[]>();
+    List<Future<int[]>> partitions = new ArrayList<Future<int[]>>();
+    for (int p = 0; p < numPartitions; p++) {
+      List<Integer> partition = rows.subList(
+          (int) ((long) rows.size() * p / numPartitions), (int) ((long) rows.size() * (p + 1) / numPartitions));
+      final int[] partitionArray = new int[partition.size()];
+      for (int i = 0; i < partitionArray.length; i++) {
+        partitionArray[i] = partition.get(i);
+      }
+      partitionRows.add(partitionArray);
+
+      partitions.add(SCAN_EXECUTOR.submit(new Callable<int[]>() {
+        @Override
+        public int[] call() {
+          return ClusterIndex.assignRows(scorer, centroids, partitionArray);
+        }
+      }));
+    }
+
+    for (int p = 0; p < numPartitions; p++) {
+      int[] partitionClusters;
+      try {
+        partitionClusters = Uninterruptibles.getUninterruptibly(partitions.get(p));
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("cluster assignment failed", e.getCause());
+      }
+
+      int[] partitionArray = partitionRows.get(p);
+      for (int i = 0; i < partitionArray.length; i++) {
+        rowClusters[partitionArray[i]] = partitionClusters[i];
+      }
+    }
+  }
+
+  /**
+   * Serves the rows from the mapped snapshot. In FLOAT32 mode they are scored straight from the
+   * mapping, in INT8 mode they are quantized from it into memory.
+   */
+  private void useSnapshot(DocumentVectorSnapshot mappedSnapshot) {
+    DocumentVectorMatrix vectors = mappedSnapshot.getVectors();
+    if (storageMode == StorageMode.INT8) {
+      QuantizedVectorMatrix quantizedVectors =
+          QuantizedVectorMatrix.allocate(vectors.numRows(), vectors.dimensions());
+      float[] values = new float[vectors.dimensions()];
+      for (int i = 0; i < vectors.numRows(); i++) {
+        vectors.getRow(i, values);
+        quantizedVectors.setRow(i, values);
+      }
+      scorer = quantizedVectors;
+      exactVectors = vectors;
+    } else {
+      scorer = vectors;
+      exactVectors = null;
+    }
+
+    snapshot = mappedSnapshot;
+    documents.clear();
+    rowsByPath.clear();
+    resetIndexes();
+    loadNeighbourGraph();
+  }
+
+  private void packVectors(List<ConceptVector> loadedVectors) {
+    int dim = loadedVectors.isEmpty() ? 1 : loadedVectors.get(0).dimensions();
+    DocumentVectorMatrix vectors = DocumentVectorMatrix.allocate(loadedVectors.size(), dim);
+    for (int i = 0; i < loadedVectors.size(); i++) {
+      vectors.setRow(i, loadedVectors.get(i));
+    }
+
+    if (storageMode == StorageMode.INT8) {
+      QuantizedVectorMatrix quantizedVectors = QuantizedVectorMatrix.allocate(loadedVectors.size(), dim);
+      float[] values = new float[dim];
+      for (int i = 0; i < loadedVectors.size(); i++) {
+        vectors.getRow(i, values);
+        quantizedVectors.setRow(i, values);
+      }
+      scorer = quantizedVectors;
+      exactVectors = vectors;
+    } else {
+      scorer = vectors;
+      exactVectors = null;
+    }
+
+    snapshot = null;
+    packedRowsFingerprint = DocumentVectorSnapshot.fingerprint(getDocumentPaths(), vectors);
+    rowsByPath.clear();
+    for (int i = 0; i < documents.size(); i++) {
+      rowsByPath.put(documents.get(i).rootDirectoryPath, i);
+    }
+    resetIndexes();
+  }
+
+  /**
+   * Drops everything computed over the previous rows.
+   */
+  private void resetIndexes() {
+    approximateIndex = null;
+    clusterIndex = null;
+    neighbourGraph = null;
+    similarityCache.clear();
+  }
+
+  /**
+   * The cache of nearest document results, for its hit, miss and eviction counts.
+   */
+  public SimilarityCache getSimilarityCache() {
+    return similarityCache;
+  }
+
+  /**
+   * Deletes the snapshot written by load and the indexes built over it, must be called whenever
+   * website document vectors are recomputed.
+   */
+  public static void invalidateSnapshot() {
+    for (File file : new File[] {
+        getSnapshotFile(), getIndexFile(), getNeighbourGraphFile()}) {
+      if (file.exists()) {
+        Preconditions.checkState(file.delete());
+      }
+    }
+    DocumentClusters.invalidateAssignments();
+  }
+
+  private static File getSnapshotFile() {
+    return new File(Constants.AGGREGATE_DATA_PATH).toPath().resolve(DOCUMENT_VECTORS_FILENAME).toFile();
+  }
+
+  private static File getIndexFile() {
+    return new File(Constants.AGGREGATE_DATA_PATH).toPath().resolve(DOCUMENT_INDEX_FILENAME).toFile();
+  }
+
+  private static File getNeighbourGraphFile() {
+    return new File(Constants.AGGREGATE_DATA_PATH).toPath().resolve(NEIGHBOUR_GRAPH_FILENAME).toFile();
+  }
+
+  private static boolean isValidVector(ConceptVector vector) {
+    return vector != null && !Double.isNaN(vector.length()) && Double.isFinite(vector.length());
+  }
+
+  private void saveSnapshot(File snapshotFile, List<ConceptVector> loadedVectors) throws IOException {
+    File tempFile = AtomicFiles.tempFileFor(snapshotFile);
+    DocumentVectorSnapshot.write(tempFile, getDocumentPaths(), loadedVectors);
+    AtomicFiles.commit(tempFile, snapshotFile);
+  }
+
   public List<DocumentSimilarityPair> getNearestDocuments(Document document, int num) {
     Preconditions.checkNotNull(document);
 
-    if (similarDocumentsCache.containsKey(document)) {
-      List<DocumentSimilarityPair> cached = similarDocumentsCache.get(document);
-      if (cached.size() > num) {
-        return cached.subList(0, Math.min(num, cached.size()));
-      } else if (cached.size() == num) {
-        return cached;
+    SimilarityCache.Entry cached = similarityCache.get(document.rootDirectoryPath, num);
+    if (cached != null) {
+      return toSimilarityPairs(cached, num);
+    }
+
+    int row = getRow(document);
+    NeighbourGraph graph = neighbourGraph;
+    boolean useGraph = canUseNeighbourGraph(graph, row, num);
+
+    // The neighbour graph holds the final scores and the vector is not needed.
+    List<DocumentSimilarityPair> result;
+    if (useGraph) {
+      result = toSimilarityPairs(null, getGraphNeighbours(graph, row, num), num);
+    } else {
+      ConceptVector targetVector = document.getConceptVector();
+      if (targetVector == null) {
+        return new ArrayList<DocumentSimilarityPair>();
       }
+      TopKHeap heap = findTopK(Collections.singletonList(targetVector), new int[] {row}, numCandidates(num))[0];
+      result = toSimilarityPairs(targetVector, heap, num);
     }
 
-    ConceptVector targetVector = document.getConceptVector();
-    List<DocumentSimilarityPair> result = new ArrayList<DocumentSimilarityPair>();
+    cacheResult(document, num, result, !useGraph && isExactScan(numCandidates(num)));
+    return result;
+  }
+
+  /**
+   * Returns the nearest documents of each of the given documents, scoring all of the ones that
+   * are not cached in a single pass over the vector matrix.
+   */
+  public List<List<DocumentSimilarityPair>> getNearestDocuments(List<? extends Document> queryDocuments, int num) {
+    Preconditions.checkNotNull(queryDocuments);
 
-    if (targetVector == null) {
-      return result;
+    NeighbourGraph graph = neighbourGraph;
+
+    // Documents whose neighbours are in the graph are looked up, the rest are searched for.
+    List<List<DocumentSimilarityPair>> result = new ArrayList<List<DocumentSimilarityPair>>();
+    List<ConceptVector> queries = new ArrayList<ConceptVector>();
+    List<Integer> queryRows = new ArrayList<Integer>();
+    ConceptVector[] targetVectors = new ConceptVector[queryDocuments.size()];
+    boolean[] useGraph = new boolean[queryDocuments.size()];
+    for (int i = 0; i < queryDocuments.size(); i++) {
+      Document document = queryDocuments.get(i);
+      SimilarityCache.Entry cached = similarityCache.get(document.rootDirectoryPath, num);
+      result.add(cached == null ? null : toSimilarityPairs(cached, num));
+      if (cached != null) {
+        continue;
+      }
+
+      int row = getRow(document);
+      useGraph[i] = canUseNeighbourGraph(graph, row, num);
+      if (useGraph[i]) {
+        continue;
+      }
+
+      targetVectors[i] = document.getConceptVector();
+      if (targetVectors[i] != null) {
+        queries.add(targetVectors[i]);
+        queryRows.add(row);
+      }
+    }
+
+    int[] excludedRows = new int[queryRows.size()];
+    for (int q = 0; q < excludedRows.length; q++) {
+      excludedRows[q] = queryRows.get(q);
     }
+    TopKHeap[] heaps = findTopK(queries, excludedRows, numCandidates(num));
+    boolean isExactScan = isExactScan(numCandidates(num));
 
-    for (VectoredDocument dbDocument : vectoredDocuments) {
-      if (dbDocument.document.rootDirectoryPath.equals(document.rootDirectoryPath)) {
+    int queryIndex = 0;
+    for (int i = 0; i < queryDocuments.size(); i++) {
+      Document document = queryDocuments.get(i);
+      if (result.get(i) != null) {
         continue;
       }
 
-      double similarity = targetVector.dotProduct(dbDocument.vector);
-//      double distance = targetVector.distanceTo(dbDocument.vector);
+      if (useGraph[i]) {
+        TopKHeap heap = getGraphNeighbours(graph, getRow(document), num);
+        result.set(i, toSimilarityPairs(null, heap, num));
+        cacheResult(document, num, result.get(i), false);
+      } else if (targetVectors[i] != null) {
+        result.set(i, toSimilarityPairs(targetVectors[i], heaps[queryIndex], num));
+        cacheResult(document, num, result.get(i), isExactScan);
+        queryIndex++;
+      } else {
+        result.set(i, new ArrayList<DocumentSimilarityPair>());
+      }
+    }
+    return result;
+  }
+
+  private void cacheResult(Document document, int num, List<DocumentSimilarityPair> result, boolean isExactScan) {
+    int[] rows = new int[result.size()];
+    float[] similarities = new float[result.size()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = getRow(result.get(i).document);
+      similarities[i] = (float) result.get(i).similarity;
+    }
+    similarityCache.put(document.rootDirectoryPath, num, rows, similarities, isExactScan);
+  }
+
+  private List<DocumentSimilarityPair> toSimilarityPairs(SimilarityCache.Entry cached, int num) {
+    int numPairs = num <= 0 ? cached.size() : Math.min(num, cached.size());
+    List<DocumentSimilarityPair> result = new ArrayList<DocumentSimilarityPair>(numPairs);
+    for (int i = 0; i < numPairs; i++) {
+      result.add(new DocumentSimilarityPair(getDocument(cached.rows[i]), cached.similarities[i]));
+    }
+    return result;
+  }
+
+  private boolean canUseNeighbourGraph(NeighbourGraph graph, int row, int num) {
+    return graph != null && row >= 0 && num > 0 && num <= graph.k();
+  }
+
+  /**
+   * The row's num nearest neighbours from the graph, with their exact scores.
+   */
+  private TopKHeap getGraphNeighbours(NeighbourGraph graph, int row, int num) {
+    int[] rows = new int[Math.min(num, graph.k())];
+    float[] similarities = new float[rows.length];
+    int numNeighbours = graph.getNeighbours(row, num, rows, similarities);
+
+    TopKHeap result = new TopKHeap(rows.length);
+    for (int i = 0; i < numNeighbours; i++) {
+      result.offer(rows[i], similarities[i]);
+    }
+    return result;
+  }
+
+  /**
+   * The row of the document in the matrix, or -1 if it is not in the database.
+   */
+  private int getRow(Document document) {
+    if (snapshot != null) {
+      return snapshot.findRow(document.rootDirectoryPath);
+    }
+    Integer row = rowsByPath.get(document.rootDirectoryPath);
+    return row == null ? -1 : row;
+  }
+
+  private String getPath(int row) {
+    return snapshot != null ? snapshot.getPath(row) : documents.get(row).rootDirectoryPath;
+  }
+
+  private Document getDocument(int row) {
+    return snapshot != null ? DocumentDB.instance.createWebsiteDocument(snapshot.getPath(row)) : documents.get(row);
+  }
+
+  private int numCandidates(int num) {
+    int numRows = scorer.numRows();
+    if (num <= 0) {
+      return numRows;
+    }
+    return Math.min(numRows, storageMode == StorageMode.INT8 ? num * RERANK_FACTOR + RERANK_SLACK : num);
+  }
+
+  /**
+   * The k best rows of each query, from an index if approximate or cluster search is enabled and
+   * from a scan otherwise. Requests for every row always scan.
+   */
+  private TopKHeap[] findTopK(List<ConceptVector> queries, int[] excludedRows, int k) {
+    HnswIndex index = approximateIndex;
+    ClusterIndex clusters = clusterIndex;
+    if (isExactScan(index, clusters, k)) {
+      return scanTopK(queries, excludedRows, k);
+    }
+
+    TopKHeap[] result = new TopKHeap[queries.size()];
+    float[] query = new float[scorer.dimensions()];
+    for (int q = 0; q < result.length; q++) {
+      Arrays.fill(query, 0.0f);
+      queries.get(q).addTo(query, 0, 1.0);
+      if (index != null) {
+        result[q] = index.search(query, k, efSearch, excludedRows[q]);
+      } else {
+        result[q] = clusters.search(query, k, numProbes, excludedRows[q]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Whether findTopK scores every row for k results, so a result shorter than k holds every
+   * neighbour there is.
+   */
+  private boolean isExactScan(int k) {
+    return isExactScan(approximateIndex, clusterIndex, k);
+  }
+
+  private boolean isExactScan(HnswIndex index, ClusterIndex clusters, int k) {
+    return (index == null && clusters == null) || k >= scorer.numRows();
+  }
+
+  /**
+   * Measures how many of the exact k nearest rows approximate or cluster search finds, averaged
+   * over numQueries randomly chosen rows used as queries, and logs the time per query of both.
+   * Both searches score against the same stored rows, so in INT8 mode this measures the index
+   * alone.
+   */
+  public double measureApproximateRecall(int numQueries, int k) {
+    Preconditions.checkState(approximateIndex != null || clusterIndex != null, "no index is enabled");
+    Preconditions.checkArgument(numQueries > 0 && k > 0);
+
+    int numRows = scorer.numRows();
+    if (numRows == 0) {
+      return 1.0;
+    }
+
+    Random random = new Random(numQueries);
+    List<ConceptVector> queries = new ArrayList<ConceptVector>();
+    float[][] queryValues = new float[numQueries][scorer.dimensions()];
+    int[] queryRows = new int[numQueries];
+    for (int q = 0; q < numQueries; q++) {
+      queryRows[q] = random.nextInt(numRows);
+      scorer.getRow(queryRows[q], queryValues[q]);
+      queries.add(new ConceptVectorImpl(queryValues[q]));
+    }
 
-      result.add(new DocumentSimilarityPair(dbDocument.document, similarity));
+    long startTime = System.nanoTime();
+    TopKHeap[] exact = new TopKHeap[numQueries];
+    for (int q = 0; q < numQueries; q++) {
+      exact[q] = scanTopK(queries.subList(q, q + 1), new int[] {queryRows[q]}, k)[0];
     }
+    long exactTime = System.nanoTime() - startTime;
 
-    result.sort(SIMILARITY_DESCENDING_ORDER);
+    startTime = System.nanoTime();
+    TopKHeap[] approximate = findTopK(queries, queryRows, k);
+    long approximateTime = System.nanoTime() - startTime;
 
-    if (num > 0) {
-      List<DocumentSimilarityPair> trimmedResult = result.subList(0, Math.min(num, result.size()));
-      similarDocumentsCache.put(document, trimmedResult);
-      return trimmedResult;
+    int numFound = 0;
+    int numExpected = 0;
+    for (int q = 0; q < numQueries; q++) {
+      int[] exactRows = new int[exact[q].size()];
+      int numExact = exact[q].drainDescending(exactRows, new float[exactRows.length]);
+      int[] approximateRows = new int[approximate[q].size()];
+      int numApproximate = approximate[q].drainDescending(approximateRows, new float[approximateRows.length]);
+
+      Set<Integer> expected = new HashSet<Integer>();
+      for (int i = 0; i < numExact; i++) {
+        expected.add(exactRows[i]);
+      }
+      for (int i = 0; i < numApproximate; i++) {
+        if (expected.contains(approximateRows[i])) {
+          numFound++;
+        }
+      }
+      numExpected += numExact;
+    }
+
+    String searchParameters;
+    ClusterIndex clusters = clusterIndex;
+    if (clusters != null) {
+      long numProbedRows = 0;
+      for (float[] query : queryValues) {
+        numProbedRows += clusters.numProbedRows(query, numProbes);
+      }
+      searchParameters = String.format("nprobe %d (%.2f%% of rows)",
+          numProbes, 100.0 * numProbedRows / numQueries / numRows);
     } else {
-      similarDocumentsCache.put(document, result);
+      searchParameters = "efSearch " + efSearch;
+    }
+
+    double recall = numExpected == 0 ? 1.0 : (double) numFound / numExpected;
+    Log.out(TAG, String.format("recall@%d %.4f with %s, %.3fms per query against %.3fms for a scan",
+        k, recall, searchParameters, approximateTime / 1e6 / numQueries, exactTime / 1e6 / numQueries));
+    return recall;
+  }
+
+  /**
+   * Scans the matrix in up to NUM_SCAN_THREADS partitions, each keeping its own top k heap per
+   * query, and merges the partition heaps. The excluded row of each query, its own document, is
+   * never offered.
+   */
+  private TopKHeap[] scanTopK(final List<ConceptVector> queries, final int[] excludedRows, final int k) {
+    int numRows = scorer.numRows();
+    int numPartitions = Math.max(1, Math.min(NUM_SCAN_THREADS, numRows / MIN_PARTITION_ROWS));
+
+    List<Future<TopKHeap[]>> partitions = new ArrayList<Future<TopKHeap[]>>();
+    for (int p = 1; p < numPartitions; p++) {
+      final int fromRow = (int) ((long) numRows * p / numPartitions);
+      final int toRow = (int) ((long) numRows * (p + 1) / numPartitions);
+      partitions.add(SCAN_EXECUTOR.submit(new Callable<TopKHeap[]>() {
+        @Override
+        public TopKHeap[] call() {
+          return scanPartition(queries, excludedRows, k, fromRow, toRow);
+        }
+      }));
+    }
+
+    TopKHeap[] result = scanPartition(queries, excludedRows, k, 0, numRows / numPartitions);
+    for (Future<TopKHeap[]> partition : partitions) {
+      TopKHeap[] partitionHeaps;
+      try {
+        partitionHeaps = Uninterruptibles.getUninterruptibly(partition);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("document vector scan failed", e.getCause());
+      }
+
+      for (int q = 0; q < result.length; q++) {
+        result[q].addAll(partitionHeaps[q]);
+      }
+    }
+    return result;
+  }
+
+  private TopKHeap[] scanPartition(List<ConceptVector> queries, int[] excludedRows, int k, int fromRow, int toRow) {
+    TopKHeap[] result = new TopKHeap[queries.size()];
+    for (int q = 0; q < result.length; q++) {
+      result[q] = new TopKHeap(k);
+    }
+
+    float[][] scores = new float[queries.size()][Math.min(SCAN_CHUNK_ROWS, toRow - fromRow)];
+    for (int chunkStart = fromRow; chunkStart < toRow; chunkStart += SCAN_CHUNK_ROWS) {
+      int chunkEnd = Math.min(toRow, chunkStart + SCAN_CHUNK_ROWS);
+      scorer.score(queries, chunkStart, chunkEnd, scores);
+
+      for (int q = 0; q < result.length; q++) {
+        TopKHeap heap = result[q];
+        float[] queryScores = scores[q];
+        for (int row = chunkStart; row < chunkEnd; row++) {
+          if (row != excludedRows[q]) {
+            heap.offer(row, queryScores[row - chunkStart]);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates the result objects for the rows kept in the heap, best first. In INT8 mode the rows
+   * of a search are candidates: they are re-scored with their full precision rows and only the
+   * best num, or all of them for num of zero or less, are returned. targetVector is null for rows
+   * whose scores are already exact, such as the neighbour graph's.
+   */
+  private List<DocumentSimilarityPair> toSimilarityPairs(ConceptVector targetVector, TopKHeap heap, int num) {
+    int[] rows = new int[heap.size()];
+    float[] scores = new float[heap.size()];
+    int numRows = heap.drainDescending(rows, scores);
+
+    List<DocumentSimilarityPair> result = new ArrayList<DocumentSimilarityPair>(numRows);
+    for (int i = 0; i < numRows; i++) {
+      result.add(new DocumentSimilarityPair(getDocument(rows[i]), scores[i]));
+    }
+
+    if (storageMode != StorageMode.INT8 || targetVector == null) {
       return result;
     }
+
+    List<DocumentSimilarityPair> reranked = new ArrayList<DocumentSimilarityPair>(numRows);
+    float[] exactRow = new float[exactVectors.dimensions()];
+    for (int i = 0; i < numRows; i++) {
+      exactVectors.getRow(rows[i], exactRow);
+      reranked.add(new DocumentSimilarityPair(result.get(i).document, targetVector.dotProduct(exactRow, 0)));
+    }
+    reranked.sort(SIMILARITY_DESCENDING_ORDER);
+    if (num <= 0 || num >= reranked.size()) {
+      return reranked;
+    }
+    return new ArrayList<DocumentSimilarityPair>(reranked.subList(0, num));
   }
 
 //  public double getTermDiscriminationValue(Lemma term, Document document) {
@@ -0,0 +1,175 @@
+package com.experimental.documentvector;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Document vectors as one contiguous row-major float matrix, one row per document. The rows live
+ * outside the heap, either in a direct buffer or in a mapped file, so a large database neither
+ * adds per-vector objects nor grows the heap.
+ *
+ * Scoring walks the matrix in blocks of rows that fit in the L2 cache. Each block is copied to a
+ * heap scratch array, kept per thread and reused across calls, and then scored against every
+ * query, so scoring a batch of queries costs about one pass over memory instead of one pass per
+ * query.
+ */
+public class DocumentVectorMatrix implements VectorScorer {
+  // About 256KB of rows per block.
+  private static final int BLOCK_FLOATS = 1 << 16;
+
+  private final FloatBuffer data;
+  private final int numRows;
+  private final int dim;
+  // Scratch for single row scoring, one per thread since the matrix is read concurrently.
+  private final ThreadLocal<float[]> rowScratch = new ThreadLocal<float[]>() {
+    @Override
+    protected float[] initialValue() {
+      return new float[dim];
+    }
+  };
+  // Scratch for the block being scored, per thread for the same reason.
+  private final ThreadLocal<float[]> blockScratch = new ThreadLocal<float[]>() {
+    @Override
+    protected float[] initialValue() {
+      return new float[rowsPerBlock() * dim];
+    }
+  };
+
+  DocumentVectorMatrix(FloatBuffer data, int numRows, int dim) {
+    Preconditions.checkNotNull(data);
+    Preconditions.checkArgument(numRows >= 0 && dim > 0);
+    Preconditions.checkArgument(data.capacity() >= (long) numRows * dim);
+
+    this.data = data;
+    this.numRows = numRows;
+    this.dim = dim;
+  }
+
+  /**
+   * Allocates a zeroed matrix in a direct buffer.
+   */
+  public static DocumentVectorMatrix allocate(int numRows, int dim) {
+    Preconditions.checkArgument(numRows >= 0 && dim > 0);
+    Preconditions.checkArgument((long) numRows * dim * 4 <= Integer.MAX_VALUE, "matrix too large for one buffer");
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(1, numRows * dim * 4)).order(ByteOrder.nativeOrder());
+    return new DocumentVectorMatrix(buffer.asFloatBuffer(), numRows, dim);
+  }
+
+  /**
+   * Wraps floats already laid out row-major, such as a mapped region of a snapshot file.
+   */
+  public static DocumentVectorMatrix wrap(ByteBuffer buffer, int numRows, int dim) {
+    Preconditions.checkNotNull(buffer);
+    return new DocumentVectorMatrix(buffer.slice().order(buffer.order()).asFloatBuffer(), numRows, dim);
+  }
+
+  @Override
+  public int numRows() {
+    return numRows;
+  }
+
+  @Override
+  public int dimensions() {
+    return dim;
+  }
+
+  public void setRow(int row, ConceptVector vector) {
+    Preconditions.checkElementIndex(row, numRows);
+    Preconditions.checkArgument(vector.dimensions() == dim);
+
+    float[] values = new float[dim];
+    vector.addTo(values, 0, 1.0);
+    setRow(row, values);
+  }
+
+  public void setRow(int row, float[] values) {
+    Preconditions.checkElementIndex(row, numRows);
+    Preconditions.checkArgument(values.length == dim);
+
+    FloatBuffer target = data.duplicate();
+    target.position(row * dim);
+    target.put(values);
+  }
+
+  @Override
+  public void getRow(int row, float[] out) {
+    getRows(row, 1, out);
+  }
+
+  public ConceptVector getRowVector(int row) {
+    float[] values = new float[dim];
+    getRow(row, values);
+    return new ConceptVectorImpl(values);
+  }
+
+  /**
+   * Copies numRows rows from firstRow on into out. The buffer is duplicated, so concurrent
+   * readers do not share a position.
+   */
+  void getRows(int firstRow, int numRowsToGet, float[] out) {
+    Preconditions.checkPositionIndexes(firstRow, firstRow + numRowsToGet, numRows);
+
+    FloatBuffer source = data.duplicate();
+    source.position(firstRow * dim);
+    source.get(out, 0, numRowsToGet * dim);
+  }
+
+  int rowsPerBlock() {
+    return Math.max(1, Math.min(numRows, BLOCK_FLOATS / dim));
+  }
+
+  /**
+   * Writes the dot product of the query with every row into scores.
+   */
+  public void score(ConceptVector query, float[] scores) {
+    score(Collections.singletonList(query), 0, numRows, new float[][] {scores});
+  }
+
+  @Override
+  public float score(float[] query, int row) {
+    float[] values = rowScratch.get();
+    getRow(row, values);
+    return VectorKernels.dot(query, values, dim);
+  }
+
+  /**
+   * Scores every query against the rows in one pass over them, each block of rows is scored
+   * against all of the queries while it is in cache.
+   */
+  @Override
+  public void score(List<? extends ConceptVector> queries, int fromRow, int toRow, float[][] scores) {
+    Preconditions.checkNotNull(queries);
+    Preconditions.checkPositionIndexes(fromRow, toRow, numRows);
+    Preconditions.checkArgument(scores.length >= queries.size());
+    for (int q = 0; q < queries.size(); q++) {
+      Preconditions.checkArgument(queries.get(q).dimensions() == dim);
+      Preconditions.checkArgument(scores[q].length >= toRow - fromRow);
+    }
+
+    float[] block = blockScratch.get();
+    for (int firstRow = fromRow; firstRow < toRow; firstRow += rowsPerBlock()) {
+      int blockRows = Math.min(rowsPerBlock(), toRow - firstRow);
+      getRows(firstRow, blockRows, block);
+      for (int q = 0; q < queries.size(); q++) {
+        scoreBlock(queries.get(q), block, blockRows, scores[q], firstRow - fromRow);
+      }
+    }
+  }
+
+  /**
+   * Scores the query against rows already copied into block. Sparse queries only gather their
+   * stored dimensions from each row, dense queries run the unrolled kernel.
+   */
+  static void scoreBlock(ConceptVector query, float[] block, int blockRows, float[] scores, int scoresOffset) {
+    int dim = query.dimensions();
+    for (int r = 0; r < blockRows; r++) {
+      scores[scoresOffset + r] = (float) query.dotProduct(block, r * dim);
+    }
+  }
+}
@@ -0,0 +1,358 @@
+package com.experimental.documentvector;
+
+import com.experimental.utils.BinaryIO;
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The document vectors of DocumentVectorDB in a file laid out to be mapped and used in place, so
+ * loading costs a few page faults instead of a parse of every vector, and processes on the same
+ * host share one copy in the page cache.
+ *
+ * After the header come the doc-id table, the path table and the vector block:
+ *   - path offsets, numRows + 1 ints, row i's UTF-8 path is bytes [offsets[i], offsets[i + 1])
+ *     of the path bytes
+ *   - sorted rows, numRows ints, the rows in order of their path bytes, for finding the row of a
+ *     path by binary search without building a map
+ *   - the path bytes
+ *   - the vectors as a row-major float matrix, aligned to 64 bytes and wrapped by
+ *     DocumentVectorMatrix without copying
+ * Everything is little endian, the byte order of the hosts this runs on, so floats are read
+ * without swapping.
+ */
+public class DocumentVectorSnapshot {
+  private static final String TAG = "DocumentVectorSnapshot";
+  private static final int MAGIC = 0x44565353; // "DVSS"
+  private static final int VERSION = 1;
+  // Magic, version, numRows, dim, fingerprint and the offsets of the three sections.
+  private static final int HEADER_BYTES = 48;
+  private static final int FINGERPRINT_OFFSET = 16;
+  private static final int VECTORS_ALIGNMENT = 64;
+  private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+  private final int numRows;
+  private final int dim;
+  private final long fingerprint;
+  private final IntBuffer pathOffsets;
+  private final IntBuffer sortedRows;
+  private final ByteBuffer pathBytes;
+  private final DocumentVectorMatrix vectors;
+
+  private DocumentVectorSnapshot(int numRows, int dim, long fingerprint, IntBuffer pathOffsets,
+                                 IntBuffer sortedRows, ByteBuffer pathBytes, DocumentVectorMatrix vectors) {
+    this.numRows = numRows;
+    this.dim = dim;
+    this.fingerprint = fingerprint;
+    this.pathOffsets = pathOffsets;
+    this.sortedRows = sortedRows;
+    this.pathBytes = pathBytes;
+    this.vectors = vectors;
+  }
+
+  /**
+   * A 64 bit hash of the paths and the vectors in row order, which identifies the rows that files
+   * computed from them, such as the HNSW index and the neighbour graph, refer to. Recomputed
+   * vectors change it even if the paths stay the same. write stores the same hash for the rows.
+   */
+  public static long fingerprint(List<String> paths, DocumentVectorMatrix vectors) {
+    Preconditions.checkArgument(paths.size() == vectors.numRows());
+
+    Hasher hasher = newFingerprintHasher(paths.size(), vectors.dimensions());
+    for (String path : paths) {
+      putPath(hasher, path.getBytes(BinaryIO.UTF8));
+    }
+
+    float[] values = new float[vectors.dimensions()];
+    for (int row = 0; row < vectors.numRows(); row++) {
+      vectors.getRow(row, values);
+      for (float value : values) {
+        hasher.putFloat(value);
+      }
+    }
+    return hasher.hash().asLong();
+  }
+
+  private static Hasher newFingerprintHasher(int numRows, int dim) {
+    return Hashing.murmur3_128().newHasher().putInt(numRows).putInt(dim);
+  }
+
+  private static void putPath(Hasher hasher, byte[] encodedPath) {
+    hasher.putInt(encodedPath.length);
+    hasher.putBytes(encodedPath);
+  }
+
+  public static void write(File file, List<String> paths, List<? extends ConceptVector> vectors) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkArgument(paths.size() == vectors.size());
+
+    int numRows = paths.size();
+    int dim = vectors.isEmpty() ? 1 : vectors.get(0).dimensions();
+
+    final byte[][] encodedPaths = new byte[numRows][];
+    long numPathBytes = 0;
+    for (int row = 0; row < numRows; row++) {
+      encodedPaths[row] = paths.get(row).getBytes(BinaryIO.UTF8);
+      numPathBytes += encodedPaths[row].length;
+    }
+    Preconditions.checkArgument(numPathBytes <= Integer.MAX_VALUE, "paths too long for the path table");
+
+    Integer[] sortedRows = new Integer[numRows];
+    for (int row = 0; row < numRows; row++) {
+      sortedRows[row] = row;
+    }
+    Arrays.sort(sortedRows, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer row1, Integer row2) {
+        return compareBytes(encodedPaths[row1], encodedPaths[row2]);
+      }
+    });
+
+    long pathOffsetsOffset = HEADER_BYTES;
+    long sortedRowsOffset = pathOffsetsOffset + 4L * (numRows + 1);
+    long pathBytesOffset = sortedRowsOffset + 4L * numRows;
+    long vectorsOffset = align(pathBytesOffset + numPathBytes, VECTORS_ALIGNMENT);
+    Hasher fingerprint = newFingerprintHasher(numRows, dim);
+
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(0);
+      FileChannel channel = out.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(numRows);
+      buffer.putInt(dim);
+      // Filled in once the rows are hashed.
+      buffer.putLong(0);
+      buffer.putLong(pathOffsetsOffset);
+      buffer.putLong(sortedRowsOffset);
+      buffer.putLong(vectorsOffset);
+
+      int pathOffset = 0;
+      for (int row = 0; row <= numRows; row++) {
+        ensureRemaining(channel, buffer, 4);
+        buffer.putInt(pathOffset);
+        if (row < numRows) {
+          pathOffset += encodedPaths[row].length;
+        }
+      }
+      for (int row = 0; row < numRows; row++) {
+        ensureRemaining(channel, buffer, 4);
+        buffer.putInt(sortedRows[row]);
+      }
+      for (byte[] encodedPath : encodedPaths) {
+        putPath(fingerprint, encodedPath);
+        int written = 0;
+        while (written < encodedPath.length) {
+          ensureRemaining(channel, buffer, 1);
+          int length = Math.min(buffer.remaining(), encodedPath.length - written);
+          buffer.put(encodedPath, written, length);
+          written += length;
+        }
+      }
+      for (long i = pathBytesOffset + numPathBytes; i < vectorsOffset; i++) {
+        ensureRemaining(channel, buffer, 1);
+        buffer.put((byte) 0);
+      }
+
+      float[] values = new float[dim];
+      for (ConceptVector vector : vectors) {
+        Preconditions.checkArgument(vector.dimensions() == dim);
+        Arrays.fill(values, 0.0f);
+        vector.addTo(values, 0, 1.0);
+        for (float value : values) {
+          ensureRemaining(channel, buffer, 4);
+          buffer.putFloat(value);
+          fingerprint.putFloat(value);
+        }
+      }
+      flush(channel, buffer);
+
+      buffer.putLong(fingerprint.hash().asLong());
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, FINGERPRINT_OFFSET + buffer.position());
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int numBytes) throws IOException {
+    if (buffer.remaining() < numBytes) {
+      flush(channel, buffer);
+    }
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Maps a snapshot written by write. The tables and the vector block are separate mappings, so
+   * each of them, rather than the whole file, must fit in one buffer.
+   */
+  public static DocumentVectorSnapshot open(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long fileSize = channel.size();
+      if (fileSize < HEADER_BYTES) {
+        throw new IOException("not a document vector snapshot");
+      }
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("not a document vector snapshot");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("unsupported document vector snapshot version: " + version);
+      }
+
+      int numRows = header.getInt();
+      int dim = header.getInt();
+      long fingerprint = header.getLong();
+      long pathOffsetsOffset = header.getLong();
+      long sortedRowsOffset = header.getLong();
+      long vectorsOffset = header.getLong();
+
+      long vectorBytes = 4L * numRows * dim;
+      if (numRows < 0 || dim <= 0 || vectorsOffset + vectorBytes != fileSize) {
+        throw new IOException("truncated document vector snapshot");
+      }
+      if (vectorsOffset > Integer.MAX_VALUE || vectorBytes > Integer.MAX_VALUE) {
+        throw new IOException("document vector snapshot too large to map");
+      }
+
+      MappedByteBuffer tables = channel.map(FileChannel.MapMode.READ_ONLY, 0, vectorsOffset);
+      tables.order(ByteOrder.LITTLE_ENDIAN);
+      IntBuffer pathOffsets = slice(tables, pathOffsetsOffset, 4L * (numRows + 1)).asIntBuffer();
+      IntBuffer sortedRows = slice(tables, sortedRowsOffset, 4L * numRows).asIntBuffer();
+      long pathBytesOffset = sortedRowsOffset + 4L * numRows;
+      ByteBuffer pathBytes = slice(tables, pathBytesOffset, pathOffsets.get(numRows));
+
+      MappedByteBuffer vectorBlock = channel.map(FileChannel.MapMode.READ_ONLY, vectorsOffset, vectorBytes);
+      vectorBlock.order(ByteOrder.LITTLE_ENDIAN);
+      DocumentVectorMatrix vectors = DocumentVectorMatrix.wrap(vectorBlock, numRows, dim);
+
+      Log.out(TAG, "mapped " + numRows + " document vectors");
+      return new DocumentVectorSnapshot(numRows, dim, fingerprint, pathOffsets, sortedRows, pathBytes, vectors);
+    } finally {
+      // The mappings stay valid after the channel is closed.
+      channel.close();
+    }
+  }
+
+  public int numRows() {
+    return numRows;
+  }
+
+  public int dimensions() {
+    return dim;
+  }
+
+  public long fingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * The vectors, read straight from the mapped file.
+   */
+  public DocumentVectorMatrix getVectors() {
+    return vectors;
+  }
+
+  public String getPath(int row) {
+    Preconditions.checkElementIndex(row, numRows);
+
+    int start = pathOffsets.get(row);
+    byte[] bytes = new byte[pathOffsets.get(row + 1) - start];
+    ByteBuffer source = pathBytes.duplicate();
+    source.position(start);
+    source.get(bytes);
+    return new String(bytes, BinaryIO.UTF8);
+  }
+
+  /**
+   * The row of the path, or -1 if it is not in the snapshot. A binary search of the sorted rows
+   * comparing the mapped path bytes, so lookups allocate nothing but the encoded path.
+   */
+  public int findRow(String path) {
+    byte[] encodedPath = path.getBytes(BinaryIO.UTF8);
+
+    int low = 0;
+    int high = numRows - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int row = sortedRows.get(middle);
+      int comparison = compareToPath(row, encodedPath);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  private int compareToPath(int row, byte[] encodedPath) {
+    int start = pathOffsets.get(row);
+    int length = pathOffsets.get(row + 1) - start;
+    for (int i = 0; i < Math.min(length, encodedPath.length); i++) {
+      int comparison = (pathBytes.get(start + i) & 0xFF) - (encodedPath[i] & 0xFF);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return length - encodedPath.length;
+  }
+
+  private static int compareBytes(byte[] a, byte[] b) {
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      int comparison = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (comparison != 0) {
+        return comparison;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private static long align(long offset, int alignment) {
+    return (offset + alignment - 1) / alignment * alignment;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > buffer.capacity()) {
+      throw new IOException("truncated document vector snapshot");
+    }
+
+    ByteBuffer result = buffer.duplicate();
+    result.position((int) offset);
+    result.limit((int) (offset + length));
+    return result.slice().order(buffer.order());
+  }
+}
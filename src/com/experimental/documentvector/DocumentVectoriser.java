@@ -5,6 +5,7 @@ import com.experimental.documentmodel.Document;
 import com.experimental.documentmodel.Sentence;
 import com.experimental.documentmodel.Token;
 import com.experimental.languagemodel.BasisVector;
+import com.experimental.languagemodel.Lemma;
 import com.experimental.languagemodel.LemmaIDFWeights;
 import com.experimental.languagemodel.LemmaSimilarityMeasure;
 import com.experimental.languagemodel.StopWords;
@@ -13,7 +14,10 @@ import com.experimental.nlp.SimplePOSTag;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by sushkov on 12/01/15.
@@ -24,9 +28,21 @@ public class DocumentVectoriser {
   private final LemmaSimilarityMeasure lemmaSimilarityMeasure;
 
 
+  // The basis dimensions of each basis lemma.
+  private final Map<Lemma, int[]> basisIndices = new HashMap<Lemma, int[]>();
+
   public DocumentVectoriser(BasisVector basisVector, LemmaSimilarityMeasure lemmaSimilarityMeasure) {
     this.basisVector = Preconditions.checkNotNull(basisVector);
     this.lemmaSimilarityMeasure = lemmaSimilarityMeasure;
+
+    List<BasisVector.BasisElement> basisElements = basisVector.getBasisElements();
+    for (int i = 0; i < basisElements.size(); i++) {
+      Lemma lemma = basisElements.get(i).lemma;
+      int[] indices = basisIndices.get(lemma);
+      indices = indices == null ? new int[1] : Arrays.copyOf(indices, indices.length + 1);
+      indices[indices.length - 1] = i;
+      basisIndices.put(lemma, indices);
+    }
   }
 
   public int getDimensionality() {
@@ -34,48 +50,33 @@ public class DocumentVectoriser {
   }
 
   public ConceptVector computeDocumentVector(Document document) {
-    ConceptVector result = new ConceptVectorImpl(getDimensionality());
-    result.setToZero();
+    SparseConceptVectorImpl.Builder builder = new SparseConceptVectorImpl.Builder(getDimensionality());
 
     for (BagOfWeightedLemmas.WeightedLemmaEntry entry : document.getBagOfLemmas().getEntries()) {
-      if (!includeEntry(entry)) {
-        continue;
-      }
-
-      ConceptVector entryVector = getConceptVectorFor(entry);
-      if (entryVector == null) {
-        continue;
+      if (includeEntry(entry)) {
+        addConceptVectorFor(entry, builder);
       }
-
-      result.add(entryVector);
     }
 
+    ConceptVector result = builder.build();
     result.normalise();
     return result;
   }
 
-  private ConceptVector getConceptVectorFor(BagOfWeightedLemmas.WeightedLemmaEntry entry) {
-    ConceptVector result = new ConceptVectorImpl(getDimensionality());
+  private void addConceptVectorFor(BagOfWeightedLemmas.WeightedLemmaEntry entry,
+                                   SparseConceptVectorImpl.Builder builder) {
+    int[] indices = basisIndices.get(entry.lemma);
+    if (indices == null) {
+      return;
+    }
 
     double posWeight = getPosWeight(entry);
     double localWeight = getLocalWeight(entry);
 
     List<BasisVector.BasisElement> basisElements = basisVector.getBasisElements();
-    for (int i = 0; i < basisElements.size(); i++) {
-      BasisVector.BasisElement element = basisElements.get(i);
-      if (entry.lemma.equals(element.lemma)) {
-        result.setValue(i, posWeight * localWeight * element.weight);
-      }
-//      else {
-//        double similarity = lemmaSimilarityMeasure.getLemmaSimilarity(element.lemma, entry.lemma);
-//        if (similarity > 0.8) {
-//          double similarityWeight = similarity * similarity * similarity;
-//          result.setValue(i, similarityWeight * posWeight * localWeight * element.weight);
-//        }
-//      }
+    for (int i : indices) {
+      builder.add(i, posWeight * localWeight * basisElements.get(i).weight);
     }
-
-    return result;
   }
 
   private boolean includeEntry(BagOfWeightedLemmas.WeightedLemmaEntry entry) {
@@ -0,0 +1,612 @@
+package com.experimental.documentvector;
+
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hierarchical navigable small world graph over the rows of a VectorScorer, for approximate
+ * nearest neighbour search by dot product. Every row is a node of the bottom level, and each
+ * level above holds a random subset of the one below it, about 1 in m of its nodes. A search
+ * walks greedily down the sparse upper levels to a good entry node and then runs a beam search of
+ * width efSearch through the bottom level, so it scores a few thousand rows instead of all of
+ * them. Larger beams find more of the true neighbours and take longer.
+ *
+ * The graph is built by inserting rows from several threads at once, each neighbour list guarded
+ * by a lock stripe while building. Once built it is read only. The bottom level, almost all of
+ * the graph, is kept as fixed size int lists so the saved file can be mapped back in place.
+ */
+public class HnswIndex {
+  private static final String TAG = "HnswIndex";
+  private static final int MAGIC = 0x484e5357; // "HNSW"
+  private static final byte VERSION = 2;
+  // Magic, version padded to four bytes, fingerprint, number of nodes, m, entry point and top level.
+  private static final int HEADER_BYTES = 32;
+
+  public static final int DEFAULT_M = 16;
+  public static final int DEFAULT_EF_CONSTRUCTION = 100;
+  private static final int MAX_LEVEL = 16;
+  private static final int NUM_LOCK_STRIPES = 1024;
+  private static final long LEVEL_SEED = 42;
+
+  private final VectorScorer vectors;
+  private final long fingerprint;
+  private final int numNodes;
+  private final int dim;
+  // The most neighbours of a node on the upper levels, the bottom level holds twice as many.
+  private final int m;
+  private final int maxM0;
+  private final byte[] levels;
+  // Neighbour count of each node on the bottom level, and its neighbours at node * maxM0.
+  private final IntBuffer level0Counts;
+  private final IntBuffer level0Links;
+  // upperLinks[node][level - 1] is the count followed by up to m neighbours, null for nodes
+  // that are only on the bottom level.
+  private final int[][][] upperLinks;
+  private int entryPoint;
+  private int maxLevel;
+
+  private volatile boolean building = false;
+  private final Object[] locks = new Object[NUM_LOCK_STRIPES];
+  private final Object entryLock = new Object();
+
+  private final ThreadLocal<VisitedSet> visitedSets = new ThreadLocal<VisitedSet>() {
+    @Override
+    protected VisitedSet initialValue() {
+      return new VisitedSet(numNodes);
+    }
+  };
+
+  private HnswIndex(VectorScorer vectors, long fingerprint, int m, byte[] levels, IntBuffer level0Counts,
+                    IntBuffer level0Links, int[][][] upperLinks, int entryPoint, int maxLevel) {
+    this.vectors = vectors;
+    this.fingerprint = fingerprint;
+    this.numNodes = vectors.numRows();
+    this.dim = vectors.dimensions();
+    this.m = m;
+    this.maxM0 = 2 * m;
+    this.levels = levels;
+    this.level0Counts = level0Counts;
+    this.level0Links = level0Links;
+    this.upperLinks = upperLinks;
+    this.entryPoint = entryPoint;
+    this.maxLevel = maxLevel;
+
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Marks the nodes visited by one search. Each search takes a new stamp instead of clearing the
+   * marks, so a search costs nothing per node it does not visit.
+   */
+  private static class VisitedSet {
+    final int[] marks;
+    int stamp = 0;
+
+    VisitedSet(int numNodes) {
+      marks = new int[numNodes];
+    }
+
+    int nextStamp() {
+      if (++stamp == 0) {
+        Arrays.fill(marks, 0);
+        stamp = 1;
+      }
+      return stamp;
+    }
+  }
+
+  /**
+   * The nodes still to be expanded by a beam search, a max-heap by score.
+   */
+  private static class CandidateQueue {
+    private int[] rows = new int[64];
+    private float[] scores = new float[64];
+    private int size = 0;
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    float peekScore() {
+      return scores[0];
+    }
+
+    void push(int row, float score) {
+      if (size == rows.length) {
+        rows = Arrays.copyOf(rows, size * 2);
+        scores = Arrays.copyOf(scores, size * 2);
+      }
+
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (scores[parent] >= score) {
+          break;
+        }
+        rows[i] = rows[parent];
+        scores[i] = scores[parent];
+        i = parent;
+      }
+      rows[i] = row;
+      scores[i] = score;
+    }
+
+    int pop() {
+      int result = rows[0];
+      int row = rows[--size];
+      float score = scores[size];
+
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && scores[child + 1] > scores[child]) {
+          child++;
+        }
+        if (scores[child] <= score) {
+          break;
+        }
+        rows[i] = rows[child];
+        scores[i] = scores[child];
+        i = child;
+      }
+      rows[i] = row;
+      scores[i] = score;
+      return result;
+    }
+  }
+
+  /**
+   * Builds the graph over every row of vectors, inserting rows from numThreads tasks on the
+   * executor, one of them run on the calling thread. The fingerprint identifies the rows the index
+   * was built for and is saved with it.
+   */
+  public static HnswIndex build(VectorScorer vectors, long fingerprint, int m, final int efConstruction,
+                                ExecutorService executor, int numThreads) {
+    Preconditions.checkNotNull(vectors);
+    Preconditions.checkNotNull(executor);
+    Preconditions.checkArgument(m >= 2 && efConstruction > 0 && numThreads > 0);
+
+    int numNodes = vectors.numRows();
+    Preconditions.checkArgument((long) numNodes * 2 * m <= Integer.MAX_VALUE, "too many rows for the index");
+
+    byte[] levels = new byte[numNodes];
+    int[][][] upperLinks = new int[numNodes][][];
+    Random random = new Random(LEVEL_SEED);
+    double levelMultiplier = 1.0 / Math.log(m);
+    for (int node = 0; node < numNodes; node++) {
+      int level = (int) Math.min(MAX_LEVEL, -Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+      levels[node] = (byte) level;
+      if (level > 0) {
+        upperLinks[node] = new int[level][m + 1];
+      }
+    }
+
+    final HnswIndex result = new HnswIndex(vectors, fingerprint, m, levels, IntBuffer.wrap(new int[numNodes]),
+        IntBuffer.wrap(new int[numNodes * 2 * m]), upperLinks, 0, numNodes > 0 ? levels[0] : 0);
+    if (numNodes <= 1) {
+      return result;
+    }
+
+    long startTime = System.currentTimeMillis();
+    result.building = true;
+
+    // The first row is the initial entry point, every other row is inserted by whichever task
+    // claims it next.
+    final AtomicInteger nextNode = new AtomicInteger(1);
+    Runnable inserter = new Runnable() {
+      @Override
+      public void run() {
+        int node;
+        while ((node = nextNode.getAndIncrement()) < result.numNodes) {
+          result.insert(node, efConstruction);
+        }
+      }
+    };
+
+    List<Future<?>> tasks = new ArrayList<Future<?>>();
+    for (int i = 1; i < numThreads; i++) {
+      tasks.add(executor.submit(inserter));
+    }
+    inserter.run();
+    for (Future<?> task : tasks) {
+      try {
+        Uninterruptibles.getUninterruptibly(task);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("index build failed", e.getCause());
+      }
+    }
+
+    result.building = false;
+    Log.out(TAG, "built index over " + numNodes + " rows in " + (System.currentTimeMillis() - startTime) + "ms");
+    return result;
+  }
+
+  public long fingerprint() {
+    return fingerprint;
+  }
+
+  public int numNodes() {
+    return numNodes;
+  }
+
+  /**
+   * Returns up to k of the highest scoring rows for the query, never the excluded row (-1 for
+   * none). The beam is widened to k + 1 if efSearch is smaller, so the excluded row cannot crowd
+   * out a result.
+   */
+  public TopKHeap search(float[] query, int k, int efSearch, int excludedRow) {
+    Preconditions.checkArgument(query.length == dim);
+    Preconditions.checkArgument(k >= 0 && efSearch > 0);
+
+    TopKHeap result = new TopKHeap(k);
+    if (numNodes == 0 || k == 0) {
+      return result;
+    }
+
+    int entry = descend(query, entryPoint, maxLevel, 0);
+    TopKHeap found = searchLevel(query, entry, Math.max(efSearch, k + 1), 0);
+
+    int[] rows = new int[found.size()];
+    float[] scores = new float[found.size()];
+    int numFound = found.drainDescending(rows, scores);
+    for (int i = 0; i < numFound; i++) {
+      if (rows[i] != excludedRow) {
+        result.offer(rows[i], scores[i]);
+      }
+    }
+    return result;
+  }
+
+  private void insert(int node, int efConstruction) {
+    float[] query = new float[dim];
+    vectors.getRow(node, query);
+    int level = levels[node];
+
+    int entry;
+    int topLevel;
+    synchronized (entryLock) {
+      entry = entryPoint;
+      topLevel = maxLevel;
+    }
+
+    entry = descend(query, entry, topLevel, level);
+
+    int[] selected = new int[maxM0];
+    for (int l = Math.min(level, topLevel); l >= 0; l--) {
+      TopKHeap found = searchLevel(query, entry, efConstruction, l);
+      int[] rows = new int[found.size()];
+      float[] scores = new float[found.size()];
+      int numFound = found.drainDescending(rows, scores);
+
+      int numSelected = selectNeighbours(rows, scores, numFound, m, selected);
+      setNeighbours(node, l, selected, numSelected);
+      for (int i = 0; i < numSelected; i++) {
+        addLink(selected[i], node, l);
+      }
+      entry = rows[0];
+    }
+
+    if (level > topLevel) {
+      synchronized (entryLock) {
+        if (level > maxLevel) {
+          maxLevel = level;
+          entryPoint = node;
+        }
+      }
+    }
+  }
+
+  /**
+   * Greedily follows the best neighbour on each level from fromLevel down to just above toLevel
+   * and returns the node it stops at.
+   */
+  private int descend(float[] query, int entry, int fromLevel, int toLevel) {
+    int current = entry;
+    float currentScore = vectors.score(query, current);
+    int[] neighbours = new int[maxM0];
+
+    for (int level = fromLevel; level > toLevel; level--) {
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        int numNeighbours = getNeighbours(current, level, neighbours);
+        for (int i = 0; i < numNeighbours; i++) {
+          float score = vectors.score(query, neighbours[i]);
+          if (score > currentScore) {
+            current = neighbours[i];
+            currentScore = score;
+            changed = true;
+          }
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Beam search of one level from the entry node, returning the ef best nodes it found.
+   */
+  private TopKHeap searchLevel(float[] query, int entry, int ef, int level) {
+    VisitedSet visited = visitedSets.get();
+    int stamp = visited.nextStamp();
+    CandidateQueue candidates = new CandidateQueue();
+    TopKHeap result = new TopKHeap(ef);
+    int[] neighbours = new int[maxM0];
+
+    float entryScore = vectors.score(query, entry);
+    visited.marks[entry] = stamp;
+    candidates.push(entry, entryScore);
+    result.offer(entry, entryScore);
+
+    while (!candidates.isEmpty()) {
+      if (result.size() == ef && candidates.peekScore() < result.threshold()) {
+        break;
+      }
+
+      int current = candidates.pop();
+      int numNeighbours = getNeighbours(current, level, neighbours);
+      for (int i = 0; i < numNeighbours; i++) {
+        int neighbour = neighbours[i];
+        if (visited.marks[neighbour] == stamp) {
+          continue;
+        }
+        visited.marks[neighbour] = stamp;
+
+        float score = vectors.score(query, neighbour);
+        if (result.size() < ef || score > result.threshold()) {
+          candidates.push(neighbour, score);
+          result.offer(neighbour, score);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Picks up to maxNeighbours of the candidates, given best first, skipping any candidate that is
+   * closer to an already picked neighbour than to the node itself. This keeps links pointing in
+   * different directions instead of into one dense cluster, which is what lets greedy search
+   * reach every part of the graph.
+   */
+  private int selectNeighbours(int[] candidates, float[] scores, int numCandidates, int maxNeighbours, int[] out) {
+    float[] candidateVector = new float[dim];
+    int numSelected = 0;
+    for (int i = 0; i < numCandidates && numSelected < maxNeighbours; i++) {
+      vectors.getRow(candidates[i], candidateVector);
+
+      boolean keep = true;
+      for (int j = 0; j < numSelected && keep; j++) {
+        keep = vectors.score(candidateVector, out[j]) <= scores[i];
+      }
+      if (keep) {
+        out[numSelected++] = candidates[i];
+      }
+    }
+    return numSelected;
+  }
+
+  /**
+   * Links target to node on the level, re-selecting the neighbours of target if its list is full.
+   */
+  private void addLink(int target, int node, int level) {
+    int capacity = level == 0 ? maxM0 : m;
+    synchronized (lockFor(target)) {
+      int[] neighbours = new int[capacity + 1];
+      int numNeighbours = readNeighbours(target, level, neighbours);
+      for (int i = 0; i < numNeighbours; i++) {
+        if (neighbours[i] == node) {
+          return;
+        }
+      }
+
+      neighbours[numNeighbours++] = node;
+      if (numNeighbours <= capacity) {
+        writeNeighbours(target, level, neighbours, numNeighbours);
+        return;
+      }
+
+      float[] targetVector = new float[dim];
+      vectors.getRow(target, targetVector);
+      TopKHeap ranked = new TopKHeap(numNeighbours);
+      for (int i = 0; i < numNeighbours; i++) {
+        ranked.offer(neighbours[i], vectors.score(targetVector, neighbours[i]));
+      }
+
+      int[] rows = new int[numNeighbours];
+      float[] scores = new float[numNeighbours];
+      int numRanked = ranked.drainDescending(rows, scores);
+      int numSelected = selectNeighbours(rows, scores, numRanked, capacity, neighbours);
+      writeNeighbours(target, level, neighbours, numSelected);
+    }
+  }
+
+  private void setNeighbours(int node, int level, int[] neighbours, int numNeighbours) {
+    synchronized (lockFor(node)) {
+      writeNeighbours(node, level, neighbours, numNeighbours);
+    }
+  }
+
+  private int getNeighbours(int node, int level, int[] out) {
+    if (!building) {
+      return readNeighbours(node, level, out);
+    }
+    synchronized (lockFor(node)) {
+      return readNeighbours(node, level, out);
+    }
+  }
+
+  private int readNeighbours(int node, int level, int[] out) {
+    if (level == 0) {
+      int count = level0Counts.get(node);
+      int offset = node * maxM0;
+      for (int i = 0; i < count; i++) {
+        out[i] = level0Links.get(offset + i);
+      }
+      return count;
+    }
+
+    int[] list = upperLinks[node][level - 1];
+    System.arraycopy(list, 1, out, 0, list[0]);
+    return list[0];
+  }
+
+  private void writeNeighbours(int node, int level, int[] neighbours, int numNeighbours) {
+    if (level == 0) {
+      int offset = node * maxM0;
+      for (int i = 0; i < numNeighbours; i++) {
+        level0Links.put(offset + i, neighbours[i]);
+      }
+      level0Counts.put(node, numNeighbours);
+    } else {
+      int[] list = upperLinks[node][level - 1];
+      System.arraycopy(neighbours, 0, list, 1, numNeighbours);
+      list[0] = numNeighbours;
+    }
+  }
+
+  private Object lockFor(int node) {
+    return locks[node % NUM_LOCK_STRIPES];
+  }
+
+  /**
+   * Writes the header, the bottom level as two fixed size int arrays, the node levels and then the
+   * upper level lists of each node that has any.
+   */
+  public void save(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkState(!building);
+
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION << 24);
+      out.writeLong(fingerprint);
+      out.writeInt(numNodes);
+      out.writeInt(m);
+      out.writeInt(entryPoint);
+      out.writeInt(maxLevel);
+
+      for (int node = 0; node < numNodes; node++) {
+        out.writeInt(level0Counts.get(node));
+      }
+      for (int i = 0; i < numNodes * maxM0; i++) {
+        out.writeInt(level0Links.get(i));
+      }
+      out.write(levels);
+
+      for (int node = 0; node < numNodes; node++) {
+        for (int level = 1; level <= levels[node]; level++) {
+          for (int value : upperLinks[node][level - 1]) {
+            out.writeInt(value);
+          }
+        }
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Maps an index written by save. The bottom level is read straight from the mapping, only the
+   * small upper levels are copied to the heap. The caller checks the fingerprint, the index must
+   * have been built over the same rows as vectors.
+   */
+  public static HnswIndex load(File file, VectorScorer vectors) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(vectors);
+
+    MappedByteBuffer mapped;
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // The mapping stays valid after the channel is closed.
+      channel.close();
+    }
+
+    if (mapped.remaining() < HEADER_BYTES || mapped.getInt() != MAGIC) {
+      throw new IOException("not an hnsw index file");
+    }
+    int version = mapped.getInt() >>> 24;
+    if (version != VERSION) {
+      throw new IOException("unsupported hnsw index version: " + version);
+    }
+
+    long fingerprint = mapped.getLong();
+    int numNodes = mapped.getInt();
+    int m = mapped.getInt();
+    int entryPoint = mapped.getInt();
+    int maxLevel = mapped.getInt();
+    if (numNodes != vectors.numRows()) {
+      throw new IOException("index has " + numNodes + " nodes but there are " + vectors.numRows() + " rows");
+    }
+
+    long level0Bytes = 4L * numNodes * (1 + 2 * m);
+    if (m < 2 || mapped.remaining() < level0Bytes + numNodes) {
+      throw new IOException("truncated hnsw index file");
+    }
+
+    IntBuffer level0Counts = slice(mapped, mapped.position(), 4 * numNodes).asIntBuffer();
+    IntBuffer level0Links = slice(mapped, mapped.position() + 4 * numNodes, (int) level0Bytes - 4 * numNodes)
+        .asIntBuffer();
+    mapped.position(mapped.position() + (int) level0Bytes);
+
+    byte[] levels = new byte[numNodes];
+    mapped.get(levels);
+
+    int[][][] upperLinks = new int[numNodes][][];
+    try {
+      for (int node = 0; node < numNodes; node++) {
+        if (levels[node] > 0) {
+          upperLinks[node] = new int[levels[node]][m + 1];
+          for (int[] list : upperLinks[node]) {
+            for (int i = 0; i < list.length; i++) {
+              list[i] = mapped.getInt();
+            }
+          }
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("truncated hnsw index file", e);
+    }
+
+    Log.out(TAG, "mapped index over " + numNodes + " rows");
+    return new HnswIndex(vectors, fingerprint, m, levels, level0Counts, level0Links, upperLinks, entryPoint, maxLevel);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer result = buffer.duplicate();
+    result.position(offset);
+    result.limit(offset + length);
+    return result.slice();
+  }
+}
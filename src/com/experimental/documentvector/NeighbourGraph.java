@@ -0,0 +1,261 @@
+package com.experimental.documentvector;
+
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The k highest scoring rows of every row of a VectorScorer, with their scores, computed once by
+ * a batch job so that finding the neighbours of a row is a lookup.
+ *
+ * The job is a blocked matrix multiplication of the rows with themselves: a block of rows is
+ * taken as a batch of queries and scored against the whole matrix through the scorer's batch
+ * scoring, which reads each block of the matrix once for all of the queries. Query blocks are
+ * claimed by the worker threads in turn.
+ *
+ * Each row's neighbours are stored best first in a fixed size slot of k, padded with -1 when
+ * there are fewer than k other rows, so the saved file is mapped back and read in place.
+ */
+public class NeighbourGraph {
+  private static final String TAG = "NeighbourGraph";
+  private static final int MAGIC = 0x4e425247; // "NBRG"
+  private static final byte VERSION = 1;
+  // Magic, version padded to four bytes, fingerprint, number of rows and k.
+  private static final int HEADER_BYTES = 24;
+
+  // Rows scored together as one batch of queries.
+  private static final int QUERY_BLOCK_ROWS = 64;
+  // Rows of the matrix scored per call to the scorer.
+  private static final int SCORE_CHUNK_ROWS = 1024;
+
+  private final long fingerprint;
+  private final int numRows;
+  private final int k;
+  private final IntBuffer neighbours;
+  private final FloatBuffer similarities;
+
+  private NeighbourGraph(long fingerprint, int numRows, int k, IntBuffer neighbours, FloatBuffer similarities) {
+    this.fingerprint = fingerprint;
+    this.numRows = numRows;
+    this.k = k;
+    this.neighbours = neighbours;
+    this.similarities = similarities;
+  }
+
+  /**
+   * Computes the k nearest rows of every row of vectors with numThreads tasks on the executor,
+   * one of them run on the calling thread. The fingerprint identifies the rows the graph was
+   * computed for and is saved with it.
+   */
+  public static NeighbourGraph compute(final VectorScorer vectors, final int k, long fingerprint,
+                                       ExecutorService executor, int numThreads) {
+    Preconditions.checkNotNull(vectors);
+    Preconditions.checkNotNull(executor);
+    Preconditions.checkArgument(k > 0 && numThreads > 0);
+
+    final int numRows = vectors.numRows();
+    Preconditions.checkArgument((long) numRows * k <= Integer.MAX_VALUE, "too many rows for the graph");
+
+    final int[] neighbours = new int[numRows * k];
+    final float[] similarities = new float[numRows * k];
+    final int numBlocks = (numRows + QUERY_BLOCK_ROWS - 1) / QUERY_BLOCK_ROWS;
+    final AtomicInteger nextBlock = new AtomicInteger(0);
+    final AtomicInteger numBlocksDone = new AtomicInteger(0);
+    final long startTime = System.currentTimeMillis();
+
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        int block;
+        while ((block = nextBlock.getAndIncrement()) < numBlocks) {
+          computeBlock(vectors, k, block * QUERY_BLOCK_ROWS,
+              Math.min(numRows, (block + 1) * QUERY_BLOCK_ROWS), neighbours, similarities);
+
+          int done = numBlocksDone.incrementAndGet();
+          if (done % 1000 == 0) {
+            Log.out(TAG, "computed neighbours of " + done * QUERY_BLOCK_ROWS + " of " + numRows + " rows in " +
+                (System.currentTimeMillis() - startTime) + "ms");
+          }
+        }
+      }
+    };
+
+    List<Future<?>> tasks = new ArrayList<Future<?>>();
+    for (int i = 1; i < numThreads; i++) {
+      tasks.add(executor.submit(worker));
+    }
+    worker.run();
+    for (Future<?> task : tasks) {
+      try {
+        Uninterruptibles.getUninterruptibly(task);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("neighbour graph computation failed", e.getCause());
+      }
+    }
+
+    Log.out(TAG, "computed neighbours of " + numRows + " rows in " + (System.currentTimeMillis() - startTime) + "ms");
+    return new NeighbourGraph(fingerprint, numRows, k, IntBuffer.wrap(neighbours), FloatBuffer.wrap(similarities));
+  }
+
+  private static void computeBlock(VectorScorer vectors, int k, int fromRow, int toRow,
+                                   int[] neighbours, float[] similarities) {
+    int numQueries = toRow - fromRow;
+    List<ConceptVector> queries = new ArrayList<ConceptVector>(numQueries);
+    TopKHeap[] heaps = new TopKHeap[numQueries];
+    for (int q = 0; q < numQueries; q++) {
+      float[] values = new float[vectors.dimensions()];
+      vectors.getRow(fromRow + q, values);
+      queries.add(new ConceptVectorImpl(values));
+      heaps[q] = new TopKHeap(k);
+    }
+
+    int numRows = vectors.numRows();
+    float[][] scores = new float[numQueries][Math.min(SCORE_CHUNK_ROWS, numRows)];
+    for (int chunkStart = 0; chunkStart < numRows; chunkStart += SCORE_CHUNK_ROWS) {
+      int chunkEnd = Math.min(numRows, chunkStart + SCORE_CHUNK_ROWS);
+      vectors.score(queries, chunkStart, chunkEnd, scores);
+
+      for (int q = 0; q < numQueries; q++) {
+        TopKHeap heap = heaps[q];
+        float[] queryScores = scores[q];
+        int queryRow = fromRow + q;
+        for (int row = chunkStart; row < chunkEnd; row++) {
+          if (row != queryRow) {
+            heap.offer(row, queryScores[row - chunkStart]);
+          }
+        }
+      }
+    }
+
+    int[] rows = new int[k];
+    float[] rowScores = new float[k];
+    for (int q = 0; q < numQueries; q++) {
+      int numFound = heaps[q].drainDescending(rows, rowScores);
+      int offset = (fromRow + q) * k;
+      for (int i = 0; i < k; i++) {
+        neighbours[offset + i] = i < numFound ? rows[i] : -1;
+        similarities[offset + i] = i < numFound ? rowScores[i] : 0.0f;
+      }
+    }
+  }
+
+  public long fingerprint() {
+    return fingerprint;
+  }
+
+  public int numRows() {
+    return numRows;
+  }
+
+  public int k() {
+    return k;
+  }
+
+  /**
+   * Copies up to limit of the row's neighbours, best first, and returns how many there were.
+   */
+  public int getNeighbours(int row, int limit, int[] outRows, float[] outSimilarities) {
+    Preconditions.checkElementIndex(row, numRows);
+
+    int offset = row * k;
+    int result = 0;
+    while (result < Math.min(limit, k)) {
+      int neighbour = neighbours.get(offset + result);
+      if (neighbour < 0) {
+        break;
+      }
+      outRows[result] = neighbour;
+      outSimilarities[result] = similarities.get(offset + result);
+      result++;
+    }
+    return result;
+  }
+
+  public void save(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION << 24);
+      out.writeLong(fingerprint);
+      out.writeInt(numRows);
+      out.writeInt(k);
+
+      for (int i = 0; i < numRows * k; i++) {
+        out.writeInt(neighbours.get(i));
+      }
+      for (int i = 0; i < numRows * k; i++) {
+        out.writeFloat(similarities.get(i));
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Maps a graph written by save, its lists are read straight from the mapping.
+   */
+  public static NeighbourGraph load(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+
+    MappedByteBuffer mapped;
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // The mapping stays valid after the channel is closed.
+      channel.close();
+    }
+
+    if (mapped.remaining() < HEADER_BYTES || mapped.getInt() != MAGIC) {
+      throw new IOException("not a neighbour graph file");
+    }
+    int version = mapped.getInt() >>> 24;
+    if (version != VERSION) {
+      throw new IOException("unsupported neighbour graph version: " + version);
+    }
+
+    long fingerprint = mapped.getLong();
+    int numRows = mapped.getInt();
+    int k = mapped.getInt();
+    long listBytes = 4L * numRows * k;
+    if (numRows < 0 || k <= 0 || mapped.remaining() < 2 * listBytes) {
+      throw new IOException("truncated neighbour graph file");
+    }
+
+    IntBuffer neighbours = slice(mapped, HEADER_BYTES, (int) listBytes).asIntBuffer();
+    FloatBuffer similarities = slice(mapped, HEADER_BYTES + (int) listBytes, (int) listBytes).asFloatBuffer();
+
+    Log.out(TAG, "mapped neighbours of " + numRows + " rows");
+    return new NeighbourGraph(fingerprint, numRows, k, neighbours, similarities);
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer result = buffer.duplicate();
+    result.position(offset);
+    result.limit(offset + length);
+    return result.slice();
+  }
+}
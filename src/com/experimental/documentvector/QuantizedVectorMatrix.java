@@ -0,0 +1,192 @@
+package com.experimental.documentvector;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Document vectors quantized to one signed byte per dimension with a float scale per row, a
+ * quarter of the size of the float matrix. A value is stored as round(value / scale) where the
+ * scale maps the largest magnitude in the row to 127. Scores are approximate, to within about
+ * 1/127 of the row's largest value per dimension, and are meant for a first pass whose best
+ * candidates are re-scored exactly.
+ *
+ * The codes live in a direct buffer and are scored in blocks, like DocumentVectorMatrix.
+ */
+public class QuantizedVectorMatrix implements VectorScorer {
+  // About 256KB of codes per block.
+  private static final int BLOCK_BYTES = 1 << 18;
+  private static final float MAX_CODE = 127.0f;
+
+  private final ByteBuffer codes;
+  private final float[] scales;
+  private final int numRows;
+  private final int dim;
+  private final ThreadLocal<byte[]> rowScratch = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[dim];
+    }
+  };
+  // Scratch for the block being scored, reused across calls by each thread.
+  private final ThreadLocal<byte[]> blockScratch = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[rowsPerBlock() * dim];
+    }
+  };
+
+  private QuantizedVectorMatrix(ByteBuffer codes, float[] scales, int dim) {
+    this.codes = codes;
+    this.scales = scales;
+    this.numRows = scales.length;
+    this.dim = dim;
+  }
+
+  public static QuantizedVectorMatrix allocate(int numRows, int dim) {
+    Preconditions.checkArgument(numRows >= 0 && dim > 0);
+    Preconditions.checkArgument((long) numRows * dim <= Integer.MAX_VALUE, "matrix too large for one buffer");
+
+    return new QuantizedVectorMatrix(ByteBuffer.allocateDirect(Math.max(1, numRows * dim)), new float[numRows], dim);
+  }
+
+  @Override
+  public int numRows() {
+    return numRows;
+  }
+
+  @Override
+  public int dimensions() {
+    return dim;
+  }
+
+  public void setRow(int row, ConceptVector vector) {
+    Preconditions.checkArgument(vector.dimensions() == dim);
+
+    float[] values = new float[dim];
+    vector.addTo(values, 0, 1.0);
+    setRow(row, values);
+  }
+
+  public void setRow(int row, float[] values) {
+    Preconditions.checkElementIndex(row, numRows);
+    Preconditions.checkArgument(values.length == dim);
+
+    float maxAbs = 0.0f;
+    for (float value : values) {
+      maxAbs = Math.max(maxAbs, Math.abs(value));
+    }
+
+    float scale = maxAbs / MAX_CODE;
+    byte[] rowCodes = new byte[dim];
+    if (scale > 0.0f) {
+      for (int i = 0; i < dim; i++) {
+        rowCodes[i] = (byte) Math.round(values[i] / scale);
+      }
+    }
+
+    scales[row] = scale;
+    ByteBuffer target = codes.duplicate();
+    target.position(row * dim);
+    target.put(rowCodes);
+  }
+
+  @Override
+  public void getRow(int row, float[] out) {
+    Preconditions.checkElementIndex(row, numRows);
+
+    byte[] rowCodes = rowScratch.get();
+    getRows(row, 1, rowCodes);
+    float scale = scales[row];
+    for (int i = 0; i < dim; i++) {
+      out[i] = rowCodes[i] * scale;
+    }
+  }
+
+  @Override
+  public float score(float[] query, int row) {
+    byte[] rowCodes = rowScratch.get();
+    getRows(row, 1, rowCodes);
+    return VectorKernels.dot(query, rowCodes, 0, dim) * scales[row];
+  }
+
+  public void score(ConceptVector query, float[] scores) {
+    score(Collections.singletonList(query), 0, numRows, new float[][] {scores});
+  }
+
+  @Override
+  public void score(List<? extends ConceptVector> queries, int fromRow, int toRow, float[][] scores) {
+    Preconditions.checkNotNull(queries);
+    Preconditions.checkPositionIndexes(fromRow, toRow, numRows);
+    Preconditions.checkArgument(scores.length >= queries.size());
+
+    Query[] prepared = new Query[queries.size()];
+    for (int q = 0; q < prepared.length; q++) {
+      Preconditions.checkArgument(queries.get(q).dimensions() == dim);
+      Preconditions.checkArgument(scores[q].length >= toRow - fromRow);
+      prepared[q] = new Query(queries.get(q));
+    }
+
+    byte[] block = blockScratch.get();
+    for (int firstRow = fromRow; firstRow < toRow; firstRow += rowsPerBlock()) {
+      int blockRows = Math.min(rowsPerBlock(), toRow - firstRow);
+      getRows(firstRow, blockRows, block);
+      for (int q = 0; q < prepared.length; q++) {
+        scoreBlock(prepared[q], block, blockRows, scores[q], firstRow, fromRow);
+      }
+    }
+  }
+
+  /**
+   * A query in the form the kernels read: its non-zero entries if it is sparse, otherwise all of
+   * its values.
+   */
+  private static class Query {
+    final int[] indices;
+    final float[] values;
+
+    Query(ConceptVector vector) {
+      if (vector instanceof SparseConceptVectorImpl) {
+        SparseConceptVectorImpl sparse = (SparseConceptVectorImpl) vector;
+        indices = new int[sparse.numEntries()];
+        values = new float[sparse.numEntries()];
+        for (int i = 0; i < indices.length; i++) {
+          indices[i] = sparse.indexAt(i);
+          values[i] = sparse.valueAt(i);
+        }
+      } else {
+        indices = null;
+        values = new float[vector.dimensions()];
+        vector.addTo(values, 0, 1.0);
+      }
+    }
+  }
+
+  private void scoreBlock(Query query, byte[] block, int blockRows, float[] scores, int firstRow, int fromRow) {
+    for (int r = 0; r < blockRows; r++) {
+      int offset = r * dim;
+      float sum;
+      if (query.indices == null) {
+        sum = VectorKernels.dot(query.values, block, offset, dim);
+      } else {
+        sum = 0.0f;
+        for (int i = 0; i < query.indices.length; i++) {
+          sum += query.values[i] * block[offset + query.indices[i]];
+        }
+      }
+      scores[firstRow - fromRow + r] = sum * scales[firstRow + r];
+    }
+  }
+
+  private int rowsPerBlock() {
+    return Math.max(1, Math.min(numRows, BLOCK_BYTES / dim));
+  }
+
+  private void getRows(int firstRow, int numRowsToGet, byte[] out) {
+    ByteBuffer source = codes.duplicate();
+    source.position(firstRow * dim);
+    source.get(out, 0, numRowsToGet * dim);
+  }
+}
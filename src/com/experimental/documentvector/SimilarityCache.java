@@ -0,0 +1,145 @@
+package com.experimental.documentvector;
+
+import com.google.common.base.Preconditions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nearest document results by document id, safe to share between threads. Each result is kept as
+ * parallel arrays of rows and similarities, best first, so a cached result costs a few bytes per
+ * neighbour and holds no references to documents or result lists.
+ *
+ * A result for k neighbours answers any request for k or fewer, and a result of an exact scan that
+ * ran out of documents before reaching its k answers any request at all. Approximate results can
+ * come up short while documents remain, so they only answer requests for up to their k. The
+ * cache holds at most capacity results. It is split into segments, each an access ordered map
+ * under its own lock that drops its least recently used result when it is full, so concurrent
+ * lookups rarely wait on each other.
+ */
+public class SimilarityCache {
+  private static final int NUM_SEGMENTS = 16;
+
+  static class Entry {
+    final int[] rows;
+    final float[] similarities;
+    // The number of neighbours asked for when the result was computed, or -1 if it holds every
+    // neighbour there is.
+    final int k;
+
+    Entry(int[] rows, float[] similarities, int k) {
+      this.rows = rows;
+      this.similarities = similarities;
+      this.k = k;
+    }
+
+    int size() {
+      return rows.length;
+    }
+
+    boolean answers(int num) {
+      return k < 0 || (num > 0 && num <= k);
+    }
+  }
+
+  private final LinkedHashMap<String, Entry>[] segments;
+  private final AtomicLong hitCount = new AtomicLong(0);
+  private final AtomicLong missCount = new AtomicLong(0);
+  private final AtomicLong evictionCount = new AtomicLong(0);
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public SimilarityCache(int capacity) {
+    Preconditions.checkArgument(capacity > 0);
+
+    final int segmentCapacity = Math.max(1, (capacity + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+    segments = new LinkedHashMap[NUM_SEGMENTS];
+    for (int i = 0; i < NUM_SEGMENTS; i++) {
+      segments[i] = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          if (size() > segmentCapacity) {
+            evictionCount.incrementAndGet();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+  }
+
+  /**
+   * Returns the cached result for the document if it answers a request for num neighbours, num
+   * of zero or less meaning all of them.
+   */
+  Entry get(String documentId, int num) {
+    LinkedHashMap<String, Entry> segment = segmentFor(documentId);
+    Entry result;
+    synchronized (segment) {
+      result = segment.get(documentId);
+    }
+
+    if (result != null && result.answers(num)) {
+      hitCount.incrementAndGet();
+      return result;
+    }
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches a result computed for num neighbours, num of zero or less meaning all of them.
+   * isExactScan is whether the result was found by scoring every document.
+   */
+  void put(String documentId, int num, int[] rows, float[] similarities, boolean isExactScan) {
+    Preconditions.checkArgument(rows.length == similarities.length);
+
+    boolean isComplete = isExactScan && (num <= 0 || rows.length < num);
+    Entry entry = new Entry(rows, similarities, isComplete ? -1 : num);
+
+    LinkedHashMap<String, Entry> segment = segmentFor(documentId);
+    synchronized (segment) {
+      Entry previous = segment.get(documentId);
+      // Keeps whichever of two results answers more requests.
+      if (previous == null || previous.k >= 0 && (entry.k < 0 || entry.k > previous.k)) {
+        segment.put(documentId, entry);
+      }
+    }
+  }
+
+  public void clear() {
+    for (LinkedHashMap<String, Entry> segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public int size() {
+    int result = 0;
+    for (LinkedHashMap<String, Entry> segment : segments) {
+      synchronized (segment) {
+        result += segment.size();
+      }
+    }
+    return result;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  private LinkedHashMap<String, Entry> segmentFor(String documentId) {
+    int hash = documentId.hashCode();
+    hash ^= hash >>> 16;
+    return segments[(hash & 0x7fffffff) % NUM_SEGMENTS];
+  }
+}
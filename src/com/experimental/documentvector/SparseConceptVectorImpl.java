@@ -5,30 +5,87 @@ import com.google.common.base.Preconditions;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by sushkov on 26/02/15.
+ *
+ * The non-zero entries as parallel index and value arrays sorted by index. Lookups are binary
+ * searches, arithmetic between two sparse vectors is a merge join over both entry lists, and
+ * arithmetic with a dense vector gathers from or scatters into its array at the stored indices.
  */
 public class SparseConceptVectorImpl implements ConceptVector {
-  public static class SparseVectorEntry {
-    public int index;
-    public double value;
 
-    public SparseVectorEntry(int index, double value) {
-      Preconditions.checkArgument(index >= 0);
-      this.index = index;
-      this.value = value;
+  /**
+   * Collects entries in any order, summing repeated indices, and builds the sorted vector once.
+   */
+  public static class Builder {
+    private final int dim;
+    private int[] indices = new int[16];
+    private float[] values = new float[16];
+    private int size = 0;
+
+    public Builder(int dim) {
+      Preconditions.checkArgument(dim > 0);
+      this.dim = dim;
+    }
+
+    public Builder add(int index, double value) {
+      Preconditions.checkElementIndex(index, dim);
+
+      if (size == indices.length) {
+        indices = Arrays.copyOf(indices, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      indices[size] = index;
+      values[size] = (float) value;
+      size++;
+      return this;
+    }
+
+    public SparseConceptVectorImpl build() {
+      // Sorts positions by index through packed keys, which keeps the sort on primitives.
+      long[] keys = new long[size];
+      for (int i = 0; i < size; i++) {
+        keys[i] = ((long) indices[i] << 32) | i;
+      }
+      Arrays.sort(keys);
+
+      int[] sortedIndices = new int[size];
+      float[] sortedValues = new float[size];
+      int numEntries = 0;
+      for (int i = 0; i < size; i++) {
+        int index = (int) (keys[i] >>> 32);
+        float value = values[(int) keys[i]];
+        if (numEntries > 0 && sortedIndices[numEntries - 1] == index) {
+          sortedValues[numEntries - 1] += value;
+        } else {
+          sortedIndices[numEntries] = index;
+          sortedValues[numEntries++] = value;
+        }
+      }
+
+      SparseConceptVectorImpl result = new SparseConceptVectorImpl(dim, sortedIndices, sortedValues, numEntries);
+      result.removeZeros();
+      return result;
     }
   }
 
-  private final List<SparseVectorEntry> entries = new ArrayList<SparseVectorEntry>();
   private final int dim;
+  private int[] indices;
+  private float[] values;
+  private int size;
 
   public SparseConceptVectorImpl(int dim) {
+    this(dim, new int[0], new float[0], 0);
+  }
+
+  private SparseConceptVectorImpl(int dim, int[] indices, float[] values, int size) {
     Preconditions.checkArgument(dim > 0);
     this.dim = dim;
+    this.indices = indices;
+    this.values = values;
+    this.size = size;
   }
 
   @Override
@@ -36,118 +93,263 @@ public class SparseConceptVectorImpl implements ConceptVector {
     return dim;
   }
 
+  public int numEntries() {
+    return size;
+  }
+
+  public int indexAt(int entry) {
+    return indices[entry];
+  }
+
+  public float valueAt(int entry) {
+    return values[entry];
+  }
+
+  /**
+   * Adds a non-zero entry past the last one. Only for loaders that read entries in index order.
+   */
+  void appendEntry(int index, double value) {
+    Preconditions.checkArgument(index < dim && (size == 0 || index > indices[size - 1]));
+
+    ensureCapacity(size + 1);
+    indices[size] = index;
+    values[size] = (float) value;
+    size++;
+  }
+
   @Override
   public double getValue(int index) {
-    for (SparseVectorEntry entry : entries) {
-      if (entry.index == index) {
-        return entry.value;
-      }
-    }
-    return 0.0;
+    int entry = Arrays.binarySearch(indices, 0, size, index);
+    return entry >= 0 ? values[entry] : 0.0;
   }
 
   @Override
   public void setValue(int index, double value) {
-    for (SparseVectorEntry entry : entries) {
-      if (entry.index == index) {
-        entry.value = value;
+    Preconditions.checkElementIndex(index, dim);
 
-        if (value < Double.MIN_VALUE && value > -Double.MIN_VALUE) {
-          entries.remove(entry);
-        }
-
-        return;
+    int entry = Arrays.binarySearch(indices, 0, size, index);
+    boolean isZero = (float) value == 0.0f;
+    if (entry >= 0) {
+      if (isZero) {
+        System.arraycopy(indices, entry + 1, indices, entry, size - entry - 1);
+        System.arraycopy(values, entry + 1, values, entry, size - entry - 1);
+        size--;
+      } else {
+        values[entry] = (float) value;
       }
-    }
-
-    if (value >= Double.MIN_VALUE || value <= -Double.MIN_VALUE) {
-      entries.add(new SparseVectorEntry(index, value));
+    } else if (!isZero) {
+      int insertAt = -entry - 1;
+      ensureCapacity(size + 1);
+      System.arraycopy(indices, insertAt, indices, insertAt + 1, size - insertAt);
+      System.arraycopy(values, insertAt, values, insertAt + 1, size - insertAt);
+      indices[insertAt] = index;
+      values[insertAt] = (float) value;
+      size++;
     }
   }
 
   @Override
   public void normalise() {
     double length = length();
-    for (SparseVectorEntry entry : entries) {
-      entry.value /= length;
+    if (size > 0) {
+      VectorKernels.scale(values, 0, size, (float) (1.0 / length));
     }
   }
 
   @Override
   public double length() {
-    double sum2 = 0.0;
-    for (SparseVectorEntry entry : entries) {
-      sum2 += entry.value * entry.value;
-    }
-    return Math.sqrt(sum2);
+    return Math.sqrt(VectorKernels.squaredLength(values, 0, size));
   }
 
   @Override
   public double dotProduct(ConceptVector other) {
+    Preconditions.checkArgument(dim == other.dimensions());
+
+    if (other instanceof SparseConceptVectorImpl) {
+      SparseConceptVectorImpl sparse = (SparseConceptVectorImpl) other;
+
+      double result = 0.0;
+      int i = 0;
+      int j = 0;
+      while (i < size && j < sparse.size) {
+        int a = indices[i];
+        int b = sparse.indices[j];
+        if (a == b) {
+          result += values[i++] * sparse.values[j++];
+        } else if (a < b) {
+          i++;
+        } else {
+          j++;
+        }
+      }
+      return result;
+    }
+
+    if (other instanceof ConceptVectorImpl) {
+      return dotProduct(((ConceptVectorImpl) other).values(), 0);
+    }
+
     double result = 0.0;
-    for (SparseVectorEntry entry : entries) {
-      result += entry.value * other.getValue(entry.index);
+    for (int i = 0; i < size; i++) {
+      result += values[i] * other.getValue(indices[i]);
+    }
+    return result;
+  }
+
+  @Override
+  public double dotProduct(float[] dense, int offset) {
+    float result = 0.0f;
+    for (int i = 0; i < size; i++) {
+      result += values[i] * dense[offset + indices[i]];
     }
     return result;
   }
 
+  @Override
+  public void addTo(float[] dense, int offset, double factor) {
+    float scale = (float) factor;
+    for (int i = 0; i < size; i++) {
+      dense[offset + indices[i]] += scale * values[i];
+    }
+  }
+
   @Override
   public void overwriteWith(ConceptVector other) {
-    entries.clear();
-    for (int i = 0; i < dim; i++) {
-      this.setValue(i, other.getValue(i));
+    Preconditions.checkArgument(dim == other.dimensions());
+
+    if (other instanceof SparseConceptVectorImpl) {
+      SparseConceptVectorImpl sparse = (SparseConceptVectorImpl) other;
+      indices = Arrays.copyOf(sparse.indices, sparse.size);
+      values = Arrays.copyOf(sparse.values, sparse.size);
+      size = sparse.size;
+    } else {
+      float[] dense = new float[dim];
+      other.addTo(dense, 0, 1.0);
+      setFromDense(dense);
     }
   }
 
   @Override
   public void setToZero() {
-    entries.clear();
+    size = 0;
   }
 
   @Override
   public void add(ConceptVector other) {
-    for (int i = 0; i < dim; i++) {
-      double thisValue = this.getValue(i);
-      double otherValue = other.getValue(i);
+    addScaled(other, 1.0);
+  }
 
-      this.setValue(i, thisValue + otherValue);
+  @Override
+  public void addScaled(ConceptVector other, double factor) {
+    Preconditions.checkArgument(dim == other.dimensions());
+
+    if (!(other instanceof SparseConceptVectorImpl)) {
+      float[] dense = new float[dim];
+      addTo(dense, 0, 1.0);
+      other.addTo(dense, 0, factor);
+      setFromDense(dense);
+      return;
     }
+
+    SparseConceptVectorImpl sparse = (SparseConceptVectorImpl) other;
+    float scale = (float) factor;
+
+    int[] mergedIndices = new int[size + sparse.size];
+    float[] mergedValues = new float[mergedIndices.length];
+    int i = 0;
+    int j = 0;
+    int numMerged = 0;
+    while (i < size || j < sparse.size) {
+      int a = i < size ? indices[i] : Integer.MAX_VALUE;
+      int b = j < sparse.size ? sparse.indices[j] : Integer.MAX_VALUE;
+      if (a == b) {
+        mergedIndices[numMerged] = a;
+        mergedValues[numMerged++] = values[i++] + scale * sparse.values[j++];
+      } else if (a < b) {
+        mergedIndices[numMerged] = a;
+        mergedValues[numMerged++] = values[i++];
+      } else {
+        mergedIndices[numMerged] = b;
+        mergedValues[numMerged++] = scale * sparse.values[j++];
+      }
+    }
+
+    indices = mergedIndices;
+    values = mergedValues;
+    size = numMerged;
+    removeZeros();
   }
 
   @Override
   public void scale(double factor) {
-    for (SparseVectorEntry entry : entries) {
-      entry.value *= factor;
-    }
+    VectorKernels.scale(values, 0, size, (float) factor);
+    removeZeros();
   }
 
   @Override
   public ConceptVector getCopy() {
-    SparseConceptVectorImpl result = new SparseConceptVectorImpl(dim);
-    for (SparseVectorEntry entry : entries) {
-      result.setValue(entry.index, entry.value);
-    }
-    return result;
+    return new SparseConceptVectorImpl(dim, Arrays.copyOf(indices, size), Arrays.copyOf(values, size), size);
   }
 
   @Override
   public double distanceTo(ConceptVector other) {
-    double sum2 = 0.0;
-    for (int i = 0; i < dim; i++) {
-      double thisValue = this.getValue(i);
-      double otherValue = other.getValue(i);
+    return Math.sqrt(squaredDistanceTo(other));
+  }
 
-      sum2 += (thisValue - otherValue) * (thisValue - otherValue);
+  @Override
+  public double squaredDistanceTo(ConceptVector other) {
+    Preconditions.checkArgument(dim == other.dimensions());
+
+    if (other instanceof SparseConceptVectorImpl) {
+      SparseConceptVectorImpl sparse = (SparseConceptVectorImpl) other;
+
+      double result = 0.0;
+      int i = 0;
+      int j = 0;
+      while (i < size || j < sparse.size) {
+        int a = i < size ? indices[i] : Integer.MAX_VALUE;
+        int b = j < sparse.size ? sparse.indices[j] : Integer.MAX_VALUE;
+        double difference;
+        if (a == b) {
+          difference = values[i++] - sparse.values[j++];
+        } else if (a < b) {
+          difference = values[i++];
+        } else {
+          difference = sparse.values[j++];
+        }
+        result += difference * difference;
+      }
+      return result;
     }
 
-    return Math.sqrt(sum2);
+    if (other instanceof ConceptVectorImpl) {
+      // |d|^2 over every dimension, corrected at the dimensions this vector has entries for.
+      float[] dense = ((ConceptVectorImpl) other).values();
+      double result = VectorKernels.squaredLength(dense, 0, dim);
+      for (int i = 0; i < size; i++) {
+        double otherValue = dense[indices[i]];
+        double difference = values[i] - otherValue;
+        result += difference * difference - otherValue * otherValue;
+      }
+      return Math.max(0.0, result);
+    }
+
+    float[] difference = new float[dim];
+    addTo(difference, 0, 1.0);
+    other.addTo(difference, 0, -1.0);
+    return VectorKernels.squaredLength(difference, 0, dim);
   }
 
   @Override
   public void writeTo(BufferedWriter out) throws IOException {
     out.write(Integer.toString(dim) + "\n");
+    int entry = 0;
     for (int i = 0; i < dim; i++) {
-      out.write(Double.toString(getValue(i)) + "\n");
+      double value = 0.0;
+      if (entry < size && indices[entry] == i) {
+        value = values[entry++];
+      }
+      out.write(Double.toString(value) + "\n");
     }
   }
 
@@ -155,13 +357,46 @@ public class SparseConceptVectorImpl implements ConceptVector {
     int dim = Integer.parseInt(in.readLine());
     SparseConceptVectorImpl result = new SparseConceptVectorImpl(dim);
     for (int i = 0; i < dim; i++) {
-      result.setValue(i, Double.parseDouble(in.readLine()));
+      double value = Double.parseDouble(in.readLine());
+      if ((float) value != 0.0f) {
+        result.appendEntry(i, value);
+      }
     }
     return result;
   }
 
   @Override
   public boolean haveMinElements(int num) {
-    return entries.size() >= num;
+    return size >= num;
+  }
+
+  private void setFromDense(float[] dense) {
+    size = 0;
+    for (int i = 0; i < dense.length; i++) {
+      if (dense[i] != 0.0f) {
+        ensureCapacity(size + 1);
+        indices[size] = i;
+        values[size++] = dense[i];
+      }
+    }
+  }
+
+  private void removeZeros() {
+    int numKept = 0;
+    for (int i = 0; i < size; i++) {
+      if (values[i] != 0.0f) {
+        indices[numKept] = indices[i];
+        values[numKept++] = values[i];
+      }
+    }
+    size = numKept;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > indices.length) {
+      int newCapacity = Math.max(capacity, Math.max(8, indices.length * 2));
+      indices = Arrays.copyOf(indices, newCapacity);
+      values = Arrays.copyOf(values, newCapacity);
+    }
   }
 }
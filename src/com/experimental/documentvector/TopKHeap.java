@@ -0,0 +1,115 @@
+package com.experimental.documentvector;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Keeps the k highest scoring rows seen so far in a fixed-size binary min-heap of primitive
+ * (row, score) pairs, so a scan allocates nothing per candidate. Of two rows with equal scores
+ * the lower row wins, which keeps results independent of how a scan was partitioned.
+ */
+public class TopKHeap {
+  private final int[] rows;
+  private final float[] scores;
+  private int size = 0;
+
+  public TopKHeap(int k) {
+    Preconditions.checkArgument(k >= 0);
+    this.rows = new int[k];
+    this.scores = new float[k];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return rows.length;
+  }
+
+  /**
+   * The lowest score kept, any offer at or below it is rejected once the heap is full.
+   */
+  public float threshold() {
+    return size < rows.length ? Float.NEGATIVE_INFINITY : scores[0];
+  }
+
+  public void offer(int row, float score) {
+    if (size < rows.length) {
+      rows[size] = row;
+      scores[size] = score;
+      siftUp(size++);
+    } else if (rows.length > 0 && isBetter(row, score, 0)) {
+      rows[0] = row;
+      scores[0] = score;
+      siftDown(0);
+    }
+  }
+
+  public void addAll(TopKHeap other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.rows[i], other.scores[i]);
+    }
+  }
+
+  /**
+   * Empties the heap into the arrays, best first, and returns the number of entries.
+   */
+  public int drainDescending(int[] outRows, float[] outScores) {
+    int result = size;
+    while (size > 0) {
+      int last = --size;
+      outRows[last] = rows[0];
+      outScores[last] = scores[0];
+      rows[0] = rows[last];
+      scores[0] = scores[last];
+      siftDown(0);
+    }
+    return result;
+  }
+
+  // Whether (row, score) ranks above the entry at index i.
+  private boolean isBetter(int row, float score, int i) {
+    return score > scores[i] || (score == scores[i] && row < rows[i]);
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!isBetter(rows[parent], scores[parent], i)) {
+        break;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i) {
+    while (true) {
+      int left = 2 * i + 1;
+      if (left >= size) {
+        return;
+      }
+
+      int worst = left;
+      int right = left + 1;
+      if (right < size && isBetter(rows[worst], scores[worst], right)) {
+        worst = right;
+      }
+      if (!isBetter(rows[i], scores[i], worst)) {
+        return;
+      }
+      swap(i, worst);
+      i = worst;
+    }
+  }
+
+  private void swap(int a, int b) {
+    int row = rows[a];
+    rows[a] = rows[b];
+    rows[b] = row;
+
+    float score = scores[a];
+    scores[a] = scores[b];
+    scores[b] = score;
+  }
+}
@@ -0,0 +1,111 @@
+package com.experimental.documentvector;
+
+/**
+ * Bulk float32 kernels over ranges of float arrays, the inner loops of dense vector arithmetic.
+ *
+ * There is no vector API on the Java versions this runs on, and HotSpot does not vectorise
+ * floating point reductions because that would reorder the additions. The reductions are unrolled
+ * four ways into independent accumulators instead, so consecutive multiply-adds do not wait on
+ * each other, and the element-wise kernels are plain counted loops that the JIT does vectorise.
+ */
+public final class VectorKernels {
+
+  private VectorKernels() {}
+
+  public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+    float s0 = 0.0f;
+    float s1 = 0.0f;
+    float s2 = 0.0f;
+    float s3 = 0.0f;
+
+    int i = 0;
+    for (int end = length - 3; i < end; i += 4) {
+      s0 += a[aOffset + i] * b[bOffset + i];
+      s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+      s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+      s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+    }
+    for (; i < length; i++) {
+      s0 += a[aOffset + i] * b[bOffset + i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  public static float dot(float[] a, float[] b, int length) {
+    return dot(a, 0, b, 0, length);
+  }
+
+  /**
+   * Dot product of a float vector with a row of int8 codes, before the row's scale is applied.
+   */
+  public static float dot(float[] a, byte[] codes, int codesOffset, int length) {
+    float s0 = 0.0f;
+    float s1 = 0.0f;
+    float s2 = 0.0f;
+    float s3 = 0.0f;
+
+    int i = 0;
+    for (int end = length - 3; i < end; i += 4) {
+      s0 += a[i] * codes[codesOffset + i];
+      s1 += a[i + 1] * codes[codesOffset + i + 1];
+      s2 += a[i + 2] * codes[codesOffset + i + 2];
+      s3 += a[i + 3] * codes[codesOffset + i + 3];
+    }
+    for (; i < length; i++) {
+      s0 += a[i] * codes[codesOffset + i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  public static float squaredLength(float[] a, int offset, int length) {
+    return dot(a, offset, a, offset, length);
+  }
+
+  public static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+    float s0 = 0.0f;
+    float s1 = 0.0f;
+    float s2 = 0.0f;
+    float s3 = 0.0f;
+
+    int i = 0;
+    for (int end = length - 3; i < end; i += 4) {
+      float d0 = a[aOffset + i] - b[bOffset + i];
+      float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+      float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+      float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+      s0 += d0 * d0;
+      s1 += d1 * d1;
+      s2 += d2 * d2;
+      s3 += d3 * d3;
+    }
+    for (; i < length; i++) {
+      float d = a[aOffset + i] - b[bOffset + i];
+      s0 += d * d;
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * y += alpha * x
+   */
+  public static void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      y[yOffset + i] += alpha * x[xOffset + i];
+    }
+  }
+
+  public static void scale(float[] a, int offset, int length, float factor) {
+    for (int i = 0; i < length; i++) {
+      a[offset + i] *= factor;
+    }
+  }
+
+  /**
+   * Scales the range to unit length and returns the length it had.
+   */
+  public static float normalise(float[] a, int offset, int length) {
+    float result = (float) Math.sqrt(squaredLength(a, offset, length));
+    scale(a, offset, length, 1.0f / result);
+    return result;
+  }
+}
@@ -0,0 +1,28 @@
+package com.experimental.documentvector;
+
+import java.util.List;
+
+/**
+ * A packed store of row vectors that scores queries against a range of its rows.
+ */
+interface VectorScorer {
+  int numRows();
+
+  int dimensions();
+
+  /**
+   * Writes the score of query q against row fromRow + i to scores[q][i], for every row in
+   * [fromRow, toRow).
+   */
+  void score(List<? extends ConceptVector> queries, int fromRow, int toRow, float[][] scores);
+
+  /**
+   * The score of a dense query against a single row, for searches that visit rows one at a time.
+   */
+  float score(float[] query, int row);
+
+  /**
+   * Copies the row, decoded to floats if it is stored in another form, into out.
+   */
+  void getRow(int row, float[] out);
+}
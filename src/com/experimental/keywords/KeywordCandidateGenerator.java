@@ -3,6 +3,7 @@ package com.experimental.keywords;
 import com.experimental.documentmodel.BagOfWeightedLemmas;
 import com.experimental.documentmodel.Document;
 import com.experimental.documentmodel.Sentence;
+import com.experimental.documentmodel.SentenceBlock;
 import com.experimental.documentmodel.WebsiteDocument;
 import com.experimental.documentvector.DocumentVectorDB;
 import com.experimental.languagemodel.*;
@@ -121,11 +122,12 @@ public class KeywordCandidateGenerator {
   private List<WeightedNounPhrase> extractNounPhrases(WebsiteDocument document) {
     Map<NounPhrase, WeightedNounPhrase> nounPhrasesMap = new HashMap<NounPhrase, WeightedNounPhrase>();
 
-    for (Sentence sentence : document.getSentences()) {
-      List<NounPhrase> sentencePhrases = nounPhraseExtractor.extractNounPhrases(sentence);
+    SentenceBlock block = document.getSentenceBlock();
+    for (int i = 0; i < block.numSentences(); i++) {
+      List<NounPhrase> sentencePhrases = nounPhraseExtractor.extractNounPhrases(block, i);
       for (NounPhrase phrase : sentencePhrases) {
         nounPhrasesMap.putIfAbsent(phrase, new WeightedNounPhrase(phrase));
-        nounPhrasesMap.get(phrase).weight += sentence.emphasis;
+        nounPhrasesMap.get(phrase).weight += block.emphasis(i);
       }
     }
 
@@ -218,16 +220,18 @@ public class KeywordCandidateGenerator {
     List<DocumentVectorDB.DocumentSimilarityPair> similarDocs = documentVectorDb.getNearestDocuments(document, 30);
     Map<NounPhrase, Double> nounWeights = new HashMap<NounPhrase, Double>();
 
-    for (DocumentVectorDB.DocumentSimilarityPair similarity : similarDocs) {
-      Map<NounPhrase, Double> documentNounWeights = new HashMap<NounPhrase, Double>();
-      for (Sentence sentence : document.getSentences()) {
-        List<NounPhrase> phrases = nounPhraseExtractor.extractNounPhrases(sentence);
-        for (NounPhrase phrase : phrases) {
-          NounPhrase nounOnly = phrase.getNounOnlyPhrase();
-          addNounPhraseTo(nounOnly, sentence.emphasis, documentNounWeights);
-        }
+    // The phrase weights only depend on the document itself, so they are extracted once.
+    Map<NounPhrase, Double> documentNounWeights = new HashMap<NounPhrase, Double>();
+    SentenceBlock block = document.getSentenceBlock();
+    for (int i = 0; i < block.numSentences(); i++) {
+      List<NounPhrase> phrases = nounPhraseExtractor.extractNounPhrases(block, i);
+      for (NounPhrase phrase : phrases) {
+        NounPhrase nounOnly = phrase.getNounOnlyPhrase();
+        addNounPhraseTo(nounOnly, block.emphasis(i), documentNounWeights);
       }
+    }
 
+    for (DocumentVectorDB.DocumentSimilarityPair similarity : similarDocs) {
       for (Map.Entry<NounPhrase, Double> entry : documentNounWeights.entrySet()) {
         addNounPhraseTo(entry.getKey(), Math.log(1.0 + entry.getValue()) * similarity.similarity, nounWeights);
       }
@@ -1,10 +1,12 @@
 package com.experimental.languagemodel;
 
-import com.experimental.Constants;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -14,7 +16,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Created by sushkov on 26/01/15.
  */
 public class BasisVector {
-  private static final String BASIS_VECTOR_FILENAME = "basis_vector.txt";
+  private static final String BASIS_VECTOR_FILENAME = "basis_vector.bin";
+  private static final int BINARY_MAGIC = 0x42564543; // "BVEC"
 
   public static class BasisElement {
     public final Lemma lemma;
@@ -26,11 +29,6 @@ public class BasisVector {
       Preconditions.checkArgument(weight >= 0.0);
     }
 
-    private void writeTo(BufferedWriter out) throws IOException {
-      lemma.writeTo(out);
-      out.write(Double.toString(weight) + "\n");
-    }
-
     private static BasisElement readFrom(BufferedReader in) throws IOException {
       Lemma lemma = Lemma.readFrom(in);
       double weight = Double.parseDouble(Preconditions.checkNotNull(in.readLine()));
@@ -41,6 +39,7 @@ public class BasisVector {
   }
 
   private final List<BasisElement> basisElements;
+  private final LemmaDB lemmaDb = LemmaDB.instance;
   private boolean isLoaded = false;
 
   public BasisVector() {
@@ -69,10 +68,14 @@ public class BasisVector {
       return true;
     }
 
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String basisVectorFilePath = aggregateDataFile.toPath().resolve(BASIS_VECTOR_FILENAME).toString();
+    File binaryFile = LemmaDictionary.aggregateFile(BASIS_VECTOR_FILENAME);
+    File basisVectorFile = LemmaDictionary.aggregateFile(LemmaDictionary.textFilenameFor(BASIS_VECTOR_FILENAME));
+    if (LemmaDictionary.isBinaryAggregateNewest(binaryFile, basisVectorFile)) {
+      loadBinary(binaryFile);
+      isLoaded = true;
+      return true;
+    }
 
-    File basisVectorFile = new File(basisVectorFilePath);
     if (!basisVectorFile.exists()) {
       return false;
     }
@@ -104,27 +107,43 @@ public class BasisVector {
   }
 
   public void save() throws IOException {
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String basisVectorFilePath = aggregateDataFile.toPath().resolve(BASIS_VECTOR_FILENAME).toString();
+    int numElements = basisElements.size();
+    LemmaDB.LemmaId[] lemmaIds = new LemmaDB.LemmaId[numElements];
+    double[] weights = new double[numElements];
+    for (int i = 0; i < numElements; i++) {
+      lemmaIds[i] = lemmaDb.addLemma(basisElements.get(i).lemma);
+      weights[i] = basisElements.get(i).weight;
+    }
 
-    BufferedWriter bw = null;
-    try {
-      try {
-        FileWriter fw = new FileWriter(basisVectorFilePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
-      }
+    LemmaDictionary dictionary = lemmaDb.getDictionary();
+    int[] dictionaryIds = dictionary.toDictionaryIds(lemmaIds, numElements);
+    dictionary.save();
 
-      bw.write(Integer.toString(basisElements.size()) + "\n");
-      for (BasisElement element : basisElements) {
-        element.writeTo(bw);
-      }
+    File binaryFile = LemmaDictionary.aggregateFile(BASIS_VECTOR_FILENAME);
+    File tempFile = AtomicFiles.tempFileFor(binaryFile);
+    DataOutputStream out = LemmaDictionary.createAggregate(tempFile, BINARY_MAGIC);
+    try {
+      BinaryIO.writeVarInt(out, numElements);
+      BinaryIO.writeInts(out, dictionaryIds, numElements);
+      BinaryIO.writeDoubles(out, weights, numElements);
     } finally {
-      if (bw != null) {
-        bw.close();
-      }
+      out.close();
+    }
+    AtomicFiles.commit(tempFile, binaryFile);
+  }
+
+  private void loadBinary(File binaryFile) throws IOException {
+    ByteBuffer in = LemmaDictionary.readAggregate(binaryFile, BINARY_MAGIC);
+    int numElements = BinaryIO.readVarInt(in);
+    Preconditions.checkState(numElements > 0);
+    int[] dictionaryIds = BinaryIO.readInts(in, numElements);
+    double[] weights = BinaryIO.readDoubles(in, numElements);
+
+    LemmaDB.LemmaId[] lemmaIds = lemmaDb.getDictionary().toLemmaIds(dictionaryIds);
+
+    basisElements.clear();
+    for (int i = 0; i < numElements; i++) {
+      basisElements.add(new BasisElement(lemmaDb.getLemma(lemmaIds[i]), weights[i]));
     }
   }
 }
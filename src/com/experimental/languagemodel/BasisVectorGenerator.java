@@ -1,6 +1,5 @@
 package com.experimental.languagemodel;
 
-import com.experimental.Constants;
 import com.experimental.documentmodel.BagOfWeightedLemmas;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
@@ -13,8 +12,6 @@ import java.util.List;
  * Created by sushkov on 26/01/15.
  */
 public class BasisVectorGenerator {
-  private static final String LEMMA_QUALITY_FILENAME = "lemma_quality.txt";
-
   private final BagOfWeightedLemmas corpusLemmaBag;
   private final LemmaMorphologies lemmaMorphologies;
   private final LemmaSimilarityMeasure similarityMeasure;
@@ -74,7 +71,7 @@ public class BasisVectorGenerator {
       return false;
     }
 
-    if (!corpusLemmaBag.getBag().containsKey(lemma) || corpusLemmaBag.getBag().get(lemma).weight < 50.0) {
+    if (corpusLemmaBag.getWeight(lemma) < 25.0) {
       Log.out("too few corpus occurances: " + lemma.lemma);
       return false;
     }
@@ -91,56 +88,14 @@ public class BasisVectorGenerator {
   }
 
   private boolean tryLoadingLemmaQuality() throws IOException {
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String lemmaQualityFilePath = aggregateDataFile.toPath().resolve(LEMMA_QUALITY_FILENAME).toString();
-
-    File lemmaQualityFile = new File(lemmaQualityFilePath);
-    if (!lemmaQualityFile.exists()) {
+    LemmaQuality lemmaQuality = new LemmaQuality();
+    if (!lemmaQuality.tryLoadFromDisk()) {
       return false;
     }
 
     lemmaQualityList.clear();
-
-    BufferedReader br = null;
-    try {
-      br = new BufferedReader(new FileReader(lemmaQualityFile.getAbsolutePath()));
-
-      int numEntries = Integer.parseInt(Preconditions.checkNotNull(br.readLine()));
-      Preconditions.checkState(numEntries > 0);
-
-      for (int i = 0; i < numEntries; i++) {
-        lemmaQualityList.add(loadLemmaQualityInfo(br));
-      }
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-      return false;
-    } finally {
-      if (br != null) {
-        br.close();
-      }
-    }
-
-    return true;
-  }
-
-  private LemmaQuality.LemmaQualityInfo loadLemmaQualityInfo(BufferedReader br) throws IOException {
-    String line = Preconditions.checkNotNull(br.readLine());
-    String[] lineTokens = line.split(" ");
-    Preconditions.checkState(lineTokens.length == 3);
-
-    double quality = Double.parseDouble(lineTokens[0]);
-    double sumOfSquares = Double.parseDouble(lineTokens[1]);
-    double sum = Double.parseDouble(lineTokens[2]);
-
-    Lemma lemma = Lemma.readFrom(br);
-    LemmaDB.LemmaId lemmaId = lemmaDb.addLemma(lemma);
-
-    LemmaQuality.LemmaQualityInfo result = new LemmaQuality.LemmaQualityInfo(lemmaId);
-    result.quality = quality;
-    result.sumOfSquares = sumOfSquares;
-    result.sum = sum;
-
-    return result;
+    lemmaQualityList.addAll(lemmaQuality.getQualityOrdered());
+    return !lemmaQualityList.isEmpty();
   }
 
 }
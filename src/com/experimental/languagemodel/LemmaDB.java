@@ -1,22 +1,39 @@
 package com.experimental.languagemodel;
 
+import com.experimental.Constants;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
 
 /**
  * Created by sushkov on 11/01/15.
+ *
+ * Interns lemmas to dense int ids. Lookups of known lemmas are lock-free reads of a concurrent
+ * map and return the one shared LemmaId, so they do not allocate. A new lemma is inserted with
+ * computeIfAbsent, which only locks its hash bin, and gets the next id. The reverse id to lemma
+ * table is a list of fixed-size pages indexed by id.
+ *
+ * Ids are only stable within a run. Files that refer to lemmas by id translate them through the
+ * persisted LemmaDictionary returned by getDictionary().
  */
 public class LemmaDB {
 
   public static class LemmaId {
     public final int id;
+    final Lemma lemma;
 
     public LemmaId(int id) {
+      this(id, null);
+    }
+
+    LemmaId(int id, Lemma lemma) {
       this.id = id;
+      this.lemma = lemma;
     }
 
     @Override
@@ -34,32 +51,126 @@ public class LemmaDB {
     }
   }
 
-  private int curId = 0;
-  private final BiMap<Lemma, LemmaId> lemmaMap = HashBiMap.create();
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private final AtomicInteger nextId = new AtomicInteger(0);
+  private final ConcurrentHashMap<Lemma, LemmaId> lemmaMap = new ConcurrentHashMap<Lemma, LemmaId>(1 << 16);
+
+  // Only replaced, under pagesLock, when a new page is needed. Existing pages are never moved.
+  private volatile AtomicReferenceArray<LemmaId>[] pages = newPages(16);
+  private final Object pagesLock = new Object();
 
-  public synchronized LemmaId addLemma(Lemma lemma) {
+  private LemmaDictionary dictionary = null;
+
+  private final Function<Lemma, LemmaId> idAllocator =
+      new Function<Lemma, LemmaId>() {
+        @Override
+        public LemmaId apply(Lemma lemma) {
+          LemmaId result = new LemmaId(nextId.getAndIncrement(), lemma);
+          storeReverse(result);
+          return result;
+        }
+      };
+
+  public LemmaId addLemma(Lemma lemma) {
     Preconditions.checkNotNull(lemma);
 
     LemmaId lemmaId = lemmaMap.get(lemma);
-    if (lemmaId == null) {
-      LemmaId newId = new LemmaId(curId++);
-      lemmaMap.put(lemma, newId);
-      return newId;
-    } else {
+    if (lemmaId != null) {
       return lemmaId;
     }
+    return lemmaMap.computeIfAbsent(lemma, idAllocator);
   }
 
-  public synchronized LemmaId getLemmaId(Lemma lemma) {
+  public LemmaId getLemmaId(Lemma lemma) {
     Preconditions.checkNotNull(lemma);
     return lemmaMap.get(lemma);
   }
 
-  public synchronized Lemma getLemma(LemmaId id) {
+  public Lemma getLemma(LemmaId id) {
     Preconditions.checkNotNull(id);
-    Preconditions.checkArgument(id.id >= 0 && id.id < curId);
+    return getLemma(id.id);
+  }
+
+  /**
+   * Returns the id of the lemma, adding it if it is new.
+   */
+  public int addLemmaId(Lemma lemma) {
+    return addLemma(lemma).id;
+  }
+
+  /**
+   * Returns the id of the lemma, or -1 if it was never added.
+   */
+  public int findLemmaId(Lemma lemma) {
+    LemmaId lemmaId = getLemmaId(lemma);
+    return lemmaId == null ? -1 : lemmaId.id;
+  }
+
+  public Lemma getLemma(int id) {
+    return getLemmaId(id).lemma;
+  }
+
+  /**
+   * Returns the shared LemmaId of an id that was already handed out.
+   */
+  public LemmaId getLemmaId(int id) {
+    Preconditions.checkArgument(id >= 0 && id < nextId.get());
+
+    LemmaId result = pages[id >>> PAGE_BITS].get(id & PAGE_MASK);
+    Preconditions.checkState(result != null);
+    return result;
+  }
+
+  public int numLemmas() {
+    return nextId.get();
+  }
+
+  /**
+   * Returns the dictionary of the aggregate data directory, loading it on first use. Loading it
+   * before anything else adds lemmas keeps the runtime ids equal to the persisted ones.
+   */
+  public synchronized LemmaDictionary getDictionary() throws IOException {
+    if (dictionary == null) {
+      File dictionaryFile = new File(Constants.AGGREGATE_DATA_PATH).toPath()
+          .resolve(LemmaDictionary.DICTIONARY_FILENAME).toFile();
+
+      LemmaDictionary loaded = new LemmaDictionary(this, dictionaryFile);
+      loaded.load();
+      dictionary = loaded;
+    }
+    return dictionary;
+  }
+
+  private void storeReverse(LemmaId lemmaId) {
+    int id = lemmaId.id;
+    int pageIndex = id >>> PAGE_BITS;
+
+    AtomicReferenceArray<LemmaId>[] currentPages = pages;
+    if (pageIndex >= currentPages.length || currentPages[pageIndex] == null) {
+      synchronized (pagesLock) {
+        currentPages = pages;
+        if (pageIndex >= currentPages.length) {
+          AtomicReferenceArray<LemmaId>[] grown = newPages(Math.max(currentPages.length * 2, pageIndex + 1));
+          System.arraycopy(currentPages, 0, grown, 0, currentPages.length);
+          currentPages = grown;
+        }
+        if (currentPages[pageIndex] == null) {
+          currentPages[pageIndex] = new AtomicReferenceArray<LemmaId>(PAGE_SIZE);
+        }
+        // Republish so readers see the new page through the volatile reference.
+        pages = currentPages;
+      }
+    }
+
+    currentPages[pageIndex].set(id & PAGE_MASK, lemmaId);
+  }
 
-    return lemmaMap.inverse().get(id);
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static AtomicReferenceArray<LemmaId>[] newPages(int numPages) {
+    return (AtomicReferenceArray<LemmaId>[]) new AtomicReferenceArray[numPages];
   }
 
   public static final LemmaDB instance = new LemmaDB();
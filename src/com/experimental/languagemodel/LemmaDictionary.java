@@ -0,0 +1,221 @@
+package com.experimental.languagemodel;
+
+import com.experimental.Constants;
+import com.experimental.languagemodel.LemmaDB.LemmaId;
+import com.experimental.nlp.SimplePOSTag;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
+import com.experimental.utils.Log;
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Persisted numbering of every lemma the aggregate files refer to. A lemma keeps its dictionary id
+ * for as long as the dictionary file exists, new lemmas are only ever appended, so the aggregate
+ * files can store plain int ids instead of lemma strings. The dictionary must be saved before any
+ * file that uses ids it handed out.
+ *
+ * When the dictionary is loaded into an empty LemmaDB the dictionary ids and the runtime ids are
+ * the same. Otherwise the ids are translated through a pair of remap tables.
+ */
+public class LemmaDictionary {
+  private static final String TAG = "LemmaDictionary";
+
+  public static final String DICTIONARY_FILENAME = "lemma_dictionary.bin";
+
+  private static final int MAGIC = 0x4c444943; // "LDIC"
+  private static final byte VERSION = 1;
+  private static final byte AGGREGATE_VERSION = 1;
+  private static final SimplePOSTag[] TAG_CODES = SimplePOSTag.values();
+
+  private final LemmaDB lemmaDb;
+  private final File dictionaryFile;
+
+  private int[] dictionaryToRuntime = new int[0];
+  private int[] runtimeToDictionary = new int[0];
+  private int numEntries = 0;
+  private int numSavedEntries = 0;
+
+  LemmaDictionary(LemmaDB lemmaDb, File dictionaryFile) {
+    this.lemmaDb = Preconditions.checkNotNull(lemmaDb);
+    this.dictionaryFile = Preconditions.checkNotNull(dictionaryFile);
+  }
+
+  /**
+   * Returns the name of the legacy text file stored next to an id-based binary aggregate.
+   */
+  public static String textFilenameFor(String binaryFilename) {
+    Preconditions.checkNotNull(binaryFilename);
+    int extension = binaryFilename.lastIndexOf('.');
+    return (extension < 0 ? binaryFilename : binaryFilename.substring(0, extension)) + ".txt";
+  }
+
+  /**
+   * Whether an aggregate should be loaded from its binary file rather than its legacy text file:
+   * the binary file exists and the text file does not, or was not written after it. Logs which of
+   * the two files is used.
+   */
+  static boolean isBinaryAggregateNewest(File binaryFile, File textFile) {
+    if (!textFile.exists()) {
+      return binaryFile.exists();
+    }
+
+    if (binaryFile.exists() && binaryFile.lastModified() >= textFile.lastModified()) {
+      Log.out(TAG, "loading " + binaryFile.getName() + ", not " + textFile.getName());
+      return true;
+    }
+    Log.out(TAG, "loading " + textFile.getName() + ", it is newer than " + binaryFile.getName());
+    return false;
+  }
+
+  static File aggregateFile(String filename) {
+    return new File(Constants.AGGREGATE_DATA_PATH).toPath().resolve(filename).toFile();
+  }
+
+  /**
+   * Opens an id-based aggregate file for writing and writes its header.
+   */
+  static DataOutputStream createAggregate(File file, int magic) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+    out.writeInt(magic);
+    out.writeByte(AGGREGATE_VERSION);
+    return out;
+  }
+
+  /**
+   * Reads a whole id-based aggregate file and returns it positioned after the header.
+   */
+  static ByteBuffer readAggregate(File file, int magic) throws IOException {
+    ByteBuffer in = BinaryIO.readFully(file);
+    if (in.remaining() < 5 || in.getInt() != magic) {
+      throw new IOException("unexpected aggregate file format: " + file.getAbsolutePath());
+    }
+    byte version = in.get();
+    if (version != AGGREGATE_VERSION) {
+      throw new IOException("unsupported aggregate file version: " + version);
+    }
+    return in;
+  }
+
+  synchronized void load() throws IOException {
+    if (!dictionaryFile.exists()) {
+      return;
+    }
+
+    ByteBuffer in = BinaryIO.readFully(dictionaryFile);
+    if (in.remaining() < 5 || in.getInt() != MAGIC) {
+      throw new IOException("not a lemma dictionary: " + dictionaryFile.getAbsolutePath());
+    }
+    byte version = in.get();
+    if (version != VERSION) {
+      throw new IOException("unsupported lemma dictionary version: " + version);
+    }
+
+    boolean sameIds = true;
+    int numLoaded = BinaryIO.readVarInt(in);
+    for (int i = 0; i < numLoaded; i++) {
+      String lemma = BinaryIO.readString(in);
+      SimplePOSTag tag = TAG_CODES[in.get()];
+
+      int runtimeId = lemmaDb.addLemmaId(new Lemma(lemma, tag));
+      sameIds &= runtimeId == i;
+      append(runtimeId);
+    }
+    numSavedEntries = numEntries;
+
+    Log.out(TAG, "loaded " + numLoaded + " lemmas" + (sameIds ? "" : ", remapped to runtime ids"));
+  }
+
+  public synchronized int size() {
+    return numEntries;
+  }
+
+  /**
+   * Returns the dictionary id of the lemma, appending the lemma if the dictionary does not have it
+   * yet.
+   */
+  public synchronized int toDictionaryId(LemmaId lemmaId) {
+    Preconditions.checkNotNull(lemmaId);
+
+    if (lemmaId.id < runtimeToDictionary.length && runtimeToDictionary[lemmaId.id] >= 0) {
+      return runtimeToDictionary[lemmaId.id];
+    }
+    // Resolves the lemma before recording anything, so an unknown runtime id leaves no entry.
+    lemmaDb.getLemma(lemmaId.id);
+    return append(lemmaId.id);
+  }
+
+  public synchronized int[] toDictionaryIds(LemmaId[] lemmaIds, int length) {
+    int[] result = new int[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = toDictionaryId(lemmaIds[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Resolves dictionary ids read from an aggregate file to the shared runtime LemmaIds.
+   */
+  public synchronized LemmaId[] toLemmaIds(int[] dictionaryIds) {
+    Preconditions.checkNotNull(dictionaryIds);
+
+    LemmaId[] result = new LemmaId[dictionaryIds.length];
+    for (int i = 0; i < dictionaryIds.length; i++) {
+      int dictionaryId = dictionaryIds[i];
+      Preconditions.checkState(dictionaryId >= 0 && dictionaryId < numEntries,
+          "lemma id not in dictionary: " + dictionaryId);
+      result[i] = lemmaDb.getLemmaId(dictionaryToRuntime[dictionaryId]);
+    }
+    return result;
+  }
+
+  /**
+   * Rewrites the dictionary file if ids were appended since it was loaded or last saved.
+   */
+  public synchronized void save() throws IOException {
+    if (numSavedEntries == numEntries && dictionaryFile.exists()) {
+      return;
+    }
+
+    File tempFile = AtomicFiles.tempFileFor(dictionaryFile);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 20));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      BinaryIO.writeVarInt(out, numEntries);
+      for (int i = 0; i < numEntries; i++) {
+        Lemma lemma = lemmaDb.getLemma(dictionaryToRuntime[i]);
+        BinaryIO.writeString(out, lemma.lemma);
+        out.writeByte(lemma.tag.ordinal());
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+
+    AtomicFiles.commit(tempFile, dictionaryFile);
+    numSavedEntries = numEntries;
+    Log.out(TAG, "saved " + numEntries + " lemmas");
+  }
+
+  private int append(int runtimeId) {
+    if (numEntries == dictionaryToRuntime.length) {
+      dictionaryToRuntime = Arrays.copyOf(dictionaryToRuntime, Math.max(1024, numEntries * 2));
+    }
+    if (runtimeId >= runtimeToDictionary.length) {
+      int oldLength = runtimeToDictionary.length;
+      runtimeToDictionary = Arrays.copyOf(runtimeToDictionary, Math.max(Math.max(1024, oldLength * 2), runtimeId + 1));
+      Arrays.fill(runtimeToDictionary, oldLength, runtimeToDictionary.length, -1);
+    }
+
+    int dictionaryId = numEntries++;
+    dictionaryToRuntime[dictionaryId] = runtimeId;
+    runtimeToDictionary[runtimeId] = dictionaryId;
+    return dictionaryId;
+  }
+}
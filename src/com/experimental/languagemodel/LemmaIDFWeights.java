@@ -1,15 +1,18 @@
 package com.experimental.languagemodel;
 
-import com.experimental.Constants;
 import com.experimental.documentmodel.BagOfWeightedLemmas;
+import com.experimental.documentmodel.CorpusManifest;
 import com.experimental.documentmodel.Document;
 import com.experimental.languagemodel.LemmaDB.LemmaId;
 import com.experimental.nlp.SimplePOSTag;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AtomicDouble;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -20,6 +23,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * Created by sushkov on 16/01/15.
  */
 public class LemmaIDFWeights {
+  private static final int MIN_DOCUMENT_SENTENCES = 10;
 
   private static class LemmaWeightInfo {
     final LemmaId lemmaId;
@@ -38,7 +42,8 @@ public class LemmaIDFWeights {
     }
   }
 
-  private static final String LEMMA_IDF_WEIGHTS_FILENAME = "lemma_idf_weights.txt";
+  private static final String LEMMA_IDF_WEIGHTS_FILENAME = "lemma_idf_weights.bin";
+  private static final int BINARY_MAGIC = 0x4c494446; // "LIDF"
 
   // This is used when we finally have the token idf weights, whether computed or loaded from a file.
   private final Map<LemmaId, Double> lemmaIdfWeights = new HashMap<LemmaId, Double>();
@@ -97,7 +102,11 @@ public class LemmaIDFWeights {
   }
 
   public boolean isDocumentValid(Document document) {
-    return document.getSentences().size() > 10;
+    return document.getSentences().size() > MIN_DOCUMENT_SENTENCES;
+  }
+
+  public boolean isDocumentValid(CorpusManifest.Entry entry) {
+    return entry.numSentences > MIN_DOCUMENT_SENTENCES;
   }
 
   public boolean tryLoad() throws IOException {
@@ -109,10 +118,14 @@ public class LemmaIDFWeights {
       return true;
     }
 
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String lemmaIdfWeightsFilePath = aggregateDataFile.toPath().resolve(dataFilename).toString();
+    File binaryFile = LemmaDictionary.aggregateFile(dataFilename);
+    File lemmaIdfWeightsFile = LemmaDictionary.aggregateFile(LemmaDictionary.textFilenameFor(dataFilename));
+    if (LemmaDictionary.isBinaryAggregateNewest(binaryFile, lemmaIdfWeightsFile)) {
+      loadBinary(binaryFile);
+      isLoaded = true;
+      return true;
+    }
 
-    File lemmaIdfWeightsFile = new File(lemmaIdfWeightsFilePath);
     if (!lemmaIdfWeightsFile.exists()) {
       return false;
     }
@@ -155,29 +168,45 @@ public class LemmaIDFWeights {
     Log.out("LemmaIDFWeights saving");
     processWeightInfo();
 
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String lemmaIdfWeightsFilePath = aggregateDataFile.toPath().resolve(dataFilename).toString();
+    int numEntries = lemmaIdfWeights.size();
+    LemmaId[] lemmaIds = new LemmaId[numEntries];
+    double[] weights = new double[numEntries];
 
-    BufferedWriter bw = null;
-    try {
-      try {
-        FileWriter fw = new FileWriter(lemmaIdfWeightsFilePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
-      }
+    int index = 0;
+    for (Map.Entry<LemmaId, Double> entry : lemmaIdfWeights.entrySet()) {
+      lemmaIds[index] = entry.getKey();
+      weights[index] = entry.getValue();
+      index++;
+    }
 
-      bw.write(Integer.toString(lemmaIdfWeights.values().size()) + "\n");
-      for (Map.Entry<LemmaId, Double> entry : lemmaIdfWeights.entrySet()) {
-        Lemma lemma = lemmaDb.getLemma(entry.getKey());
-        lemma.writeTo(bw);
-        bw.write(entry.getValue() + "\n");
-      }
+    LemmaDictionary dictionary = lemmaDb.getDictionary();
+    int[] dictionaryIds = dictionary.toDictionaryIds(lemmaIds, numEntries);
+    dictionary.save();
+
+    File binaryFile = LemmaDictionary.aggregateFile(dataFilename);
+    File tempFile = AtomicFiles.tempFileFor(binaryFile);
+    DataOutputStream out = LemmaDictionary.createAggregate(tempFile, BINARY_MAGIC);
+    try {
+      BinaryIO.writeVarInt(out, numEntries);
+      BinaryIO.writeInts(out, dictionaryIds, numEntries);
+      BinaryIO.writeDoubles(out, weights, numEntries);
     } finally {
-      if (bw != null) {
-        bw.close();
-      }
+      out.close();
+    }
+    AtomicFiles.commit(tempFile, binaryFile);
+  }
+
+  private void loadBinary(File binaryFile) throws IOException {
+    ByteBuffer in = LemmaDictionary.readAggregate(binaryFile, BINARY_MAGIC);
+    int numEntries = BinaryIO.readVarInt(in);
+    int[] dictionaryIds = BinaryIO.readInts(in, numEntries);
+    double[] weights = BinaryIO.readDoubles(in, numEntries);
+
+    LemmaId[] lemmaIds = lemmaDb.getDictionary().toLemmaIds(dictionaryIds);
+
+    lemmaIdfWeights.clear();
+    for (int i = 0; i < numEntries; i++) {
+      lemmaIdfWeights.put(lemmaIds[i], Math.max(0.01, weights[i]));
     }
   }
 
@@ -1,73 +1,253 @@
 package com.experimental.languagemodel;
 
-import com.experimental.Constants;
 import com.experimental.documentmodel.Token;
 import com.experimental.languagemodel.LemmaDB.LemmaId;
-import com.experimental.languagemodel.MorphologyDB.MorphologyId;
 import com.experimental.nlp.SimplePOSTag;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Created by sushkov on 13/01/15.
+ *
+ * Counts how often each lemma occurs as each morphology (raw lowercased word). While the counts
+ * are built from the corpus, addToken may be called from many threads and accumulates into
+ * striped primitive pair counters. Once saved or loaded the counts are frozen into an immutable
+ * table of CSR arrays in both directions, indexed by LemmaDB id and by morphology index, with the
+ * total per lemma and the most likely lemma per morphology precomputed. Lookups on the frozen
+ * table take no locks and do not allocate.
  */
 public class LemmaMorphologies {
   private static final String TAG = "LemmaMorphologies";
-  private static final String LEMMA_MORPHOLOGIES_FILENAME = "lemma_morphologies.txt";
+  private static final String LEMMA_MORPHOLOGIES_FILENAME = "lemma_morphologies.bin";
+  private static final int BINARY_MAGIC = 0x4c4d4f52; // "LMOR"
+
+  private static final int NUM_STRIPES = 64;
+  private static final int MIN_LEMMA_OCCURANCES = 5;
+
+  /**
+   * Open addressing map from a packed (lemma id, morphology index) pair to its count.
+   */
+  private static class PairCounts {
+    private static final long EMPTY = -1L;
+
+    private long[] keys = newKeys(1024);
+    private int[] counts = new int[1024];
+    private int size = 0;
+
+    synchronized void add(long key, int occurances) {
+      int slot = findSlot(keys, key);
+      if (keys[slot] == EMPTY) {
+        keys[slot] = key;
+        size++;
+      }
+      counts[slot] += occurances;
 
-  private final LemmaDB lemmaDb = LemmaDB.instance;
-  private final MorphologyDB morphologyDb = MorphologyDB.instance;
+      if (size * 2 > keys.length) {
+        grow();
+      }
+    }
 
-  private final Map<LemmaId, Map<MorphologyId, AtomicInteger>> lemmaToMorphologyMap =
-      new ConcurrentHashMap<LemmaId, Map<MorphologyId, AtomicInteger>>();
+    synchronized int copyTo(long[] keysOut, int[] countsOut, int offset) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != EMPTY) {
+          keysOut[offset] = keys[i];
+          countsOut[offset] = counts[i];
+          offset++;
+        }
+      }
+      return offset;
+    }
 
-  private final Map<MorphologyId, Map<LemmaId, AtomicInteger>> morphologytoLemmaMap =
-      new ConcurrentHashMap<MorphologyId, Map<LemmaId, AtomicInteger>>();
+    synchronized int size() {
+      return size;
+    }
 
-  private boolean isLoaded = false;
-  private int totalCorpusSize = 0;
+    synchronized void clear() {
+      keys = newKeys(1024);
+      counts = new int[1024];
+      size = 0;
+    }
 
-  public static final LemmaMorphologies instance = new LemmaMorphologies();
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldCounts = counts;
+
+      keys = newKeys(oldKeys.length * 2);
+      counts = new int[oldKeys.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY) {
+          int slot = findSlot(keys, oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+    }
 
-  private LemmaMorphologies() {}
+    private static int findSlot(long[] keys, long key) {
+      int mask = keys.length - 1;
+      int slot = mix(key) & mask;
+      while (keys[slot] != EMPTY && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
 
-  public void addToken(Token token) {
-    Preconditions.checkNotNull(token);
+    private static long[] newKeys(int capacity) {
+      long[] result = new long[capacity];
+      Arrays.fill(result, EMPTY);
+      return result;
+    }
+  }
 
-    Lemma lemma = Lemma.fromToken(token);
-    if (lemma.tag == SimplePOSTag.OTHER) {
-      return;
+  /**
+   * The frozen counts. Pairs are stored once per direction: lemmaWords/lemmaCounts in the range
+   * lemmaOffsets[id] to lemmaOffsets[id + 1] are the morphologies of the lemma with LemmaDB id
+   * id, and wordLemmas/wordCounts in the range of wordOffsets are the lemma ids of a morphology.
+   */
+  private static class Table {
+    final String[] words;
+    final Map<String, Integer> wordIndices;
+
+    final int[] lemmaOffsets;
+    final int[] lemmaWords;
+    final int[] lemmaCounts;
+    final int[] lemmaTotals;
+
+    final int[] wordOffsets;
+    final int[] wordLemmas;
+    final int[] wordCounts;
+    final int[] mostLikelyLemmas;
+
+    final long totalCorpusSize;
+
+    /**
+     * The pair arrays may be in any order and are not kept.
+     */
+    Table(String[] words, int numLemmaSlots, int[] pairLemmas, int[] pairWords, int[] pairCounts, int numPairs) {
+      this.words = words;
+      this.wordIndices = new HashMap<String, Integer>(words.length * 2);
+      for (int i = 0; i < words.length; i++) {
+        wordIndices.put(words[i], i);
+      }
+
+      lemmaOffsets = offsetsFor(pairLemmas, numPairs, numLemmaSlots);
+      lemmaWords = new int[numPairs];
+      lemmaCounts = new int[numPairs];
+      wordOffsets = offsetsFor(pairWords, numPairs, words.length);
+      wordLemmas = new int[numPairs];
+      wordCounts = new int[numPairs];
+
+      int[] lemmaFill = Arrays.copyOf(lemmaOffsets, numLemmaSlots);
+      int[] wordFill = Arrays.copyOf(wordOffsets, words.length);
+      lemmaTotals = new int[numLemmaSlots];
+      long corpusSize = 0;
+
+      for (int i = 0; i < numPairs; i++) {
+        int lemma = pairLemmas[i];
+        int word = pairWords[i];
+        int count = pairCounts[i];
+
+        int lemmaSlot = lemmaFill[lemma]++;
+        lemmaWords[lemmaSlot] = word;
+        lemmaCounts[lemmaSlot] = count;
+
+        int wordSlot = wordFill[word]++;
+        wordLemmas[wordSlot] = lemma;
+        wordCounts[wordSlot] = count;
+
+        lemmaTotals[lemma] += count;
+        corpusSize += count;
+      }
+      totalCorpusSize = corpusSize;
+
+      mostLikelyLemmas = new int[words.length];
+      for (int word = 0; word < words.length; word++) {
+        int best = -1;
+        int bestCount = 0;
+        for (int i = wordOffsets[word]; i < wordOffsets[word + 1]; i++) {
+          if (wordCounts[i] > bestCount) {
+            bestCount = wordCounts[i];
+            best = wordLemmas[i];
+          }
+        }
+        mostLikelyLemmas[word] = best;
+      }
     }
 
-    addTokenToLemmaToMorphologyMap(token.raw.toLowerCase(), lemma, 1);
-    addTokenToMorphologyToLemmaMap(token.raw.toLowerCase(), lemma, 1);
+    int lemmaTotal(int lemmaId) {
+      return lemmaId >= 0 && lemmaId < lemmaTotals.length ? lemmaTotals[lemmaId] : 0;
+    }
+
+    int wordIndex(String word) {
+      Integer result = wordIndices.get(word);
+      return result == null ? -1 : result;
+    }
+
+    private static int[] offsetsFor(int[] keys, int numPairs, int numKeys) {
+      int[] result = new int[numKeys + 1];
+      for (int i = 0; i < numPairs; i++) {
+        result[keys[i] + 1]++;
+      }
+      for (int i = 0; i < numKeys; i++) {
+        result[i + 1] += result[i];
+      }
+      return result;
+    }
   }
 
-  private void addTokenToLemmaToMorphologyMap(String morphology, Lemma lemma, int occurances) {
-    LemmaId lemmaId = lemmaDb.addLemma(lemma);
-    MorphologyId morphologyId = morphologyDb.addMorphology(morphology);
+  private final LemmaDB lemmaDb = LemmaDB.instance;
+
+  private final PairCounts[] stripes = new PairCounts[NUM_STRIPES];
+  private final ConcurrentHashMap<String, Integer> buildWordIds = new ConcurrentHashMap<String, Integer>();
+  private final AtomicInteger nextWordId = new AtomicInteger(0);
+  private final Function<String, Integer> wordIdAllocator =
+      new Function<String, Integer>() {
+        @Override
+        public Integer apply(String word) {
+          return nextWordId.getAndIncrement();
+        }
+      };
 
-    lemmaToMorphologyMap.putIfAbsent(lemmaId, new ConcurrentHashMap<MorphologyId, AtomicInteger>());
-    Map<MorphologyId, AtomicInteger> lemmaMorphologyEntry = lemmaToMorphologyMap.get(lemmaId);
+  private volatile Table table = null;
 
-    lemmaMorphologyEntry.putIfAbsent(morphologyId, new AtomicInteger(0));
-    lemmaMorphologyEntry.get(morphologyId).addAndGet(occurances);
+  public static final LemmaMorphologies instance = new LemmaMorphologies();
+
+  private LemmaMorphologies() {
+    for (int i = 0; i < NUM_STRIPES; i++) {
+      stripes[i] = new PairCounts();
+    }
   }
 
-  private void addTokenToMorphologyToLemmaMap(String morphology, Lemma lemma, int occurances) {
-    LemmaId lemmaId = lemmaDb.addLemma(lemma);
-    MorphologyId morphologyId = morphologyDb.addMorphology(morphology);
+  /**
+   * Counts one corpus token. Safe to call from many threads, but only before the counts are saved
+   * or loaded.
+   */
+  public void addToken(Token token) {
+    Preconditions.checkNotNull(token);
+    Preconditions.checkState(table == null, "lemma morphologies are frozen");
+
+    Lemma lemma = Lemma.fromToken(token);
+    if (lemma.tag == SimplePOSTag.OTHER) {
+      return;
+    }
 
-    morphologytoLemmaMap.putIfAbsent(morphologyId, new ConcurrentHashMap<LemmaId, AtomicInteger>());
-    Map<LemmaId, AtomicInteger> morphologyLemmaEntry = morphologytoLemmaMap.get(morphologyId);
+    String word = token.raw.toLowerCase();
+    Integer wordId = buildWordIds.get(word);
+    if (wordId == null) {
+      wordId = buildWordIds.computeIfAbsent(word, wordIdAllocator);
+    }
 
-    morphologyLemmaEntry.putIfAbsent(lemmaId, new AtomicInteger(0));
-    morphologyLemmaEntry.get(lemmaId).addAndGet(occurances);
+    long key = pack(lemmaDb.addLemmaId(lemma), wordId);
+    stripes[mix(key) >>> 26].add(key, 1);
   }
 
   public Map<String, Integer> getMorphologiesFor(Lemma lemma) {
@@ -75,20 +255,15 @@ public class LemmaMorphologies {
 
     Map<String, Integer> result = new HashMap<String, Integer>();
 
-    LemmaId lemmaId = lemmaDb.getLemmaId(lemma);
-    if (lemmaId == null) {
+    Table current = table;
+    int lemmaId = lemmaDb.findLemmaId(lemma);
+    if (current == null || current.lemmaTotal(lemmaId) == 0) {
       return result;
     }
 
-    if (!lemmaToMorphologyMap.containsKey(lemmaId)) {
-      return result;
-    }
-
-    for (Map.Entry<MorphologyId, AtomicInteger> entry : lemmaToMorphologyMap.get(lemmaId).entrySet()) {
-      String word = Preconditions.checkNotNull(morphologyDb.getMorphology(entry.getKey()));
-      result.put(word, entry.getValue().get());
+    for (int i = current.lemmaOffsets[lemmaId]; i < current.lemmaOffsets[lemmaId + 1]; i++) {
+      result.put(current.words[current.lemmaWords[i]], current.lemmaCounts[i]);
     }
-
     return result;
   }
 
@@ -97,129 +272,180 @@ public class LemmaMorphologies {
 
     Map<Lemma, Integer> result = new HashMap<Lemma, Integer>();
 
-    MorphologyId morphologyId = morphologyDb.getMorphologyId(morphology);
-    if (morphologyId == null) {
+    Table current = table;
+    int word = current == null ? -1 : current.wordIndex(morphology);
+    if (word < 0) {
       return result;
     }
 
-    if (!morphologytoLemmaMap.containsKey(morphologyId)) {
-      return result;
+    for (int i = current.wordOffsets[word]; i < current.wordOffsets[word + 1]; i++) {
+      result.put(lemmaDb.getLemma(current.wordLemmas[i]), current.wordCounts[i]);
     }
+    return result;
+  }
 
-    for (Map.Entry<LemmaId, AtomicInteger> entry : morphologytoLemmaMap.get(morphologyId).entrySet()) {
-      Lemma lemma  = Preconditions.checkNotNull(lemmaDb.getLemma(entry.getKey()));
-      result.put(lemma, entry.getValue().get());
-    }
+  /**
+   * Returns the lemma the morphology most often occurs as, or null if it was never seen.
+   */
+  public Lemma getMostLikelyLemma(String morphology) {
+    Preconditions.checkNotNull(morphology);
 
-    return result;
+    Table current = table;
+    int word = current == null ? -1 : current.wordIndex(morphology);
+    if (word < 0 || current.mostLikelyLemmas[word] < 0) {
+      return null;
+    }
+    return lemmaDb.getLemma(current.mostLikelyLemmas[word]);
   }
 
   public int numLemmaOccurances(Lemma lemma) {
     Preconditions.checkNotNull(lemma);
 
-    LemmaId lemmaId = lemmaDb.getLemmaId(lemma);
-    if (lemmaId == null) {
+    Table current = table;
+    if (current == null) {
       return 0;
     }
-
-    if (!lemmaToMorphologyMap.containsKey(lemmaId)) {
-      return 0;
-    }
-
-    int sum = 0;
-    for (AtomicInteger entry : lemmaToMorphologyMap.get(lemmaId).values()) {
-      sum += entry.get();
-    }
-    return sum;
+    return current.lemmaTotal(lemmaDb.findLemmaId(lemma));
   }
 
   public double lemmaOccuranceFrequency(Lemma lemma) {
-    return numLemmaOccurances(lemma) / totalCorpusSize;
+    Table current = table;
+    if (current == null || current.totalCorpusSize == 0) {
+      return 0.0;
+    }
+    return numLemmaOccurances(lemma) / (double) current.totalCorpusSize;
   }
 
+  /**
+   * Freezes the counts built so far, dropping lemmas seen fewer than MIN_LEMMA_OCCURANCES times,
+   * and writes them out.
+   */
   public synchronized  void save() throws IOException {
-    trim();
-
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String morphologiesFilePath = aggregateDataFile.toPath().resolve(LEMMA_MORPHOLOGIES_FILENAME).toString();
-
-    BufferedWriter bw = null;
-    try {
-      try {
-        FileWriter fw = new FileWriter(morphologiesFilePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
+    if (table == null) {
+      table = freezeBuildCounts();
+    }
+    Table current = table;
+
+    List<LemmaId> lemmaIds = new ArrayList<LemmaId>();
+    int numSlots = current.lemmaTotals.length;
+    int[] numMorphologies = new int[numSlots];
+    for (int lemmaId = 0; lemmaId < numSlots; lemmaId++) {
+      int numEntries = current.lemmaOffsets[lemmaId + 1] - current.lemmaOffsets[lemmaId];
+      if (numEntries > 0) {
+        numMorphologies[lemmaIds.size()] = numEntries;
+        lemmaIds.add(lemmaDb.getLemmaId(lemmaId));
       }
+    }
 
-      bw.write(Integer.toString(lemmaToMorphologyMap.size()) + "\n");
+    int numLemmas = lemmaIds.size();
+    int numPairs = current.lemmaWords.length;
+    LemmaDictionary dictionary = lemmaDb.getDictionary();
+    int[] dictionaryIds = dictionary.toDictionaryIds(lemmaIds.toArray(new LemmaId[numLemmas]), numLemmas);
+    dictionary.save();
 
-      for (Map.Entry<LemmaId, Map<MorphologyId, AtomicInteger>> entry : lemmaToMorphologyMap.entrySet()) {
-        Lemma lemma = lemmaDb.getLemma(entry.getKey());
-        lemma.writeTo(bw);
+    File binaryFile = LemmaDictionary.aggregateFile(LEMMA_MORPHOLOGIES_FILENAME);
+    File tempFile = AtomicFiles.tempFileFor(binaryFile);
+    DataOutputStream out = LemmaDictionary.createAggregate(tempFile, BINARY_MAGIC);
+    try {
+      BinaryIO.writeVarInt(out, numLemmas);
+      BinaryIO.writeInts(out, dictionaryIds, numLemmas);
+      BinaryIO.writeInts(out, numMorphologies, numLemmas);
 
-        bw.write(Integer.toString(entry.getValue().size()) + "\n");
-        for (Map.Entry<MorphologyId, AtomicInteger> morphEntry : entry.getValue().entrySet()) {
-          String word = Preconditions.checkNotNull(morphologyDb.getMorphology(morphEntry.getKey()));
-          bw.write(Integer.toString(morphEntry.getValue().get()) + " " + word + "\n");
-        }
+      BinaryIO.writeVarInt(out, current.words.length);
+      for (String word : current.words) {
+        BinaryIO.writeString(out, word);
       }
+
+      // The lemma side of the table is already in the file's lemma-major order.
+      BinaryIO.writeVarInt(out, numPairs);
+      BinaryIO.writeInts(out, current.lemmaWords, numPairs);
+      BinaryIO.writeInts(out, current.lemmaCounts, numPairs);
     } finally {
-      if (bw != null) {
-        bw.close();
-      }
+      out.close();
     }
+    AtomicFiles.commit(tempFile, binaryFile);
   }
 
-  private void trim() {
-    List<LemmaId> toRemove = new ArrayList<LemmaId>();
-    for (LemmaId lemmaId: lemmaToMorphologyMap.keySet()) {
-      Map<MorphologyId, AtomicInteger> morphologies = lemmaToMorphologyMap.get(lemmaId);
-
-      int totalOccurances = 0;
-      for (AtomicInteger occurances : morphologies.values()) {
-        totalOccurances += occurances.get();
-      }
+  public boolean tryLoad() throws IOException {
+    if (table != null) {
+      return true;
+    }
+    return loadFromDisk();
+  }
 
-      if (totalOccurances < 5) {
-        toRemove.add(lemmaId);
-      }
+  private synchronized boolean loadFromDisk() throws IOException {
+    if (table != null) {
+      return true;
     }
 
-    for (LemmaId lemmaId : toRemove) {
-      lemmaToMorphologyMap.remove(lemmaId);
+    Log.out(TAG, "tryLoad");
+    File binaryFile = LemmaDictionary.aggregateFile(LEMMA_MORPHOLOGIES_FILENAME);
+    File textFile = LemmaDictionary.aggregateFile(LemmaDictionary.textFilenameFor(LEMMA_MORPHOLOGIES_FILENAME));
+
+    Table loaded;
+    if (LemmaDictionary.isBinaryAggregateNewest(binaryFile, textFile)) {
+      loaded = loadBinary(binaryFile);
+    } else if (textFile.exists()) {
+      loaded = loadText(textFile);
+    } else {
+      return false;
     }
+
+    table = loaded;
+    Log.out(TAG, "Loaded LemmaMorphologies with " + loaded.lemmaWords.length + " lemma morphologies.");
+    return true;
   }
 
-  public synchronized boolean tryLoad() throws IOException {
-    if (isLoaded) {
-      return true;
+  private Table loadBinary(File binaryFile) throws IOException {
+    ByteBuffer in = LemmaDictionary.readAggregate(binaryFile, BINARY_MAGIC);
+    int numLemmas = BinaryIO.readVarInt(in);
+    int[] dictionaryIds = BinaryIO.readInts(in, numLemmas);
+    int[] numMorphologies = BinaryIO.readInts(in, numLemmas);
+
+    int numWords = BinaryIO.readVarInt(in);
+    String[] words = new String[numWords];
+    for (int i = 0; i < numWords; i++) {
+      words[i] = BinaryIO.readString(in);
     }
 
-    Log.out(TAG, "tryLoad");
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String morphologiesFilePath = aggregateDataFile.toPath().resolve(LEMMA_MORPHOLOGIES_FILENAME).toString();
+    int numPairs = BinaryIO.readVarInt(in);
+    int[] pairWords = BinaryIO.readInts(in, numPairs);
+    int[] pairCounts = BinaryIO.readInts(in, numPairs);
 
-    File morphologiesFile = new File(morphologiesFilePath);
-    if (!morphologiesFile.exists()) {
-      return false;
+    LemmaId[] lemmaIds = lemmaDb.getDictionary().toLemmaIds(dictionaryIds);
+
+    int[] pairLemmas = new int[numPairs];
+    int pair = 0;
+    for (int i = 0; i < numLemmas; i++) {
+      Preconditions.checkState(pair + numMorphologies[i] <= numPairs);
+      Arrays.fill(pairLemmas, pair, pair + numMorphologies[i], lemmaIds[i].id);
+      pair += numMorphologies[i];
     }
+    Preconditions.checkState(pair == numPairs);
 
-    lemmaToMorphologyMap.clear();
-    morphologytoLemmaMap.clear();
+    for (int i = 0; i < numPairs; i++) {
+      Preconditions.checkState(pairCounts[i] > 0);
+    }
 
-    BufferedReader br = null;
-    try {
-      br = new BufferedReader(new FileReader(morphologiesFile.getAbsolutePath()));
+    return new Table(words, lemmaDb.numLemmas(), pairLemmas, pairWords, pairCounts, numPairs);
+  }
 
+  private Table loadText(File textFile) throws IOException {
+    Map<String, Integer> wordIndices = new HashMap<String, Integer>();
+    List<String> words = new ArrayList<String>();
+    IntList pairLemmas = new IntList();
+    IntList pairWords = new IntList();
+    IntList pairCounts = new IntList();
+
+    BufferedReader br = new BufferedReader(new FileReader(textFile.getAbsolutePath()));
+    try {
       int numEntries = Integer.parseInt(Preconditions.checkNotNull(br.readLine()));
       for (int i = 0; i < numEntries; i++) {
         if (i%100000 == 0) {
           int percentLoaded = 100 * i / numEntries;
           Log.out(Integer.toString(percentLoaded) + "%");
         }
-        Lemma lemma = Lemma.readFrom(br);
+        int lemmaId = lemmaDb.addLemmaId(Lemma.readFrom(br));
 
         int numLemmaEntries = Integer.parseInt(Preconditions.checkNotNull(br.readLine()));
         for (int j = 0; j < numLemmaEntries; j++) {
@@ -231,24 +457,90 @@ public class LemmaMorphologies {
           Preconditions.checkState(occurances > 0);
           String morphology = lineTokens[1];
 
-          addTokenToLemmaToMorphologyMap(morphology, lemma, occurances);
-          addTokenToMorphologyToLemmaMap(morphology, lemma, occurances);
+          Integer wordIndex = wordIndices.get(morphology);
+          if (wordIndex == null) {
+            wordIndex = words.size();
+            wordIndices.put(morphology, wordIndex);
+            words.add(morphology);
+          }
 
-          totalCorpusSize += occurances;
+          pairLemmas.add(lemmaId);
+          pairWords.add(wordIndex);
+          pairCounts.add(occurances);
         }
       }
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-      return false;
     } finally {
-      if (br != null) {
-        br.close();
+      br.close();
+    }
+
+    return new Table(words.toArray(new String[words.size()]), lemmaDb.numLemmas(),
+        pairLemmas.values, pairWords.values, pairCounts.values, pairLemmas.size);
+  }
+
+  private Table freezeBuildCounts() {
+    int numPairs = 0;
+    for (PairCounts stripe : stripes) {
+      numPairs += stripe.size();
+    }
+
+    long[] keys = new long[numPairs];
+    int[] counts = new int[numPairs];
+    int offset = 0;
+    for (PairCounts stripe : stripes) {
+      offset = stripe.copyTo(keys, counts, offset);
+    }
+
+    int numLemmaSlots = lemmaDb.numLemmas();
+    int[] lemmaTotals = new int[numLemmaSlots];
+    for (int i = 0; i < numPairs; i++) {
+      lemmaTotals[(int) (keys[i] >>> 32)] += counts[i];
+    }
+
+    int[] pairLemmas = new int[numPairs];
+    int[] pairWords = new int[numPairs];
+    int[] pairCounts = new int[numPairs];
+    int numKept = 0;
+    for (int i = 0; i < numPairs; i++) {
+      int lemmaId = (int) (keys[i] >>> 32);
+      if (lemmaTotals[lemmaId] >= MIN_LEMMA_OCCURANCES) {
+        pairLemmas[numKept] = lemmaId;
+        pairWords[numKept] = (int) keys[i];
+        pairCounts[numKept] = counts[i];
+        numKept++;
       }
     }
 
-    Log.out("Loaded LemmaMorphologies with " + Integer.toString(lemmaToMorphologyMap.size()) + " lemmas.");
-    isLoaded = true;
-    return true;
+    String[] words = new String[nextWordId.get()];
+    for (Map.Entry<String, Integer> entry : buildWordIds.entrySet()) {
+      words[entry.getValue()] = entry.getKey();
+    }
+
+    Table result = new Table(words, numLemmaSlots, pairLemmas, pairWords, pairCounts, numKept);
+    for (PairCounts stripe : stripes) {
+      stripe.clear();
+    }
+    buildWordIds.clear();
+    return result;
   }
 
+  private static long pack(int lemmaId, int wordId) {
+    return ((long) lemmaId << 32) | (wordId & 0xFFFFFFFFL);
+  }
+
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private static class IntList {
+    int[] values = new int[1024];
+    int size = 0;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+  }
 }
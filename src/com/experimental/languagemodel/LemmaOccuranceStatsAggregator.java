@@ -1,14 +1,16 @@
 package com.experimental.languagemodel;
 
-import com.experimental.Constants;
 import com.experimental.documentmodel.BagOfWeightedLemmas;
 import com.experimental.documentmodel.Document;
 import com.experimental.languagemodel.LemmaDB.LemmaId;
 import com.experimental.nlp.SimplePOSTag;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,7 +19,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Created by sushkov on 11/01/15.
  */
 public class LemmaOccuranceStatsAggregator {
-  private static final String VARIANCES_DATA_FILENAME = "global_lemma_occurance_statistics.txt";
+  private static final String VARIANCES_DATA_FILENAME = "global_lemma_occurance_statistics.bin";
+  private static final int BINARY_MAGIC = 0x4c4f4353; // "LOCS"
 
   public static class LemmaStats {
     final LemmaId lemmaId;
@@ -63,7 +66,7 @@ public class LemmaOccuranceStatsAggregator {
 
     BagOfWeightedLemmas documentBag = document.getBagOfLemmas();
     double totalWeight = documentBag.getSumWeight();
-    if (totalWeight < 1.0) {
+    if (totalWeight < 0.5) {
       return;
     }
 
@@ -121,10 +124,14 @@ public class LemmaOccuranceStatsAggregator {
   }
 
   public boolean tryLoadFromDisk(String dataFilename) throws IOException {
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String varianceFilePath = aggregateDataFile.toPath().resolve(dataFilename).toString();
+    File binaryFile = LemmaDictionary.aggregateFile(dataFilename);
+    File varianceFile = LemmaDictionary.aggregateFile(LemmaDictionary.textFilenameFor(dataFilename));
+    if (LemmaDictionary.isBinaryAggregateNewest(binaryFile, varianceFile)) {
+      loadBinary(binaryFile);
+      haveVariance = true;
+      return true;
+    }
 
-    File varianceFile = new File(varianceFilePath);
     if (!varianceFile.exists()) {
       return false;
     }
@@ -161,43 +168,74 @@ public class LemmaOccuranceStatsAggregator {
       computeStats();
     }
 
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String varianceFilePath = aggregateDataFile.toPath().resolve(dataFilename).toString();
-
-    BufferedWriter bw = null;
-    try {
-      try {
-        FileWriter fw = new FileWriter(varianceFilePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
-      }
+    List<LemmaStats> values = new ArrayList<LemmaStats>(lemmaVarianceMap.values());
+    Collections.sort(values, VARIANCE_ORDER);
+
+    int numEntries = values.size();
+    LemmaId[] lemmaIds = new LemmaId[numEntries];
+    double[] weightStandardDeviation = new double[numEntries];
+    double[] averageWeightPerDocument = new double[numEntries];
+    double[] fractionOfDocumentOccured = new double[numEntries];
+    int[] totalDocsOccuredIn = new int[numEntries];
+    double[] sumOfSquares = new double[numEntries];
+    double[] sum = new double[numEntries];
+    for (int i = 0; i < numEntries; i++) {
+      LemmaStats info = values.get(i);
+      lemmaIds[i] = info.lemmaId;
+      weightStandardDeviation[i] = info.weightStandardDeviation;
+      averageWeightPerDocument[i] = info.averageWeightPerDocument;
+      fractionOfDocumentOccured[i] = info.fractionOfDocumentOccured;
+      totalDocsOccuredIn[i] = info.totalDocsOccuredIn;
+      sumOfSquares[i] = info.sumOfSquares;
+      sum[i] = info.sum;
+    }
 
-      bw.write(Integer.toString(lemmaVarianceMap.values().size()) + "\n");
-      List<LemmaStats> values = new ArrayList(lemmaVarianceMap.values());
-      Collections.sort(values, VARIANCE_ORDER);
+    LemmaDictionary dictionary = lemmaDB.getDictionary();
+    int[] dictionaryIds = dictionary.toDictionaryIds(lemmaIds, numEntries);
+    dictionary.save();
 
-      for (LemmaStats info : values) {
-        saveLemmaVarianceInfo(info, bw);
-      }
+    File binaryFile = LemmaDictionary.aggregateFile(dataFilename);
+    File tempFile = AtomicFiles.tempFileFor(binaryFile);
+    DataOutputStream out = LemmaDictionary.createAggregate(tempFile, BINARY_MAGIC);
+    try {
+      BinaryIO.writeVarInt(out, numEntries);
+      BinaryIO.writeInts(out, dictionaryIds, numEntries);
+      BinaryIO.writeDoubles(out, weightStandardDeviation, numEntries);
+      BinaryIO.writeDoubles(out, averageWeightPerDocument, numEntries);
+      BinaryIO.writeDoubles(out, fractionOfDocumentOccured, numEntries);
+      BinaryIO.writeInts(out, totalDocsOccuredIn, numEntries);
+      BinaryIO.writeDoubles(out, sumOfSquares, numEntries);
+      BinaryIO.writeDoubles(out, sum, numEntries);
     } finally {
-      if (bw != null) {
-        bw.close();
-      }
+      out.close();
     }
+    AtomicFiles.commit(tempFile, binaryFile);
   }
 
-  private void saveLemmaVarianceInfo(LemmaStats info, BufferedWriter bw) throws IOException {
-    bw.write(Double.toString(info.weightStandardDeviation) + " ");
-    bw.write(Double.toString(info.averageWeightPerDocument) + " ");
-    bw.write(Double.toString(info.fractionOfDocumentOccured) + " ");
+  private void loadBinary(File binaryFile) throws IOException {
+    ByteBuffer in = LemmaDictionary.readAggregate(binaryFile, BINARY_MAGIC);
+    int numEntries = BinaryIO.readVarInt(in);
+    int[] dictionaryIds = BinaryIO.readInts(in, numEntries);
+    double[] weightStandardDeviation = BinaryIO.readDoubles(in, numEntries);
+    double[] averageWeightPerDocument = BinaryIO.readDoubles(in, numEntries);
+    double[] fractionOfDocumentOccured = BinaryIO.readDoubles(in, numEntries);
+    int[] totalDocsOccuredIn = BinaryIO.readInts(in, numEntries);
+    double[] sumOfSquares = BinaryIO.readDoubles(in, numEntries);
+    double[] sum = BinaryIO.readDoubles(in, numEntries);
 
-    bw.write(Integer.toString(info.totalDocsOccuredIn) + " ");
-    bw.write(Double.toString(info.sumOfSquares) + " ");
-    bw.write(Double.toString(info.sum) + "\n");
+    LemmaId[] lemmaIds = lemmaDB.getDictionary().toLemmaIds(dictionaryIds);
 
-    lemmaDB.getLemma(info.lemmaId).writeTo(bw);
+    lemmaVarianceMap.clear();
+    for (int i = 0; i < numEntries; i++) {
+      LemmaStats stats = new LemmaStats(lemmaIds[i]);
+      stats.weightStandardDeviation = weightStandardDeviation[i];
+      stats.averageWeightPerDocument = averageWeightPerDocument[i];
+      stats.fractionOfDocumentOccured = fractionOfDocumentOccured[i];
+      stats.totalDocsOccuredIn = totalDocsOccuredIn[i];
+      stats.sumOfSquares = sumOfSquares[i];
+      stats.sum = sum[i];
+      lemmaVarianceMap.put(stats.lemmaId, stats);
+    }
   }
 
   private LemmaStats loadLemmaVarianceInfo(BufferedReader br) throws IOException {
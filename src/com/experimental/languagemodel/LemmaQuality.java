@@ -1,13 +1,15 @@
 package com.experimental.languagemodel;
 
-import com.experimental.Constants;
 import com.experimental.documentmodel.BagOfWeightedLemmas;
 import com.experimental.documentmodel.Document;
 import com.experimental.nlp.SimplePOSTag;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -16,7 +18,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Created by sushkov on 25/01/15.
  */
 public class LemmaQuality {
-  private static final String QUALITY_DATA_FILENAME = "lemma_quality.txt";
+  private static final String QUALITY_DATA_FILENAME = "lemma_quality.bin";
+  private static final int BINARY_MAGIC = 0x4c515541; // "LQUA"
 
   public static class LemmaQualityInfo {
     final LemmaDB.LemmaId lemmaId;
@@ -56,7 +59,7 @@ public class LemmaQuality {
 
     BagOfWeightedLemmas documentBag = document.getBagOfLemmas();
     double totalWeight = documentBag.getSumWeight();
-    if (totalWeight < 50.0) {
+    if (totalWeight < 25.0) {
       return;
     }
 
@@ -99,6 +102,15 @@ public class LemmaQuality {
     haveQuality = true;
   }
 
+  /**
+   * Returns the entries, highest quality first.
+   */
+  List<LemmaQualityInfo> getQualityOrdered() {
+    List<LemmaQualityInfo> result = new ArrayList<LemmaQualityInfo>(lemmaQualityMap.values());
+    Collections.sort(result, QUALITY_ORDER);
+    return result;
+  }
+
   public double getLemmaQuality(Lemma lemma) {
     Preconditions.checkNotNull(lemma);
 
@@ -133,10 +145,14 @@ public class LemmaQuality {
   }
 
   public boolean tryLoadFromDisk(String dataFilename) throws IOException {
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String qualityFilePath = aggregateDataFile.toPath().resolve(dataFilename).toString();
+    File binaryFile = LemmaDictionary.aggregateFile(dataFilename);
+    File qualityFile = LemmaDictionary.aggregateFile(LemmaDictionary.textFilenameFor(dataFilename));
+    if (LemmaDictionary.isBinaryAggregateNewest(binaryFile, qualityFile)) {
+      loadBinary(binaryFile);
+      haveQuality = true;
+      return true;
+    }
 
-    File qualityFile = new File(qualityFilePath);
     if (!qualityFile.exists()) {
       return false;
     }
@@ -173,39 +189,58 @@ public class LemmaQuality {
       computeQuality();
     }
 
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String qualityFilePath = aggregateDataFile.toPath().resolve(dataFilename).toString();
-
-    BufferedWriter bw = null;
-    try {
-      try {
-        FileWriter fw = new FileWriter(qualityFilePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
-      }
+    List<LemmaQualityInfo> values = getQualityOrdered();
+
+    int numEntries = values.size();
+    LemmaDB.LemmaId[] lemmaIds = new LemmaDB.LemmaId[numEntries];
+    double[] quality = new double[numEntries];
+    double[] sumOfSquares = new double[numEntries];
+    double[] sum = new double[numEntries];
+    for (int i = 0; i < numEntries; i++) {
+      LemmaQualityInfo info = values.get(i);
+      lemmaIds[i] = info.lemmaId;
+      quality[i] = info.quality;
+      sumOfSquares[i] = info.sumOfSquares;
+      sum[i] = info.sum;
+    }
 
-      bw.write(Integer.toString(lemmaQualityMap.values().size()) + "\n");
-      List<LemmaQualityInfo> values = new ArrayList(lemmaQualityMap.values());
-      Collections.sort(values, QUALITY_ORDER);
+    LemmaDictionary dictionary = lemmaDB.getDictionary();
+    int[] dictionaryIds = dictionary.toDictionaryIds(lemmaIds, numEntries);
+    dictionary.save();
 
-      for (LemmaQualityInfo info : values) {
-        saveLemmaQualityInfo(info, bw);
-      }
+    File binaryFile = LemmaDictionary.aggregateFile(dataFilename);
+    File tempFile = AtomicFiles.tempFileFor(binaryFile);
+    DataOutputStream out = LemmaDictionary.createAggregate(tempFile, BINARY_MAGIC);
+    try {
+      BinaryIO.writeVarInt(out, numEntries);
+      BinaryIO.writeInts(out, dictionaryIds, numEntries);
+      BinaryIO.writeDoubles(out, quality, numEntries);
+      BinaryIO.writeDoubles(out, sumOfSquares, numEntries);
+      BinaryIO.writeDoubles(out, sum, numEntries);
     } finally {
-      if (bw != null) {
-        bw.close();
-      }
+      out.close();
     }
+    AtomicFiles.commit(tempFile, binaryFile);
   }
 
-  private void saveLemmaQualityInfo(LemmaQualityInfo info, BufferedWriter bw) throws IOException {
-    bw.write(Double.toString(info.quality) + " ");
-    bw.write(Double.toString(info.sumOfSquares) + " ");
-    bw.write(Double.toString(info.sum) + "\n");
+  private void loadBinary(File binaryFile) throws IOException {
+    ByteBuffer in = LemmaDictionary.readAggregate(binaryFile, BINARY_MAGIC);
+    int numEntries = BinaryIO.readVarInt(in);
+    int[] dictionaryIds = BinaryIO.readInts(in, numEntries);
+    double[] quality = BinaryIO.readDoubles(in, numEntries);
+    double[] sumOfSquares = BinaryIO.readDoubles(in, numEntries);
+    double[] sum = BinaryIO.readDoubles(in, numEntries);
 
-    lemmaDB.getLemma(info.lemmaId).writeTo(bw);
+    LemmaDB.LemmaId[] lemmaIds = lemmaDB.getDictionary().toLemmaIds(dictionaryIds);
+
+    lemmaQualityMap.clear();
+    for (int i = 0; i < numEntries; i++) {
+      LemmaQualityInfo info = new LemmaQualityInfo(lemmaIds[i]);
+      info.quality = quality[i];
+      info.sumOfSquares = sumOfSquares[i];
+      info.sum = sum[i];
+      lemmaQualityMap.put(info.lemmaId, info);
+    }
   }
 
   private LemmaQualityInfo loadLemmaQualityInfo(BufferedReader br) throws IOException {
@@ -52,6 +52,14 @@ public class NounAssociation {
     associate(adjectiveAssociations, adjectiveId);
   }
 
+  void putVerbAssociation(LemmaId verbId, int weight) {
+    putAssociation(verbAssociations, verbId, weight);
+  }
+
+  void putAdjectiveAssociation(LemmaId adjectiveId, int weight) {
+    putAssociation(adjectiveAssociations, adjectiveId, weight);
+  }
+
   public Association getAssociationsWith(Lemma other) {
     Preconditions.checkNotNull(other);
     Preconditions.checkArgument(other.tag == SimplePOSTag.VERB || other.tag == SimplePOSTag.ADJECTIVE);
@@ -131,6 +139,15 @@ public class NounAssociation {
     }
   }
 
+  private static void putAssociation(Map<LemmaId, Association> associationMap, LemmaId id, int weight) {
+    Preconditions.checkNotNull(id);
+    Preconditions.checkArgument(weight > 0);
+
+    Association association = new Association(id);
+    association.weight = weight;
+    associationMap.put(id, association);
+  }
+
   private static void associate(Map<LemmaId, Association> associationMap, LemmaId id) {
     Association association = associationMap.get(id);
     if (association == null) {
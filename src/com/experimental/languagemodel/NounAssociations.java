@@ -1,15 +1,17 @@
 package com.experimental.languagemodel;
 
-import com.experimental.Constants;
 import com.experimental.documentmodel.Document;
 import com.experimental.documentmodel.Sentence;
 import com.experimental.documentmodel.Token;
 import com.experimental.languagemodel.LemmaDB.LemmaId;
 import com.experimental.nlp.SimplePOSTag;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -18,7 +20,8 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class NounAssociations {
 
-  private static final String NOUN_ASSOCIATIONS_FILENAME = "noun_associations.txt";
+  private static final String NOUN_ASSOCIATIONS_FILENAME = "noun_associations.bin";
+  private static final int BINARY_MAGIC = 0x4e415353; // "NASS"
 
   private final Map<LemmaId, NounAssociation> nounAssociations = new ConcurrentHashMap<LemmaId, NounAssociation>();
   private final LemmaDB lemmaDB = LemmaDB.instance;
@@ -165,10 +168,13 @@ public class NounAssociations {
     }
 
     Log.out("NounAssociations tryLoad");
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String associationsFilePath = aggregateDataFile.toPath().resolve(NOUN_ASSOCIATIONS_FILENAME).toString();
+    File binaryFile = LemmaDictionary.aggregateFile(NOUN_ASSOCIATIONS_FILENAME);
+    File associationsFile = LemmaDictionary.aggregateFile(LemmaDictionary.textFilenameFor(NOUN_ASSOCIATIONS_FILENAME));
+    if (LemmaDictionary.isBinaryAggregateNewest(binaryFile, associationsFile)) {
+      loadBinary(binaryFile);
+      return true;
+    }
 
-    File associationsFile = new File(associationsFilePath);
     if (!associationsFile.exists()) {
       return false;
     }
@@ -195,28 +201,94 @@ public class NounAssociations {
     return true;
   }
 
+  /**
+   * Writes the target noun and the number of verb and adjective associations of every noun, then
+   * the associated lemma and weight of every association, the verbs of a noun before its
+   * adjectives.
+   */
   public void save() throws IOException {
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String associationsFilePath = aggregateDataFile.toPath().resolve(NOUN_ASSOCIATIONS_FILENAME).toString();
+    List<NounAssociation> associations = new ArrayList<NounAssociation>(nounAssociations.values());
+
+    int numNouns = associations.size();
+    LemmaId[] targetNouns = new LemmaId[numNouns];
+    int[] numVerbs = new int[numNouns];
+    int[] numAdjectives = new int[numNouns];
+    List<LemmaId> associatedLemmas = new ArrayList<LemmaId>();
+    List<Integer> associationWeights = new ArrayList<Integer>();
+
+    for (int i = 0; i < numNouns; i++) {
+      NounAssociation nounAssociation = associations.get(i);
+      targetNouns[i] = nounAssociation.targetNoun;
+
+      synchronized (nounAssociation) {
+        numVerbs[i] = nounAssociation.getVerbAssociations().size();
+        numAdjectives[i] = nounAssociation.getAdjectiveAssociations().size();
+        for (NounAssociation.Association association : nounAssociation.getVerbAssociations()) {
+          associatedLemmas.add(association.associatedLemma);
+          associationWeights.add(association.weight);
+        }
+        for (NounAssociation.Association association : nounAssociation.getAdjectiveAssociations()) {
+          associatedLemmas.add(association.associatedLemma);
+          associationWeights.add(association.weight);
+        }
+      }
+    }
+
+    int numAssociations = associatedLemmas.size();
+    int[] weights = new int[numAssociations];
+    for (int i = 0; i < numAssociations; i++) {
+      weights[i] = associationWeights.get(i);
+    }
+
+    LemmaDictionary dictionary = lemmaDB.getDictionary();
+    int[] targetIds = dictionary.toDictionaryIds(targetNouns, numNouns);
+    int[] associatedIds = dictionary.toDictionaryIds(
+        associatedLemmas.toArray(new LemmaId[numAssociations]), numAssociations);
+    dictionary.save();
 
-    BufferedWriter bw = null;
+    File binaryFile = LemmaDictionary.aggregateFile(NOUN_ASSOCIATIONS_FILENAME);
+    File tempFile = AtomicFiles.tempFileFor(binaryFile);
+    DataOutputStream out = LemmaDictionary.createAggregate(tempFile, BINARY_MAGIC);
     try {
-      try {
-        FileWriter fw = new FileWriter(associationsFilePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
-      }
+      BinaryIO.writeVarInt(out, numNouns);
+      BinaryIO.writeInts(out, targetIds, numNouns);
+      BinaryIO.writeInts(out, numVerbs, numNouns);
+      BinaryIO.writeInts(out, numAdjectives, numNouns);
+      BinaryIO.writeVarInt(out, numAssociations);
+      BinaryIO.writeInts(out, associatedIds, numAssociations);
+      BinaryIO.writeInts(out, weights, numAssociations);
+    } finally {
+      out.close();
+    }
+    AtomicFiles.commit(tempFile, binaryFile);
+  }
 
-      bw.write(Integer.toString(nounAssociations.values().size()) + "\n");
-      for (NounAssociation info : nounAssociations.values()) {
-        info.writeTo(bw);
+  private void loadBinary(File binaryFile) throws IOException {
+    ByteBuffer in = LemmaDictionary.readAggregate(binaryFile, BINARY_MAGIC);
+    int numNouns = BinaryIO.readVarInt(in);
+    int[] targetIds = BinaryIO.readInts(in, numNouns);
+    int[] numVerbs = BinaryIO.readInts(in, numNouns);
+    int[] numAdjectives = BinaryIO.readInts(in, numNouns);
+    int numAssociations = BinaryIO.readVarInt(in);
+    int[] associatedIds = BinaryIO.readInts(in, numAssociations);
+    int[] weights = BinaryIO.readInts(in, numAssociations);
+
+    LemmaDictionary dictionary = lemmaDB.getDictionary();
+    LemmaId[] targetNouns = dictionary.toLemmaIds(targetIds);
+    LemmaId[] associatedLemmas = dictionary.toLemmaIds(associatedIds);
+
+    nounAssociations.clear();
+    int offset = 0;
+    for (int i = 0; i < numNouns; i++) {
+      NounAssociation nounAssociation = new NounAssociation(targetNouns[i], lemmaDB);
+      for (int j = 0; j < numVerbs[i]; j++, offset++) {
+        nounAssociation.putVerbAssociation(associatedLemmas[offset], weights[offset]);
       }
-    } finally {
-      if (bw != null) {
-        bw.close();
+      for (int j = 0; j < numAdjectives[i]; j++, offset++) {
+        nounAssociation.putAdjectiveAssociation(associatedLemmas[offset], weights[offset]);
       }
+      nounAssociations.put(nounAssociation.targetNoun, nounAssociation);
     }
+    Preconditions.checkState(offset == numAssociations);
   }
 }
@@ -1,13 +1,16 @@
 package com.experimental.languagemodel;
 
-import com.experimental.Constants;
 import com.experimental.documentmodel.Sentence;
+import com.experimental.documentmodel.SentenceBlock;
 import com.experimental.nlp.NounPhrase;
 import com.experimental.nlp.NounPhraseExtractor;
+import com.experimental.utils.AtomicFiles;
+import com.experimental.utils.BinaryIO;
 import com.experimental.utils.Log;
 import com.google.common.base.Preconditions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -16,7 +19,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Created by sushkov on 27/01/15.
  */
 public class NounPhrasesDB {
-  private static final String NOUN_PHRASE_FILENAME = "noun_phrases.txt";
+  private static final String NOUN_PHRASE_FILENAME = "noun_phrases.bin";
+  private static final int BINARY_MAGIC = 0x4e505253; // "NPRS"
+  private static final int MIN_LOADED_OCCURANCES = 10;
 
   public static class NounPhraseEntry {
     public final NounPhrase phrase;
@@ -54,7 +59,17 @@ public class NounPhrasesDB {
 
   public void addSentence(Sentence sentence) {
     Preconditions.checkNotNull(sentence);
-    List<NounPhrase> nounPhrases = phraseExtractor.extractNounPhrases(sentence);
+    addPhrases(phraseExtractor.extractNounPhrases(sentence));
+  }
+
+  public void addSentences(SentenceBlock block) {
+    Preconditions.checkNotNull(block);
+    for (int i = 0; i < block.numSentences(); i++) {
+      addPhrases(phraseExtractor.extractNounPhrases(block, i));
+    }
+  }
+
+  private void addPhrases(List<NounPhrase> nounPhrases) {
     for (NounPhrase phrase : nounPhrases) {
       if (phrase.isCompositePhrase() && isCommonPhrase(phrase)) {
 //        Log.out(phrase.toString());
@@ -94,30 +109,69 @@ public class NounPhrasesDB {
     }
   }
 
+  /**
+   * Writes the phrases as three arrays: the occurance count and the length of every phrase, and
+   * the dictionary ids of all phrase lemmas back to back.
+   */
   public void save() throws IOException {
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String nounPhraseFilePath = aggregateDataFile.toPath().resolve(NOUN_PHRASE_FILENAME).toString();
+    List<NounPhraseEntry> entries = new ArrayList<NounPhraseEntry>(phraseEntries.values());
+
+    int numEntries = entries.size();
+    int[] numOccurances = new int[numEntries];
+    int[] phraseLengths = new int[numEntries];
+    List<LemmaDB.LemmaId> phraseLemmaIds = new ArrayList<LemmaDB.LemmaId>();
+    for (int i = 0; i < numEntries; i++) {
+      NounPhraseEntry entry = entries.get(i);
+      numOccurances[i] = entry.numOccurances.get();
+      phraseLengths[i] = entry.phrase.getPhraseLemmaIds().size();
+      phraseLemmaIds.addAll(entry.phrase.getPhraseLemmaIds());
+    }
 
-    BufferedWriter bw = null;
-    try {
-      try {
-        FileWriter fw = new FileWriter(nounPhraseFilePath);
-        bw = new BufferedWriter(fw);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-        return;
-      }
+    LemmaDictionary dictionary = lemmaDb.getDictionary();
+    int[] dictionaryIds = dictionary.toDictionaryIds(
+        phraseLemmaIds.toArray(new LemmaDB.LemmaId[phraseLemmaIds.size()]), phraseLemmaIds.size());
+    dictionary.save();
 
-      bw.write(Integer.toString(phraseEntries.values().size()) + "\n");
-      for (NounPhraseEntry entry : phraseEntries.values()) {
-        bw.write(Integer.toString(entry.numOccurances.get()) + "\n");
-        entry.phrase.writeTo(bw);
-      }
+    File binaryFile = LemmaDictionary.aggregateFile(NOUN_PHRASE_FILENAME);
+    File tempFile = AtomicFiles.tempFileFor(binaryFile);
+    DataOutputStream out = LemmaDictionary.createAggregate(tempFile, BINARY_MAGIC);
+    try {
+      BinaryIO.writeVarInt(out, numEntries);
+      BinaryIO.writeInts(out, numOccurances, numEntries);
+      BinaryIO.writeInts(out, phraseLengths, numEntries);
+      BinaryIO.writeVarInt(out, dictionaryIds.length);
+      BinaryIO.writeInts(out, dictionaryIds, dictionaryIds.length);
     } finally {
-      if (bw != null) {
-        bw.close();
+      out.close();
+    }
+    AtomicFiles.commit(tempFile, binaryFile);
+  }
+
+  private void loadBinary(File binaryFile) throws IOException {
+    ByteBuffer in = LemmaDictionary.readAggregate(binaryFile, BINARY_MAGIC);
+    int numEntries = BinaryIO.readVarInt(in);
+    int[] numOccurances = BinaryIO.readInts(in, numEntries);
+    int[] phraseLengths = BinaryIO.readInts(in, numEntries);
+    int numPhraseLemmas = BinaryIO.readVarInt(in);
+    int[] dictionaryIds = BinaryIO.readInts(in, numPhraseLemmas);
+
+    LemmaDB.LemmaId[] lemmaIds = lemmaDb.getDictionary().toLemmaIds(dictionaryIds);
+
+    int offset = 0;
+    for (int i = 0; i < numEntries; i++) {
+      Preconditions.checkState(numOccurances[i] > 0);
+
+      List<LemmaDB.LemmaId> phraseIds = Arrays.asList(lemmaIds).subList(offset, offset + phraseLengths[i]);
+      offset += phraseLengths[i];
+
+      if (numOccurances[i] > MIN_LOADED_OCCURANCES) {
+        NounPhrase phrase = NounPhrase.fromLemmaIds(phraseIds, lemmaDb);
+        NounPhraseEntry entry = new NounPhraseEntry(phrase, numOccurances[i]);
+        phraseEntries.put(phrase, entry);
+        insertLookup(entry);
       }
     }
+    Preconditions.checkState(offset == numPhraseLemmas);
   }
 
   public boolean tryLoad() throws IOException {
@@ -127,10 +181,18 @@ public class NounPhrasesDB {
 
     Log.out("NounPhraseDB loading...");
 
-    File aggregateDataFile = new File(Constants.AGGREGATE_DATA_PATH);
-    String nounPhraseFilePath = aggregateDataFile.toPath().resolve(NOUN_PHRASE_FILENAME).toString();
+    File binaryFile = LemmaDictionary.aggregateFile(NOUN_PHRASE_FILENAME);
+    File nounPhraseFile = LemmaDictionary.aggregateFile(LemmaDictionary.textFilenameFor(NOUN_PHRASE_FILENAME));
+    if (LemmaDictionary.isBinaryAggregateNewest(binaryFile, nounPhraseFile)) {
+      phraseEntries.clear();
+      lemmaPhrases.clear();
+      loadBinary(binaryFile);
+
+      Log.out("finsihed loading NounPhraseDB");
+      isLoaded = true;
+      return true;
+    }
 
-    File nounPhraseFile = new File(nounPhraseFilePath);
     if (!nounPhraseFile.exists()) {
       return false;
     }
@@ -149,7 +211,7 @@ public class NounPhrasesDB {
         Preconditions.checkState(numOccurances > 0);
         NounPhrase phrase = NounPhrase.readFrom(br, lemmaDb);
 
-        if (numOccurances > 10) {
+        if (numOccurances > MIN_LOADED_OCCURANCES) {
           NounPhraseEntry entry = new NounPhraseEntry(phrase, numOccurances);
           phraseEntries.put(phrase, entry);
           insertLookup(entry);
@@ -30,6 +30,23 @@ public class NounPhrase {
     this.lemmaDb = Preconditions.checkNotNull(lemmaDb);
   }
 
+  private NounPhrase(LemmaDB lemmaDb) {
+    this.lemmaDb = Preconditions.checkNotNull(lemmaDb);
+  }
+
+  /**
+   * Builds a phrase straight from lemma ids that were already interned in lemmaDb.
+   */
+  public static NounPhrase fromLemmaIds(List<LemmaDB.LemmaId> lemmaIds, LemmaDB lemmaDb) {
+    Preconditions.checkNotNull(lemmaIds);
+
+    NounPhrase result = new NounPhrase(lemmaDb);
+    for (LemmaDB.LemmaId lemmaId : lemmaIds) {
+      result.phraseLemmas.add(Preconditions.checkNotNull(lemmaId));
+    }
+    return result;
+  }
+
   public static NounPhrase readFrom(BufferedReader in, LemmaDB lemmaDb) throws IOException {
     Preconditions.checkNotNull(in);
 
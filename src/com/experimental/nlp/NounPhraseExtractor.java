@@ -1,6 +1,7 @@
 package com.experimental.nlp;
 
 import com.experimental.documentmodel.Sentence;
+import com.experimental.documentmodel.SentenceBlock;
 import com.experimental.documentmodel.Token;
 import com.experimental.languagemodel.Lemma;
 import com.experimental.languagemodel.LemmaDB;
@@ -53,6 +54,77 @@ public class NounPhraseExtractor {
     return result;
   }
 
+  /**
+   * Extracts the same phrases as extractNounPhrases(Sentence) from one sentence of a block,
+   * reading tags and lemmas straight from the block's arrays.
+   */
+  public List<NounPhrase> extractNounPhrases(SentenceBlock block, int sentence) {
+    Preconditions.checkNotNull(block);
+
+    List<NounPhrase> result = new ArrayList<NounPhrase>();
+
+    int phraseStart = -1;
+    boolean haveNoun = false;
+
+    int sentenceEnd = block.sentenceEnd(sentence);
+    for (int i = block.sentenceStart(sentence); i < sentenceEnd; i++) {
+      POSTag tag = block.partOfSpeech(i);
+
+      if (tag.isNoun() || tag.isAdjective()) {
+        if (tag.isNoun()) {
+          haveNoun = true;
+        }
+
+        if (phraseStart < 0) {
+          phraseStart = i;
+        }
+      } else {
+        if (haveNoun) {
+          result.addAll(generateAllSubPhrases(block, phraseStart, i));
+        }
+
+        phraseStart = -1;
+        haveNoun = false;
+      }
+    }
+
+    if (haveNoun) {
+      result.addAll(generateAllSubPhrases(block, phraseStart, sentenceEnd));
+    }
+
+    return result;
+  }
+
+  private List<NounPhrase> generateAllSubPhrases(SentenceBlock block, int start, int end) {
+    List<NounPhrase> result = new ArrayList<NounPhrase>();
+    if (!block.partOfSpeech(end - 1).isNoun()) {
+      return result;
+    }
+
+    for (int i = start; i < end; i++) {
+      int phraseLength = end - i;
+      if (phraseLength >= 2 && phraseLength <= 3 && countAdjectives(block, i, end) <= 1) {
+        List<Lemma> phraseLemmas = new ArrayList<Lemma>(phraseLength);
+        for (int j = i; j < end; j++) {
+          phraseLemmas.add(block.lemma(j));
+        }
+        result.add(new NounPhrase(phraseLemmas, lemmaDb));
+      }
+    }
+
+    return result;
+  }
+
+  private int countAdjectives(SentenceBlock block, int start, int end) {
+    int result = 0;
+    for (int i = start; i < end; i++) {
+      if (block.partOfSpeech(i).isAdjective()) {
+        result++;
+      }
+    }
+    return result;
+  }
+
   private List<NounPhrase> generateAllSubPhrases(List<Token> tokens) {
     List<NounPhrase> result = new ArrayList<NounPhrase>();
     if (!tokens.get(tokens.size()-1).partOfSpeech.isNoun()) {
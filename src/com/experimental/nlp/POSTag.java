@@ -50,6 +50,9 @@ public enum POSTag {
   RIGHT_PAREN(")"),
   OTHER("OTHER");
 
+  // Binary codes are the declaration order, so new tags must only ever be appended.
+  private static final POSTag[] CODE_TABLE = values();
+
   private final String tag;
 
   private POSTag(String tag) {
@@ -60,6 +63,15 @@ public enum POSTag {
     return tag;
   }
 
+  public byte getCode() {
+    return (byte) ordinal();
+  }
+
+  public static POSTag fromCode(byte code) {
+    Preconditions.checkArgument(code >= 0 && code < CODE_TABLE.length);
+    return CODE_TABLE[code];
+  }
+
   public boolean isNoun() {
     return this == POSTag.NN || this == POSTag.NNS || this == POSTag.NNP || this == POSTag.NNPS;
   }
@@ -35,13 +35,20 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class PageCrawler {
 
-  private final DocumentNameGenerator documentNameGenerator =
-      new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH);
+  private final DocumentNameGenerator documentNameGenerator;
 
   private final Executor executor = Executors.newFixedThreadPool(20);
   private final Semaphore doneSem = new Semaphore(0);
   private final AtomicInteger documentsProcessed = new AtomicInteger(0);
 
+  public PageCrawler() {
+    this(new DocumentNameGenerator(Constants.DOCUMENTS_OUTPUT_PATH));
+  }
+
+  public PageCrawler(DocumentNameGenerator documentNameGenerator) {
+    this.documentNameGenerator = Preconditions.checkNotNull(documentNameGenerator);
+  }
+
   public void crawlSites(List<String> urls) {
     Preconditions.checkNotNull(urls);
 
@@ -125,7 +132,7 @@ public class PageCrawler {
     List<SitePage> childPages = new ArrayList<SitePage>();
     Set<URL> visitedPages = new HashSet<URL>();
 
-    for (SitePage.Link link : frontPage.outgoingLinks) {
+    for (SitePage.Link link : frontPage.getOutgoingLinks()) {
       allLinks.add(link);
 
       SitePage childPage = null;
@@ -143,7 +150,7 @@ public class PageCrawler {
       if (childPage == null) {
         continue;
       }
-      for (SitePage.Link childLink : childPage.outgoingLinks) {
+      for (SitePage.Link childLink : childPage.getOutgoingLinks()) {
         allLinks.add(childLink);
       }
 
@@ -161,7 +168,7 @@ public class PageCrawler {
           continue;
         }
         if (childUri.equals(link.destination)) {
-          childPage.incomingLinks.addAll(link.linkText);
+          childPage.getIncomingLinks().addAll(link.linkText);
         }
       }
     }
@@ -108,8 +108,8 @@ public class PageParser {
       }
 
       SitePage result = new SitePage(pageUrl, getHeaderFor(doc));
-      result.outgoingLinks.addAll(getLinksFromPageBoxes(allPageBoxes));
-      result.pageBoxes.addAll(allPageBoxes);
+      result.getOutgoingLinks().addAll(getLinksFromPageBoxes(allPageBoxes));
+      result.getPageBoxes().addAll(allPageBoxes);
 
       docSource.close();
 
@@ -126,22 +126,48 @@ public class SitePage {
   public final String url;
   public final HeaderInfo header;
 
-  public final List<Link> outgoingLinks = new ArrayList<Link>();
-  public final List<Sentence> incomingLinks = new ArrayList<Sentence>();
-  public final List<PageBox> pageBoxes = new ArrayList<PageBox>();
+  private final List<Link> outgoingLinks = new ArrayList<Link>();
+  private final List<Sentence> incomingLinks = new ArrayList<Sentence>();
+  private final List<PageBox> pageBoxes = new ArrayList<PageBox>();
+
+  // Set for pages read from a sectioned site store, loads the links and boxes on first access.
+  private volatile SiteSections.LazyLoader lazySections = null;
 
   public SitePage(String url, HeaderInfo header) {
     this.url = Preconditions.checkNotNull(url);
     this.header = Preconditions.checkNotNull(header);
   }
 
+  public List<Link> getOutgoingLinks() {
+    ensureSectionLoaded(SiteSections.Section.LINKS);
+    return outgoingLinks;
+  }
+
+  public List<Sentence> getIncomingLinks() {
+    ensureSectionLoaded(SiteSections.Section.LINKS);
+    return incomingLinks;
+  }
+
+  public List<PageBox> getPageBoxes() {
+    ensureSectionLoaded(SiteSections.Section.BOXES);
+    return pageBoxes;
+  }
+
+  /**
+   * Returns whether a section is in memory, so callers can look at a page without loading it.
+   */
+  public boolean isSectionLoaded(SiteSections.Section section) {
+    SiteSections.LazyLoader loader = lazySections;
+    return loader == null || loader.isLoaded(section);
+  }
+
   public List<Sentence> getFlatSentences() {
     List<Sentence> result = new ArrayList<Sentence>();
     result.addAll(header.title);
     result.addAll(header.description);
     result.addAll(header.keywords);
 
-    for (PageBox box : pageBoxes) {
+    for (PageBox box : getPageBoxes()) {
       result.addAll(box.getTextContent());
     }
 
@@ -153,19 +179,28 @@ public class SitePage {
 
     bw.write(url + "\n");
     header.writeTo(bw);
+    writeLinksTo(bw);
+    writeBoxesTo(bw);
+  }
 
-    bw.write(Integer.toString(outgoingLinks.size()) + "\n");
-    for (Link link : outgoingLinks) {
+  void writeLinksTo(BufferedWriter bw) throws IOException {
+    List<Link> outgoing = getOutgoingLinks();
+    bw.write(Integer.toString(outgoing.size()) + "\n");
+    for (Link link : outgoing) {
       link.writeTo(bw);
     }
 
-    bw.write(Integer.toString(incomingLinks.size()) + "\n");
-    for (Sentence link : incomingLinks) {
+    List<Sentence> incoming = getIncomingLinks();
+    bw.write(Integer.toString(incoming.size()) + "\n");
+    for (Sentence link : incoming) {
       link.writeTo(bw);
     }
+  }
 
-    bw.write(Integer.toString(pageBoxes.size()) + "\n");
-    for (PageBox box : pageBoxes) {
+  void writeBoxesTo(BufferedWriter bw) throws IOException {
+    List<PageBox> boxes = getPageBoxes();
+    bw.write(Integer.toString(boxes.size()) + "\n");
+    for (PageBox box : boxes) {
       if (box instanceof ImagePageBox) {
         bw.write("ImagePageBox\n");
       } else if (box instanceof  TextPageBox) {
@@ -183,13 +218,22 @@ public class SitePage {
     HeaderInfo header = HeaderInfo.readFrom(in);
 
     SitePage result = new SitePage(url, header);
+    readLinksFrom(in, result);
+    readBoxesFrom(in, result);
+    return result;
+  }
+
+  void setLazySections(SiteSections.LazyLoader lazySections) {
+    this.lazySections = lazySections;
+  }
 
+  static void readLinksFrom(BufferedReader in, SitePage page) throws IOException {
     int numOutgoingLinks = Integer.parseInt(Preconditions.checkNotNull(in.readLine()));
     Preconditions.checkState(numOutgoingLinks >= 0);
     for (int i = 0; i < numOutgoingLinks; i++) {
       Link link = Link.readFrom(in);
       if (link != null) {
-        result.outgoingLinks.add(link);
+        page.outgoingLinks.add(link);
       }
     }
 
@@ -197,9 +241,11 @@ public class SitePage {
     Preconditions.checkState(numIncomingLinks >= 0);
     for (int i = 0; i < numIncomingLinks; i++) {
       Sentence link = Sentence.readFrom(in);
-      result.incomingLinks.add(link);
+      page.incomingLinks.add(link);
     }
+  }
 
+  static void readBoxesFrom(BufferedReader in, SitePage page) throws IOException {
     int numPageBoxes = Integer.parseInt(Preconditions.checkNotNull(in.readLine()));
     Preconditions.checkState(numPageBoxes >= 0);
     for (int i = 0; i < numPageBoxes; i++) {
@@ -214,10 +260,15 @@ public class SitePage {
         assert(false);
       }
 
-      result.pageBoxes.add(Preconditions.checkNotNull(box));
+      page.pageBoxes.add(Preconditions.checkNotNull(box));
     }
+  }
 
-    return result;
+  private void ensureSectionLoaded(SiteSections.Section section) {
+    SiteSections.LazyLoader loader = lazySections;
+    if (loader != null) {
+      loader.ensureLoaded(section);
+    }
   }
 
 }
@@ -0,0 +1,177 @@
+package com.experimental.sitepage;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the pages of a site as three separately readable sections: the url and header of every
+ * page, the outgoing and incoming links of every page, and the page boxes of every page. Reading a
+ * site only parses the header section, the links and boxes are read the first time any page of
+ * the site asks for them. Header-only consumers never touch the box section, which holds most of
+ * the bytes.
+ */
+public class SiteSections {
+
+  public enum Section {
+    HEADERS ("site_headers.txt"),
+    LINKS ("site_links.txt"),
+    BOXES ("site_boxes.txt");
+
+    private final String filename;
+
+    private Section(String filename) {
+      this.filename = Preconditions.checkNotNull(filename);
+    }
+
+    public String getFilename() {
+      return filename;
+    }
+  }
+
+  public interface Source {
+    /**
+     * Returns a reader over the stored section, or null if the section was never written.
+     */
+    BufferedReader openSection(Section section) throws IOException;
+
+    /**
+     * Called after a lazily loaded section was read into the pages, without holding any lock of
+     * the loader, so the owner can account for the memory it now takes.
+     */
+    void sectionLoaded(Section section);
+  }
+
+  /**
+   * Shared by all pages read from one site. Loads a section for every page at once, since it is a
+   * single sequential file.
+   */
+  static class LazyLoader {
+    private final Source source;
+    private final List<SitePage> pages;
+
+    private volatile boolean linksLoaded = false;
+    private volatile boolean boxesLoaded = false;
+
+    LazyLoader(Source source, List<SitePage> pages) {
+      this.source = Preconditions.checkNotNull(source);
+      this.pages = Preconditions.checkNotNull(pages);
+    }
+
+    boolean isLoaded(Section section) {
+      switch (section) {
+        case LINKS:
+          return linksLoaded;
+        case BOXES:
+          return boxesLoaded;
+        default:
+          return true;
+      }
+    }
+
+    void ensureLoaded(Section section) {
+      if (!isLoaded(section) && load(section)) {
+        source.sectionLoaded(section);
+      }
+    }
+
+    /**
+     * Returns false if another thread loaded the section first.
+     */
+    private synchronized boolean load(Section section) {
+      if (isLoaded(section)) {
+        return false;
+      }
+
+      try {
+        BufferedReader br = source.openSection(section);
+        if (br == null) {
+          throw new IOException("missing site section: " + section.getFilename());
+        }
+
+        try {
+          int numPages = Integer.parseInt(Preconditions.checkNotNull(br.readLine()));
+          Preconditions.checkState(numPages == pages.size());
+
+          for (SitePage page : pages) {
+            if (section == Section.LINKS) {
+              SitePage.readLinksFrom(br, page);
+            } else {
+              SitePage.readBoxesFrom(br, page);
+            }
+          }
+        } finally {
+          br.close();
+        }
+      } catch (IOException e) {
+        // Leaving the section empty would let a later save overwrite the stored data with nothing.
+        throw new IllegalStateException("could not load site section: " + section.getFilename(), e);
+      }
+
+      if (section == Section.LINKS) {
+        linksLoaded = true;
+      } else {
+        boxesLoaded = true;
+      }
+      return true;
+    }
+  }
+
+  public static void writeSection(Section section, List<SitePage> pages, BufferedWriter bw) throws IOException {
+    Preconditions.checkNotNull(section);
+    Preconditions.checkNotNull(pages);
+    Preconditions.checkNotNull(bw);
+
+    bw.write(Integer.toString(pages.size()) + "\n");
+    for (SitePage page : pages) {
+      switch (section) {
+        case HEADERS:
+          bw.write(page.url + "\n");
+          page.header.writeTo(bw);
+          break;
+        case LINKS:
+          page.writeLinksTo(bw);
+          break;
+        case BOXES:
+          page.writeBoxesTo(bw);
+          break;
+      }
+    }
+  }
+
+  /**
+   * Reads the header section and returns the pages in the order they were written. Their links and
+   * boxes are loaded from the source on first access.
+   */
+  public static List<SitePage> readPages(Source source) throws IOException {
+    Preconditions.checkNotNull(source);
+
+    BufferedReader br = source.openSection(Section.HEADERS);
+    if (br == null) {
+      return null;
+    }
+
+    List<SitePage> result = new ArrayList<SitePage>();
+    try {
+      int numPages = Integer.parseInt(Preconditions.checkNotNull(br.readLine()));
+      Preconditions.checkState(numPages >= 0);
+
+      for (int i = 0; i < numPages; i++) {
+        String url = Preconditions.checkNotNull(br.readLine());
+        result.add(new SitePage(url, SitePage.HeaderInfo.readFrom(br)));
+      }
+    } finally {
+      br.close();
+    }
+
+    LazyLoader loader = new LazyLoader(source, result);
+    for (SitePage page : result) {
+      page.setLazySections(loader);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,47 @@
+package com.experimental.utils;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Replaces files by writing a temporary file next to the target and renaming it into place, so
+ * an interrupted write leaves either the old or the new contents but never a truncated file.
+ * Temporary files end in TEMP_SUFFIX and are overwritten by the next attempt.
+ */
+public class AtomicFiles {
+  public static final String TEMP_SUFFIX = ".tmp";
+
+  public static File tempFileFor(File target) {
+    Preconditions.checkNotNull(target);
+    return new File(target.getPath() + TEMP_SUFFIX);
+  }
+
+  public static boolean isTempFile(File file) {
+    return file.getName().endsWith(TEMP_SUFFIX);
+  }
+
+  public static void commit(File tempFile, File target) throws IOException {
+    Preconditions.checkNotNull(tempFile);
+    Preconditions.checkNotNull(target);
+
+    try {
+      Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  public static void write(File target, byte[] bytes) throws IOException {
+    Preconditions.checkNotNull(bytes);
+
+    File tempFile = tempFileFor(target);
+    Files.write(tempFile.toPath(), bytes);
+    commit(tempFile, target);
+  }
+}
@@ -0,0 +1,144 @@
+package com.experimental.utils;
+
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Helpers shared by the binary on-disk formats: unsigned LEB128 varints, length-prefixed UTF-8
+ * strings and bulk primitive arrays. Writing goes through a DataOutput, reading decodes straight
+ * out of a ByteBuffer so the same code works on heap buffers and memory-mapped files.
+ */
+public class BinaryIO {
+  public static final Charset UTF8 = Charset.forName("UTF-8");
+
+  public static void writeVarInt(DataOutput out, int value) throws IOException {
+    Preconditions.checkArgument(value >= 0);
+
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  public static int readVarInt(ByteBuffer in) {
+    int result = 0;
+    int shift = 0;
+    while (true) {
+      byte b = in.get();
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+
+      shift += 7;
+      Preconditions.checkState(shift < 32, "malformed varint");
+    }
+  }
+
+  public static int varIntSize(int value) {
+    int result = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      result++;
+    }
+    return result;
+  }
+
+  public static void writeString(DataOutput out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  public static String readString(ByteBuffer in) {
+    int length = readVarInt(in);
+    if (in.hasArray()) {
+      String result = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+      in.position(in.position() + length);
+      return result;
+    }
+
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Writes the first length values as big-endian ints, the layout readInts bulk-reads back.
+   */
+  public static void writeInts(DataOutput out, int[] values, int length) throws IOException {
+    Preconditions.checkArgument(length >= 0 && length <= values.length);
+    for (int i = 0; i < length; i++) {
+      out.writeInt(values[i]);
+    }
+  }
+
+  public static int[] readInts(ByteBuffer in, int length) {
+    int[] result = new int[length];
+    in.asIntBuffer().get(result);
+    in.position(in.position() + length * 4);
+    return result;
+  }
+
+  public static void writeDoubles(DataOutput out, double[] values, int length) throws IOException {
+    Preconditions.checkArgument(length >= 0 && length <= values.length);
+    for (int i = 0; i < length; i++) {
+      out.writeDouble(values[i]);
+    }
+  }
+
+  public static double[] readDoubles(ByteBuffer in, int length) {
+    double[] result = new double[length];
+    in.asDoubleBuffer().get(result);
+    in.position(in.position() + length * 8);
+    return result;
+  }
+
+  /**
+   * Reads a text artifact held in a buffer the same way a FileReader would read it from disk.
+   */
+  public static BufferedReader newTextReader(ByteBuffer buffer) {
+    Preconditions.checkNotNull(buffer);
+    return new BufferedReader(new InputStreamReader(new ByteBufferInputStream(buffer.duplicate()),
+        Charset.defaultCharset()));
+  }
+
+  public static ByteBuffer readFully(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+    return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+
+      int numRead = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, numRead);
+      return numRead;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}